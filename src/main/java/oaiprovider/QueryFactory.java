@@ -21,6 +21,7 @@ import proai.MetadataFormat;
 import proai.SetInfo;
 import proai.driver.RemoteIterator;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Properties;
@@ -45,6 +46,15 @@ public interface QueryFactory {
      */
     Date latestRecordDate(Iterator<? extends MetadataFormat> fedoraMetadataFormats);
 
+    /**
+     * Queries the Fedora Resource Index for the earliest last-modified date
+     * of all disseminations that act as metadata for the OAI provider.
+     *
+     * @param fedoraMetadataFormats the list of all FedoraMetadataFormats
+     * @return date of the earliest record, or null if there are no records
+     */
+    Date earliestRecordDate(Iterator<? extends MetadataFormat> fedoraMetadataFormats);
+
     /**
      * @return a RemoteIterator of proai.SetInfo objects
      */
@@ -59,4 +69,25 @@ public interface QueryFactory {
     RemoteIterator<FedoraRecord> listRecords(Date from,
                                              Date until,
                                              FedoraMetadataFormat format);
+
+    /**
+     * Count the records that <code>listRecords</code> would return for the
+     * given date range, with a single query.
+     *
+     * @param from  the date (inclusive) of the earliest record to count. Null
+     *              indicates no lower bound.
+     * @param until the date (inclusive). Null indicates no upper bound.
+     * @return the number of records
+     */
+    long countRecords(Date from,
+                      Date until,
+                      FedoraMetadataFormat format);
+
+    /**
+     * @param pids the PIDs of the objects to return records for, regardless
+     *             of when they were modified.  These must be valid PIDs.
+     * @return a RemoteIterator of proai.Record objects
+     */
+    RemoteIterator<FedoraRecord> listRecords(Collection<String> pids,
+                                             FedoraMetadataFormat format);
 }
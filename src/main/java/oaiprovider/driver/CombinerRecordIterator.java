@@ -17,14 +17,49 @@
 package oaiprovider.driver;
 
 import oaiprovider.FedoraRecord;
-import oaiprovider.ResultCombiner;
 import org.fcrepo.common.Constants;
+import org.jrdf.graph.Literal;
+import org.jrdf.graph.Node;
+import org.jrdf.graph.URIReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.trippi.TrippiException;
+import org.trippi.TupleIterator;
 import proai.driver.RemoteIterator;
 import proai.error.RepositoryException;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 /**
+ * Combines the results of up to three record queries into
+ * <code>FedoraRecord</code>s while they are being streamed from Fedora.
+ * <p/>
+ * <p>All queries must be ordered by <code>$itemID</code>.  The primary query
+ * yields one tuple per record:
+ * <p/>
+ * <pre>
+ * "item","itemID","date","state"
+ * info:fedora/nsdl:2051858,oai:nsdl.org:nsdl:10059:nsdl:2051858,2005-09-20T12:50:01,info:fedora/fedora-system:def/model#Active
+ * info:fedora/nsdl:2052376,oai:nsdl.org:nsdl:10059:nsdl:2052376,2005-09-20T12:50:02.23,info:fedora/fedora-system:def/model#Active
+ * </pre>
+ * <p/>
+ * The optional set membership query yields one tuple per set a record is a
+ * member of, and the optional about query one tuple per record that has an
+ * about dissemination:
+ * <p/>
+ * <pre>
+ * "itemID","setSpec"                            "itemID"
+ * oai:nsdl.org:nsdl:10059:nsdl:2051858,5101     oai:nsdl.org:nsdl:10059:nsdl:2051858
+ * oai:nsdl.org:nsdl:10059:nsdl:2051858,set2     oai:nsdl.org:nsdl:10059:nsdl:2052376
+ * oai:nsdl.org:nsdl:10059:nsdl:2052376,5101
+ * </pre>
+ * <p/>
+ * <p>Each record is built as soon as its primary tuple arrives, consuming
+ * the matching tuples of the other queries as it goes, so only one tuple of
+ * each query is held in memory at a time.
+ *
  * @author cwilper@cs.cornell.edu
  */
 public class CombinerRecordIterator
@@ -32,40 +67,85 @@ public class CombinerRecordIterator
 
     private static final Logger logger = LoggerFactory.getLogger(CombinerRecordIterator.class);
 
+    private static final String[] NO_SET_SPECS = new String[0];
+
     private final String m_aboutDissTypeURI;
-    private final ResultCombiner m_combiner;
+    private final TupleIterator m_primary;
+    private final TupleIterator m_sets;
+    private final TupleIterator m_abouts;
     private final String m_dissTypeURI;
     private final String m_mdPrefix;
-    private String m_nextLine;
+    private Map<String, Node> m_nextSet;
+    private Map<String, Node> m_nextAbout;
+    private boolean m_closed;
 
     /**
-     * Initialize with combined record query results.
+     * Initialize with streaming record query results.
+     *
+     * @param primary the results of the primary query. Must be provided.
+     * @param sets    the results of the set membership query, or null if
+     *                records should not carry set membership information.
+     * @param abouts  the results of the about query, or null if no record
+     *                has an about dissemination.
      */
     public CombinerRecordIterator(String mdPrefix,
                                   String dissTypeURI,
                                   String aboutDissTypeURI,
-                                  ResultCombiner combiner) {
+                                  TupleIterator primary,
+                                  TupleIterator sets,
+                                  TupleIterator abouts) throws RepositoryException {
         m_mdPrefix = mdPrefix;
         m_dissTypeURI = dissTypeURI;
         m_aboutDissTypeURI = aboutDissTypeURI;
-        m_combiner = combiner;
-        m_nextLine = m_combiner.readLine();
+        m_primary = primary;
+        m_sets = sets;
+        m_abouts = abouts;
+        try {
+            m_nextSet = nextTuple(m_sets);
+            m_nextAbout = nextTuple(m_abouts);
+        } catch (TrippiException e) {
+            close();
+            throw new RepositoryException("Error getting tuples from Fedora: "
+                    + e.getMessage(), e);
+        }
     }
 
-    public boolean hasNext() {
-        return (m_nextLine != null);
+    public boolean hasNext() throws RepositoryException {
+        if (m_closed) return false;
+        try {
+            if (m_primary.hasNext()) return true;
+        } catch (TrippiException e) {
+            throw new RepositoryException("Error getting tuples from Fedora: "
+                    + e.getMessage(), e);
+        }
+        close();
+        return false;
     }
 
     public FedoraRecord next() throws RepositoryException {
         try {
-            return getRecord(m_nextLine);
-        } finally {
-            if (m_nextLine != null) m_nextLine = m_combiner.readLine();
+            return getRecord(m_primary.next());
+        } catch (TrippiException e) {
+            throw new RepositoryException("Error getting tuples from Fedora: "
+                    + e.getMessage(), e);
         }
     }
 
     public void close() {
-        m_combiner.close();
+        if (m_closed) return;
+        m_closed = true;
+        close(m_primary);
+        close(m_sets);
+        close(m_abouts);
+    }
+
+    private static void close(TupleIterator tuples) {
+        if (tuples == null) return;
+        try {
+            tuples.close();
+        } catch (Throwable th) {
+            logger.warn("Unable to close tuple iterator", th);
+        }
     }
 
     /**
@@ -79,18 +159,20 @@ public class CombinerRecordIterator
         throw new UnsupportedOperationException("CombinerRecordIterator does not support remove().");
     }
 
+    private static Map<String, Node> nextTuple(TupleIterator tuples) throws TrippiException {
+        if (tuples != null && tuples.hasNext()) {
+            return tuples.next();
+        } else {
+            return null;
+        }
+    }
+
     /**
-     * Construct a record given a line from the combiner. Expected format is:
-     * "item","itemID","date","state","hasAbout"[,"setSpec1"[,"setSpec2"[,...]]]
-     * For example:
-     * info:fedora/nsdl:2051858,oai:nsdl.org:nsdl:10059:nsdl:2051858,2005-09-20T12:50:01,info:fedora/fedora-system:def/model#Active,true,5101,set2
+     * Construct a record from a tuple of the primary query, along with the
+     * tuples of the other queries that have the same itemID.
      */
-    private FedoraRecord getRecord(String line) throws RepositoryException {
-
-        logger.debug("Constructing record from combined query result line: "
-                + line);
-
-        String[] parts = line.split(",");
+    private FedoraRecord getRecord(Map<String, Node> tuple)
+            throws RepositoryException, TrippiException {
 
         String itemID;
         String recordDissURI;
@@ -99,38 +181,37 @@ public class CombinerRecordIterator
         String[] setSpecs;
         String aboutDissURI = null;
 
-        // parse the line into values for constructing a FedoraRecord
+        // take the values for constructing a FedoraRecord from the tuples
         try {
-            if (parts.length < 5) {
-                throw new Exception("Expected at least 5 comma-separated values");
-            }
-
-            String pid = parts[0].substring(12); // everything after
+            String pid = getString(tuple, "item").substring(12); // everything after
             // info:fedora/
 
-            itemID = parts[1];
+            itemID = getString(tuple, "itemID");
 
             recordDissURI = getDissURI(pid, m_dissTypeURI);
 
-            utcString = formatDatetime(parts[2]);
+            utcString = formatDatetime(getString(tuple, "date"));
 
-            isDeleted = !parts[3].equals(MODEL.ACTIVE.uri);
+            isDeleted = !getString(tuple, "state").equals(MODEL.ACTIVE.uri);
 
-            if (parts[4].equals("true")) {
+            if (hasAbout(itemID)) {
                 if (m_aboutDissTypeURI != null) {
                     aboutDissURI = getDissURI(pid, m_aboutDissTypeURI);
                 }
             }
 
-            setSpecs = new String[parts.length - 5];
-            System.arraycopy(parts, 5, setSpecs, 0, parts.length - 5);
+            setSpecs = getSetSpecs(itemID);
 
+        } catch (TrippiException e) {
+            throw e;
         } catch (Exception e) {
-            throw new RepositoryException("Error parsing combined query "
+            throw new RepositoryException("Error parsing record query "
                     + "results from Fedora: " + e.getMessage() + ".  Input "
-                    + "line was: " + line, e);
+                    + "tuple was: " + tuple, e);
         }
 
+        logger.debug("Constructed record " + itemID + " from query results");
+
         // if we got here, all the parameters were parsed correctly
         return new FedoraRecord(itemID,
                 m_mdPrefix,
@@ -141,6 +222,41 @@ public class CombinerRecordIterator
                 aboutDissURI);
     }
 
+    // tell whether this item has an about dissemination
+    private boolean hasAbout(String itemID) throws Exception {
+        if (m_nextAbout == null || !itemID.equals(getString(m_nextAbout, "itemID"))) {
+            return false;
+        }
+        m_nextAbout = nextTuple(m_abouts);
+        return true;
+    }
+
+    // get the setSpecs for this item
+    private String[] getSetSpecs(String itemID) throws Exception {
+        if (m_nextSet == null || !itemID.equals(getString(m_nextSet, "itemID"))) {
+            return NO_SET_SPECS;
+        }
+        List<String> setSpecs = new ArrayList<>();
+        while (m_nextSet != null && itemID.equals(getString(m_nextSet, "itemID"))) {
+            setSpecs.add(getString(m_nextSet, "setSpec"));
+            m_nextSet = nextTuple(m_sets);
+        }
+        return setSpecs.toArray(new String[setSpecs.size()]);
+    }
+
+    private static String getString(Map<String, Node> tuple, String name) throws Exception {
+        Node node = tuple.get(name);
+        if (node == null) {
+            throw new Exception("No value for " + name);
+        } else if (node instanceof Literal) {
+            return ((Literal) node).getLexicalForm();
+        } else if (node instanceof URIReference) {
+            return ((URIReference) node).getURI().toString();
+        } else {
+            return node.stringValue();
+        }
+    }
+
     private String getDissURI(String pid, String dissType) throws Exception {
         try {
             return "info:fedora/" + pid + dissType.substring(13);
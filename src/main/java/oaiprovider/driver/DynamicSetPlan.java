@@ -0,0 +1,281 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package oaiprovider.driver;
+
+import de.qucosa.xmlutils.SimpleNamespaceContext;
+import oaiprovider.mappings.DissTerms.Term;
+import oaiprovider.mappings.ListSetConfJson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import proai.driver.daos.json.DissTermsDaoJson;
+import proai.driver.daos.json.SetSpecDaoJson;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The dynamic set predicates of one metadata format, compiled once for
+ * evaluation against any number of records.
+ * <p/>
+ * <p>Each configured set whose predicate has a term for the format becomes
+ * an entry of the plan, with <code>$val</code> already replaced.  Entries
+ * whose XPath does not compile are logged and left out when the plan is
+ * built, rather than for every record.  Entries with the same XPath share
+ * a single evaluation.
+ * <p/>
+ * <p>The distinct XPaths are combined into a few expressions that each
+ * yield one digit per XPath, so a record is matched against all sets with
+ * a handful of evaluations, rather than one per set.  How many XPaths go
+ * into one expression is limited by what the XPath implementation accepts
+ * in a single expression.
+ * <p/>
+ * <p>A plan is immutable.  Since compiled XPath expressions are not
+ * thread-safe, each thread compiles its own copy on first use.
+ */
+final class DynamicSetPlan {
+
+    private static final Logger logger = LoggerFactory.getLogger(DynamicSetPlan.class);
+
+    private static final int MAX_CHUNK_SIZE = 32;
+
+    private final String m_mdPrefix;
+    private final List<Entry> m_entries;
+    private final List<String> m_terms;
+    private final List<String> m_chunks;
+    private final int[] m_chunkSizes;
+    private final NamespaceContext m_namespaceContext;
+
+    private final ThreadLocal<XPathExpression[]> m_expressions = new ThreadLocal<XPathExpression[]>() {
+        @Override
+        protected XPathExpression[] initialValue() {
+            XPath xPath = newXPath(m_namespaceContext);
+            XPathExpression[] expressions = new XPathExpression[m_chunks.size()];
+            for (int i = 0; i < expressions.length; i++) {
+                try {
+                    expressions[i] = xPath.compile(m_chunks.get(i));
+                } catch (XPathExpressionException e) {
+                    // was compiled when the plan was built
+                    throw new IllegalStateException(e);
+                }
+            }
+            return expressions;
+        }
+    };
+
+    private DynamicSetPlan(String mdPrefix,
+                           List<Entry> entries,
+                           List<String> terms,
+                           List<String> chunks,
+                           int[] chunkSizes,
+                           NamespaceContext namespaceContext) {
+        m_mdPrefix = mdPrefix;
+        m_entries = Collections.unmodifiableList(entries);
+        m_terms = Collections.unmodifiableList(terms);
+        m_chunks = Collections.unmodifiableList(chunks);
+        m_chunkSizes = chunkSizes;
+        m_namespaceContext = namespaceContext;
+    }
+
+    /**
+     * Build the plan for the given metadata format from the configured sets
+     * and the terms of their predicates.
+     */
+    static DynamicSetPlan compile(String mdPrefix,
+                                  DissTermsDaoJson dissTerms,
+                                  SetSpecDaoJson setSpecs) {
+
+        NamespaceContext namespaceContext = new SimpleNamespaceContext(dissTerms.getMapXmlNamespaces());
+        XPath xPath = newXPath(namespaceContext);
+
+        List<Entry> entries = new ArrayList<>();
+        List<String> terms = new ArrayList<>();
+        for (ListSetConfJson.Set set : setSpecs.getSetObjects()) {
+
+            String setSpec = set.getSetSpec();
+            String setPredicate = set.getPredicate();
+            if (isNullOrEmpty(setSpec) || isNullOrEmpty(setPredicate)) {
+                continue;
+            }
+
+            String predicateName;
+            String predicateValue;
+
+            if (setPredicate.contains("=")) {
+                String[] split = setPredicate.split("=");
+                predicateName = split[0];
+                predicateValue = (split.length > 1) ? split[1] : "";
+            } else {
+                predicateName = setPredicate;
+                predicateValue = null;
+            }
+
+            Term term = dissTerms.getTerm(predicateName, mdPrefix);
+            if (term == null || isNullOrEmpty(term.getTerm())) {
+                continue;
+            }
+
+            String termExpression = term.getTerm();
+            String xpathTerm;
+            if (predicateValue != null && termExpression.contains("$val")) {
+                xpathTerm = termExpression.replace("$val", predicateValue);
+            } else {
+                xpathTerm = termExpression;
+            }
+
+            boolean expectMatch = true;
+            if ("false".equalsIgnoreCase(predicateValue) || "true".equalsIgnoreCase(predicateValue)) {
+                expectMatch = Boolean.valueOf(predicateValue);
+            }
+
+            int termIndex = terms.indexOf(xpathTerm);
+            if (termIndex == -1) {
+                try {
+                    xPath.compile(xpathTerm);
+                } catch (XPathExpressionException e) {
+                    logger.error(String.format("Cannot evaluate XPath expression >>>%s<<< : %s", xpathTerm, e.getMessage()));
+                    continue;
+                }
+                termIndex = terms.size();
+                terms.add(xpathTerm);
+            }
+
+            entries.add(new Entry(setSpec, termIndex, expectMatch));
+        }
+
+        List<String> chunks = new ArrayList<>();
+        List<Integer> chunkSizes = new ArrayList<>();
+        for (int start = 0; start < terms.size(); start += MAX_CHUNK_SIZE) {
+            addChunks(xPath, terms, start, Math.min(start + MAX_CHUNK_SIZE, terms.size()), chunks, chunkSizes);
+        }
+        int[] sizes = new int[chunkSizes.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = chunkSizes.get(i);
+        }
+
+        logger.debug(String.format("Compiled %d dynamic set predicates for %s into %d expressions",
+                entries.size(), mdPrefix, chunks.size()));
+        return new DynamicSetPlan(mdPrefix, entries, terms, chunks, sizes, namespaceContext);
+    }
+
+    /**
+     * Combine the given range of terms into as few expressions as the XPath
+     * implementation accepts, splitting the range in halves as needed.
+     */
+    private static void addChunks(XPath xPath,
+                                  List<String> terms,
+                                  int start,
+                                  int end,
+                                  List<String> chunks,
+                                  List<Integer> chunkSizes) {
+        String chunk = combine(terms.subList(start, end));
+        if (end - start > 1) {
+            try {
+                xPath.compile(chunk);
+            } catch (XPathExpressionException e) {
+                int middle = start + (end - start) / 2;
+                addChunks(xPath, terms, start, middle, chunks, chunkSizes);
+                addChunks(xPath, terms, middle, end, chunks, chunkSizes);
+                return;
+            }
+        }
+        chunks.add(chunk);
+        chunkSizes.add(end - start);
+    }
+
+    private static String combine(List<String> terms) {
+        StringBuilder combined = new StringBuilder("concat(");
+        for (String term : terms) {
+            combined.append("number(boolean(").append(term).append(")), ");
+        }
+        combined.append("'')");
+        return combined.toString();
+    }
+
+    /**
+     * Whether no set can ever match a record of this format.
+     */
+    boolean isEmpty() {
+        return m_entries.isEmpty();
+    }
+
+    /**
+     * Get the setSpecs of all sets the given document matches.
+     */
+    List<String> evaluate(Document document) {
+        List<String> result = new ArrayList<>();
+        if (m_entries.isEmpty()) {
+            return result;
+        }
+
+        // null for terms that could not be evaluated
+        Boolean[] matches = new Boolean[m_terms.size()];
+        XPathExpression[] expressions = m_expressions.get();
+        int termIndex = 0;
+        for (int i = 0; i < expressions.length; i++) {
+            try {
+                String digits = (String) expressions[i].evaluate(document, XPathConstants.STRING);
+                for (int j = 0; j < digits.length(); j++) {
+                    matches[termIndex + j] = digits.charAt(j) == '1';
+                }
+            } catch (XPathExpressionException e) {
+                logger.error(String.format("Cannot evaluate set predicates for %s >>>%s<<< : %s",
+                        m_mdPrefix, m_chunks.get(i), e.getMessage()));
+            }
+            termIndex += m_chunkSizes[i];
+        }
+
+        for (Entry entry : m_entries) {
+            Boolean match = matches[entry.termIndex];
+            if (match != null && match == entry.expectMatch) {
+                result.add(entry.setSpec);
+            }
+        }
+        return result;
+    }
+
+    private static XPath newXPath(NamespaceContext namespaceContext) {
+        XPath xPath = XPathFactory.newInstance().newXPath();
+        xPath.setNamespaceContext(namespaceContext);
+        return xPath;
+    }
+
+    private static boolean isNullOrEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+
+    private static final class Entry {
+
+        private final String setSpec;
+        private final int termIndex;
+        private final boolean expectMatch;
+
+        private Entry(String setSpec, int termIndex, boolean expectMatch) {
+            this.setSpec = setSpec;
+            this.termIndex = termIndex;
+            this.expectMatch = expectMatch;
+        }
+    }
+}
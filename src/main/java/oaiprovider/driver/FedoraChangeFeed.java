@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package oaiprovider.driver;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listens to the messages Fedora publishes about changes to its objects
+ * and passes on the PIDs of changed objects in batches.
+ * <p/>
+ * <p>Fedora publishes an Atom entry to the <code>fedora.apim.update</code>
+ * topic of its message broker for every API-M call that changes an object.
+ * The PID is taken from the <code>pid</code> header of the message, or
+ * failing that, from the summary of the entry.
+ * <p/>
+ * <p>PIDs are collected for a configurable number of milliseconds after the
+ * first one arrives, so a burst of changes to the same or to many objects
+ * is handled at once.  This delay should also be long enough for the
+ * resource index to reflect the change.
+ * <p/>
+ * <p>If the connection to the broker fails, it is re-established after an
+ * increasing delay.  Changes made in the meantime are not seen here, and are
+ * left to be picked up by polling.
+ */
+class FedoraChangeFeed extends Thread {
+
+    private static final Logger logger = LoggerFactory.getLogger(FedoraChangeFeed.class);
+
+    private static final Pattern PID_PATTERN = Pattern.compile(
+            "([A-Za-z0-9]|-|\\.)+:(([A-Za-z0-9])|-|\\.|~|_|(%[0-9A-F]{2}))+");
+    private static final Pattern SUMMARY_PATTERN = Pattern.compile(
+            "<summary[^>]*>\\s*([^<\\s]+)\\s*</summary>");
+
+    private static final int MAX_READ_TIMEOUT = 1000;
+    private static final long MIN_RECONNECT_DELAY = 1000;
+    private static final long MAX_RECONNECT_DELAY = 60000;
+
+    /**
+     * Receives the PIDs of changed objects.
+     */
+    interface Handler {
+        void pidsChanged(Set<String> pids);
+    }
+
+    private final String m_host;
+    private final int m_port;
+    private final String m_login;
+    private final String m_passcode;
+    private final String m_destination;
+    private final int m_batchMillis;
+    private final Handler m_handler;
+
+    private volatile boolean m_shutdownRequested;
+
+    FedoraChangeFeed(String host,
+                     int port,
+                     String login,
+                     String passcode,
+                     String destination,
+                     int batchMillis,
+                     Handler handler) {
+        super("FedoraChangeFeed");
+        setDaemon(true);
+        m_host = host;
+        m_port = port;
+        m_login = login;
+        m_passcode = passcode;
+        m_destination = destination;
+        m_batchMillis = batchMillis;
+        m_handler = handler;
+    }
+
+    @Override
+    public void run() {
+        logger.info("Listening for changes on " + m_destination
+                + " at " + m_host + ":" + m_port);
+        long reconnectDelay = MIN_RECONNECT_DELAY;
+        while (!m_shutdownRequested) {
+            try (StompConnection connection = new StompConnection(m_host, m_port,
+                    m_login, m_passcode, Math.min(m_batchMillis, MAX_READ_TIMEOUT))) {
+                connection.subscribe(m_destination);
+                logger.info("Connected to message broker at " + m_host + ":" + m_port);
+                reconnectDelay = MIN_RECONNECT_DELAY;
+                receiveChanges(connection);
+            } catch (IOException e) {
+                if (m_shutdownRequested) break;
+                logger.warn("Not receiving changes from message broker at " + m_host + ":"
+                        + m_port + ", retrying in " + reconnectDelay + "ms: " + e.getMessage());
+                try {
+                    Thread.sleep(reconnectDelay);
+                } catch (InterruptedException ignored) {
+                }
+                reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+            }
+        }
+        logger.info("Stopped listening for changes");
+    }
+
+    private void receiveChanges(StompConnection connection) throws IOException {
+        Set<String> pids = new LinkedHashSet<>();
+        long batchEndTime = 0;
+        while (!m_shutdownRequested) {
+            StompConnection.Frame frame = connection.receive();
+            if (frame != null && frame.getCommand().equals("MESSAGE")) {
+                String pid = getPID(frame);
+                if (pid != null) {
+                    if (pids.isEmpty()) {
+                        batchEndTime = System.currentTimeMillis() + m_batchMillis;
+                    }
+                    pids.add(pid);
+                }
+            }
+            if (!pids.isEmpty() && System.currentTimeMillis() >= batchEndTime) {
+                passOn(pids);
+                pids = new LinkedHashSet<>();
+            }
+        }
+    }
+
+    private void passOn(Set<String> pids) {
+        logger.debug("Received changes to " + pids.size() + " objects");
+        try {
+            m_handler.pidsChanged(pids);
+        } catch (Throwable th) {
+            // polling will pick them up eventually
+            logger.warn("Failed to handle changes to " + pids.size() + " objects", th);
+        }
+    }
+
+    /**
+     * Get the PID of the object the message is about.
+     *
+     * @return the PID, or <code>null</code> if the message does not name a
+     * valid one.
+     */
+    static String getPID(StompConnection.Frame frame) {
+        String pid = frame.getHeader("pid");
+        if (pid == null) {
+            Matcher matcher = SUMMARY_PATTERN.matcher(frame.getBody());
+            if (matcher.find()) {
+                pid = matcher.group(1);
+            }
+        }
+        if (pid == null || !PID_PATTERN.matcher(pid.trim()).matches()) {
+            logger.debug("Ignoring message without valid PID: " + frame.getHeader("message-id"));
+            return null;
+        }
+        return pid.trim();
+    }
+
+    /**
+     * Stop listening and wait for the thread to finish.
+     */
+    void shutdown() {
+        m_shutdownRequested = true;
+        interrupt();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
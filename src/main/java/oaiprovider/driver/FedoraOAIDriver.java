@@ -20,6 +20,8 @@ import static javax.xml.transform.OutputKeys.METHOD;
 import static javax.xml.transform.OutputKeys.OMIT_XML_DECLARATION;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -27,6 +29,10 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -34,23 +40,31 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
-import oaiprovider.mappings.DissTerms.Term;
 import org.fcrepo.client.FedoraClient;
 import org.fcrepo.common.http.HttpInputStream;
 import org.slf4j.Logger;
@@ -59,27 +73,30 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
-import de.qucosa.xmlutils.SimpleNamespaceContext;
 import oaiprovider.FedoraMetadataFormat;
 import oaiprovider.FedoraRecord;
 import oaiprovider.InvocationSpec;
 import oaiprovider.QueryFactory;
-import oaiprovider.mappings.ListSetConfJson;
 import proai.SetInfo;
-import proai.driver.OAIDriver;
+import proai.driver.ChangeListener;
+import proai.driver.ChangeNotifyingOAIDriver;
+import proai.driver.CountingOAIDriver;
+import proai.driver.FetchingOAIDriver;
+import proai.driver.RecordHeaderListener;
 import proai.driver.RemoteIterator;
 import proai.driver.daos.json.DissTermsDaoJson;
 import proai.driver.daos.json.SetSpecDaoJson;
 import proai.driver.impl.RemoteIteratorImpl;
 import proai.error.BadArgumentException;
 import proai.error.RepositoryException;
+import proai.util.StreamUtil;
 
 /**
  * Implementation of the OAIDriver interface for Fedora.
  *
  * @author Edwin Shin, cwilper@cs.cornell.edu
  */
-public class FedoraOAIDriver implements OAIDriver {
+public class FedoraOAIDriver implements FetchingOAIDriver, ChangeNotifyingOAIDriver, CountingOAIDriver {
 
     private static final Logger logger = LoggerFactory.getLogger(FedoraOAIDriver.class);
     private static final String NS = "driver.fedora.";
@@ -96,6 +113,26 @@ public class FedoraOAIDriver implements OAIDriver {
     private static final String PROP_FORMAT_URI_END = ".uri";
     private static final String PROP_FORMAT_DISSTYPE_END = ".dissType";
     private static final String PROP_FORMAT_ABOUT_END = ".about.dissType";
+    private static final String PROP_STOMP_HOST = NS + "stomp.host";
+    private static final String PROP_STOMP_PORT = NS + "stomp.port";
+    private static final String PROP_STOMP_USER = NS + "stomp.user";
+    private static final String PROP_STOMP_PASS = NS + "stomp.pass";
+    private static final String PROP_STOMP_DESTINATION = NS + "stomp.destination";
+    private static final String PROP_STOMP_BATCH_MILLIS = NS + "stomp.batchMillis";
+    private static final String PROP_WINDOW_RECORDS = NS + "window.records";
+    private static final String PROP_WINDOW_HOURS = NS + "window.hours";
+    private static final String PROP_WINDOW_THREADS = NS + "window.threads";
+    private static final String PROP_WINDOW_ATTEMPTS = NS + "window.attempts";
+    private static final String PROP_MAX_WORKERS = "proai.maxWorkers";
+    private static final String PROP_MAX_IN_FLIGHT_FETCHES = "proai.maxInFlightFetches";
+
+    private static final int DEFAULT_STOMP_PORT = 61613;
+    private static final String DEFAULT_STOMP_DESTINATION = "/topic/fedora.apim.update";
+    private static final int DEFAULT_STOMP_BATCH_MILLIS = 2000;
+    private static final int DEFAULT_WINDOW_RECORDS = 10000;
+    private static final int DEFAULT_WINDOW_HOURS = 24 * 30;
+    private static final int DEFAULT_WINDOW_THREADS = 2;
+    private static final int DEFAULT_WINDOW_ATTEMPTS = 3;
 
     public static final String PROP_ITEMID = NS + "itemID";
     public static final String PROP_SETSPEC = NS + "setSpec";
@@ -112,11 +149,22 @@ public class FedoraOAIDriver implements OAIDriver {
     private QueryFactory m_queryFactory;
     private InvocationSpec m_setSpecDiss;
     private Properties props;
+    private FedoraChangeFeed m_changeFeed;
+    private final ConcurrentMap<String, DynamicSetPlan> m_dynamicSetPlans = new ConcurrentHashMap<>();
+    private ExecutorService m_aboutFetcher;
+    private int m_windowRecords;
+    private long m_windowMillis;
+    private int m_windowThreads;
+    private int m_windowAttempts;
 
     private static final ThreadLocal<DocumentBuilder> threadLocalDocumentBuilder;
     private static final ThreadLocal<Transformer> threadLocalTransformer;
+    private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
 
     static {
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
         final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
         documentBuilderFactory.setNamespaceAware(true);
 
@@ -161,88 +209,26 @@ public class FedoraOAIDriver implements OAIDriver {
         }
 
         out.println("  </header>");
-    }
-
-    private List<String> getDynamicSetSpecs(String mdPrefix, Document document) {
-        List<String> result = new ArrayList<>();
-
-        XPath xPath = XPathFactory.newInstance().newXPath();
-        xPath.setNamespaceContext(new SimpleNamespaceContext(dissTermsData().getMapXmlNamespaces()));
-
-        for (ListSetConfJson.Set set : ((SetSpecDaoJson) props.get(PROP_SETSPEC_DAO_JSON)).getSetObjects()) {
-
-            String setSpec = set.getSetSpec();
-            if (assertNotNullNotEmpty(setSpec)) {
-                continue;
-            }
-
-            String setPredicate = set.getPredicate();
-            if (assertNotNullNotEmpty(setPredicate)) {
-                continue;
-            }
-
-            String predicateName;
-            String predicateValue;
-
-            if (setPredicate.contains("=")) {
-                String[] split = setPredicate.split("=");
-                predicateName = split[0];
-                predicateValue = (split.length > 1) ? split[1] : "";
-            } else {
-                predicateName = setPredicate;
-                predicateValue = null;
-            }
-
-            Term term = dissTermsData().getTerm(predicateName, mdPrefix);
-
-            if (term == null) {
-                continue;
-            }
-
-            String termExpression = term.getTerm();
 
-            if (termExpression == null || termExpression.isEmpty()) {
-                continue;
-            }
-
-            if (termMatches(document, xPath, predicateValue, termExpression)) {
-                result.add(set.getSetSpec());
-            }
+        if (out instanceof RecordHeaderListener) {
+            ((RecordHeaderListener) out).recordHeader(date, setSpecs);
         }
-
-        return result;
     }
 
-    private DissTermsDaoJson dissTermsData() {
-        return ((DissTermsDaoJson) props.get(PROP_DISS_TERMS_DAO_JSON));
-    }
-
-    private boolean assertNotNullNotEmpty(String setName) {
-        return setName == null || setName.isEmpty();
-    }
-
-    private static boolean termMatches(Document document, XPath xPath, String predicateValue, String termExpression) {
-        String xpathTerm;
-        if (predicateValue != null && termExpression.contains("$val")) {
-            xpathTerm = termExpression.replace("$val", predicateValue);
-        } else {
-            xpathTerm = termExpression;
-        }
-
-        Boolean expectMatch = Boolean.TRUE;
-        if ("false".equalsIgnoreCase(predicateValue) || "true".equalsIgnoreCase(predicateValue)) {
-           expectMatch = Boolean.valueOf(predicateValue);
-        }
-
-        try {
-            XPathExpression xPathExpression = xPath.compile(xpathTerm);
-            Boolean match = (Boolean) xPathExpression.evaluate(document, XPathConstants.BOOLEAN);
-            return match.equals(expectMatch);
-        } catch (XPathExpressionException e) {
-            logger.error(String.format("Cannot evaluate XPath expression >>>%s<<< : %s", xpathTerm, e.getMessage()));
+    /**
+     * Get the compiled dynamic set predicates of the given format, building
+     * them on first use.
+     */
+    private DynamicSetPlan getDynamicSetPlan(String mdPrefix) {
+        DynamicSetPlan plan = m_dynamicSetPlans.get(mdPrefix);
+        if (plan == null) {
+            plan = DynamicSetPlan.compile(mdPrefix,
+                    (DissTermsDaoJson) props.get(PROP_DISS_TERMS_DAO_JSON),
+                    (SetSpecDaoJson) props.get(PROP_SETSPEC_DAO_JSON));
+            DynamicSetPlan existing = m_dynamicSetPlans.putIfAbsent(mdPrefix, plan);
+            if (existing != null) plan = existing;
         }
-
-        return false;
+        return plan;
     }
 
     static String getRequired(Properties props, String key)
@@ -267,6 +253,20 @@ public class FedoraOAIDriver implements OAIDriver {
         }
     }
 
+    static int getOptionalInt(Properties props, String key, int defaultValue)
+            throws RepositoryException {
+        String val = getOptional(props, key);
+        if (val.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(val);
+        } catch (Exception e) {
+            throw new RepositoryException("Value of property " + key
+                    + " is not an integer: " + val);
+        }
+    }
+
     /**
      * @param props
      * @param key
@@ -318,6 +318,25 @@ public class FedoraOAIDriver implements OAIDriver {
         }
 
         m_setSpecDiss = InvocationSpec.getInstance(getOptional(props, PROP_SETSPEC_DESC_DISSTYPE));
+
+        m_windowRecords = getOptionalInt(props, PROP_WINDOW_RECORDS, DEFAULT_WINDOW_RECORDS);
+        m_windowMillis = getOptionalInt(props, PROP_WINDOW_HOURS, DEFAULT_WINDOW_HOURS) * 3600000L;
+        m_windowThreads = Math.max(getOptionalInt(props, PROP_WINDOW_THREADS, DEFAULT_WINDOW_THREADS), 1);
+        m_windowAttempts = Math.max(getOptionalInt(props, PROP_WINDOW_ATTEMPTS, DEFAULT_WINDOW_ATTEMPTS), 1);
+
+        // each fetch in flight waits for at most one about dissemination
+        int maxFetches = getOptionalInt(props, PROP_MAX_IN_FLIGHT_FETCHES,
+                getOptionalInt(props, PROP_MAX_WORKERS, 1));
+        m_aboutFetcher = Executors.newFixedThreadPool(Math.max(maxFetches, 1), new ThreadFactory() {
+            private final AtomicInteger m_threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AboutFetcher-" + m_threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     @Override
@@ -359,7 +378,33 @@ public class FedoraOAIDriver implements OAIDriver {
             throw new BadArgumentException("from date cannot be later than until date.");
         }
 
-        return m_queryFactory.listRecords(from, until, m_metadataFormats.get(mdPrefix));
+        FedoraMetadataFormat format = m_metadataFormats.get(mdPrefix);
+
+        // split ranges longer than a window into windows, so the initial
+        // poll doesn't query the whole repository at once
+        if (m_windowRecords > 0 && until != null
+                && (from == null || until.getTime() - from.getTime() > m_windowMillis)) {
+            Date earliest = m_queryFactory.earliestRecordDate(m_metadataFormats.values().iterator());
+            if (earliest == null) {
+                return new RemoteIteratorImpl<>(new ArrayList<FedoraRecord>().iterator());
+            }
+            if (from == null || from.before(earliest)) {
+                from = earliest;
+            }
+            if (until.getTime() - from.getTime() > m_windowMillis) {
+                logger.debug(String.format("Listing %s records from %s to %s in windows",
+                        mdPrefix, from, until));
+                return new WindowedRecordIterator(m_queryFactory, format, from, until,
+                        m_windowMillis, m_windowRecords, m_windowThreads, m_windowAttempts);
+            }
+        }
+
+        return m_queryFactory.listRecords(from, until, format);
+    }
+
+    @Override
+    public long countRecords(Date from, Date until, String mdPrefix) throws RepositoryException {
+        return m_queryFactory.countRecords(from, until, m_metadataFormats.get(mdPrefix));
     }
 
     @Override
@@ -367,52 +412,186 @@ public class FedoraOAIDriver implements OAIDriver {
                                String mdPrefix,
                                String sourceInfo,
                                PrintWriter out) throws RepositoryException {
+        writeRecordXML(itemID, mdPrefix, sourceInfo,
+                fetchRecordContent(itemID, mdPrefix, sourceInfo), out);
+    }
 
-        // Parse the sourceInfo string
-        String[] parts = sourceInfo.trim().split(" ");
-        if (parts.length < 4) {
-            throw new RepositoryException("Error parsing sourceInfo (expecting "
-                    + "4 or more parts): '" + sourceInfo + "'");
+    //////////////////////////////////////////////////////////////////////////
+    ///////////////// Methods from proai.driver.FetchingOAIDriver ////////////
+    //////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public Object fetchRecordContent(String itemID,
+                                     String mdPrefix,
+                                     String sourceInfo) throws RepositoryException {
+
+        String[] parts = parseSourceInfo(sourceInfo);
+        String dissURI = parts[0];
+        final String aboutDissURI = parts[1];
+        boolean deleted = parts[2].equalsIgnoreCase("true");
+
+        // request the abouts right away, so they arrive while the
+        // dissemination is being fetched rather than after it
+        Future<byte[]> abouts = null;
+        if (!aboutDissURI.equals("null") && !deleted) {
+            abouts = m_aboutFetcher.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return fetchDissemination(aboutDissURI);
+                }
+            });
+        }
+        try {
+            // the dissemination is needed for dynamic setSpecs even if deleted
+            byte[] dissemination = fetchDissemination(dissURI);
+            return new RecordContent(dissemination,
+                    abouts == null ? null : awaitDissemination(abouts, aboutDissURI));
+        } finally {
+            if (abouts != null) {
+                // only has an effect if the dissemination could not be fetched
+                abouts.cancel(true);
+            }
         }
+    }
+
+    @Override
+    public void writeRecordXML(String itemID,
+                               String mdPrefix,
+                               String sourceInfo,
+                               Object content,
+                               PrintWriter out) throws RepositoryException {
+
+        String[] parts = parseSourceInfo(sourceInfo);
         String dissURI = parts[0];
         String aboutDissURI = parts[1];
         boolean deleted = parts[2].equalsIgnoreCase("true");
         String date = parts[3];
+        RecordContent recordContent = (RecordContent) content;
 
         out.println("<record>");
 
-        Document disseminationDocument = getDissemination(dissURI);
         List<String> setSpecs = new ArrayList<>(Arrays.asList(parts).subList(4, parts.length));
-        setSpecs.addAll(getDynamicSetSpecs(mdPrefix, disseminationDocument));
+
+        // only build a DOM if there are set predicates to evaluate on it
+        DynamicSetPlan plan = getDynamicSetPlan(mdPrefix);
+        Document disseminationDocument = null;
+        if (!plan.isEmpty()) {
+            disseminationDocument = parseDissemination(recordContent.dissemination, dissURI);
+            setSpecs.addAll(plan.evaluate(disseminationDocument));
+        }
 
         writeRecordHeader(itemID, deleted, date, setSpecs, out);
 
         if (!deleted) {
-            writeRecordMetadata(out, serializeXml(disseminationDocument));
+            writeRecordMetadata(out, getDisseminationXml(recordContent.dissemination, dissURI,
+                    disseminationDocument));
         }
 
-        if (!aboutDissURI.equals("null") && !deleted) {
-            writeRecordAbouts(aboutDissURI, out);
+        if (recordContent.abouts != null) {
+            writeRecordAbouts(getDisseminationXml(recordContent.abouts, aboutDissURI, null), out);
         }
 
         out.println("</record>");
     }
 
+    @Override
+    public void stopFetching() {
+        if (m_aboutFetcher != null) {
+            m_aboutFetcher.shutdownNow();
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    ///////////// Methods from proai.driver.ChangeNotifyingOAIDriver /////////
+    //////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public synchronized boolean startChangeNotification(final ChangeListener listener)
+            throws RepositoryException {
+        String host = getOptional(props, PROP_STOMP_HOST);
+        if (host.isEmpty()) {
+            return false;
+        }
+        if (m_changeFeed != null) {
+            throw new RepositoryException("Change notification is already started");
+        }
+
+        String user = getOptional(props, PROP_STOMP_USER);
+        String destination = getOptional(props, PROP_STOMP_DESTINATION);
+        m_changeFeed = new FedoraChangeFeed(host,
+                getOptionalInt(props, PROP_STOMP_PORT, DEFAULT_STOMP_PORT),
+                user.isEmpty() ? null : user,
+                getOptional(props, PROP_STOMP_PASS),
+                destination.isEmpty() ? DEFAULT_STOMP_DESTINATION : destination,
+                getOptionalInt(props, PROP_STOMP_BATCH_MILLIS, DEFAULT_STOMP_BATCH_MILLIS),
+                new FedoraChangeFeed.Handler() {
+                    @Override
+                    public void pidsChanged(Set<String> pids) {
+                        for (FedoraMetadataFormat format : m_metadataFormats.values()) {
+                            listener.recordsChanged(m_queryFactory.listRecords(pids, format));
+                        }
+                    }
+                });
+        m_changeFeed.start();
+        return true;
+    }
+
+    @Override
+    public synchronized void stopChangeNotification() {
+        if (m_changeFeed != null) {
+            m_changeFeed.shutdown();
+            m_changeFeed = null;
+        }
+    }
+
     //////////////////////////////////////////////////////////////////////////
     ////////////////////////////// Helper Methods ////////////////////////////
     //////////////////////////////////////////////////////////////////////////
 
-    private Document getDissemination(String dissURI) {
+    private static String[] parseSourceInfo(String sourceInfo) throws RepositoryException {
+        String[] parts = sourceInfo.trim().split(" ");
+        if (parts.length < 4) {
+            throw new RepositoryException("Error parsing sourceInfo (expecting "
+                    + "4 or more parts): '" + sourceInfo + "'");
+        }
+        return parts;
+    }
+
+    private byte[] fetchDissemination(String dissURI) {
         try (InputStream in = m_fedora.get(dissURI, true)) {
-            return threadLocalDocumentBuilder.get().parse(in);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            StreamUtil.pipe(in, out);
+            return out.toByteArray();
         } catch (IOException e) {
             throw new RepositoryException("Error obtaining dissemination from " + dissURI, e);
+        }
+    }
+
+    private static byte[] awaitDissemination(Future<byte[]> dissemination, String dissURI) {
+        try {
+            return dissemination.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RepositoryException) {
+                throw (RepositoryException) e.getCause();
+            }
+            throw new RepositoryException("Error obtaining dissemination from " + dissURI, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while obtaining dissemination from " + dissURI, e);
+        }
+    }
+
+    private static Document parseDissemination(byte[] dissemination, String dissURI) {
+        try {
+            return threadLocalDocumentBuilder.get().parse(new ByteArrayInputStream(dissemination), dissURI);
+        } catch (IOException e) {
+            throw new RepositoryException("Error reading dissemination from " + dissURI, e);
         } catch (SAXException e) {
             throw new RepositoryException("Error parsing dissemination XML", e);
         }
     }
 
-    private String serializeXml(Document document) {
+    private static String serializeXml(Document document) {
         try {
             StringWriter stringWriter = new StringWriter();
             threadLocalTransformer.get().transform(new DOMSource(document), new StreamResult(stringWriter));
@@ -422,23 +601,144 @@ public class FedoraOAIDriver implements OAIDriver {
         }
     }
 
-    private void writeRecordMetadata(PrintWriter out, String xml) {
+    /**
+     * Get the XML of a dissemination to write into a record. It is copied
+     * from the dissemination as it is, unless it has a DOCTYPE, which may
+     * declare entities used in it; then the DOM of it is serialized, with
+     * the entities expanded.
+     *
+     * @param document the DOM of the dissemination, or null if not built.
+     */
+    static CharBuffer getDisseminationXml(byte[] dissemination, String dissURI, Document document) {
+        if (document == null) {
+            String encoding = checkDissemination(dissemination, dissURI);
+            if (encoding != null) {
+                return decodeDissemination(dissemination, encoding);
+            }
+            document = parseDissemination(dissemination, dissURI);
+        } else if (document.getDoctype() == null) {
+            return decodeDissemination(dissemination, document.getInputEncoding());
+        }
+        return CharBuffer.wrap(serializeXml(document).toCharArray());
+    }
+
+    /**
+     * Check that the dissemination is well-formed XML, without building a
+     * DOM of it. The check stops at a DOCTYPE, since the entities it may
+     * declare are not read.
+     *
+     * @return the encoding of the dissemination, or null if it has a DOCTYPE.
+     */
+    private static String checkDissemination(byte[] dissemination, String dissURI) {
+        try {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(dissURI,
+                    new ByteArrayInputStream(dissemination));
+            try {
+                String encoding = reader.getEncoding();
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.DTD) {
+                        return null;
+                    }
+                }
+                return encoding == null ? StandardCharsets.UTF_8.name() : encoding;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new RepositoryException("Error parsing dissemination XML", e);
+        }
+    }
+
+    private static CharBuffer decodeDissemination(byte[] dissemination, String encoding) {
+        Charset charset;
+        try {
+            charset = encoding == null ? StandardCharsets.UTF_8 : Charset.forName(encoding);
+        } catch (IllegalArgumentException e) {
+            throw new RepositoryException("Unsupported dissemination encoding: " + encoding, e);
+        }
+        return charset.decode(ByteBuffer.wrap(dissemination));
+    }
+
+    /**
+     * Get the index of the root element of an XML document, skipping the
+     * XML declaration, DOCTYPE, comments and processing instructions before
+     * it.
+     */
+    private static int skipProlog(CharBuffer xml) {
+        int i = 0;
+        int length = xml.length();
+        while (i < length) {
+            char c = xml.charAt(i);
+            if (Character.isWhitespace(c) || c == '\uFEFF') {
+                i++;
+            } else if (startsWith(xml, i, "<?")) {
+                i = indexOf(xml, i, "?>") + 2;
+            } else if (startsWith(xml, i, "<!--")) {
+                i = indexOf(xml, i, "-->") + 3;
+            } else if (startsWith(xml, i, "<!")) {
+                // DOCTYPE, possibly with an internal subset
+                int subset = indexOf(xml, i, "[");
+                int end = indexOf(xml, i, ">");
+                if (subset < end) {
+                    end = indexOf(xml, indexOf(xml, subset, "]"), ">");
+                }
+                i = end + 1;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static boolean startsWith(CharBuffer xml, int index, String prefix) {
+        if (index + prefix.length() > xml.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (xml.charAt(index + i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(CharBuffer xml, int fromIndex, String s) {
+        for (int i = fromIndex; i <= xml.length() - s.length(); i++) {
+            if (startsWith(xml, i, s)) return i;
+        }
+        return xml.length();
+    }
+
+    private static int lastIndexOf(CharBuffer xml, String s) {
+        for (int i = xml.length() - s.length(); i >= 0; i--) {
+            if (startsWith(xml, i, s)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Write the given part of a decoded dissemination, without copying it.
+     */
+    private static void writeXml(CharBuffer xml, int start, int end, PrintWriter out) {
+        while (end > start && Character.isWhitespace(xml.charAt(end - 1))) {
+            end--;
+        }
+        out.write(xml.array(), xml.arrayOffset() + xml.position() + start, end - start);
+    }
+
+    static void writeRecordMetadata(PrintWriter out, CharBuffer xml) {
         out.println("  <metadata>");
-        out.println(xml);
+        writeXml(xml, skipProlog(xml), xml.length(), out);
+        out.println();
         out.println("  </metadata>");
     }
 
-    private void writeRecordAbouts(String aboutDissURI, PrintWriter out) throws RepositoryException {
+    private void writeRecordAbouts(CharBuffer xml, PrintWriter out) throws RepositoryException {
         String aboutWrapperEnd = "</abouts>";
 
-        String xml = serializeXml(getDissemination(aboutDissURI));
-
-        int i = xml.lastIndexOf(aboutWrapperEnd);
+        int i = lastIndexOf(xml, aboutWrapperEnd);
         if (i == -1) {
             throw new RepositoryException("Bad abouts xml: closing " + aboutWrapperEnd + " not found");
         }
 
-        out.print(xml.substring(0, i));
+        int start = skipProlog(xml);
+        out.write(xml.array(), xml.arrayOffset() + xml.position() + start, i - start);
     }
 
     /**
@@ -487,6 +787,20 @@ public class FedoraOAIDriver implements OAIDriver {
         return map;
     }
 
+    /**
+     * The raw disseminations of a record, as fetched from Fedora.
+     */
+    private static final class RecordContent {
+
+        private final byte[] dissemination;
+        private final byte[] abouts;
+
+        private RecordContent(byte[] dissemination, byte[] abouts) {
+            this.dissemination = dissemination;
+            this.abouts = abouts;
+        }
+    }
+
     private void writeStream(InputStream in, PrintWriter out, String source)
             throws RepositoryException {
         BufferedReader reader = null;
@@ -20,26 +20,24 @@ import oaiprovider.FedoraMetadataFormat;
 import oaiprovider.FedoraRecord;
 import oaiprovider.InvocationSpec;
 import oaiprovider.QueryFactory;
-import oaiprovider.ResultCombiner;
 import org.fcrepo.client.FedoraClient;
 import org.fcrepo.common.Constants;
 import org.fcrepo.utilities.DateUtility;
 import org.jrdf.graph.Node;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.trippi.RDFFormat;
 import org.trippi.TrippiException;
 import org.trippi.TupleIterator;
 import proai.MetadataFormat;
 import proai.SetInfo;
 import proai.driver.RemoteIterator;
 import proai.error.RepositoryException;
+import proai.util.StreamUtil;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -103,28 +101,51 @@ public class ITQLQueryFactory
      * @return Latest modification date according to Fedora.
      */
     public Date latestRecordDate(Iterator<? extends MetadataFormat> formats) throws RepositoryException {
+        Date latest = recordDate("desc");
+        if (latest == null) {
+            logger.warn("No OAI relevant elements for obtaining the latest modification date. Fallback to current host time.");
+            return new Date();
+        }
+        return latest;
+    }
+
+    /**
+     * Return earliest modification date of any OAI relevant record.
+     *
+     * @param formats Ignored. All items are queried.
+     * @return Earliest modification date according to Fedora, or null if no
+     * records match.
+     */
+    public Date earliestRecordDate(Iterator<? extends MetadataFormat> formats) throws RepositoryException {
+        return recordDate("asc");
+    }
+
+    /**
+     * Return the modification date of the first OAI relevant record in the
+     * given order by date, or null if no records match.
+     */
+    private Date recordDate(String order) throws RepositoryException {
 
         String query =
                 "select $item $modified from <#ri>\n" +
                         "where $item <http://www.openarchives.org/OAI/2.0/itemID> $itemID\n" +
                         "and $item <fedora-view:lastModifiedDate> $modified\n" +
-                        "order by $modified desc\n" +
+                        "order by $modified " + order + "\n" +
                         "limit 1";
         TupleIterator it = getTuples(query);
 
         try {
             if (it.hasNext()) {
                 Map<String, Node> t = it.next();
-                String item = t.get("item").stringValue();
                 String modified = t.get("modified").stringValue();
                 return DateUtility.convertStringToDate(modified);
             }
         } catch (TrippiException e) {
-            logger.error("Failed to query for latest modification date", e);
+            logger.error("Failed to query for record modification date", e);
+        } finally {
+            close(it);
         }
-
-        logger.warn("No OAI relevant elements for obtaining the latest modification date. Fallback to current host time.");
-        return new Date();
+        return null;
     }
 
     public RemoteIterator<SetInfo> listSetInfo(InvocationSpec setInfoSpec) {
@@ -160,44 +181,78 @@ public class ITQLQueryFactory
                                                     Date until,
                                                     FedoraMetadataFormat format) {
 
-        // Construct and get results of one to three queries, depending on conf
-
         // Parse and convert the dates once; they may be used more than once
         String afterUTC = getExclusiveDateString(from, false);
         String beforeUTC = getExclusiveDateString(until, true);
 
-        // do primary query
-        String primaryQuery =
-                getListRecordsPrimaryQuery(afterUTC, beforeUTC, format
-                        .getMetadataSpec());
-        File primaryFile = getCSVResults(primaryQuery);
+        return listRecords(afterUTC, beforeUTC, null, format);
+    }
 
-        // do set membership query, if applicable
-        File setFile = null;
+    public long countRecords(Date from,
+                             Date until,
+                             FedoraMetadataFormat format) {
+        String query = getListRecordsPrimaryQuery(getExclusiveDateString(from, false),
+                getExclusiveDateString(until, true), null, format.getMetadataSpec(), false);
+        logger.debug("countRecords() called with query:\n" + query);
+        try (InputStream in = m_queryClient.get("/risearch?type=tuples"
+                + "&lang=" + QUERY_LANGUAGE
+                + "&format=count"
+                + "&query=" + URLEncoder.encode(query, "UTF-8"), true)) {
+            return Long.parseLong(StreamUtil.getString(in, "UTF-8").trim());
+        } catch (IOException | NumberFormatException e) {
+            throw new RepositoryException("Error counting records in Fedora: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    public RemoteIterator<FedoraRecord> listRecords(Collection<String> pids,
+                                                    FedoraMetadataFormat format) {
+        StringBuilder itemsPattern = new StringBuilder("(");
+        for (String pid : pids) {
+            if (itemsPattern.length() > 1) {
+                itemsPattern.append(" or ");
+            }
+            itemsPattern.append("$item <" + MULGARA.IS + "> <info:fedora/" + pid + ">");
+        }
+        itemsPattern.append(")");
+
+        return listRecords(null, null, itemsPattern.toString(), format);
+    }
+
+    /**
+     * @param itemsPattern a pattern restricting the objects to query, or
+     *                     null to query all objects.
+     */
+    private RemoteIterator<FedoraRecord> listRecords(String afterUTC,
+                                                     String beforeUTC,
+                                                     String itemsPattern,
+                                                     FedoraMetadataFormat format) {
+
+        // Start one to three queries, depending on conf.  Their results are
+        // streamed from Fedora and combined while they are being read.
+
+        String primaryQuery =
+                getListRecordsPrimaryQuery(afterUTC, beforeUTC, itemsPattern, format
+                        .getMetadataSpec(), true);
+        String setQuery = null;
         if (m_itemSetSpecPath != null && m_itemSetSpecPath.length() > 0) { // need
             // set
             // membership
             // info
-            String setQuery =
+            setQuery =
                     getListRecordsSetMembershipQuery(afterUTC,
                             beforeUTC,
+                            itemsPattern,
                             format.getMetadataSpec());
-            setFile = getCSVResults(setQuery);
         }
-
-        // do about query, if applicable
-        File aboutFile = null;
+        String aboutQuery = null;
         if (format.getAboutSpec() != null) { // need
             // about
             // info
-            String aboutQuery =
-                    getListRecordsAboutQuery(afterUTC, beforeUTC, format);
-            aboutFile = getCSVResults(aboutQuery);
+            aboutQuery =
+                    getListRecordsAboutQuery(afterUTC, beforeUTC, itemsPattern, format);
         }
 
-        // Get a FedoraRecordIterator over the combined results
-        // that automatically cleans up the result files when closed
-
         String mdDissType = format.getMetadataSpec().getDisseminationType();
         String aboutDissType = null;
 
@@ -205,17 +260,33 @@ public class ITQLQueryFactory
             aboutDissType = format.getAboutSpec().getDisseminationType();
         }
 
+        TupleIterator primaryTuples = null;
+        TupleIterator setTuples = null;
+        TupleIterator aboutTuples = null;
         try {
-            ResultCombiner combiner =
-                    new ResultCombiner(primaryFile, setFile, aboutFile, true);
+            primaryTuples = getTuples(primaryQuery);
+            if (setQuery != null) setTuples = getTuples(setQuery);
+            if (aboutQuery != null) aboutTuples = getTuples(aboutQuery);
             return new CombinerRecordIterator(format.getPrefix(),
                     mdDissType,
                     aboutDissType,
-                    combiner);
+                    primaryTuples,
+                    setTuples,
+                    aboutTuples);
+        } catch (RepositoryException e) {
+            close(primaryTuples);
+            close(setTuples);
+            close(aboutTuples);
+            throw e;
+        }
+    }
 
-        } catch (FileNotFoundException e) {
-            throw new RepositoryException("Programmer error?  Query result "
-                    + "file(s) not found!");
+    private static void close(TupleIterator tuples) {
+        if (tuples == null) return;
+        try {
+            tuples.close();
+        } catch (TrippiException e) {
+            logger.warn("Unable to close tuple iterator", e);
         }
     }
 
@@ -254,20 +325,29 @@ public class ITQLQueryFactory
         }
     }
 
-    // ordering is required for the combiner to work
+    // ordering by itemID is required for the results to be combined
     private void appendOrder(StringBuilder out) {
         out.append("order  by $itemID asc");
     }
 
     // this is common for all listRecords queries
-    private void appendCommonFromWhereAnd(StringBuilder out) {
+    private void appendCommonFromWhereAnd(String itemsPattern, StringBuilder out) {
         out.append("from   <#ri>\n");
         out.append("where  $item           <" + m_oaiItemID + "> $itemID\n");
+        if (itemsPattern != null) {
+            out.append("and    " + itemsPattern + "\n");
+        }
     }
 
+    /**
+     * @param ordered whether to order the results by itemID, which is only
+     *                needed if they are combined with those of other queries.
+     */
     private String getListRecordsPrimaryQuery(String afterUTC,
                                               String beforeUTC,
-                                              InvocationSpec mdSpec) {
+                                              String itemsPattern,
+                                              InvocationSpec mdSpec,
+                                              boolean ordered) {
         StringBuilder out = new StringBuilder();
 
         String selectString;
@@ -282,24 +362,27 @@ public class ITQLQueryFactory
         }
 
         out.append(selectString);
-        appendCommonFromWhereAnd(out);
+        appendCommonFromWhereAnd(itemsPattern, out);
         out.append("and    " + getStatePattern() + "\n");
 
         out.append("and " + contentDissString);
 
         appendDateParts(afterUTC, beforeUTC, true, out);
-        appendOrder(out);
+        if (ordered) {
+            appendOrder(out);
+        }
 
         return out.toString();
     }
 
     private String getListRecordsSetMembershipQuery(String afterUTC,
                                                     String beforeUTC,
+                                                    String itemsPattern,
                                                     InvocationSpec mdSpec) {
         StringBuilder out = new StringBuilder();
 
         out.append("select $itemID $setSpec\n");
-        appendCommonFromWhereAnd(out);
+        appendCommonFromWhereAnd(itemsPattern, out);
 
         if (mdSpec.isDatastreamInvocation()) {
             out.append("and " + getDatastreamDissType(mdSpec, "$item", ""));
@@ -315,6 +398,7 @@ public class ITQLQueryFactory
 
     private String getListRecordsAboutQuery(String afterUTC,
                                             String beforeUTC,
+                                            String itemsPattern,
                                             FedoraMetadataFormat format) {
         StringBuilder out = new StringBuilder();
 
@@ -323,7 +407,7 @@ public class ITQLQueryFactory
 
         out.append("select $itemID\n");
 
-        appendCommonFromWhereAnd(out);
+        appendCommonFromWhereAnd(itemsPattern, out);
         if (mdSpec.isDatastreamInvocation()) {
             out.append("and " + getDatastreamDissType(mdSpec, "$item", "_md"));
         } else {
@@ -342,47 +426,6 @@ public class ITQLQueryFactory
         return out.toString();
     }
 
-    /**
-     * Get the results of the given itql tuple query as a temporary CSV file.
-     */
-    private File getCSVResults(String queryText) throws RepositoryException {
-
-        logger.debug("getCSVResults() called with query:\n" + queryText);
-
-        Map<String, String> parameters = new HashMap<>();
-        parameters.put("lang", QUERY_LANGUAGE);
-        parameters.put("query", queryText);
-
-        File tempFile;
-        OutputStream out;
-        try {
-            tempFile =
-                    File.createTempFile("oaiprovider-listrec-tuples", ".csv");
-            tempFile.deleteOnExit(); // just in case
-            out = new FileOutputStream(tempFile);
-        } catch (IOException e) {
-            throw new RepositoryException("Error creating temp query result file",
-                    e);
-        }
-
-        try {
-            TupleIterator tuples = m_queryClient.getTuples(parameters);
-            logger.debug("Saving query results to disk...");
-            tuples.toStream(out, RDFFormat.CSV);
-            logger.debug("Done saving query results");
-            return tempFile;
-        } catch (Exception e) {
-            tempFile.delete();
-            throw new RepositoryException("Error getting tuples from Fedora: "
-                    + e.getMessage(), e);
-        } finally {
-            try {
-                out.close();
-            } catch (Exception ignored) {
-            }
-        }
-    }
-
     private String getServiceDissType(InvocationSpec spec,
                                       String objectVar,
                                       String suffix) {
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package oaiprovider.driver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A minimal STOMP 1.0/1.1 client, just enough to subscribe to a topic of a
+ * message broker such as the ActiveMQ instance that ships with Fedora.
+ * <p/>
+ * Messages are acknowledged automatically.  Frame bodies are read up to the
+ * terminating NUL byte, so bodies that contain NUL bytes are not supported.
+ */
+class StompConnection implements Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Socket m_socket;
+    private final InputStream m_in;
+    private final OutputStream m_out;
+    private final ByteArrayOutputStream m_partialFrame = new ByteArrayOutputStream();
+
+    /**
+     * Connect to the broker and log in.
+     *
+     * @param login       the login, or <code>null</code> to connect anonymously.
+     * @param readTimeout the maximum number of milliseconds
+     *                    <code>receive()</code> waits for a frame.
+     * @throws IOException if the connection failed or the broker refused it.
+     */
+    StompConnection(String host,
+                    int port,
+                    String login,
+                    String passcode,
+                    int readTimeout) throws IOException {
+        m_socket = new Socket();
+        try {
+            m_socket.connect(new InetSocketAddress(host, port), readTimeout);
+            m_socket.setSoTimeout(readTimeout);
+            m_in = new BufferedInputStream(m_socket.getInputStream());
+            m_out = m_socket.getOutputStream();
+
+            Map<String, String> headers = new HashMap<>();
+            headers.put("accept-version", "1.0,1.1");
+            headers.put("host", host);
+            if (login != null) {
+                headers.put("login", login);
+                headers.put("passcode", passcode);
+            }
+            send("CONNECT", headers);
+
+            Frame frame = null;
+            long giveUpTime = System.currentTimeMillis() + readTimeout;
+            while (frame == null && System.currentTimeMillis() < giveUpTime) {
+                frame = receive();
+            }
+            if (frame == null) {
+                throw new IOException("No response from STOMP broker at " + host + ":" + port);
+            }
+            if (!frame.getCommand().equals("CONNECTED")) {
+                throw new IOException("STOMP broker at " + host + ":" + port
+                        + " refused connection: " + frame.getHeader("message"));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Subscribe to the given destination, such as
+     * <code>/topic/fedora.apim.update</code>.
+     */
+    void subscribe(String destination) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("destination", destination);
+        headers.put("id", "0");
+        headers.put("ack", "auto");
+        send("SUBSCRIBE", headers);
+    }
+
+    /**
+     * Receive the next frame from the broker.
+     *
+     * @return the frame, or <code>null</code> if none arrived before the
+     * read timeout.  A frame that was partially read is kept until the
+     * next call.
+     * @throws IOException if the connection failed or was closed by the
+     *                     broker.
+     */
+    Frame receive() throws IOException {
+        try {
+            int b = m_in.read();
+            while (b != -1) {
+                if (b == 0) {
+                    byte[] bytes = m_partialFrame.toByteArray();
+                    m_partialFrame.reset();
+                    Frame frame = Frame.parse(new String(bytes, UTF8));
+                    if (frame != null) {
+                        if (frame.getCommand().equals("ERROR")) {
+                            throw new IOException("STOMP broker reported error: "
+                                    + frame.getHeader("message"));
+                        }
+                        return frame;
+                    }
+                } else {
+                    m_partialFrame.write(b);
+                }
+                b = m_in.read();
+            }
+            throw new IOException("Connection closed by STOMP broker");
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+    }
+
+    private void send(String command,
+                      Map<String, String> headers) throws IOException {
+        StringBuilder frame = new StringBuilder(command).append('\n');
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            frame.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+        }
+        frame.append('\n');
+        m_out.write(frame.toString().getBytes(UTF8));
+        m_out.write(0);
+        m_out.flush();
+    }
+
+    /**
+     * Disconnect from the broker, if still connected, and close the socket.
+     */
+    @Override
+    public void close() {
+        if (!m_socket.isClosed()) {
+            try {
+                if (m_out != null) {
+                    send("DISCONNECT", new HashMap<String, String>());
+                }
+            } catch (IOException ignored) {
+            }
+            try {
+                m_socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * A frame received from the broker.
+     */
+    static class Frame {
+
+        private final String m_command;
+        private final Map<String, String> m_headers;
+        private final String m_body;
+
+        Frame(String command, Map<String, String> headers, String body) {
+            m_command = command;
+            m_headers = headers;
+            m_body = body;
+        }
+
+        /**
+         * Parse the text of a frame, without the terminating NUL byte.
+         *
+         * @return the frame, or <code>null</code> if the text holds nothing
+         * but heart-beat newlines.
+         */
+        static Frame parse(String text) {
+            int start = 0;
+            while (start < text.length()
+                    && (text.charAt(start) == '\n' || text.charAt(start) == '\r')) {
+                start++;
+            }
+            if (start == text.length()) return null;
+
+            int headersEnd = text.indexOf("\n\n", start);
+            int separatorLength = 2;
+            int crlfHeadersEnd = text.indexOf("\r\n\r\n", start);
+            if (crlfHeadersEnd != -1 && (headersEnd == -1 || crlfHeadersEnd < headersEnd)) {
+                headersEnd = crlfHeadersEnd;
+                separatorLength = 4;
+            }
+            String body = "";
+            if (headersEnd == -1) {
+                headersEnd = text.length();
+            } else {
+                body = text.substring(headersEnd + separatorLength);
+            }
+            String[] lines = text.substring(start, headersEnd).split("\r?\n");
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0 && !headers.containsKey(lines[i].substring(0, colon))) {
+                    // the first occurrence of a repeated header wins
+                    headers.put(lines[i].substring(0, colon), lines[i].substring(colon + 1));
+                }
+            }
+            return new Frame(lines[0].trim(), headers, body);
+        }
+
+        String getCommand() {
+            return m_command;
+        }
+
+        String getHeader(String name) {
+            return m_headers.get(name);
+        }
+
+        String getBody() {
+            return m_body;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package oaiprovider.driver;
+
+import oaiprovider.FedoraMetadataFormat;
+import oaiprovider.FedoraRecord;
+import oaiprovider.QueryFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proai.driver.RemoteIterator;
+import proai.driver.WindowedRemoteIterator;
+import proai.error.RepositoryException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lists the records of a large date range by querying it one window of
+ * time at a time, so no single query has to cover the whole repository.
+ * <p/>
+ * <p>Windows are sized by the number of records observed in the windows
+ * before them: the first one spans the given initial length, and each
+ * following one is stretched or shrunk (at most fourfold per window) to
+ * hold about the given number of records.  A fixed number of windows are
+ * queried in parallel ahead of the one being read, and the records of each
+ * window are held in memory until they have been read.
+ * <p/>
+ * <p>If the query of a window fails, the window is split in two halves,
+ * which are queried in turn, and the windows that follow are made smaller.
+ * Only after the given number of attempts is the failure passed on, so a
+ * single timeout does not throw away what has been listed so far.
+ * <p/>
+ * <p>Records are returned window by window, in date order of the windows,
+ * so overall they are not in itemID order.  Since window bounds depend on
+ * the timing of the queries, they differ from one listing to the next, so
+ * how far a listing has got is told by the end of the last window that has
+ * been completely returned.
+ */
+class WindowedRecordIterator implements WindowedRemoteIterator<FedoraRecord> {
+
+    private static final Logger logger = LoggerFactory.getLogger(WindowedRecordIterator.class);
+
+    private static final long MIN_WINDOW_MILLIS = 1000;
+    private static final double MAX_RESIZE_FACTOR = 4.0;
+
+    private final QueryFactory m_queryFactory;
+    private final FedoraMetadataFormat m_format;
+    private final long m_until;
+    private final int m_windowRecords;
+    private final int m_attempts;
+    private final ExecutorService m_executor;
+    private final Deque<Window> m_windows = new ArrayDeque<>();
+    private long m_nextStart;
+    private long m_windowMillis;
+    private Window m_currentWindow;
+    private Iterator<FedoraRecord> m_current = Collections.emptyIterator();
+    private Date m_completedUntil;
+    private boolean m_closed;
+
+    /**
+     * Start listing the records of the given format in the given date range.
+     *
+     * @param from          the date (inclusive) of the earliest record to list.
+     * @param until         the date (inclusive) of the latest record to list.
+     * @param windowMillis  the length of the first window.
+     * @param windowRecords the number of records each window should hold.
+     * @param threads       the number of windows to query in parallel.
+     * @param attempts      the number of attempts to query a window before
+     *                      giving up.
+     */
+    WindowedRecordIterator(QueryFactory queryFactory,
+                           FedoraMetadataFormat format,
+                           Date from,
+                           Date until,
+                           long windowMillis,
+                           int windowRecords,
+                           int threads,
+                           int attempts) {
+        m_queryFactory = queryFactory;
+        m_format = format;
+        m_nextStart = from.getTime();
+        m_until = until.getTime();
+        m_windowMillis = Math.max(windowMillis, MIN_WINDOW_MILLIS);
+        m_windowRecords = windowRecords;
+        m_attempts = attempts;
+        m_executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger m_threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        "RecordLister-" + m_format.getPrefix() + "-" + m_threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < threads; i++) {
+            scheduleWindow();
+        }
+    }
+
+    @Override
+    public boolean hasNext() throws RepositoryException {
+        while (!m_closed && !m_current.hasNext()) {
+            if (m_currentWindow != null) {
+                m_completedUntil = new Date(m_currentWindow.end);
+                m_currentWindow = null;
+            }
+            Window window = m_windows.poll();
+            if (window == null) {
+                close();
+            } else {
+                m_current = await(window.records).iterator();
+                m_currentWindow = window;
+                scheduleWindow();
+            }
+        }
+        return !m_closed;
+    }
+
+    @Override
+    public Date getCompletedUntil() {
+        return m_completedUntil;
+    }
+
+    @Override
+    public FedoraRecord next() throws RepositoryException {
+        if (!hasNext()) {
+            throw new RepositoryException("No more records");
+        }
+        return m_current.next();
+    }
+
+    @Override
+    public void close() {
+        if (m_closed) return;
+        m_closed = true;
+        m_executor.shutdownNow();
+        m_windows.clear();
+        m_current = Collections.emptyIterator();
+    }
+
+    @Override
+    public void remove() throws UnsupportedOperationException {
+        throw new UnsupportedOperationException("WindowedRecordIterator does not support remove().");
+    }
+
+    private List<FedoraRecord> await(Future<List<FedoraRecord>> window) throws RepositoryException {
+        try {
+            return window.get();
+        } catch (ExecutionException e) {
+            close();
+            if (e.getCause() instanceof RepositoryException) {
+                throw (RepositoryException) e.getCause();
+            }
+            throw new RepositoryException("Error listing records: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while listing records", e);
+        }
+    }
+
+    /**
+     * Start querying the next window, if the date range is not covered yet.
+     */
+    private void scheduleWindow() {
+        if (m_nextStart > m_until) return;
+        final long start = m_nextStart;
+        final long end = Math.min(start + getWindowMillis() - 1, m_until);
+        m_nextStart = end + 1;
+        m_windows.add(new Window(end, m_executor.submit(new Callable<List<FedoraRecord>>() {
+            @Override
+            public List<FedoraRecord> call() throws Exception {
+                return listWindow(start, end, m_attempts);
+            }
+        })));
+    }
+
+    private List<FedoraRecord> listWindow(long start, long end, int attemptsLeft)
+            throws RepositoryException {
+        List<FedoraRecord> records = new ArrayList<>();
+        RemoteIterator<FedoraRecord> riter = null;
+        try {
+            riter = m_queryFactory.listRecords(new Date(start), new Date(end), m_format);
+            while (riter.hasNext()) {
+                records.add(riter.next());
+            }
+        } catch (RepositoryException e) {
+            if (attemptsLeft <= 1 || Thread.currentThread().isInterrupted()) {
+                throw e;
+            }
+            windowFailed();
+            if (end - start + 1 < 2 * MIN_WINDOW_MILLIS) {
+                logger.warn(String.format("Listing %s records from %d to %d failed, retrying: %s",
+                        m_format.getPrefix(), start, end, e.getMessage()));
+                return listWindow(start, end, attemptsLeft - 1);
+            }
+            long middle = start + (end - start) / 2;
+            logger.warn(String.format("Listing %s records from %d to %d failed, retrying in two halves: %s",
+                    m_format.getPrefix(), start, end, e.getMessage()));
+            records = listWindow(start, middle, attemptsLeft - 1);
+            records.addAll(listWindow(middle + 1, end, attemptsLeft - 1));
+            return records;
+        } finally {
+            if (riter != null) {
+                try {
+                    riter.close();
+                } catch (Exception e) {
+                    logger.debug("Unable to close remote record iterator", e);
+                }
+            }
+        }
+        windowListed(end - start + 1, records.size());
+        logger.debug(String.format("Listed %d %s records from %d to %d",
+                records.size(), m_format.getPrefix(), start, end));
+        return records;
+    }
+
+    private synchronized long getWindowMillis() {
+        return m_windowMillis;
+    }
+
+    /**
+     * Size the windows yet to be scheduled by the density of records in a
+     * window that has just been listed.
+     */
+    private synchronized void windowListed(long millis, int recordCount) {
+        double factor = (double) m_windowRecords / Math.max(recordCount, 1);
+        factor = Math.max(1.0 / MAX_RESIZE_FACTOR, Math.min(factor, MAX_RESIZE_FACTOR));
+        m_windowMillis = Math.max((long) (millis * factor), MIN_WINDOW_MILLIS);
+    }
+
+    /**
+     * Make the windows yet to be scheduled smaller after a failure.
+     */
+    private synchronized void windowFailed() {
+        m_windowMillis = Math.max(m_windowMillis / 2, MIN_WINDOW_MILLIS);
+    }
+
+    private static final class Window {
+
+        private final long end;
+        private final Future<List<FedoraRecord>> records;
+
+        private Window(long end, Future<List<FedoraRecord>> records) {
+            this.end = end;
+            this.records = records;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proai.Record;
+import proai.driver.OAIDriver;
+import proai.driver.RemoteIterator;
+import proai.driver.WindowedRemoteIterator;
+
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The first stage of a bootstrap.
+ * <p/>
+ * <p>Lists the records of each format to bootstrap straight from the driver
+ * and puts them on the input queue of the fetch stage, bypassing rcQueue.
+ * Records are listed from the checkpoint date of an earlier, interrupted
+ * bootstrap, and those up to its checkpoint itemID are skipped, as long as
+ * the driver lists them in itemID order.
+ * <p/>
+ * <p>Feeding stops at the given deadline, if any, so a rebuild of the cache
+ * can be spread over several update cycles.
+ */
+class BootstrapFeeder extends PipelineStage {
+
+    private static final Logger logger = LoggerFactory.getLogger(BootstrapFeeder.class);
+
+    private final Updater _updater;
+    private final OAIDriver _driver;
+    private final BootstrapProgress _progress;
+    private final long _deadline;
+
+    public BootstrapFeeder(Updater updater,
+                           BlockingQueue<QueueItem> output,
+                           OAIDriver driver,
+                           BootstrapProgress progress,
+                           long deadline) {
+        super("BootstrapFeeder", 1, 0, updater, null, output);
+        _updater = updater;
+        _driver = driver;
+        _progress = progress;
+        _deadline = deadline;
+    }
+
+    @Override
+    protected void runThread() throws Exception {
+        for (String mdPrefix : _progress.getPrefixes()) {
+            if (!shouldContinue()) return;
+            feed(mdPrefix);
+        }
+    }
+
+    /**
+     * Whether to go on feeding.  Unlike the queue, a bootstrap may take days,
+     * so it stops at any shutdown request, leaving the rest for next time.
+     */
+    private boolean shouldContinue() {
+        return processingShouldContinue()
+                && !_updater.shutdownRequested()
+                && System.currentTimeMillis() < _deadline;
+    }
+
+    private void feed(String mdPrefix) throws Exception {
+        String afterItemID = _progress.getAfterItemID(mdPrefix);
+        Date fromDate = _progress.getFromDate(mdPrefix);
+        RemoteIterator<? extends Record> riter = _driver.listRecords(
+                fromDate,
+                _progress.getUntilDate(mdPrefix),
+                mdPrefix);
+        try {
+            int fedCount = 0;
+            int skippedCount = 0;
+            // records listed in windows of time are not in itemID order,
+            // even if the first of them happen to be
+            WindowedRemoteIterator<?> windows = riter instanceof WindowedRemoteIterator
+                    ? (WindowedRemoteIterator<?>) riter : null;
+            boolean ordered = windows == null;
+            if (!ordered) {
+                _progress.unordered(mdPrefix);
+            }
+            String previousItemID = null;
+            while (shouldContinue() && riter.hasNext()) {
+                Record record = riter.next();
+                String itemID = record.getItemID();
+                if (ordered && previousItemID != null && itemID.compareTo(previousItemID) <= 0) {
+                    ordered = false;
+                    _progress.unordered(mdPrefix);
+                }
+                previousItemID = itemID;
+
+                if (afterItemID != null && ordered && itemID.compareTo(afterItemID) <= 0) {
+                    skippedCount++;
+                    continue;
+                }
+
+                int seq = _progress.fed(mdPrefix, itemID, Updater.resumeDate(windows, fromDate));
+                put(new QueueItem(seq, 0, itemID, mdPrefix, record.getSourceInfo(), 'B'));
+                processed(1, 0);
+                fedCount++;
+            }
+            if (shouldContinue()) {
+                _progress.allFed(mdPrefix);
+            }
+            logger.info(String.format("Fed %d %s records for bootstrap, skipped %d loaded before.",
+                    fedCount, mdPrefix, skippedCount));
+        } finally {
+            try {
+                riter.close();
+            } catch (Exception e) {
+                logger.debug("Unable to close remote record iterator", e);
+            }
+        }
+    }
+
+    protected void process(QueueItem item) {
+        // items are produced, not processed, by this stage
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.cache;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Keeps track of a bootstrap of the cache, per metadata format.
+ * <p/>
+ * <p>Each record fed to the bootstrap pipeline gets a sequence number within
+ * its format.  Since records are fetched concurrently, they are loaded in
+ * no particular order, so the checkpoint of a format is taken at the last
+ * record before the first one that is still in flight.  If the driver lists
+ * records in itemID order, it is that record's itemID, and the records up
+ * to it are skipped when the bootstrap is resumed.  If the driver lists
+ * records in windows of time, it is the date from which the listing could
+ * be resumed when that record was fed, and the bootstrap is resumed from
+ * that date.
+ * <p/>
+ * <p>Once the total number of records to load is known, the progress
+ * includes an estimate of the time left.
+ */
+class BootstrapProgress {
+
+    private final Map<String, FormatProgress> _formats = new LinkedHashMap<>();
+    private final long _startTime = System.currentTimeMillis();
+    private long _totalCount = -1;
+    private int _loadedCount;
+    private int _failedCount;
+
+    /**
+     * Add a format to bootstrap.
+     *
+     * @param fromDate    the date from which to list records, which is later
+     *                    than the epoch if an earlier bootstrap was
+     *                    interrupted.
+     * @param afterItemID the itemID of the last record loaded by an earlier,
+     *                    interrupted bootstrap, or <code>null</code>.
+     */
+    synchronized void addFormat(String mdPrefix, Date fromDate, Date untilDate, String afterItemID) {
+        _formats.put(mdPrefix, new FormatProgress(fromDate, untilDate, afterItemID));
+    }
+
+    synchronized List<String> getPrefixes() {
+        return new ArrayList<>(_formats.keySet());
+    }
+
+    synchronized Date getFromDate(String mdPrefix) {
+        return _formats.get(mdPrefix).fromDate;
+    }
+
+    synchronized Date getUntilDate(String mdPrefix) {
+        return _formats.get(mdPrefix).untilDate;
+    }
+
+    synchronized String getAfterItemID(String mdPrefix) {
+        return _formats.get(mdPrefix).afterItemID;
+    }
+
+    /**
+     * Note that a record is being fed.
+     *
+     * @param resumeDate the date from which the listing could be resumed
+     *                   without missing this record, or any fed after it.
+     * @return its sequence number within the format.
+     */
+    synchronized int fed(String mdPrefix, String itemID, Date resumeDate) {
+        FormatProgress format = _formats.get(mdPrefix);
+        int seq = format.nextSeq++;
+        format.inFlight.put(seq, new FedRecord(itemID, resumeDate));
+        return seq;
+    }
+
+    /**
+     * Note that the records of the format were not listed in itemID order,
+     * so no checkpoint can tell which of them have been loaded.
+     */
+    synchronized void unordered(String mdPrefix) {
+        _formats.get(mdPrefix).ordered = false;
+    }
+
+    /**
+     * Note that all records of the format have been fed.
+     */
+    synchronized void allFed(String mdPrefix) {
+        _formats.get(mdPrefix).allFed = true;
+    }
+
+    /**
+     * Note that an item has been loaded, or its failure recorded.
+     */
+    synchronized void loaded(QueueItem item) {
+        FormatProgress format = _formats.get(item.getMDPrefix());
+        int seq = item.getQueueKey();
+        format.done.put(seq, format.inFlight.remove(seq));
+        SortedMap<Integer, FedRecord> contiguous = format.inFlight.isEmpty()
+                ? format.done
+                : format.done.headMap(format.inFlight.firstKey());
+        if (!contiguous.isEmpty()) {
+            FedRecord last = contiguous.get(contiguous.lastKey());
+            format.checkpointItemID = last.itemID;
+            format.checkpointDate = last.resumeDate;
+            contiguous.clear();
+        }
+        if (item.failed()) {
+            _failedCount++;
+        } else {
+            _loadedCount++;
+        }
+    }
+
+    /**
+     * Get the itemID of the last record of the format up to which all have
+     * been loaded, or <code>null</code> if none is known.
+     */
+    synchronized String getCheckpoint(String mdPrefix) {
+        FormatProgress format = _formats.get(mdPrefix);
+        return format.ordered ? format.checkpointItemID : null;
+    }
+
+    /**
+     * Get the date from which the listing of the format can be resumed
+     * without missing any record that has not been loaded yet.
+     */
+    synchronized Date getCheckpointDate(String mdPrefix) {
+        return _formats.get(mdPrefix).checkpointDate;
+    }
+
+    /**
+     * Whether all records of the format have been fed and loaded.
+     */
+    synchronized boolean isComplete(String mdPrefix) {
+        FormatProgress format = _formats.get(mdPrefix);
+        return format.allFed && format.inFlight.isEmpty();
+    }
+
+    synchronized void setTotalCount(long totalCount) {
+        _totalCount = totalCount;
+    }
+
+    /**
+     * Get a line describing the progress so far, like this:
+     * <p/>
+     * <p><pre>12000 of 2500000 records loaded, 3 failed, 140.2 records/second, about 4 hours, 55 minutes, 12.000 seconds left</pre>
+     */
+    synchronized String getStatus() {
+        int count = _loadedCount + _failedCount;
+        long elapsed = System.currentTimeMillis() - _startTime;
+        double rate = elapsed == 0 ? 0.0 : count / (elapsed / 1000.0);
+        StringBuilder out = new StringBuilder();
+        out.append(_loadedCount);
+        if (_totalCount >= 0) {
+            out.append(" of ").append(_totalCount);
+        }
+        out.append(" records loaded, ").append(_failedCount).append(" failed, ");
+        out.append(String.format("%.1f records/second", rate));
+        if (_totalCount >= 0 && rate > 0) {
+            long left = Math.max(0, _totalCount - count);
+            out.append(", about ").append(Updater.getHMSString((long) (left / rate * 1000))).append(" left");
+        }
+        return out.toString();
+    }
+
+    private static class FormatProgress {
+
+        final Date fromDate;
+        final Date untilDate;
+        final String afterItemID;
+        final TreeMap<Integer, FedRecord> inFlight = new TreeMap<>();
+        final TreeMap<Integer, FedRecord> done = new TreeMap<>();
+        int nextSeq;
+        boolean ordered = true;
+        boolean allFed;
+        String checkpointItemID;
+        Date checkpointDate;
+
+        FormatProgress(Date fromDate, Date untilDate, String afterItemID) {
+            this.fromDate = fromDate;
+            this.untilDate = untilDate;
+            this.afterItemID = afterItemID;
+            this.checkpointItemID = afterItemID;
+            this.checkpointDate = fromDate;
+        }
+    }
+
+    private static class FedRecord {
+
+        final String itemID;
+        final Date resumeDate;
+
+        FedRecord(String itemID, Date resumeDate) {
+            this.itemID = itemID;
+            this.resumeDate = resumeDate;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proai.error.ServerException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The last stage of a bootstrap, loading records into the database in bulk.
+ * <p/>
+ * <p>Takes whatever items are waiting, up to <code>LOAD_BATCH_SIZE</code>,
+ * and loads them in one transaction along with the checkpoints of their
+ * formats.  Failed items are recorded in rcFailure, so they are retried by
+ * the regular update cycles.  Every <code>PROGRESS_INTERVAL</code>, the
+ * progress so far is logged.
+ * <p/>
+ * <p>When rebuilding the cache, records are loaded into the shadow generation
+ * and the checkpoints are those of the rebuild.
+ */
+class BulkLoader extends PipelineStage {
+
+    /**
+     * The maximum number of items to load in one transaction.
+     */
+    static final int LOAD_BATCH_SIZE = 2000;
+
+    private static final long PROGRESS_INTERVAL = 30000;
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkLoader.class);
+
+    private final RCDatabase _db;
+    private final RCDisk _disk;
+    private final RetryPolicy _retryPolicy;
+    private final BootstrapProgress _progress;
+    private final boolean _shadow;
+    private final Updater _updater;
+    private final Map<String, Integer> _formatKeyMap;
+    private long _lastProgressTime = System.currentTimeMillis();
+
+    public BulkLoader(Updater updater,
+                      BlockingQueue<QueueItem> input,
+                      RCDatabase db,
+                      RCDisk disk,
+                      RetryPolicy retryPolicy,
+                      BootstrapProgress progress,
+                      boolean shadow) throws ServerException {
+        super("BulkLoader", 1, 0, updater, input, null);
+        _updater = updater;
+        _db = db;
+        _disk = disk;
+        _retryPolicy = retryPolicy;
+        _progress = progress;
+        _shadow = shadow;
+
+        // formats were updated before the bootstrap started
+        Connection conn = null;
+        try {
+            conn = RecordCache.getConnection();
+            _formatKeyMap = _db.getFormatKeyMap(conn);
+        } catch (SQLException e) {
+            throw new ServerException("Error getting connection while "
+                    + "initializing BulkLoader", e);
+        } finally {
+            RecordCache.releaseConnection(conn);
+        }
+    }
+
+    @Override
+    protected void runThread() throws InterruptedException {
+        List<QueueItem> items = takeBatch(LOAD_BATCH_SIZE);
+        while (items != null) {
+            load(items);
+            long now = System.currentTimeMillis();
+            if (now - _lastProgressTime >= PROGRESS_INTERVAL) {
+                logger.info("Bootstrap progress: " + _progress.getStatus());
+                _lastProgressTime = now;
+            }
+            items = takeBatch(LOAD_BATCH_SIZE);
+        }
+    }
+
+    protected void process(QueueItem item) {
+        // items are loaded in batches by runThread
+    }
+
+    private void load(List<QueueItem> items) {
+
+        Connection conn = null;
+        boolean startedTransaction = false;
+        long startTime = System.currentTimeMillis();
+        try {
+
+            conn = RecordCache.getConnection();
+            conn.setAutoCommit(false);
+            startedTransaction = true;
+
+            List<ParsedRecord> recs = new ArrayList<>();
+            Set<String> prefixes = new LinkedHashSet<>();
+            for (QueueItem item : items) {
+                if (item.succeeded()) {
+                    recs.add(item.getParsedRecord());
+                } else {
+                    Committer.recordFailure(_db, _retryPolicy, conn, item);
+                }
+                prefixes.add(item.getMDPrefix());
+            }
+
+            List<ParsedRecord> skipped = _db.loadRecords(conn, recs, _formatKeyMap, _shadow);
+
+            for (QueueItem item : items) {
+                _progress.loaded(item);
+            }
+            for (String mdPrefix : prefixes) {
+                if (_shadow) {
+                    _db.setRebuildCheckpoint(conn, mdPrefix,
+                            _progress.getUntilDate(mdPrefix),
+                            _progress.getCheckpointDate(mdPrefix),
+                            _progress.getCheckpoint(mdPrefix));
+                } else {
+                    _db.setPollCheckpoint(conn, mdPrefix,
+                            _progress.getUntilDate(mdPrefix),
+                            _progress.getCheckpointDate(mdPrefix),
+                            _progress.getCheckpoint(mdPrefix));
+                }
+            }
+
+            // make sure the files are durable before the database
+            // refers to them, syncing them all in one go
+            List<String> newPaths = new ArrayList<>();
+            for (ParsedRecord rec : recs) {
+                if (!skipped.contains(rec)) {
+                    newPaths.add(rec.getSourceInfo());
+                }
+            }
+            _disk.sync(newPaths);
+
+            conn.commit();
+
+            // records that were in the cache already keep their cached copies
+            for (ParsedRecord rec : skipped) {
+                rec.deleteFile();
+            }
+
+            long loadTime = System.currentTimeMillis() - startTime;
+            processed(items.size(), loadTime * 1000000L);
+            logger.debug(String.format("Loaded %d records in %dms", items.size(), loadTime));
+
+        } catch (Throwable th) {
+            if (startedTransaction) {
+                try {
+                    conn.rollback();
+                } catch (Exception e) {
+                    logger.error("Failed to roll back failed transaction", e);
+                }
+            }
+            for (QueueItem item : items) {
+                ParsedRecord pr = item.getParsedRecord();
+                if (pr != null) pr.deleteFile();
+            }
+            _updater.handleCommitException(th);
+        } finally {
+            if (conn != null) {
+                try {
+                    if (startedTransaction) conn.setAutoCommit(true);
+                } catch (Exception e) {
+                    logger.error("Failed to set autoCommit to true", e);
+                } finally {
+                    RecordCache.releaseConnection(conn);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proai.error.ServerException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Checks the disk cache against the database.
+ * <p/>
+ * Files that were written by a <code>Worker</code> but never committed, for
+ * instance because of a crash or an immediate shutdown, are not referenced
+ * by any row and are never pruned.  The scanner finds (and optionally deletes)
+ * these orphans, and reports referenced files that are missing from disk.
+ * <p/>
+ * Referenced paths are streamed from the database into a sorted array of
+ * 64-bit hashes, which keeps memory use at about eight bytes per record.
+ * A hash collision can only cause an orphan to be kept, never a referenced
+ * file to be deleted.  The directory tree is walked in parallel with
+ * fork-join tasks.
+ * <p/>
+ * The scanner can be run from the command line while the service is stopped:
+ * <pre>
+ *   java proai.cache.CacheScanner /path/to/proai.properties [--reclaim]
+ * </pre>
+ * It can also be run by a live <code>RecordCache</code>, see
+ * <code>proai.scanCacheOnStartup</code>.
+ */
+public class CacheScanner {
+
+    private static final Logger logger = LoggerFactory.getLogger(CacheScanner.class);
+
+    /**
+     * Files younger than this are left alone when scanning a cache that is
+     * being updated, because they may belong to a transaction in progress.
+     */
+    static final long ONLINE_GRACE_MILLIS = 60 * 60 * 1000;
+
+    private static final int MAX_LOGGED_PATHS = 100;
+
+    private final RCDatabase m_db;
+    private final RCDisk m_disk;
+    private final int m_parallelism;
+
+    private final AtomicLong m_fileCount = new AtomicLong();
+    private final AtomicLong m_orphanCount = new AtomicLong();
+    private final AtomicLong m_reclaimedCount = new AtomicLong();
+    private final AtomicLong m_youngCount = new AtomicLong();
+
+    CacheScanner(RCDatabase db, RCDisk disk, int parallelism) {
+        m_db = db;
+        m_disk = disk;
+        m_parallelism = parallelism;
+    }
+
+    /**
+     * The walk is mostly waiting for the file system, so use more threads
+     * than there are processors.
+     */
+    static int defaultParallelism() {
+        return Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2
+                || (args.length == 2 && !args[1].equals("--reclaim"))) {
+            System.err.println("Usage: CacheScanner proai.properties [--reclaim]");
+            System.exit(1);
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(args[0])) {
+            props.load(in);
+        }
+        RecordCache cache = new RecordCache(props, false);
+        try {
+            cache.scanCache(args.length == 2, System.currentTimeMillis());
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Scan the cache and log a report.
+     *
+     * @param reclaim    whether to delete orphaned files.
+     * @param cutoffTime files modified at or after this time are never
+     *                   considered orphans.
+     */
+    public void scan(boolean reclaim, long cutoffTime) throws ServerException {
+
+        long startTime = System.currentTimeMillis();
+        logger.info("Scanning cache for orphaned and missing files...");
+
+        Connection conn = null;
+        boolean startedTransaction = false;
+        try {
+            conn = RecordCache.getConnection();
+            conn.setAutoCommit(false);
+            startedTransaction = true;
+
+            final PathHashes referenced = new PathHashes();
+            long referenceCount = m_db.forEachReferencedPath(conn, referenced);
+            referenced.sort();
+            conn.rollback(); // don't hold a transaction open while walking
+            logger.info(String.format("Loaded %d referenced paths in %dms",
+                    referenceCount, System.currentTimeMillis() - startTime));
+
+            walk(referenced, reclaim, cutoffTime);
+
+            // a second pass over the references finds the ones not seen on disk
+            final AtomicLong missingCount = new AtomicLong();
+            m_db.forEachReferencedPath(conn, new RCDatabase.PathHandler() {
+                public void handlePath(String path) {
+                    if (!referenced.isFound(hash(path))) {
+                        if (missingCount.incrementAndGet() <= MAX_LOGGED_PATHS) {
+                            logger.warn("Referenced file is missing from cache: " + path);
+                        }
+                    }
+                }
+            });
+            conn.rollback();
+
+            logger.info(String.format("Cache scan finished in %dms.  %d files, "
+                            + "%d orphaned (%d reclaimed, %d too new to judge), "
+                            + "%d referenced files missing",
+                    System.currentTimeMillis() - startTime,
+                    m_fileCount.get(),
+                    m_orphanCount.get(),
+                    m_reclaimedCount.get(),
+                    m_youngCount.get(),
+                    missingCount.get()));
+        } catch (SQLException e) {
+            throw new ServerException("Database error while scanning cache", e);
+        } finally {
+            if (conn != null) {
+                try {
+                    if (startedTransaction) conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    logger.error("Failed to set autoCommit to true", e);
+                } finally {
+                    RecordCache.releaseConnection(conn);
+                }
+            }
+        }
+    }
+
+    /**
+     * Walk the cache directory, marking the referenced files found and
+     * counting (and optionally deleting) the orphans.
+     */
+    void walk(PathHashes referenced, boolean reclaim, long cutoffTime) {
+        ForkJoinPool pool = new ForkJoinPool(m_parallelism);
+        try {
+            pool.invoke(new DirectoryScan(m_disk.getFile(""), "",
+                    referenced, reclaim, cutoffTime));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    long getFileCount() {
+        return m_fileCount.get();
+    }
+
+    long getOrphanCount() {
+        return m_orphanCount.get();
+    }
+
+    long getReclaimedCount() {
+        return m_reclaimedCount.get();
+    }
+
+    long getYoungCount() {
+        return m_youngCount.get();
+    }
+
+    private static boolean isCacheFileName(String name) {
+        return name.endsWith(".xml") || name.endsWith(".xml" + RCDisk.COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * 64-bit FNV-1a with a final avalanche step.
+     */
+    static long hash(String path) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            h ^= path.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * A sorted set of path hashes that remembers which ones were seen on disk.
+     * Paths are added as they are handed over by the database, and can be
+     * looked up once the set is sorted.
+     */
+    static class PathHashes implements RCDatabase.PathHandler {
+
+        private long[] m_hashes = new long[1024];
+        private int m_size;
+        private AtomicLongArray m_found;
+
+        public void handlePath(String path) {
+            add(hash(path));
+        }
+
+        void add(long hash) {
+            if (m_size == m_hashes.length) {
+                m_hashes = Arrays.copyOf(m_hashes, m_size * 2);
+            }
+            m_hashes[m_size++] = hash;
+        }
+
+        void sort() {
+            Arrays.sort(m_hashes, 0, m_size);
+            int unique = 0;
+            for (int i = 0; i < m_size; i++) {
+                if (unique == 0 || m_hashes[i] != m_hashes[unique - 1]) {
+                    m_hashes[unique++] = m_hashes[i];
+                }
+            }
+            m_size = unique;
+            m_found = new AtomicLongArray((m_size + 63) / 64);
+        }
+
+        /**
+         * Mark the hash as found if it is in the set.
+         *
+         * @return whether it is in the set.
+         */
+        boolean markFound(long hash) {
+            int i = Arrays.binarySearch(m_hashes, 0, m_size, hash);
+            if (i < 0) return false;
+            long bit = 1L << (i % 64);
+            long word;
+            do {
+                word = m_found.get(i / 64);
+            } while ((word & bit) == 0 && !m_found.compareAndSet(i / 64, word, word | bit));
+            return true;
+        }
+
+        boolean isFound(long hash) {
+            int i = Arrays.binarySearch(m_hashes, 0, m_size, hash);
+            return i >= 0 && (m_found.get(i / 64) & (1L << (i % 64))) != 0;
+        }
+    }
+
+    private class DirectoryScan extends RecursiveAction {
+
+        private final File m_dir;
+        private final String m_prefix;
+        private final PathHashes m_referenced;
+        private final boolean m_reclaim;
+        private final long m_cutoffTime;
+
+        DirectoryScan(File dir,
+                      String prefix,
+                      PathHashes referenced,
+                      boolean reclaim,
+                      long cutoffTime) {
+            m_dir = dir;
+            m_prefix = prefix;
+            m_referenced = referenced;
+            m_reclaim = reclaim;
+            m_cutoffTime = cutoffTime;
+        }
+
+        @Override
+        protected void compute() {
+            String[] names = m_dir.list();
+            if (names == null) {
+                logger.warn("Unable to list cache directory " + m_dir.getPath());
+                return;
+            }
+            List<DirectoryScan> subdirs = new ArrayList<>();
+            for (String name : names) {
+                // cache file names tell them apart from directories
+                // without another stat call
+                if (isCacheFileName(name)) {
+                    checkFile(name);
+                } else {
+                    File child = new File(m_dir, name);
+                    if (child.isDirectory()) {
+                        subdirs.add(new DirectoryScan(child, m_prefix + name + "/",
+                                m_referenced, m_reclaim, m_cutoffTime));
+                    }
+                }
+            }
+            invokeAll(subdirs);
+        }
+
+        private void checkFile(String name) {
+            m_fileCount.incrementAndGet();
+            String path = m_prefix + name;
+            if (m_referenced.markFound(hash(path))) {
+                return;
+            }
+            File file = new File(m_dir, name);
+            if (file.lastModified() >= m_cutoffTime) {
+                m_youngCount.incrementAndGet();
+                return;
+            }
+            if (m_orphanCount.incrementAndGet() <= MAX_LOGGED_PATHS) {
+                logger.info("Orphaned cache file: " + path);
+            }
+            if (m_reclaim) {
+                if (file.delete()) {
+                    m_reclaimedCount.incrementAndGet();
+                } else {
+                    logger.warn("Unable to delete orphaned cache file: " + path);
+                }
+            }
+        }
+    }
+
+}
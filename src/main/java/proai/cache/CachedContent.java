@@ -22,11 +22,19 @@ import proai.error.ServerException;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class CachedContent implements Writable {
 
+    private static final AtomicLong s_decodedBytes = new AtomicLong();
+    private static final AtomicLong s_decodeNanos = new AtomicLong();
+    private static final AtomicLong s_passedThroughFiles = new AtomicLong();
+
     final private File m_file;
     final private boolean m_headerOnly;
     final private String m_string;
@@ -49,13 +57,44 @@ public class CachedContent implements Writable {
         m_string = content;
     }
 
+    /**
+     * Get the total number of bytes produced by decompressing cache files.
+     */
+    static long getDecodedBytes() {
+        return s_decodedBytes.get();
+    }
+
+    /**
+     * Get the total time spent decompressing cache files, in milliseconds.
+     */
+    static long getDecodeMillis() {
+        return s_decodeNanos.get() / 1000000;
+    }
+
+    /**
+     * Get the number of compressed files that were sent without decoding.
+     */
+    static long getPassedThroughFiles() {
+        return s_passedThroughFiles.get();
+    }
+
     public void write(PrintWriter out) throws ServerException {
         if (m_file != null) {
             BufferedReader reader = null;
             try {
-                reader = new BufferedReader(
-                        new InputStreamReader(
-                                new FileInputStream(m_file), "UTF-8"));
+                boolean compressed = RCDisk.isCompressed(m_file);
+                if (compressed && !m_headerOnly && out instanceof GzipResponseWriter) {
+                    ((GzipResponseWriter) out).writeGzipMember(m_file);
+                    s_passedThroughFiles.incrementAndGet();
+                    return;
+                }
+                InputStream in;
+                if (compressed) {
+                    in = new DecodingInputStream(RCDisk.newInputStream(m_file));
+                } else {
+                    in = new FileInputStream(m_file);
+                }
+                reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
                 String line = reader.readLine();
                 while (line != null) {
                     if (!m_headerOnly || !line.contains("<record>")) {
@@ -79,4 +118,33 @@ public class CachedContent implements Writable {
         }
     }
 
+    /**
+     * Counts the bytes read from a decompressing stream, and the time spent
+     * reading them, into the decoding totals.
+     */
+    private static class DecodingInputStream extends FilterInputStream {
+
+        DecodingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long startTime = System.nanoTime();
+            int b = super.read();
+            s_decodeNanos.addAndGet(System.nanoTime() - startTime);
+            if (b != -1) s_decodedBytes.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long startTime = System.nanoTime();
+            int n = super.read(b, off, len);
+            s_decodeNanos.addAndGet(System.nanoTime() - startTime);
+            if (n > 0) s_decodedBytes.addAndGet(n);
+            return n;
+        }
+    }
+
 }
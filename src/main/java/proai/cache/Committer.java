@@ -27,42 +27,33 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 
 /**
- * A thread for committing a series of <code>QueueItem</code> updates to the
- * database.
+ * The last stage of queue processing, committing a series of
+ * <code>QueueItem</code> updates to the database.
  * <p/>
- * <p>Items are added to a "commit queue" by <code>Worker</code> threads via the
- * synchronized handoff() method.  This can occur before the thread is actually
- * started.  Once the thread is started, the items are removed asynchronously,
- * then committed, until all workers have finished and ( the queue is empty
- * or processing has been aborted ).
+ * <p>Items are handed over by the previous stage through the commit queue.
+ * The committer thread takes whatever items are waiting, up to the maximum
+ * per transaction, and commits them in one transaction, until the end of
+ * the queue has been reached or processing has been aborted.
  *
  * @author Chris Wilper
  */
-class Committer extends Thread {
+class Committer extends PipelineStage {
 
     private static final Logger _LOG = LoggerFactory.getLogger(Committer.class);
 
-    private final List<QueueItem> _commitQueue;
     private final RCDatabase _db;
-    /**
-     * This lock is used to ensure threadsafe access to the _lastCommitQueueSize
-     * primitive.  By design, only two threads will ever be contending for it.
-     */
-    private final Object _lastCommitQueueSizeLock = new Object();
-    private final int _maxCommitQueueSize;
+    private final RCDisk _disk;
     private final int _maxRecordsPerTransaction;
+    private final RetryPolicy _retryPolicy;
     private final Updater _updater;
-    /**
-     * Only true if the thread has been started and has finished.
-     */
-    private boolean _finishedRunning;
     private Map<String, Integer> _formatKeyMap;
-    private int _lastCommitQueueSize;
-    private int _processedCount;
     private long _totalCommitTime;
+    private long _totalSyncTime;
     private int _transactionCount;
+    private int _unchangedCount;
 
     /**
      * Construct a new committer with the given configuration.
@@ -70,19 +61,21 @@ class Committer extends Thread {
      * The caller is responsible for actually starting the thread.
      */
     public Committer(Updater updater,
+                     BlockingQueue<QueueItem> commitQueue,
                      RCDatabase db,
-                     int maxCommitQueueSize,
-                     int maxRecordsPerTransaction) throws ServerException {
+                     RCDisk disk,
+                     int maxRecordsPerTransaction,
+                     RetryPolicy retryPolicy) throws ServerException {
 
-        super("Committer");
+        super("Committer", 1, 0, updater, commitQueue, null);
         _updater = updater;
         _db = db;
-        _maxCommitQueueSize = maxCommitQueueSize;
+        _disk = disk;
         _maxRecordsPerTransaction = maxRecordsPerTransaction;
+        _retryPolicy = retryPolicy;
 
-        _commitQueue = new ArrayList<>(_maxCommitQueueSize);
-
-        // get this now -- it won't change while the thread is running
+        // get this now -- it only changes if polling, while under way,
+        // adds formats, in which case it's read again
         Connection conn = null;
         try {
             conn = RecordCache.getConnection();
@@ -96,120 +89,19 @@ class Committer extends Thread {
     }
 
     /**
-     * Attempt to add the list of <code>QueueItems</code> to the commit queue
-     * and return immediately.
-     * <p/>
-     * This method will block until adding the list would not cause the queue
-     * to exceed its capacity or the thread is finished running.
-     *
-     * @return whether the handoff was successful.  The handoff will only
-     * fail if the <code>Committer</code> thread has been stopped.
-     */
-    synchronized boolean handoff(List<QueueItem> queueItems) {
-
-        int toAddSize = queueItems.size();
-        while (!_finishedRunning &&
-                (getLastCommitQueueSize() + toAddSize) > _maxCommitQueueSize) {
-            _LOG.debug("Commit queue is too big; waiting for it shrink "
-                    + "or for Committer thread to finish");
-            try {
-                Thread.sleep(100);
-            } catch (Exception ignored) {
-            }
-        }
-        if (!_finishedRunning) {
-            synchronized (_commitQueue) {
-                _commitQueue.addAll(queueItems);
-                setLastCommitQueueSize(_commitQueue.size());
-            }
-            return true;
-        } else {
-            return false;
-        }
-    }
-
-    /**
-     * Get the last known queue size as long as the last known size is not
-     * currently being written.  The caller does not need to have a lock on
-     * the entire queue.
+     * Commit items in batches until the commit queue has been exhausted.
      */
-    private int getLastCommitQueueSize() {
-        synchronized (_lastCommitQueueSizeLock) {
-            return _lastCommitQueueSize;
-        }
-    }
-
-    /**
-     * Set the last known queue size as long as the last known size is not
-     * currently being read. The caller should already have a lock on the queue.
-     */
-    private void setLastCommitQueueSize(int size) {
-        synchronized (_lastCommitQueueSizeLock) {
-            _lastCommitQueueSize = size;
-        }
-    }
-
-    /**
-     * Run the thread.
-     * <p/>
-     * This works in two phases.  The first phase executes while workers are
-     * running and the second phase commits all remaining items unless
-     * processing is aborted.
-     */
-    public void run() {
-
-        _LOG.info("Committer started");
-
-        // phase one
-        while (_updater.anyWorkersAreRunning()) {
-            List<QueueItem> nextItems = getNextTransactionItems();
-            while (nextItems == null && _updater.anyWorkersAreRunning()) {
-                // wait for the queue to have items
-                _LOG.debug("Commit queue is empty; waiting for worker(s)");
-                try {
-                    Thread.sleep(100);
-                } catch (Exception ignored) {
-                }
-                nextItems = getNextTransactionItems();
-            }
-            if (nextItems != null) {
-                commit(nextItems);
-            }
-        }
-
-        // phase two
-        List<QueueItem> lastItems = getNextTransactionItems();
-        while (_updater.processingShouldContinue() && lastItems != null) {
-            commit(lastItems);
-            lastItems = getNextTransactionItems();
+    @Override
+    protected void runThread() throws InterruptedException {
+        List<QueueItem> items = takeBatch(_maxRecordsPerTransaction);
+        while (items != null) {
+            commit(items);
+            items = takeBatch(_maxRecordsPerTransaction);
         }
-
-        _LOG.info("Committer finished");
-        _finishedRunning = true;
-
     }
 
-    /**
-     * If any items are currently on the commit queue, take up to
-     * the maximum per-transaction off the queue and return them.
-     * <p/>
-     * Otherwise, return <code>null</code>.
-     */
-    private List<QueueItem> getNextTransactionItems() {
-
-        synchronized (_commitQueue) {
-            if (_commitQueue.size() == 0) {
-                return null;
-            } else {
-                List<QueueItem> nextItems = new ArrayList<>();
-                while ((_commitQueue.size() > 0) &&
-                        (nextItems.size() < _maxRecordsPerTransaction)) {
-                    nextItems.add(_commitQueue.remove(0));
-                }
-                setLastCommitQueueSize(_commitQueue.size());
-                return nextItems;
-            }
-        }
+    protected void process(QueueItem item) {
+        // items are committed in batches by runThread
     }
 
     private void commit(List<QueueItem> items) {
@@ -224,9 +116,16 @@ class Committer extends Thread {
             conn.setAutoCommit(false);
             startedTransaction = true;
 
-            // update the database for each record, as necessary
+            // update the database for each record, as necessary,
+            // remembering which new files turned out to be redundant
+            List<ParsedRecord> unchanged = new ArrayList<>();
+            List<String> newPaths = new ArrayList<>();
             for (QueueItem item : items) {
-                updateItem(conn, item);
+                if (!updateItem(conn, item)) {
+                    unchanged.add(item.getParsedRecord());
+                } else if (item.succeeded()) {
+                    newPaths.add(item.getParsedRecord().getSourceInfo());
+                }
             }
 
             // set the estimated commit date for all added/modified records
@@ -236,11 +135,27 @@ class Committer extends Thread {
 
             _db.setUncommittedRecordDates(conn, cacheCommitDate);
 
+            // make sure the files are durable before the database
+            // refers to them, syncing them all in one go
+            long syncStartTime = System.currentTimeMillis();
+            _disk.sync(newPaths);
+            long syncTime = System.currentTimeMillis() - syncStartTime;
+
             // finally, commit
             conn.commit();
+
+            // the cached copies of unchanged records are still in use,
+            // so the redundant new files can go
+            for (ParsedRecord pr : unchanged) {
+                pr.deleteFile();
+            }
+
             _transactionCount++;
-            _processedCount += items.size();
-            _totalCommitTime += System.currentTimeMillis() - commitStartTime;
+            _unchangedCount += unchanged.size();
+            long commitTime = System.currentTimeMillis() - commitStartTime;
+            _totalCommitTime += commitTime;
+            processed(items.size(), commitTime * 1000000L);
+            _totalSyncTime += syncTime;
             _LOG.debug(String.format("Committed %d QueueItems to database", items.size()));
 
             // before returning, check if our cacheCommitDate estimate was ok
@@ -287,36 +202,61 @@ class Committer extends Thread {
         }
     }
 
-    private void updateItem(Connection conn,
-                            QueueItem item) {
+    /**
+     * Update the database for the item.
+     *
+     * @return false if the item succeeded but its content was identical
+     * to the cached copy, so the newly written file is not needed.
+     */
+    private boolean updateItem(Connection conn,
+                               QueueItem item) {
 
-        _db.removeFromQueue(conn, item.getQueueKey());
+        _db.removeFromQueue(conn, item.getQueueKey(), item.getQueueRevision());
         if (item.succeeded()) {
-            _db.putRecord(conn, item.getParsedRecord(), _formatKeyMap);
+            if (!_formatKeyMap.containsKey(item.getMDPrefix())) {
+                _formatKeyMap = _db.getFormatKeyMap(conn);
+            }
+            boolean changed = _db.putRecord(conn, item.getParsedRecord(), _formatKeyMap);
             if (item.getQueueSource() == 'F') {
                 _db.removeFailure(conn, item.getIdentifier(), item.getMDPrefix());
             }
+            return changed;
+        } else {
+            recordFailure(_db, _retryPolicy, conn, item);
+            return true;
+        }
+    }
+
+    /**
+     * Record the failure of the item in rcFailure, scheduling its next
+     * attempt according to the retry policy.
+     */
+    static void recordFailure(RCDatabase db,
+                              RetryPolicy retryPolicy,
+                              Connection conn,
+                              QueueItem item) {
+        int oldFailCount = db.getFailCount(conn,
+                item.getIdentifier(),
+                item.getMDPrefix());
+
+        long now = System.currentTimeMillis();
+        if (oldFailCount == -1) {
+            db.addFailure(conn,
+                    item.getIdentifier(),
+                    item.getMDPrefix(),
+                    item.getSourceInfo(),
+                    item.getFailDate(),
+                    item.getFailReason(),
+                    retryPolicy.getNextAttemptDate(0, now));
         } else {
-            int oldFailCount = _db.getFailCount(conn,
+            db.updateFailure(conn,
                     item.getIdentifier(),
-                    item.getMDPrefix());
-
-            if (oldFailCount == -1) {
-                _db.addFailure(conn,
-                        item.getIdentifier(),
-                        item.getMDPrefix(),
-                        item.getSourceInfo(),
-                        item.getFailDate(),
-                        item.getFailReason());
-            } else {
-                _db.updateFailure(conn,
-                        item.getIdentifier(),
-                        item.getMDPrefix(),
-                        item.getSourceInfo(),
-                        oldFailCount + 1,
-                        item.getFailDate(),
-                        item.getFailReason());
-            }
+                    item.getMDPrefix(),
+                    item.getSourceInfo(),
+                    oldFailCount + 1,
+                    item.getFailDate(),
+                    item.getFailReason(),
+                    retryPolicy.getNextAttemptDate(oldFailCount + 1, now));
         }
     }
 
@@ -324,11 +264,18 @@ class Committer extends Thread {
         return _transactionCount;
     }
 
-    int getProcessedCount() {
-        return _processedCount;
+    int getUnchangedCount() {
+        return _unchangedCount;
     }
 
     long getTotalCommitTime() {
         return _totalCommitTime;
     }
+
+    /**
+     * Get the part of the total commit time that was spent syncing files.
+     */
+    long getTotalSyncTime() {
+        return _totalSyncTime;
+    }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+/**
+ * Limits how many fetches may be in flight at once, adapting the limit to
+ * how well the repository is coping.
+ * <p/>
+ * <p>The limit follows an additive-increase, multiplicative-decrease scheme.
+ * After as many successful fetches in a row as the current limit, it grows
+ * by one.  A fetch that failed in a way that hints at congestion, or one that
+ * took longer than the target latency (if any), halves it.  Failures of
+ * single records that have nothing to do with load, such as a missing
+ * datastream or malformed XML, neither count as successes nor as
+ * congestion, so a trickle of broken records being retried doesn't keep
+ * the limit down.  After a decrease, further congestion signals are
+ * ignored until the fetches that were in flight at the time have completed,
+ * since they were started under the old limit.  The limit always stays
+ * within the configured bounds, and starts out at the maximum.
+ * <p/>
+ * <p>The limiter is meant to outlive a round of queue processing, so what
+ * was learned about the repository carries over to the next round.
+ */
+class ConcurrencyLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+
+    /**
+     * The status of a failed HTTP request, as reported by the Fedora client,
+     * if it is a client error.
+     */
+    private static final Pattern CLIENT_ERROR_STATUS = Pattern.compile("\\[4\\d\\d\\b");
+
+    private final int _minLimit;
+    private final int _maxLimit;
+    private final long _targetLatency;
+    private int _limit;
+    private int _inFlight;
+    private int _successes;
+    private int _grace;
+    private int _increaseCount;
+    private int _decreaseCount;
+
+    /**
+     * @param targetLatency the fetch time in ms above which a fetch counts
+     *                      as a sign of congestion, or 0 to only react
+     *                      to failures.
+     */
+    ConcurrencyLimiter(int minLimit, int maxLimit, long targetLatency) {
+        _minLimit = minLimit;
+        _maxLimit = maxLimit;
+        _targetLatency = targetLatency;
+        _limit = maxLimit;
+    }
+
+    /**
+     * Wait until another fetch may be started, and count it as in flight.
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (_inFlight >= _limit) {
+            wait();
+        }
+        _inFlight++;
+    }
+
+    /**
+     * Count a fetch started with <code>acquire</code> as completed, and adapt
+     * the limit to the outcome.
+     *
+     * @param latency how long the fetch took, in ms.
+     * @param failure the cause of the failure if the fetch failed, or
+     *                <code>null</code> if it succeeded.
+     */
+    synchronized void release(long latency, Throwable failure) {
+        _inFlight--;
+        boolean failed = failure != null && isCongestion(failure);
+        boolean congested = failed || (_targetLatency > 0 && latency > _targetLatency);
+        if (_grace > 0) {
+            _grace--;
+            if (congested) _successes = 0;
+        } else if (congested) {
+            _successes = 0;
+            if (_limit > _minLimit) {
+                _limit = Math.max(_minLimit, _limit / 2);
+                _decreaseCount++;
+                _grace = _inFlight;
+                logger.info("Fetch concurrency decreased to " + _limit + " after a "
+                        + (failed ? "failed" : "slow (" + latency + "ms)") + " fetch");
+            }
+        } else if (failure == null && ++_successes >= _limit && _limit < _maxLimit) {
+            _limit++;
+            _successes = 0;
+            _increaseCount++;
+            logger.debug("Fetch concurrency increased to " + _limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Tell whether a fetch failure hints at congestion: a transport error,
+     * such as a timeout or a refused connection, or a server error status.
+     * Client error statuses, such as a missing datastream, and anything that
+     * went wrong apart from I/O, such as malformed XML, don't.
+     */
+    static boolean isCongestion(Throwable failure) {
+        for (Throwable th = failure; th != null; th = th.getCause()) {
+            if (th instanceof IOException) {
+                String message = th.getMessage();
+                return message == null || !CLIENT_ERROR_STATUS.matcher(message).find();
+            }
+        }
+        return false;
+    }
+
+    synchronized int getLimit() {
+        return _limit;
+    }
+
+    int getMinLimit() {
+        return _minLimit;
+    }
+
+    int getMaxLimit() {
+        return _maxLimit;
+    }
+
+    synchronized int getIncreaseCount() {
+        return _increaseCount;
+    }
+
+    synchronized int getDecreaseCount() {
+        return _decreaseCount;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.cache;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An output stream that computes a SHA-1 hash of everything written through it,
+ * except for the value of the first <code>datestamp</code> element.
+ * <p/>
+ * Fedora bumps an object's last modified date for changes that don't affect
+ * a given dissemination, so the datestamp alone must not make two otherwise
+ * identical records look different.
+ */
+class ContentHashOutputStream extends FilterOutputStream {
+
+    private static final byte[] DATESTAMP_START = {
+            '<', 'd', 'a', 't', 'e', 's', 't', 'a', 'm', 'p', '>'};
+
+    private final MessageDigest m_digest;
+    private String m_hash;
+    private long m_count;
+
+    // number of bytes of DATESTAMP_START matched so far
+    private int m_matched;
+    private boolean m_inDatestamp;
+    private boolean m_datestampSkipped;
+
+    public ContentHashOutputStream(OutputStream out) {
+        super(out);
+        try {
+            m_digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 is not supported by this JVM", e);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        m_count++;
+        digest((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        m_count += len;
+        if (m_datestampSkipped) {
+            m_digest.update(b, off, len);
+        } else {
+            for (int i = off; i < off + len; i++) {
+                digest(b[i]);
+            }
+        }
+    }
+
+    private void digest(byte b) {
+        if (m_datestampSkipped) {
+            m_digest.update(b);
+        } else if (m_inDatestamp) {
+            if (b == '<') {
+                m_inDatestamp = false;
+                m_datestampSkipped = true;
+                m_digest.update(b);
+            }
+        } else {
+            m_digest.update(b);
+            if (b == DATESTAMP_START[m_matched]) {
+                m_matched++;
+                if (m_matched == DATESTAMP_START.length) {
+                    m_inDatestamp = true;
+                }
+            } else {
+                m_matched = (b == DATESTAMP_START[0]) ? 1 : 0;
+            }
+        }
+    }
+
+    /**
+     * Get the number of bytes written so far.
+     */
+    public long getCount() {
+        return m_count;
+    }
+
+    /**
+     * Get the hex-encoded hash of the content.
+     * <p/>
+     * This finishes the computation, so it should only be called
+     * after the stream has been closed.
+     */
+    public String getHash() {
+        if (m_hash == null) {
+            m_hash = Hex.encodeHexString(m_digest.digest());
+        }
+        return m_hash;
+    }
+
+}
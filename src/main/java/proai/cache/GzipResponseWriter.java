@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A writer that produces a gzip-encoded response as a series of gzip members.
+ * <p/>
+ * Text written through the normal <code>PrintWriter</code> methods is
+ * compressed on the fly.  Record files that are already stored gzipped
+ * in the cache are copied to the output as members of their own, so they
+ * reach the client without being decompressed and compressed again.
+ * RFC 1952 allows any number of concatenated members, and decoders treat
+ * them as one continuous stream.
+ *
+ * @see CachedContent
+ */
+public class GzipResponseWriter extends PrintWriter {
+
+    private final MemberWriter m_members;
+
+    public GzipResponseWriter(OutputStream out) {
+        this(new MemberWriter(out));
+    }
+
+    private GzipResponseWriter(MemberWriter members) {
+        super(members);
+        m_members = members;
+    }
+
+    /**
+     * Copy a gzipped file to the output as-is.
+     */
+    public void writeGzipMember(File file) throws IOException {
+        flush();
+        m_members.writeRawMember(file);
+    }
+
+    private static class MemberWriter extends Writer {
+
+        private final OutputStream m_out;
+        private Writer m_writer;
+
+        MemberWriter(OutputStream out) {
+            m_out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (m_writer == null) {
+                // closing a member must not close the response stream
+                OutputStream gzip = new GZIPOutputStream(new FilterOutputStream(m_out) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                });
+                m_writer = new OutputStreamWriter(gzip, "UTF-8");
+            }
+            m_writer.write(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (m_writer != null) {
+                m_writer.flush();
+            }
+            m_out.flush();
+        }
+
+        void writeRawMember(File file) throws IOException {
+            finishMember();
+            try (InputStream in = new FileInputStream(file)) {
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len = in.read(buf)) != -1) {
+                    m_out.write(buf, 0, len);
+                }
+            }
+        }
+
+        private void finishMember() throws IOException {
+            if (m_writer != null) {
+                m_writer.close();
+                m_writer = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finishMember();
+            m_out.close();
+        }
+    }
+
+}
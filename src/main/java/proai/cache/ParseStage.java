@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The parse stage of queue processing.
+ * <p/>
+ * <p>Each thread reads the datestamp and setSpecs of fetched records so they
+ * can be committed to the database.  If the driver reported them while
+ * writing the record, they are taken from the writer; otherwise the record
+ * file is parsed.
+ */
+class ParseStage extends PipelineStage {
+
+    private static final Logger _LOG = LoggerFactory.getLogger(ParseStage.class);
+
+    private final AtomicInteger _parsedCount = new AtomicInteger();
+
+    public ParseStage(int threadCount,
+                      Updater updater,
+                      BlockingQueue<QueueItem> input,
+                      BlockingQueue<QueueItem> output) {
+        super("Parser", threadCount, 0, updater, input, output);
+    }
+
+    protected void process(QueueItem qi) {
+        try {
+            RCDiskWriter diskWriter = qi.getDiskWriter();
+            if (diskWriter.hasRecordHeader()) {
+                qi.setParsedRecord(new ParsedRecord(qi.getIdentifier(),
+                        qi.getMDPrefix(),
+                        diskWriter.getPath(),
+                        diskWriter.getFile(),
+                        diskWriter.getContentHash(),
+                        diskWriter.getRecordDatestamp(),
+                        diskWriter.getRecordSetSpecs()));
+            } else {
+                qi.setParsedRecord(new ParsedRecord(qi.getIdentifier(),
+                        qi.getMDPrefix(),
+                        diskWriter.getPath(),
+                        diskWriter.getFile(),
+                        diskWriter.getContentHash()));
+                _parsedCount.incrementAndGet();
+            }
+
+            qi.setSucceeded(true);
+
+            _LOG.debug("Successfully processed record " + qi.getIdentifier());
+        } catch (Throwable th) {
+            fail(qi, th);
+        }
+    }
+
+    /**
+     * Get the number of records whose file had to be parsed because the
+     * driver did not report their header values.
+     */
+    int getParsedCount() {
+        return _parsedCount.get();
+    }
+}
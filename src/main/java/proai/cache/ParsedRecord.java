@@ -17,7 +17,7 @@
 package proai.cache;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -47,20 +47,27 @@ public class ParsedRecord extends DefaultHandler implements Record {
     private final String m_prefix;
     private final List<String> m_setSpecs;
     private final String m_sourceInfo;
+    private final String m_contentHash;
     private StringBuffer m_buf = null;
     private Date m_date;
     private boolean m_finishedParsing;
     private boolean m_inDatestamp;
     private boolean m_inSetSpec;
 
+    /**
+     * Construct a record from the given file, parsing it for the
+     * datestamp and setSpecs.
+     */
     public ParsedRecord(String itemID,
                         String prefix,
                         String sourceInfo,
-                        File file) throws ServerException {
+                        File file,
+                        String contentHash) throws ServerException {
         m_itemID = itemID;
         m_prefix = prefix;
         m_sourceInfo = sourceInfo;
         m_file = file;
+        m_contentHash = contentHash;
         m_date = new Date(0);
         m_setSpecs = new ArrayList<>();
 
@@ -75,11 +82,13 @@ public class ParsedRecord extends DefaultHandler implements Record {
             SAXParserFactory spf = SAXParserFactory.newInstance();
             spf.setNamespaceAware(false);
             SAXParser parser = spf.newSAXParser();
-            parser.parse(new FileInputStream(file), this);
+            try (InputStream in = RCDisk.newInputStream(file)) {
+                parser.parse(in, this);
+            }
         } catch (Exception e) {
             if (log.isDebugEnabled() && file.exists()) {
                 try {
-                    String xml = StreamUtil.getString(new FileInputStream(file), "UTF-8");
+                    String xml = StreamUtil.getString(RCDisk.newInputStream(file), "UTF-8");
                     log.debug("Error parsing record xml: #BEGIN-XML#" + xml + "#END-XML#");
                 } catch (Exception ignored) {
                 }
@@ -88,6 +97,63 @@ public class ParsedRecord extends DefaultHandler implements Record {
         }
     }
 
+    /**
+     * Construct a record from the given file, using the datestamp and
+     * setSpecs that were reported while it was written instead of parsing it.
+     *
+     * @see RCDiskWriter#recordHeader(String, List)
+     */
+    public ParsedRecord(String itemID,
+                        String prefix,
+                        String sourceInfo,
+                        File file,
+                        String contentHash,
+                        String datestamp,
+                        List<String> setSpecs) throws ServerException {
+        m_itemID = itemID;
+        m_prefix = prefix;
+        m_sourceInfo = sourceInfo;
+        m_file = file;
+        m_contentHash = contentHash;
+        m_setSpecs = new ArrayList<>();
+
+        m_formatter1 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        m_formatter2 = new SimpleDateFormat("yyyy-MM-dd");
+
+        m_finishedParsing = true;
+
+        try {
+            m_date = parseDate(datestamp.trim());
+        } catch (Exception e) {
+            throw new ServerException("Record datestamp is unparsable: " + datestamp, e);
+        }
+        for (String setSpec : setSpecs) {
+            addSetSpec(setSpec.trim());
+        }
+    }
+
+    private Date parseDate(String s) throws Exception {
+        try {
+            return m_formatter1.parse(s);
+        } catch (Exception e) {
+            return m_formatter2.parse(s);
+        }
+    }
+
+    private void addSetSpec(String s) {
+        // Infer memberships based on setSpec:syntax:stuff
+        String[] h = s.split(":");
+        if (h.length > 2) {
+            StringBuilder b4 = new StringBuilder();
+            for (String aH : h) {
+                m_setSpecs.add(b4.toString() + aH);
+                b4.append(aH + ":");
+            }
+        } else {
+            m_setSpecs.add(s);
+        }
+    }
+
     @Override
     public void startElement(String uri,
                              String localName,
@@ -114,11 +180,7 @@ public class ParsedRecord extends DefaultHandler implements Record {
                 case "datestamp": {
                     String s = m_buf.toString().trim();
                     try {
-                        try {
-                            m_date = m_formatter1.parse(s);
-                        } catch (Exception e) {
-                            m_date = m_formatter2.parse(s);
-                        }
+                        m_date = parseDate(s);
                     } catch (Exception e) {
                         throw new SAXException("Record datestamp is unparsable: " + s);
                     }
@@ -126,18 +188,7 @@ public class ParsedRecord extends DefaultHandler implements Record {
                     break;
                 }
                 case "setSpec": {
-                    String s = m_buf.toString().trim();
-                    // Infer memberships based on setSpec:syntax:stuff
-                    String[] h = s.split(":");
-                if (h.length > 2) {
-                        StringBuilder b4 = new StringBuilder();
-                        for (String aH : h) {
-                            m_setSpecs.add(b4.toString() + aH);
-                            b4.append(aH + ":");
-                        }
-                    } else {
-                        m_setSpecs.add(m_buf.toString().trim());
-                    }
+                    addSetSpec(m_buf.toString().trim());
                     m_inSetSpec = false;
                     break;
                 }
@@ -174,6 +225,16 @@ public class ParsedRecord extends DefaultHandler implements Record {
         return m_sourceInfo;
     }
 
+    /**
+     * Get the hash of the record content as computed while it was written,
+     * or null if unknown.
+     *
+     * @see RCDiskWriter#getContentHash()
+     */
+    public String getContentHash() {
+        return m_contentHash;
+    }
+
     public Date getDate() {
         return m_date;
     }
@@ -0,0 +1,384 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proai.util.MetricsRegistry;
+import proai.util.StreamUtil;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of the queue processing pipeline.
+ * <p/>
+ * <p>A stage runs a fixed number of threads that take <code>QueueItem</code>s
+ * from a bounded input queue, process them and put them on a bounded output
+ * queue, where the next stage picks them up.  A full output queue blocks the
+ * stage until the next stage catches up, so the slowest stage sets the pace
+ * for the whole pipeline without any polling.
+ * <p/>
+ * <p>The end of the input is signalled by <code>END_OF_INPUT</code>.  When the
+ * last thread of a stage has seen it, the marker is passed on to the next
+ * stage.  Items that failed in an earlier stage are passed through untouched
+ * so the failure can be recorded when they are committed.
+ * <p/>
+ * <p>If processing is aborted, all threads of all stages are interrupted by
+ * the <code>Updater</code>, and no end marker is passed on.
+ * <p/>
+ * <p>Besides the stats of the current round, each stage reports to the
+ * <code>MetricsRegistry</code>, labelled with its name, how many items it
+ * processed and failed, how long that took, and how full its input queue
+ * is.  Failures are also counted by the kind of exception that caused them.
+ */
+abstract class PipelineStage {
+
+    /**
+     * Marker item that follows the last real item on a queue.
+     */
+    static final QueueItem END_OF_INPUT = new QueueItem(-1, 0, null, null, null, ' ');
+
+    private static final Logger logger = LoggerFactory.getLogger(PipelineStage.class);
+
+    private final String _name;
+    private final int _threadCount;
+    private final long _stackSize;
+    private final Updater _updater;
+    private final BlockingQueue<QueueItem> _input;
+    private final BlockingQueue<QueueItem> _output;
+    private final int _inputCapacity;
+    private final Thread[] _threads;
+    private final AtomicInteger _runningCount = new AtomicInteger();
+    private final AtomicInteger _processedCount = new AtomicInteger();
+    private final AtomicInteger _failedCount = new AtomicInteger();
+    private final AtomicLong _busyNanos = new AtomicLong();
+    private final AtomicLong _idleNanos = new AtomicLong();
+    private final AtomicLong _blockedNanos = new AtomicLong();
+    private final AtomicLong _queueDepthTotal = new AtomicLong();
+    private final AtomicLong _queueDepthSamples = new AtomicLong();
+    private final MetricsRegistry.Counter _processedMetric;
+    private final MetricsRegistry.Counter _failedMetric;
+    private final MetricsRegistry.Histogram _latencyMetric;
+
+    /**
+     * Create a stage with the given number of threads.
+     *
+     * @param stackSize the stack size of each thread, or 0 for the default.
+     * @param input  the queue to take items from, or <code>null</code> if the
+     *               stage produces items itself.
+     * @param output the queue to put processed items on, or <code>null</code>
+     *               if this is the last stage.
+     */
+    protected PipelineStage(String name,
+                            int threadCount,
+                            long stackSize,
+                            Updater updater,
+                            BlockingQueue<QueueItem> input,
+                            BlockingQueue<QueueItem> output) {
+        _name = name;
+        _threadCount = threadCount;
+        _stackSize = stackSize;
+        _updater = updater;
+        _input = input;
+        _output = output;
+        _inputCapacity = input == null ? 0 : input.remainingCapacity() + input.size();
+        _threads = new Thread[threadCount];
+
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        _processedMetric = metrics.counter("proai_stage_processed_total",
+                "Items processed by each stage of the update pipeline.", "stage", name);
+        _failedMetric = metrics.counter("proai_stage_failed_total",
+                "Items that failed in each stage of the update pipeline.", "stage", name);
+        _latencyMetric = input == null ? null : metrics.histogram("proai_stage_seconds",
+                "Time each stage of the update pipeline took to process an item, "
+                        + "or a batch of items if the stage works in batches.", "stage", name);
+    }
+
+    /**
+     * Start all threads of the stage.
+     */
+    void start() {
+        if (_input != null) {
+            MetricsRegistry.getInstance().gauge("proai_stage_queue_depth",
+                    "Items waiting on the input queue of each stage of the update pipeline.",
+                    "stage", _name, new MetricsRegistry.Gauge() {
+                        public Object getValue() {
+                            return _input.size();
+                        }
+                    });
+        }
+        _runningCount.set(_threads.length);
+        for (int i = 0; i < _threads.length; i++) {
+            _threads[i] = new Thread(null, new Runnable() {
+                public void run() {
+                    runStageThread();
+                }
+            }, _name + "-" + (i + 1) + "of" + _threads.length, _stackSize);
+            _threads[i].start();
+        }
+    }
+
+    /**
+     * Wait for all threads of the stage to finish.
+     */
+    void join() throws InterruptedException {
+        for (Thread thread : _threads) {
+            if (thread != null) thread.join();
+        }
+    }
+
+    /**
+     * Interrupt all threads of the stage, making any of them that wait on a
+     * queue give up.
+     */
+    void interrupt() {
+        for (Thread thread : _threads) {
+            if (thread != null) thread.interrupt();
+        }
+    }
+
+    /**
+     * Remove all items still waiting on the input queue and delete the
+     * files that were written for them.
+     * <p/>
+     * This is meant to be called after processing was aborted.
+     */
+    void discardInput() {
+        if (_input == null) return;
+        List<QueueItem> items = new ArrayList<>();
+        _input.drainTo(items);
+        for (QueueItem item : items) {
+            RCDiskWriter diskWriter = item.getDiskWriter();
+            if (diskWriter != null) {
+                diskWriter.getFile().delete();
+            }
+        }
+    }
+
+    private void runStageThread() {
+        logger.debug(Thread.currentThread().getName() + " started");
+        boolean finished = false;
+        try {
+            runThread();
+            finished = true;
+        } catch (InterruptedException e) {
+            logger.debug(Thread.currentThread().getName() + " interrupted");
+        } catch (Throwable th) {
+            _updater.handleStageException(this, th);
+        } finally {
+            if (_runningCount.decrementAndGet() == 0
+                    && finished
+                    && _output != null
+                    && _updater.processingShouldContinue()) {
+                try {
+                    _output.put(END_OF_INPUT);
+                } catch (InterruptedException e) {
+                    logger.debug(Thread.currentThread().getName() + " interrupted");
+                }
+            }
+            logger.debug(Thread.currentThread().getName() + " finished");
+        }
+    }
+
+    /**
+     * Run one thread of the stage.
+     * <p/>
+     * By default, this processes items one by one until the end of the input
+     * has been reached or processing should stop.
+     */
+    protected void runThread() throws Exception {
+        QueueItem item = take();
+        while (item != null) {
+            long startTime = System.nanoTime();
+            if (!item.failed()) {
+                process(item);
+            }
+            processed(1, System.nanoTime() - startTime);
+            put(item);
+            item = take();
+        }
+    }
+
+    /**
+     * Process a single item that has not failed so far.
+     * <p/>
+     * Implementations should record failures with <code>fail</code> rather
+     * than throw.
+     */
+    protected abstract void process(QueueItem item) throws Exception;
+
+    /**
+     * Take the next item from the input queue, waiting for one to arrive
+     * if needed.
+     *
+     * @return the item, or <code>null</code> if the end of the input has been
+     * reached or processing should stop.
+     */
+    protected final QueueItem take() throws InterruptedException {
+        if (!_updater.processingShouldContinue()) return null;
+        _queueDepthTotal.addAndGet(_input.size());
+        _queueDepthSamples.incrementAndGet();
+        long startTime = System.nanoTime();
+        QueueItem item = _input.take();
+        _idleNanos.addAndGet(System.nanoTime() - startTime);
+        if (item == END_OF_INPUT) {
+            // leave it for the other threads of this stage
+            _input.put(END_OF_INPUT);
+            return null;
+        }
+        return item;
+    }
+
+    /**
+     * Take the next item from the input queue, waiting for one to arrive if
+     * needed, along with any others that are already waiting, up to the
+     * given maximum.
+     *
+     * @return the items, or <code>null</code> if the end of the input has
+     * been reached or processing should stop.
+     */
+    protected final List<QueueItem> takeBatch(int maxItems) throws InterruptedException {
+        QueueItem first = take();
+        if (first == null) return null;
+        List<QueueItem> items = new ArrayList<>();
+        items.add(first);
+        _input.drainTo(items, maxItems - 1);
+        int last = items.size() - 1;
+        if (items.get(last) == END_OF_INPUT) {
+            items.remove(last);
+            _input.put(END_OF_INPUT);
+        }
+        return items;
+    }
+
+    /**
+     * Put an item on the output queue, waiting for space if needed.
+     */
+    protected final void put(QueueItem item) throws InterruptedException {
+        long startTime = System.nanoTime();
+        _output.put(item);
+        _blockedNanos.addAndGet(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Count items as processed by this stage.
+     */
+    protected final void processed(int count, long busyNanos) {
+        _processedCount.addAndGet(count);
+        _busyNanos.addAndGet(busyNanos);
+        _processedMetric.add(count);
+        if (_latencyMetric != null) {
+            _latencyMetric.observe(busyNanos);
+        }
+    }
+
+    /**
+     * Mark the item as failed, deleting any file that was written for it.
+     */
+    protected final void fail(QueueItem item, Throwable th) {
+
+        logger.warn(String.format("%s failed to process record %s: %s",
+                _name, item.getIdentifier(), th.getMessage()));
+
+        RCDiskWriter diskWriter = item.getDiskWriter();
+        if (diskWriter != null) {
+            diskWriter.close();
+            diskWriter.getFile().delete();
+            item.setDiskWriter(null);
+        }
+
+        StringWriter failReason = new StringWriter();
+        th.printStackTrace(new PrintWriter(failReason, true));
+
+        item.setFailReason(failReason.toString());
+        item.setFailDate(StreamUtil.nowUTCString());
+        _failedCount.incrementAndGet();
+        _failedMetric.inc();
+        MetricsRegistry.getInstance().counter("proai_record_failures_total",
+                "Records that failed to be processed, by the kind of exception that caused it.",
+                "cause", th.getClass().getName()).inc();
+    }
+
+    protected final boolean processingShouldContinue() {
+        return _updater.processingShouldContinue();
+    }
+
+    String getName() {
+        return _name;
+    }
+
+    int getThreadCount() {
+        return _threadCount;
+    }
+
+    boolean hasInput() {
+        return _input != null;
+    }
+
+    boolean hasOutput() {
+        return _output != null;
+    }
+
+    int getInputCapacity() {
+        return _inputCapacity;
+    }
+
+    int getProcessedCount() {
+        return _processedCount.get();
+    }
+
+    int getFailedCount() {
+        return _failedCount.get();
+    }
+
+    /**
+     * Get the time spent processing items, summed over all threads, in ms.
+     */
+    long getBusyTime() {
+        return _busyNanos.get() / 1000000;
+    }
+
+    /**
+     * Get the time spent waiting for input, summed over all threads, in ms.
+     */
+    long getIdleTime() {
+        return _idleNanos.get() / 1000000;
+    }
+
+    /**
+     * Get the time spent waiting for the next stage to make room on its
+     * input queue, summed over all threads, in ms.
+     */
+    long getBlockedTime() {
+        return _blockedNanos.get() / 1000000;
+    }
+
+    /**
+     * Get the average number of items found waiting on the input queue
+     * whenever a thread of this stage went to take the next one.
+     */
+    double getAverageQueueDepth() {
+        long samples = _queueDepthSamples.get();
+        return samples == 0 ? 0.0 : (double) _queueDepthTotal.get() / (double) samples;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The first stage of queue processing.
+ * <p/>
+ * <p>Reads the items to process from one <code>QueueIterator</code> per
+ * priority and puts them on the input queue of the fetch stage, waiting
+ * whenever that queue is full.
+ * <p/>
+ * <p>Priorities are interleaved by smooth weighted round-robin, so while
+ * items of all priorities are waiting, each gets a share of the fetch slots
+ * according to its weight.  A priority without waiting items does not use
+ * up any share.  This way, a few changed records are fetched right away
+ * even during a bulk load of polled records, and retries of failed records
+ * are not starved by either.
+ * <p/>
+ * <p>Records the driver notifies of as changed may be queued while a round of
+ * processing is under way.  Whenever no more such records are waiting, the
+ * queue is checked for new ones, at most once per
+ * <code>REFRESH_INTERVAL</code>.
+ * <p/>
+ * <p>While polling is under way, the feeder does not stop when the queue
+ * runs dry, but keeps checking for newly queued records of all priorities
+ * until polling has finished, so they are fetched within about a
+ * <code>REFRESH_INTERVAL</code> of being committed to the queue.
+ * <p/>
+ * <p>A record is fed at most once per format and round.  If it is queued
+ * again while in flight, possibly with a higher priority, the row is left
+ * in the queue for the next round instead of being fetched concurrently.
+ * <p/>
+ * <p>A queued record whose priority is raised keeps its queue key, which
+ * the iterator of its new priority may have read past already.  So the
+ * iterator of changed records is restarted from the beginning whenever it
+ * is refreshed; rows it has fed already are passed over.
+ */
+class QueueFeeder extends PipelineStage {
+
+    /**
+     * The weight of each priority, highest priority first.
+     */
+    private static final int[] WEIGHTS = {16, 4, 1};
+
+    private static final long REFRESH_INTERVAL = 1000;
+
+    private final Updater _updater;
+    private final QueueIterator[] _queueIterators = new QueueIterator[QueueItem.PRIORITY_COUNT];
+    private final int[] _currentWeights = new int[QueueItem.PRIORITY_COUNT];
+    private final int[] _fedCounts = new int[QueueItem.PRIORITY_COUNT];
+    private final Map<String, String> _fedItems = new HashMap<>();
+    private int _skippedCount;
+    private long _lastRefreshTime;
+    private long _lastRestartTime;
+    private boolean _fedSinceRestart;
+
+    public QueueFeeder(Updater updater,
+                       BlockingQueue<QueueItem> output) {
+        super("Feeder", 1, 0, updater, null, output);
+        _updater = updater;
+    }
+
+    @Override
+    protected void runThread() throws Exception {
+        try {
+            for (int priority = 0; priority < QueueItem.PRIORITY_COUNT; priority++) {
+                _queueIterators[priority] = _updater.newQueueIterator(priority, 0);
+            }
+            _lastRefreshTime = System.currentTimeMillis();
+            _lastRestartTime = _lastRefreshTime;
+
+            QueueItem item = nextItem();
+            while (processingShouldContinue() && item != null) {
+                put(item);
+                processed(1, 0);
+                item = nextItem();
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Get the next item to feed, or <code>null</code> if there are no more.
+     */
+    private QueueItem nextItem() throws Exception {
+        while (true) {
+            QueueIterator changed = _queueIterators[QueueItem.PRIORITY_CHANGED];
+            long now = System.currentTimeMillis();
+            if (!changed.hasNext() && now - _lastRefreshTime >= REFRESH_INTERVAL) {
+                refreshChanged();
+            }
+
+            int priority = choosePriority();
+            if (priority == -1) {
+                // see whether anything was queued since the last check,
+                // waiting for more as long as polling is under way
+                boolean polling = _updater.isPolling();
+                refreshAll();
+                priority = choosePriority();
+                while (priority == -1 && polling) {
+                    Thread.sleep(REFRESH_INTERVAL);
+                    if (!processingShouldContinue()) return null;
+                    polling = _updater.isPolling();
+                    refreshAll();
+                    priority = choosePriority();
+                }
+                if (priority == -1) return null;
+            }
+
+            QueueItem item = _queueIterators[priority].next();
+            String row = item.getQueueKey() + "/" + item.getQueueRevision();
+            String fedRow = _fedItems.get(item.getIdentifier() + " " + item.getMDPrefix());
+            if (fedRow == null) {
+                _fedItems.put(item.getIdentifier() + " " + item.getMDPrefix(), row);
+                _fedCounts[priority]++;
+                _fedSinceRestart = true;
+                return item;
+            }
+            if (!fedRow.equals(row)) {
+                _skippedCount++;
+            }
+        }
+    }
+
+    private void refreshChanged() {
+        refresh(QueueItem.PRIORITY_CHANGED);
+        _lastRefreshTime = System.currentTimeMillis();
+    }
+
+    private void refreshAll() {
+        for (int priority = 0; priority < QueueItem.PRIORITY_COUNT; priority++) {
+            refresh(priority);
+        }
+        _lastRefreshTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Refresh the iterator of the given priority.  The iterator of changed
+     * records is restarted instead if anything was fed since it was last
+     * restarted, or at most once per <code>REFRESH_INTERVAL</code> otherwise,
+     * since until then it would only pass over the same rows again.
+     */
+    private void refresh(int priority) {
+        long now = System.currentTimeMillis();
+        if (priority == QueueItem.PRIORITY_CHANGED
+                && (_fedSinceRestart || now - _lastRestartTime >= REFRESH_INTERVAL)) {
+            _queueIterators[priority].restart();
+            _fedSinceRestart = false;
+            _lastRestartTime = now;
+        } else {
+            _queueIterators[priority].refresh();
+        }
+    }
+
+    /**
+     * Choose the priority to take the next item from.
+     *
+     * @return the priority, or -1 if no items are waiting.
+     */
+    private int choosePriority() {
+        int chosen = -1;
+        int totalWeight = 0;
+        for (int priority = 0; priority < QueueItem.PRIORITY_COUNT; priority++) {
+            if (_queueIterators[priority].hasNext()) {
+                _currentWeights[priority] += WEIGHTS[priority];
+                totalWeight += WEIGHTS[priority];
+                if (chosen == -1 || _currentWeights[priority] > _currentWeights[chosen]) {
+                    chosen = priority;
+                }
+            } else {
+                _currentWeights[priority] = 0;
+            }
+        }
+        if (chosen != -1) {
+            _currentWeights[chosen] -= totalWeight;
+        }
+        return chosen;
+    }
+
+    private void close() {
+        for (QueueIterator queueIterator : _queueIterators) {
+            if (queueIterator != null) {
+                queueIterator.close();
+            }
+        }
+    }
+
+    /**
+     * Get the number of items of the given priority that were fed.
+     */
+    int getFedCount(int priority) {
+        return _fedCounts[priority];
+    }
+
+    /**
+     * Get the number of items that were not fed because the same record
+     * had already been fed in this round.
+     */
+    int getSkippedCount() {
+        return _skippedCount;
+    }
+
+    protected void process(QueueItem item) {
+        // items are produced, not processed, by this stage
+    }
+}
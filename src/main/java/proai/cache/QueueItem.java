@@ -18,22 +18,47 @@ package proai.cache;
 
 public class QueueItem {
 
+    /**
+     * Priority of records the driver notified of as changed.
+     */
+    public static final int PRIORITY_CHANGED = 0;
+
+    /**
+     * Priority of records found by polling.
+     */
+    public static final int PRIORITY_POLLED = 1;
+
+    /**
+     * Priority of failed records that are being retried.
+     */
+    public static final int PRIORITY_RETRIED = 2;
+
+    /**
+     * The number of priorities, numbered from 0 (highest) on.
+     */
+    public static final int PRIORITY_COUNT = 3;
+
     private final String _identifier;
     private final String _mdPrefix;
     private final int _queueKey;
+    private final int _queueRevision;
     private final char _queueSource;
     private final String _sourceInfo;
     private String _failDate;
     private String _failReason;
+    private Object _fetchedContent;
+    private RCDiskWriter _diskWriter;
     private ParsedRecord _rec;
     private boolean _succeeded;
 
     public QueueItem(int queueKey,
+                     int queueRevision,
                      String identifier,
                      String mdPrefix,
                      String sourceInfo,
                      char queueSource) {
         _queueKey = queueKey;
+        _queueRevision = queueRevision;
         _identifier = identifier;
         _mdPrefix = mdPrefix;
         _sourceInfo = sourceInfo;
@@ -44,6 +69,14 @@ public class QueueItem {
         return _queueKey;
     }
 
+    /**
+     * Get the number of times the queued row was updated before the item
+     * was read from the queue.
+     */
+    public int getQueueRevision() {
+        return _queueRevision;
+    }
+
     public String getIdentifier() {
         return _identifier;
     }
@@ -60,6 +93,24 @@ public class QueueItem {
         return _queueSource;
     }
 
+    public int getPriority() {
+        return getPriority(_queueSource);
+    }
+
+    /**
+     * Get the priority of items from the given queue source.
+     */
+    public static int getPriority(char queueSource) {
+        switch (queueSource) {
+            case 'E':
+                return PRIORITY_CHANGED;
+            case 'F':
+                return PRIORITY_RETRIED;
+            default:
+                return PRIORITY_POLLED;
+        }
+    }
+
     public boolean succeeded() {
         return _succeeded;
     }
@@ -68,6 +119,13 @@ public class QueueItem {
         _succeeded = succeeded;
     }
 
+    /**
+     * Whether processing of the item has failed at some stage.
+     */
+    public boolean failed() {
+        return _failReason != null;
+    }
+
     public String getFailReason() {
         return _failReason;
     }
@@ -84,6 +142,22 @@ public class QueueItem {
         _failDate = failDate;
     }
 
+    public Object getFetchedContent() {
+        return _fetchedContent;
+    }
+
+    public void setFetchedContent(Object fetchedContent) {
+        _fetchedContent = fetchedContent;
+    }
+
+    public RCDiskWriter getDiskWriter() {
+        return _diskWriter;
+    }
+
+    public void setDiskWriter(RCDiskWriter diskWriter) {
+        _diskWriter = diskWriter;
+    }
+
     public ParsedRecord getParsedRecord() {
         return _rec;
     }
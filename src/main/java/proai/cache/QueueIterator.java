@@ -16,80 +16,108 @@
 
 package proai.cache;
 
-import java.io.*;
+import proai.error.ServerException;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Iterates over the queued items of one priority, in the order they were
+ * queued.
+ * <p/>
+ * <p>Items are read from the database a page at a time, each page starting
+ * after the key of the last item read, so processing can start right away
+ * and only one page is held in memory, no matter how long the queue is.
+ * <p/>
+ * <p>Once a page comes back short, the iterator considers the queue drained
+ * until <code>refresh</code> is called, which makes it look for items that
+ * were queued since.
+ */
 class QueueIterator {
 
-    private final File _tempFile;
-    private QueueItem _next;
-    private BufferedReader _reader;
+    private final RCDatabase _db;
+    private final int _priority;
+    private final int _pageSize;
+    private final int _firstQueueKey;
+    private int _lastQueueKey;
+    private Iterator<QueueItem> _page;
+    private boolean _drained;
 
-    public QueueIterator(File tempFile) throws IOException {
-        _tempFile = tempFile;
-        _reader = new BufferedReader(
-                new InputStreamReader(
-                        new FileInputStream(_tempFile), "UTF-8"));
-        _next = getNext();
+    public QueueIterator(RCDatabase db,
+                         int priority,
+                         int afterQueueKey,
+                         int pageSize) {
+        _db = db;
+        _priority = priority;
+        _firstQueueKey = afterQueueKey;
+        _lastQueueKey = afterQueueKey;
+        _pageSize = pageSize;
     }
 
-    private static QueueItem parseLine(String line) throws IOException {
-        String[] parts = line.split(" ");
-        if (parts.length > 4) {
-            try {
-                StringBuilder sourceInfo = new StringBuilder();
-                for (int i = 4; i < parts.length; i++) {
-                    if (i > 4) sourceInfo.append(' ');
-                    sourceInfo.append(parts[i]);
-                }
-                return new QueueItem(Integer.parseInt(parts[0]),
-                        parts[1],
-                        parts[2],
-                        sourceInfo.toString(),
-                        parts[3].charAt(0));
-            } catch (Throwable th) {
-                throw new IOException("Error parsing next line: " + th.getClass().getName());
-            }
-        } else {
-            throw new IOException("Error parsing next line: expected at least "
-                    + "5 values, but got " + parts.length);
-        }
+    public boolean hasNext() throws ServerException {
+        if (_page != null && _page.hasNext()) return true;
+        if (_drained) return false;
+        readPage();
+        return _page.hasNext();
     }
 
-    private QueueItem getNext() throws IOException {
-        if (_reader == null) return null; // if already closed
-        String line = _reader.readLine();
-        if (line == null) { // was last line
-            close();
-            return null;
-        } else {
-            if (line.length() == 0) { // skip empty lines
-                return getNext();
-            } else {
-                return parseLine(line);
-            }
-        }
+    public QueueItem next() throws ServerException {
+        if (!hasNext()) return null;
+        QueueItem item = _page.next();
+        _lastQueueKey = item.getQueueKey();
+        return item;
     }
 
-    public boolean hasNext() {
-        return (_next != null);
+    /**
+     * Look for items that were queued since the queue was last found
+     * drained.
+     */
+    public void refresh() {
+        _drained = false;
     }
 
-    public QueueItem next() throws IOException {
-        if (_next == null) return null;
-        QueueItem prev = _next;
-        _next = getNext();
-        return prev;
+    /**
+     * Look for items from the start again, including those read before that
+     * are still queued.
+     * <p/>
+     * Unlike <code>refresh</code>, this also finds items whose priority was
+     * raised to this one after the iterator had read past their key, since
+     * coalescing keeps the key of the row.
+     */
+    public void restart() {
+        _lastQueueKey = _firstQueueKey;
+        _page = null;
+        _drained = false;
     }
 
-    public void close() {
-        if (_reader != null) {
-            try {
-                _reader.close();
-            } catch (Exception ignored) {
-            }
-            _tempFile.delete();
-            _reader = null;
+    private void readPage() throws ServerException {
+        List<QueueItem> items = readItems(_priority, _lastQueueKey, _pageSize);
+        _drained = items.size() < _pageSize;
+        _page = items.iterator();
+    }
+
+    /**
+     * Read the next items of the given priority from the database.
+     */
+    List<QueueItem> readItems(int priority,
+                              int afterQueueKey,
+                              int maxItems) throws ServerException {
+        Connection conn = null;
+        try {
+            conn = RecordCache.getConnection();
+            return _db.getQueueItems(conn, priority, afterQueueKey, maxItems);
+        } catch (SQLException e) {
+            throw new ServerException("Unable to get connection for reading queue", e);
+        } finally {
+            RecordCache.releaseConnection(conn);
         }
     }
 
+    public void close() {
+        _page = null;
+        _drained = true;
+    }
+
 }
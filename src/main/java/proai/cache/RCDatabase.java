@@ -16,10 +16,13 @@
 
 package proai.cache;
 
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import proai.CloseableIterator;
 import proai.MetadataFormat;
+import proai.Record;
 import proai.SetInfo;
 import proai.driver.impl.RemoteIteratorImpl;
 import proai.driver.impl.SetInfoImpl;
@@ -28,20 +31,27 @@ import proai.util.DBUtil;
 import proai.util.DDLConverter;
 import proai.util.TableSpec;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Java interface to the database.
@@ -49,10 +59,24 @@ import java.util.Map;
 class RCDatabase {
 
     private static final String RCADMIN_TABLE_IS_EMPTY = "rcAdmin table is empty";
+
+    /**
+     * The tables that make up a generation of cached records.  A rebuild
+     * fills copies of them named with <code>SHADOW_SUFFIX</code>, which
+     * replace them at once when complete, while the tables they replace are
+     * kept with <code>OLD_SUFFIX</code> until reclaimed.
+     */
+    static final String[] GENERATION_TABLES = {"rcRecord", "rcMembership"};
+    static final String SHADOW_SUFFIX = "_shadow";
+    static final String OLD_SUFFIX = "_old";
+
     private static final Logger logger = LoggerFactory.getLogger(RCDatabase.class);
     private final boolean m_backslashIsEscape;
     private final boolean m_mySQLTrickling;
     private final RCDisk m_rcDisk;
+    private final DDLConverter m_ddlc;
+    private final TableSpec m_queueSpec;
+    private final boolean m_canUpsertQueue;
 
     public RCDatabase(Connection conn,
                       DDLConverter ddlc,
@@ -63,8 +87,13 @@ class RCDatabase {
         m_mySQLTrickling = mySQLTrickling;
         m_backslashIsEscape = backslashIsEscape;
         m_rcDisk = rcDisk;
+        m_ddlc = ddlc;
+        m_queueSpec = getTableSpec("rcQueue");
+        m_canUpsertQueue = ddlc.getUpsertSQL(m_queueSpec, "", "") != null;
         if (!tablesExist(conn)) {
             createTables(conn, ddlc);
+        } else {
+            upgradeTables(conn, ddlc);
         }
         createAdminRowIfNeeded(conn);
         setPollingEnabled(conn, pollingEnabled);
@@ -110,13 +139,7 @@ class RCDatabase {
     private void createTables(Connection conn,
                               DDLConverter ddlc) throws ServerException {
         logger.debug("Creating tables...");
-        List<TableSpec> specs;
-        try {
-            InputStream in = this.getClass().getResourceAsStream("/config/dbspec.xml");
-            specs = TableSpec.getTableSpecs(in);
-        } catch (Exception e) {
-            throw new ServerException("Unable to initialize tablespecs", e);
-        }
+        List<TableSpec> specs = getTableSpecs();
         List<String> createdCommands = new ArrayList<>();
         Iterator<TableSpec> iter = specs.iterator();
         Statement stmt = null;
@@ -174,6 +197,238 @@ class RCDatabase {
         }
     }
 
+    private List<TableSpec> getTableSpecs() throws ServerException {
+        try {
+            InputStream in = this.getClass().getResourceAsStream("/config/dbspec.xml");
+            return TableSpec.getTableSpecs(in);
+        } catch (Exception e) {
+            throw new ServerException("Unable to initialize tablespecs", e);
+        }
+    }
+
+    /**
+     * Bring tables created by an older version of dbspec.xml up to date
+     * by creating missing tables and adding missing columns.
+     */
+    private void upgradeTables(Connection conn,
+                               DDLConverter ddlc) throws ServerException {
+        Statement stmt = null;
+        String command = null;
+        try {
+            stmt = getStatement(conn, false);
+            for (TableSpec spec : getTableSpecs()) {
+                List<String> commands = new ArrayList<>();
+                if (!canSelect(conn, "*", spec.getName())) {
+                    logger.info("Creating missing " + spec.getName() + " table");
+                    commands.addAll(ddlc.getDDL(spec));
+                } else {
+                    for (String column : spec.getColumnNames()) {
+                        if (!canSelect(conn, column, spec.getName())) {
+                            logger.info("Adding missing column " + column
+                                    + " to " + spec.getName() + " table");
+                            commands.addAll(ddlc.getAddColumnDDL(spec, column));
+                        }
+                    }
+                    for (String column : spec.getIndexedColumnNames()) {
+                        String index = ddlc.getIndexName(spec, column);
+                        if (index != null && !hasIndex(conn, spec.getName(), index)) {
+                            logger.info("Adding missing index " + index
+                                    + " to " + spec.getName() + " table");
+                            commands.addAll(ddlc.getCreateIndexDDL(spec, column));
+                        }
+                    }
+                    if (spec.getUniqueColumnNames() != null
+                            && !hasIndex(conn, spec.getName(), spec.getUniqueKeyName())) {
+                        logger.info("Adding missing unique key to " + spec.getName()
+                                + " table, removing all but the latest of any duplicate rows");
+                        commands.add(getRemoveDuplicatesSQL(spec));
+                        commands.addAll(ddlc.getAddUniqueKeyDDL(spec));
+                    }
+                }
+                for (String c : commands) {
+                    command = c;
+                    executeUpdate(stmt, command);
+                }
+            }
+        } catch (SQLException e) {
+            throw new ServerException("Error upgrading tables.  The following "
+                    + "command failed:\n" + command, e);
+        } finally {
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * Get the spec of the given table, which may also be the shadow or old
+     * generation of a table.
+     */
+    private TableSpec getTableSpec(String table) throws ServerException {
+        for (TableSpec spec : getTableSpecs()) {
+            if (spec.getName().equals(table)) {
+                return spec;
+            }
+            for (String suffix : new String[]{SHADOW_SUFFIX, OLD_SUFFIX}) {
+                if ((spec.getName() + suffix).equals(table)) {
+                    return spec.withName(table);
+                }
+            }
+        }
+        throw new ServerException("No such table in dbspec: " + table);
+    }
+
+    /**
+     * Drop the indexes on the given columns, if they exist, so rows can be
+     * loaded faster.
+     *
+     * @param columns the columns, each given as <code>table.column</code>.
+     */
+    public void dropIndexes(Connection conn,
+                            String[] columns) throws ServerException {
+        changeIndexes(conn, columns, false);
+    }
+
+    /**
+     * Create the indexes on the given columns that don't exist.
+     *
+     * @param columns the columns, each given as <code>table.column</code>.
+     */
+    public void createMissingIndexes(Connection conn,
+                                     String[] columns) throws ServerException {
+        changeIndexes(conn, columns, true);
+    }
+
+    private void changeIndexes(Connection conn,
+                               String[] columns,
+                               boolean create) throws ServerException {
+        Statement stmt = null;
+        String command = null;
+        try {
+            stmt = getStatement(conn, false);
+            for (String tableColumn : columns) {
+                int dotPos = tableColumn.indexOf('.');
+                TableSpec spec = getTableSpec(tableColumn.substring(0, dotPos));
+                String column = tableColumn.substring(dotPos + 1);
+                String index = m_ddlc.getIndexName(spec, column);
+                if (index == null || hasIndex(conn, spec.getName(), index) == create) {
+                    continue;
+                }
+                logger.info((create ? "Creating" : "Dropping") + " index " + index
+                        + " on " + spec.getName() + " table");
+                for (String c : create ? m_ddlc.getCreateIndexDDL(spec, column)
+                        : m_ddlc.getDropIndexDDL(spec, column)) {
+                    command = c;
+                    executeUpdate(stmt, command);
+                }
+            }
+        } catch (SQLException e) {
+            throw new ServerException("Error changing indexes.  The following "
+                    + "command failed:\n" + command, e);
+        } finally {
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * Get the command that deletes all rows of the given table that have
+     * the same values in the columns of its unique key as a row with a
+     * higher primary key.
+     */
+    private static String getRemoveDuplicatesSQL(TableSpec spec) {
+        return "DELETE FROM " + spec.getName() + " "
+                + "WHERE " + spec.getPrimaryColumnName() + " NOT IN ("
+                + "SELECT latestKey FROM ("
+                + "SELECT MAX(" + spec.getPrimaryColumnName() + ") AS latestKey "
+                + "FROM " + spec.getName() + " "
+                + "GROUP BY " + spec.getUniqueColumnNames() + ") latest)";
+    }
+
+    /**
+     * Whether the given table has an index with the given name.
+     * <p/>
+     * Since databases differ in how they store the case of unquoted names,
+     * the table name is looked up as given, in lower case and in upper case.
+     */
+    private boolean hasIndex(Connection conn,
+                             String table,
+                             String index) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        for (String name : new String[]{table, table.toLowerCase(), table.toUpperCase()}) {
+            ResultSet results = metaData.getIndexInfo(null, null, name, false, true);
+            try {
+                while (results.next()) {
+                    if (index.equalsIgnoreCase(results.getString("INDEX_NAME"))) {
+                        return true;
+                    }
+                }
+            } finally {
+                try {
+                    results.close();
+                } catch (Exception ignored) {
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the given table exists, looking it up like <code>hasIndex</code>.
+     * <p/>
+     * Unlike <code>canSelect</code>, this doesn't spoil the transaction
+     * the connection may be in if the table doesn't exist.
+     */
+    private boolean tableExists(Connection conn,
+                                String table) throws ServerException {
+        try {
+            DatabaseMetaData metaData = conn.getMetaData();
+            for (String name : new String[]{table, table.toLowerCase(), table.toUpperCase()}) {
+                ResultSet results = metaData.getTables(null, null, name, null);
+                try {
+                    if (results.next()) {
+                        return true;
+                    }
+                } finally {
+                    try {
+                        results.close();
+                    } catch (Exception ignored) {
+                    }
+                }
+            }
+            return false;
+        } catch (SQLException e) {
+            throw new ServerException("Error determining if table exists: " + table, e);
+        }
+    }
+
+    private boolean canSelect(Connection conn,
+                              String column,
+                              String table) throws ServerException {
+        Statement stmt = null;
+        ResultSet results = null;
+        try {
+            stmt = getStatement(conn, false);
+            results = executeQuery(stmt, "SELECT " + column + " FROM "
+                    + table + " WHERE 1 = 0");
+            return true;
+        } catch (SQLException e) {
+            return false;
+        } finally {
+            if (results != null) try {
+                results.close();
+            } catch (Exception ignored) {
+            }
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
     private void createAdminRowIfNeeded(Connection conn) throws ServerException {
         try {
             getIdentifyPath(conn);
@@ -452,7 +707,10 @@ class RCDatabase {
         try {
             stmt = getStatement(conn, false);
             executeUpdate(stmt, "UPDATE rcFormat "
-                    + "SET lastPollDate = " + lastPollDate.getTime() + " "
+                    + "SET lastPollDate = " + lastPollDate.getTime() + ", "
+                    + "pollUntilDate = NULL, "
+                    + "pollFromDate = NULL, "
+                    + "pollItemID = NULL "
                     + "WHERE mdPrefix = " + qs(mdPrefix));
         } catch (SQLException e) {
             throw new ServerException("Error setting last poll date", e);
@@ -464,6 +722,103 @@ class RCDatabase {
         }
     }
 
+    /**
+     * Get the until date of a poll for records in the given format that was
+     * started but not finished, or zero if there is none.
+     */
+    public long getPollUntilDate(Connection conn,
+                                 String mdPrefix) throws ServerException {
+        try {
+            return getLongValue(conn, "SELECT pollUntilDate "
+                    + "FROM rcFormat "
+                    + "WHERE mdPrefix = " + qs(mdPrefix));
+        } catch (SQLException e) {
+            throw new ServerException("Error getting poll until date", e);
+        }
+    }
+
+    /**
+     * Get the date from which the unfinished poll for records in the given
+     * format is to be resumed, or zero if it is to be resumed from where it
+     * started.
+     */
+    public long getPollFromDate(Connection conn,
+                                String mdPrefix) throws ServerException {
+        try {
+            return getLongValue(conn, "SELECT pollFromDate "
+                    + "FROM rcFormat "
+                    + "WHERE mdPrefix = " + qs(mdPrefix));
+        } catch (SQLException e) {
+            throw new ServerException("Error getting poll from date", e);
+        }
+    }
+
+    /**
+     * Get the itemID of the last record queued by the unfinished poll for
+     * records in the given format, or <code>null</code> if none is known.
+     */
+    public String getPollItemID(Connection conn,
+                                String mdPrefix) throws ServerException {
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = getStatement(conn, false);
+            rs = executeQuery(stmt, "SELECT pollItemID "
+                    + "FROM rcFormat "
+                    + "WHERE mdPrefix = " + qs(mdPrefix));
+            if (rs.next()) {
+                return rs.getString(1);
+            } else {
+                return null;
+            }
+        } catch (SQLException e) {
+            throw new ServerException("Error getting poll itemID", e);
+        } finally {
+            if (rs != null) try {
+                rs.close();
+            } catch (Exception ignored) {
+            }
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * Record how far the poll for records in the given format has got:
+     * of the records that changed from the given from date up to the given
+     * until date, all records up to the given itemID have been queued.
+     *
+     * @param fromDate the date from which to resume the poll, or
+     *                 <code>null</code> to resume it from where it started.
+     * @param itemID   the itemID of the last record queued, or
+     *                 <code>null</code> if none is known.
+     */
+    public void setPollCheckpoint(Connection conn,
+                                  String mdPrefix,
+                                  Date untilDate,
+                                  Date fromDate,
+                                  String itemID) throws ServerException {
+
+        Statement stmt = null;
+        try {
+            stmt = getStatement(conn, false);
+            executeUpdate(stmt, "UPDATE rcFormat "
+                    + "SET pollUntilDate = " + untilDate.getTime() + ", "
+                    + "pollFromDate = " + (fromDate == null ? "NULL" : fromDate.getTime()) + ", "
+                    + "pollItemID = " + (itemID == null ? "NULL " : qss(itemID))
+                    + "WHERE mdPrefix = " + qs(mdPrefix));
+        } catch (SQLException e) {
+            throw new ServerException("Error setting poll checkpoint", e);
+        } finally {
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
     /**
      * Get a map of prefix (String) to formatKey (Integer) for all formats
      * in the database.
@@ -714,10 +1069,18 @@ class RCDatabase {
      * records are updated, the date is set together with
      * setUncommittedRecordDates(..)
      */
-    public void putRecord(Connection conn,
-                          ParsedRecord rec,
-                          Map<String, Integer> formatKeyMap) throws ServerException {
+    /**
+     * Add or update the record.
+     *
+     * @return false if the cache already held a record with the same content
+     *         hash, in which case nothing was changed and the caller is
+     *         responsible for deleting the new, unreferenced file.
+     */
+    public boolean putRecord(Connection conn,
+                             ParsedRecord rec,
+                             Map<String, Integer> formatKeyMap) throws ServerException {
         String xmlPath = rec.getSourceInfo();
+        String contentHash = rec.getContentHash();
         Statement stmt = null;
         ResultSet rs = null;
         try {
@@ -726,6 +1089,7 @@ class RCDatabase {
             // To update a record:
             //    Make sure there's an rcItem for it.
             //    If it's already in rcRecord:
+            //       If its content hash is unchanged, leave it alone
             //       Update its row with new values
             //       If it's already a member of any sets:
             //          keep the ones it's still in, if any
@@ -745,7 +1109,7 @@ class RCDatabase {
             int formatKey = fKey;
             stmt = getStatement(conn, false);
             int[] setKeys = getSetKeys(stmt, rec.getSetSpecs());
-            rs = executeQuery(stmt, "SELECT recordKey, xmlPath "
+            rs = executeQuery(stmt, "SELECT recordKey, xmlPath, contentHash "
                     + "FROM rcRecord "
                     + "WHERE itemKey = " + itemKey + " "
                     + "AND formatKey = " + formatKey);
@@ -754,12 +1118,23 @@ class RCDatabase {
                 // we're updating it
                 int recordKey = rs.getInt(1);
                 String xmlPathToPrune = rs.getString(2);
+                String priorContentHash = rs.getString(3);
                 rs.close();
 
+                // if only the datestamp changed, keep the cached copy
+                // and don't announce a new modDate to harvesters
+                if (contentHash != null && contentHash.equals(priorContentHash)) {
+                    logger.debug("Content of " + rec.getItemID() + " ("
+                            + rec.getPrefix() + ") is unchanged; keeping "
+                            + xmlPathToPrune);
+                    return false;
+                }
+
                 // update the record
                 // and mark the old xmlPath path as prunable
                 executeUpdate(stmt, "UPDATE rcRecord SET modDate = NULL, "
-                        + "xmlPath = " + qss(xmlPath)
+                        + "xmlPath = " + qsc(xmlPath)
+                        + "contentHash = " + qss(contentHash)
                         + "WHERE recordKey = " + recordKey);
                 addPrunable(stmt, xmlPathToPrune);
 
@@ -806,8 +1181,8 @@ class RCDatabase {
                 // Insert the records last modified date instead of NULL (CMR-210)
                 long recordLastModifiedTimestamp = rec.getDate().getTime();
                 executeUpdate(stmt, String.format(
-                        "INSERT INTO rcRecord (itemKey, formatKey, modDate, xmlPath) VALUES (%d, %d,%d, %s)",
-                        itemKey, formatKey, recordLastModifiedTimestamp, qs(xmlPath)));
+                        "INSERT INTO rcRecord (itemKey, formatKey, modDate, xmlPath, contentHash) VALUES (%d, %d,%d, %s, %s)",
+                        itemKey, formatKey, recordLastModifiedTimestamp, qs(xmlPath), qs(contentHash)));
                 rs = executeQuery(stmt, "SELECT recordKey from rcRecord "
                         + "WHERE itemKey = " + itemKey + " "
                         + "AND formatKey = " + formatKey);
@@ -825,6 +1200,7 @@ class RCDatabase {
                             + "(itemkey, formatkey = " + itemKey + ", " + formatKey + ")");
                 }
             }
+            return true;
         } catch (SQLException e) {
             throw new ServerException("Error putting record", e);
         } finally {
@@ -839,27 +1215,19 @@ class RCDatabase {
         }
     }
 
-    // get or create an item key
-    private int getItemKey(Connection conn, String itemID) throws ServerException {
+    /**
+     * Whether the cache holds any records at all.
+     */
+    public boolean hasRecords(Connection conn) throws ServerException {
         Statement stmt = null;
         ResultSet rs = null;
         try {
             stmt = getStatement(conn, false);
-            rs = executeQuery(stmt, "SELECT itemKey from rcItem where identifier = " + qs(itemID));
-            if (rs.next()) {
-                return rs.getInt(1);
-            } else {
-                rs.close();
-                executeUpdate(stmt, "INSERT INTO rcItem (identifier) VALUES (" + qs(itemID) + ")");
-                rs = executeQuery(stmt, "SELECT itemKey from rcItem where identifier = " + qs(itemID));
-                if (rs.next()) {
-                    return rs.getInt(1);
-                } else {
-                    throw new ServerException("Insert into rcItem didn't work (identifier = " + itemID + ")");
-                }
-            }
+            stmt.setMaxRows(1);
+            rs = executeQuery(stmt, "SELECT recordKey FROM rcRecord");
+            return rs.next();
         } catch (SQLException e) {
-            throw new ServerException("Error getting key for itemID " + itemID, e);
+            throw new ServerException("Error determining if cache has records", e);
         } finally {
             if (rs != null) try {
                 rs.close();
@@ -872,38 +1240,665 @@ class RCDatabase {
         }
     }
 
-    //////////////////////////////////////////////////////////////////////////
-
-    private int[] getSetKeys(Statement stmt, List<String> specs) throws ServerException {
+    /**
+     * Add the given records to the cache in bulk.
+     * <p/>
+     * Unlike <code>putRecord</code>, this only adds new records, and does so
+     * with a few statements for all of them: missing items are inserted in
+     * one batch, and the records and their set memberships are each loaded
+     * with a single <code>COPY</code> if the database is PostgreSQL, or a
+     * batch of inserts otherwise.
+     *
+     * <p/>
+     * If loading into the shadow generation, records keep the date they
+     * have in the current generation unless their content differs, in which
+     * case they are left without a date, to be dated when the generations
+     * are swapped.
+     *
+     * @param shadow whether to load the records into the shadow generation.
+     * @return the records that were already in the cache, and were skipped.
+     */
+    public List<ParsedRecord> loadRecords(Connection conn,
+                                          List<ParsedRecord> recs,
+                                          Map<String, Integer> formatKeyMap,
+                                          boolean shadow) throws ServerException {
+        String suffix = shadow ? SHADOW_SUFFIX : "";
+        List<ParsedRecord> skipped = new ArrayList<>();
+        if (recs.isEmpty()) return skipped;
+        Statement stmt = null;
         ResultSet rs = null;
         try {
-            int[] keys = new int[specs.size()];
-            for (int i = 0; i < specs.size(); i++) {
-                rs = executeQuery(stmt, "SELECT setKey from rcSet WHERE setSpec = " + qs(specs.get(i)));
-                if (rs.next()) {
-                    keys[i] = rs.getInt(1);
-                } else {
-                    throw new ServerException("Record contains setSpec not listed sets: " + specs.get(i));
-                }
+            stmt = getStatement(conn, false);
+
+            Set<String> itemIDs = new HashSet<>();
+            for (ParsedRecord rec : recs) {
+                itemIDs.add(rec.getItemID());
             }
-            return keys;
-        } catch (SQLException e) {
-            throw new ServerException("Unable to get setKey(s) for record's setSpec(s)", e);
-        } finally {
-            if (rs != null) try {
+            Map<String, Integer> itemKeys = getItemKeys(stmt, itemIDs);
+            String itemKeyList = joinKeys(itemKeys.values());
+
+            // which of the records are there already?
+            Set<String> existing = new HashSet<>();
+            rs = executeQuery(stmt, "SELECT itemKey, formatKey FROM rcRecord" + suffix + " "
+                    + "WHERE itemKey IN (" + itemKeyList + ")");
+            while (rs.next()) {
+                existing.add(rs.getInt(1) + " " + rs.getInt(2));
+            }
+            rs.close();
+
+            // what are the hashes and dates of the records being replaced?
+            Map<String, String> currentHashes = new HashMap<>();
+            Map<String, Long> currentDates = new HashMap<>();
+            if (shadow) {
+                rs = executeQuery(stmt, "SELECT itemKey, formatKey, contentHash, modDate FROM rcRecord "
+                        + "WHERE itemKey IN (" + itemKeyList + ")");
+                while (rs.next()) {
+                    String key = rs.getInt(1) + " " + rs.getInt(2);
+                    currentHashes.put(key, rs.getString(3));
+                    long modDate = rs.getLong(4);
+                    currentDates.put(key, rs.wasNull() ? null : modDate);
+                }
                 rs.close();
-            } catch (Exception ignored) {
             }
-        }
-    }
 
-    public boolean itemExists(Connection conn, String itemID) throws ServerException {
-        Statement stmt = null;
-        ResultSet rs = null;
-        try {
-            stmt = getStatement(conn, false);
-            rs = executeQuery(stmt, "SELECT itemKey from rcItem where identifier = " + qs(itemID));
-            return rs.next();
+            List<Object[]> recordRows = new ArrayList<>();
+            Map<String, ParsedRecord> added = new HashMap<>();
+            for (ParsedRecord rec : recs) {
+                Integer formatKey = formatKeyMap.get(rec.getPrefix());
+                if (formatKey == null) {
+                    throw new ServerException("Error in parsed record; no such format in cache: " + rec.getPrefix());
+                }
+                int itemKey = itemKeys.get(rec.getItemID());
+                String key = itemKey + " " + formatKey;
+                if (existing.contains(key) || added.containsKey(key)) {
+                    skipped.add(rec);
+                } else {
+                    added.put(key, rec);
+                    Long modDate = rec.getDate().getTime();
+                    if (currentHashes.containsKey(key)) {
+                        String contentHash = rec.getContentHash();
+                        modDate = contentHash != null && contentHash.equals(currentHashes.get(key))
+                                ? currentDates.get(key) : null;
+                    }
+                    recordRows.add(new Object[]{itemKey, formatKey, modDate,
+                            rec.getSourceInfo(), rec.getContentHash()});
+                }
+            }
+            copyIn(conn, stmt, "rcRecord" + suffix, "itemKey, formatKey, modDate, xmlPath, contentHash", recordRows);
+
+            // now that the records have keys, add them to their sets
+            Map<String, Integer> setKeys = new HashMap<>();
+            rs = executeQuery(stmt, "SELECT setSpec, setKey FROM rcSet");
+            while (rs.next()) {
+                setKeys.put(rs.getString(1), rs.getInt(2));
+            }
+            rs.close();
+            List<Object[]> membershipRows = new ArrayList<>();
+            rs = executeQuery(stmt, "SELECT itemKey, formatKey, recordKey FROM rcRecord" + suffix + " "
+                    + "WHERE itemKey IN (" + itemKeyList + ")");
+            while (rs.next()) {
+                ParsedRecord rec = added.get(rs.getInt(1) + " " + rs.getInt(2));
+                if (rec == null) continue;
+                for (String setSpec : rec.getSetSpecs()) {
+                    Integer setKey = setKeys.get(setSpec);
+                    if (setKey == null) {
+                        throw new ServerException("Record contains setSpec not listed sets: " + setSpec);
+                    }
+                    membershipRows.add(new Object[]{setKey, rs.getInt(3)});
+                }
+            }
+            rs.close();
+            rs = null;
+            copyIn(conn, stmt, "rcMembership" + suffix, "setKey, recordKey", membershipRows);
+
+            return skipped;
+        } catch (SQLException | IOException e) {
+            throw new ServerException("Error loading records", e);
+        } finally {
+            if (rs != null) try {
+                rs.close();
+            } catch (Exception ignored) {
+            }
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * Get the keys of the given items, creating those that don't exist yet.
+     */
+    private Map<String, Integer> getItemKeys(Statement stmt,
+                                             Collection<String> itemIDs) throws SQLException {
+        Map<String, Integer> itemKeys = new HashMap<>();
+        String idList = joinQuoted(itemIDs);
+        ResultSet rs = executeQuery(stmt, "SELECT identifier, itemKey FROM rcItem "
+                + "WHERE identifier IN (" + idList + ")");
+        try {
+            while (rs.next()) {
+                itemKeys.put(rs.getString(1), rs.getInt(2));
+            }
+        } finally {
+            rs.close();
+        }
+        if (itemKeys.size() < itemIDs.size()) {
+            for (String itemID : itemIDs) {
+                if (!itemKeys.containsKey(itemID)) {
+                    stmt.addBatch("INSERT INTO rcItem (identifier) VALUES (" + qs(itemID) + ")");
+                }
+            }
+            stmt.executeBatch();
+            rs = executeQuery(stmt, "SELECT identifier, itemKey FROM rcItem "
+                    + "WHERE identifier IN (" + idList + ")");
+            try {
+                while (rs.next()) {
+                    itemKeys.put(rs.getString(1), rs.getInt(2));
+                }
+            } finally {
+                rs.close();
+            }
+        }
+        return itemKeys;
+    }
+
+    private String joinQuoted(Collection<String> values) {
+        StringBuilder out = new StringBuilder();
+        for (String value : values) {
+            if (out.length() > 0) out.append(", ");
+            out.append(qs(value));
+        }
+        return out.toString();
+    }
+
+    private static String joinKeys(Collection<Integer> keys) {
+        StringBuilder out = new StringBuilder();
+        for (Integer key : keys) {
+            if (out.length() > 0) out.append(", ");
+            out.append(key);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Add the given rows to the given table, using <code>COPY</code> if the
+     * connection is to a PostgreSQL database, and a batch of inserts
+     * otherwise.
+     * <p/>
+     * Row values must be numbers, strings or <code>null</code>.
+     */
+    private void copyIn(Connection conn,
+                        Statement stmt,
+                        String table,
+                        String columns,
+                        List<Object[]> rows) throws SQLException, IOException {
+        if (rows.isEmpty()) return;
+        CopyManager copyManager = getCopyManager(conn);
+        if (copyManager != null) {
+            StringBuilder data = new StringBuilder();
+            for (Object[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    if (i > 0) data.append('\t');
+                    appendCopyValue(data, row[i]);
+                }
+                data.append('\n');
+            }
+            String sql = "COPY " + table + " (" + columns + ") FROM STDIN";
+            if (logger.isDebugEnabled()) {
+                logger.debug("Executing copy of " + rows.size() + " rows: " + sql);
+            }
+            copyManager.copyIn(sql, new StringReader(data.toString()));
+        } else {
+            for (Object[] row : rows) {
+                StringBuilder values = new StringBuilder();
+                for (int i = 0; i < row.length; i++) {
+                    if (i > 0) values.append(", ");
+                    if (row[i] == null) {
+                        values.append("NULL");
+                    } else if (row[i] instanceof String) {
+                        values.append(qs((String) row[i]));
+                    } else {
+                        values.append(row[i]);
+                    }
+                }
+                stmt.addBatch("INSERT INTO " + table + " (" + columns + ") "
+                        + "VALUES (" + values + ")");
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    private static void appendCopyValue(StringBuilder data, Object value) {
+        if (value == null) {
+            data.append("\\N");
+            return;
+        }
+        String s = value.toString();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    data.append("\\\\");
+                    break;
+                case '\t':
+                    data.append("\\t");
+                    break;
+                case '\n':
+                    data.append("\\n");
+                    break;
+                case '\r':
+                    data.append("\\r");
+                    break;
+                default:
+                    data.append(c);
+            }
+        }
+    }
+
+    /**
+     * Get the PostgreSQL copy API of the given connection, or
+     * <code>null</code> if it isn't a PostgreSQL connection.
+     */
+    private static CopyManager getCopyManager(Connection conn) {
+        try {
+            if (conn.isWrapperFor(PGConnection.class)) {
+                return conn.unwrap(PGConnection.class).getCopyAPI();
+            }
+        } catch (SQLException | AbstractMethodError e) {
+            logger.debug("Unable to unwrap connection, not using COPY", e);
+        }
+        return null;
+    }
+
+    /**
+     * Whether a rebuild of the cache into a shadow generation was requested.
+     */
+    public boolean isRebuildRequested(Connection conn) throws ServerException {
+        try {
+            return getLongValue(conn, "SELECT rebuildRequested FROM rcAdmin") == 1;
+        } catch (SQLException e) {
+            throw new ServerException("Error getting rcAdmin.rebuildRequested", e);
+        }
+    }
+
+    /**
+     * Whether all tables of the generation with the given suffix exist.
+     */
+    public boolean hasGeneration(Connection conn, String suffix) throws ServerException {
+        for (String table : GENERATION_TABLES) {
+            if (!tableExists(conn, table + suffix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether any table of the old generation is left to be reclaimed.
+     */
+    public boolean hasOldGeneration(Connection conn) throws ServerException {
+        for (String table : GENERATION_TABLES) {
+            if (tableExists(conn, table + OLD_SUFFIX)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether this database can swap generations.
+     */
+    public boolean canSwapGenerations() throws ServerException {
+        List<TableSpec> specs = new ArrayList<>();
+        for (String table : GENERATION_TABLES) {
+            specs.add(getTableSpec(table));
+        }
+        return !m_ddlc.getRenameTablesDDL(specs, Arrays.asList(GENERATION_TABLES)).isEmpty();
+    }
+
+    /**
+     * Create empty tables for a shadow generation, dropping any that are
+     * left over, along with the rebuild checkpoints of all formats.
+     *
+     * @param deferredColumns the columns, each given as <code>table.column</code>,
+     *                        whose indexes are only created once the
+     *                        generation has been filled.
+     */
+    public void createShadowGeneration(Connection conn,
+                                       String[] deferredColumns) throws ServerException {
+        dropGeneration(conn, SHADOW_SUFFIX);
+        Statement stmt = null;
+        String command = null;
+        try {
+            stmt = getStatement(conn, false);
+            for (String table : GENERATION_TABLES) {
+                logger.info("Creating " + table + SHADOW_SUFFIX + " table");
+                for (String c : m_ddlc.getDDL(getTableSpec(table + SHADOW_SUFFIX))) {
+                    command = c;
+                    executeUpdate(stmt, command);
+                }
+            }
+            command = "UPDATE rcFormat SET rebuildUntilDate = NULL, rebuildFromDate = NULL, rebuildItemID = NULL";
+            executeUpdate(stmt, command);
+        } catch (SQLException e) {
+            throw new ServerException("Error creating shadow generation.  The "
+                    + "following command failed:\n" + command, e);
+        } finally {
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+        }
+        dropIndexes(conn, getGenerationColumns(deferredColumns, SHADOW_SUFFIX));
+    }
+
+    /**
+     * Create the indexes of the shadow generation that were deferred.
+     */
+    public void createShadowIndexes(Connection conn,
+                                    String[] deferredColumns) throws ServerException {
+        createMissingIndexes(conn, getGenerationColumns(deferredColumns, SHADOW_SUFFIX));
+    }
+
+    private static String[] getGenerationColumns(String[] columns, String suffix) {
+        String[] generationColumns = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            int dotPos = columns[i].indexOf('.');
+            generationColumns[i] = columns[i].substring(0, dotPos) + suffix
+                    + columns[i].substring(dotPos);
+        }
+        return generationColumns;
+    }
+
+    private void dropGeneration(Connection conn, String suffix) throws ServerException {
+        Statement stmt = null;
+        try {
+            stmt = getStatement(conn, false);
+            // drop the referencing table first
+            for (int i = GENERATION_TABLES.length - 1; i >= 0; i--) {
+                String table = GENERATION_TABLES[i] + suffix;
+                if (tableExists(conn, table)) {
+                    logger.info("Dropping " + table + " table");
+                    executeUpdate(stmt, "DROP TABLE " + table);
+                }
+            }
+        } catch (SQLException e) {
+            throw new ServerException("Error dropping " + suffix + " generation", e);
+        } finally {
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * Get the until date of the rebuild of records in the given format,
+     * or zero if it has not been started.
+     */
+    public long getRebuildUntilDate(Connection conn,
+                                    String mdPrefix) throws ServerException {
+        try {
+            return getLongValue(conn, "SELECT rebuildUntilDate "
+                    + "FROM rcFormat "
+                    + "WHERE mdPrefix = " + qs(mdPrefix));
+        } catch (SQLException e) {
+            throw new ServerException("Error getting rebuild until date", e);
+        }
+    }
+
+    /**
+     * Get the date from which the rebuild of records in the given format is
+     * to be resumed, or zero if it is to be resumed from the start.
+     */
+    public long getRebuildFromDate(Connection conn,
+                                   String mdPrefix) throws ServerException {
+        try {
+            return getLongValue(conn, "SELECT rebuildFromDate "
+                    + "FROM rcFormat "
+                    + "WHERE mdPrefix = " + qs(mdPrefix));
+        } catch (SQLException e) {
+            throw new ServerException("Error getting rebuild from date", e);
+        }
+    }
+
+    /**
+     * Get the itemID of the last record loaded by the rebuild of records
+     * in the given format, or <code>null</code> if none is known.
+     */
+    public String getRebuildItemID(Connection conn,
+                                   String mdPrefix) throws ServerException {
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = getStatement(conn, false);
+            rs = executeQuery(stmt, "SELECT rebuildItemID "
+                    + "FROM rcFormat "
+                    + "WHERE mdPrefix = " + qs(mdPrefix));
+            if (rs.next()) {
+                return rs.getString(1);
+            } else {
+                return null;
+            }
+        } catch (SQLException e) {
+            throw new ServerException("Error getting rebuild itemID", e);
+        } finally {
+            if (rs != null) try {
+                rs.close();
+            } catch (Exception ignored) {
+            }
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * Record how far the rebuild of records in the given format has got,
+     * like <code>setPollCheckpoint</code> does for polls.
+     */
+    public void setRebuildCheckpoint(Connection conn,
+                                     String mdPrefix,
+                                     Date untilDate,
+                                     Date fromDate,
+                                     String itemID) throws ServerException {
+        Statement stmt = null;
+        try {
+            stmt = getStatement(conn, false);
+            executeUpdate(stmt, "UPDATE rcFormat "
+                    + "SET rebuildUntilDate = " + untilDate.getTime() + ", "
+                    + "rebuildFromDate = " + (fromDate == null ? "NULL" : fromDate.getTime()) + ", "
+                    + "rebuildItemID = " + (itemID == null ? "NULL " : qss(itemID))
+                    + "WHERE mdPrefix = " + qs(mdPrefix));
+        } catch (SQLException e) {
+            throw new ServerException("Error setting rebuild checkpoint", e);
+        } finally {
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * Replace the current generation with the complete shadow generation.
+     * <p/>
+     * First, the shadow generation is brought in line with the current one:
+     * records of formats and memberships of sets that were deleted meanwhile
+     * are removed, records that failed to load are carried over as they
+     * are, and records whose content changed are dated now.  Then the
+     * tables are renamed, all at once, and the current generation is kept
+     * as the old one until reclaimed.  Finally, every format is set to be
+     * polled again from the start of its rebuild at the latest, so changes
+     * made while rebuilding are picked up.
+     * <p/>
+     * The connection should not be in auto-commit mode; the caller is
+     * responsible for committing.  Still, some databases (such as MySQL)
+     * implicitly commit whatever was done before renaming tables, so the
+     * swap is not atomic there.  That's why every command before the renames
+     * can be run again without harm, should the swap be attempted again
+     * after the renames failed.
+     */
+    public void swapGenerations(Connection conn,
+                                Date swapDate) throws ServerException {
+        if (hasOldGeneration(conn)) {
+            throw new ServerException("Old generation must be reclaimed before swapping generations");
+        }
+        List<TableSpec> specs = new ArrayList<>();
+        List<String> newNames = new ArrayList<>();
+        for (String table : GENERATION_TABLES) {
+            specs.add(getTableSpec(table));
+            newNames.add(table + OLD_SUFFIX);
+        }
+        for (String table : GENERATION_TABLES) {
+            specs.add(getTableSpec(table + SHADOW_SUFFIX));
+            newNames.add(table);
+        }
+        List<String> renames = m_ddlc.getRenameTablesDDL(specs, newNames);
+        if (renames.isEmpty()) {
+            throw new ServerException("This database does not support swapping generations");
+        }
+
+        Statement stmt = null;
+        String command = null;
+        try {
+            stmt = getStatement(conn, false);
+            List<String> commands = new ArrayList<>();
+            commands.add("INSERT INTO rcPrunable (xmlPath) "
+                    + "SELECT xmlPath FROM rcRecord_shadow "
+                    + "WHERE formatKey NOT IN (SELECT formatKey FROM rcFormat)");
+            commands.add("DELETE FROM rcMembership_shadow "
+                    + "WHERE setKey NOT IN (SELECT setKey FROM rcSet) "
+                    + "OR recordKey IN (SELECT recordKey FROM rcRecord_shadow "
+                    + "WHERE formatKey NOT IN (SELECT formatKey FROM rcFormat))");
+            commands.add("DELETE FROM rcRecord_shadow "
+                    + "WHERE formatKey NOT IN (SELECT formatKey FROM rcFormat)");
+            // the carried over records share their files with the current
+            // generation, so they are told apart by their xmlPath
+            commands.add("INSERT INTO rcRecord_shadow (itemKey, formatKey, modDate, xmlPath, contentHash) "
+                    + "SELECT itemKey, formatKey, modDate, xmlPath, contentHash FROM rcRecord "
+                    + "WHERE NOT EXISTS (SELECT recordKey FROM rcRecord_shadow "
+                    + "WHERE rcRecord_shadow.itemKey = rcRecord.itemKey "
+                    + "AND rcRecord_shadow.formatKey = rcRecord.formatKey)");
+            commands.add("INSERT INTO rcMembership_shadow (setKey, recordKey) "
+                    + "SELECT rcMembership.setKey, rcRecord_shadow.recordKey "
+                    + "FROM rcMembership, rcRecord, rcRecord_shadow "
+                    + "WHERE rcMembership.recordKey = rcRecord.recordKey "
+                    + "AND rcRecord_shadow.xmlPath = rcRecord.xmlPath "
+                    + "AND NOT EXISTS (SELECT carried.setKey FROM rcMembership_shadow carried "
+                    + "WHERE carried.setKey = rcMembership.setKey "
+                    + "AND carried.recordKey = rcRecord_shadow.recordKey)");
+            commands.add("UPDATE rcRecord_shadow SET modDate = " + swapDate.getTime()
+                    + " WHERE modDate IS NULL");
+            commands.add("UPDATE rcFormat SET lastPollDate = rebuildUntilDate "
+                    + "WHERE rebuildUntilDate < lastPollDate");
+            commands.addAll(renames);
+            commands.add("UPDATE rcFormat SET rebuildUntilDate = NULL, rebuildFromDate = NULL, rebuildItemID = NULL");
+            commands.add("UPDATE rcAdmin SET rebuildRequested = 0");
+            for (String c : commands) {
+                command = c;
+                executeUpdate(stmt, command);
+            }
+        } catch (SQLException e) {
+            throw new ServerException("Error swapping generations.  The following "
+                    + "command failed:\n" + command, e);
+        } finally {
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * Mark the files of the old generation that are not shared with the
+     * current one as prunable, and drop its tables.
+     */
+    public void reclaimOldGeneration(Connection conn) throws ServerException {
+        Statement stmt = null;
+        try {
+            stmt = getStatement(conn, false);
+            executeUpdate(stmt, "INSERT INTO rcPrunable (xmlPath) "
+                    + "SELECT xmlPath FROM rcRecord_old "
+                    + "WHERE NOT EXISTS (SELECT recordKey FROM rcRecord "
+                    + "WHERE rcRecord.xmlPath = rcRecord_old.xmlPath)");
+        } catch (SQLException e) {
+            throw new ServerException("Error marking old generation as prunable", e);
+        } finally {
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+        }
+        dropGeneration(conn, OLD_SUFFIX);
+    }
+
+    // get or create an item key
+    private int getItemKey(Connection conn, String itemID) throws ServerException {
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = getStatement(conn, false);
+            rs = executeQuery(stmt, "SELECT itemKey from rcItem where identifier = " + qs(itemID));
+            if (rs.next()) {
+                return rs.getInt(1);
+            } else {
+                rs.close();
+                executeUpdate(stmt, "INSERT INTO rcItem (identifier) VALUES (" + qs(itemID) + ")");
+                rs = executeQuery(stmt, "SELECT itemKey from rcItem where identifier = " + qs(itemID));
+                if (rs.next()) {
+                    return rs.getInt(1);
+                } else {
+                    throw new ServerException("Insert into rcItem didn't work (identifier = " + itemID + ")");
+                }
+            }
+        } catch (SQLException e) {
+            throw new ServerException("Error getting key for itemID " + itemID, e);
+        } finally {
+            if (rs != null) try {
+                rs.close();
+            } catch (Exception ignored) {
+            }
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+
+    private int[] getSetKeys(Statement stmt, List<String> specs) throws ServerException {
+        ResultSet rs = null;
+        try {
+            int[] keys = new int[specs.size()];
+            for (int i = 0; i < specs.size(); i++) {
+                rs = executeQuery(stmt, "SELECT setKey from rcSet WHERE setSpec = " + qs(specs.get(i)));
+                if (rs.next()) {
+                    keys[i] = rs.getInt(1);
+                } else {
+                    throw new ServerException("Record contains setSpec not listed sets: " + specs.get(i));
+                }
+            }
+            return keys;
+        } catch (SQLException e) {
+            throw new ServerException("Unable to get setKey(s) for record's setSpec(s)", e);
+        } finally {
+            if (rs != null) try {
+                rs.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    public boolean itemExists(Connection conn, String itemID) throws ServerException {
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = getStatement(conn, false);
+            rs = executeQuery(stmt, "SELECT itemKey from rcItem where identifier = " + qs(itemID));
+            return rs.next();
         } catch (SQLException e) {
             throw new ServerException("Error determining if item exists: " + itemID, e);
         } finally {
@@ -1074,63 +2069,67 @@ class RCDatabase {
     }
 
     /**
-     * Copy all qualifying records from rcFailure to rcQueue.
+     * Copy all records from rcFailure that are due for another attempt
+     * to rcQueue.
      * <p/>
-     * To avoid unintentional duplicates in the queue, it's important that
-     * the caller ensures the queue is processed beforehand.
+     * Records that are still queued are coalesced with the queued rows,
+     * which keep their higher priority.
+     *
+     * @param now the current date, in epoch-ms.
      */
     public void queueFailedRecords(Connection conn,
-                                   int maxFailedRetries) throws ServerException {
-
-        if (maxFailedRetries > 0) {
+                                   long now) throws ServerException {
 
-            Statement stmt = null;
-            ResultSet results = null;
-            Connection queueConn = null;
-            if (m_mySQLTrickling) {
-                // use separate connection for update during select
-                try {
-                    queueConn = RecordCache.getConnection();
-                } catch (SQLException se) {
-                    throw new ServerException("Unable to get additional "
-                            + "connection for queueing failed records", se);
-                }
-            }
+        Statement stmt = null;
+        ResultSet results = null;
+        Connection queueConn = null;
+        if (m_mySQLTrickling) {
+            // use separate connection for update during select
             try {
+                queueConn = RecordCache.getConnection();
+            } catch (SQLException se) {
+                throw new ServerException("Unable to get additional "
+                        + "connection for queueing failed records", se);
+            }
+        }
+        try {
 
-                stmt = getStatement(conn, true);
-                results = executeQuery(stmt, "SELECT identifier, mdPrefix, sourceInfo "
-                        + "FROM rcFailure "
-                        + "WHERE failCount <= " + maxFailedRetries);
-                while (results.next()) {
-                    if (queueConn != null) {
-                        queueFailedRecord(queueConn,
-                                results.getString(1),
-                                results.getString(2),
-                                DBUtil.getLongString(results, 3));
-                    } else {
-                        queueFailedRecord(conn,
-                                results.getString(1),
-                                results.getString(2),
-                                DBUtil.getLongString(results, 3));
-                    }
-                }
-            } catch (SQLException e) {
-                throw new ServerException("Failed while attempting to enqueue "
-                        + "failed records", e);
-            } finally {
-                if (results != null) try {
-                    results.close();
-                } catch (Exception ignored) {
-                }
-                if (stmt != null) try {
-                    stmt.close();
-                } catch (Exception ignored) {
-                }
-                if (queueConn != null) try {
-                    queueConn.close();
-                } catch (Exception ignored) {
+            stmt = getStatement(conn, true);
+            results = executeQuery(stmt, "SELECT identifier, mdPrefix, sourceInfo "
+                    + "FROM rcFailure "
+                    + "WHERE nextAttemptDate IS NULL "
+                    + "OR nextAttemptDate <= " + now);
+            int queuedCount = 0;
+            while (results.next()) {
+                if (queueConn != null) {
+                    queueFailedRecord(queueConn,
+                            results.getString(1),
+                            results.getString(2),
+                            DBUtil.getLongString(results, 3));
+                } else {
+                    queueFailedRecord(conn,
+                            results.getString(1),
+                            results.getString(2),
+                            DBUtil.getLongString(results, 3));
                 }
+                queuedCount++;
+            }
+            logger.debug("Queued " + queuedCount + " failed records that are due for retry");
+        } catch (SQLException e) {
+            throw new ServerException("Failed while attempting to enqueue "
+                    + "failed records", e);
+        } finally {
+            if (results != null) try {
+                results.close();
+            } catch (Exception ignored) {
+            }
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+            if (queueConn != null) try {
+                queueConn.close();
+            } catch (Exception ignored) {
             }
         }
     }
@@ -1142,8 +2141,7 @@ class RCDatabase {
         Statement stmt = null;
         try {
             stmt = conn.createStatement();
-            executeUpdate(stmt, getQueueInsertSQL(identifier,
-                    mdPrefix, sourceInfo, 'F'));
+            queueRecord(stmt, identifier, mdPrefix, sourceInfo, 'F');
         } finally {
             if (stmt != null) try {
                 stmt.close();
@@ -1152,21 +2150,106 @@ class RCDatabase {
         }
     }
 
+    /**
+     * Queue a record, or if it is already queued for the same format,
+     * update the existing row instead.
+     * <p/>
+     * The poller and change notifications may queue the same record at the
+     * same time.  Where the database can't insert or update in a single
+     * statement, an insert that fails because the row has been inserted
+     * by another session since the update is followed by another update.
+     */
+    private void queueRecord(Statement stmt,
+                             String identifier,
+                             String mdPrefix,
+                             String sourceInfo,
+                             char queueSource) throws SQLException {
+        if (m_canUpsertQueue) {
+            executeUpdate(stmt, getQueueUpsertSQL(identifier, mdPrefix, sourceInfo, queueSource));
+            return;
+        }
+        String update = getQueueUpdateSQL(identifier, mdPrefix, sourceInfo, queueSource);
+        if (executeUpdate(stmt, update) == 0) {
+            try {
+                executeUpdate(stmt, getQueueInsertSQL(identifier, mdPrefix,
+                        sourceInfo, queueSource));
+            } catch (SQLException e) {
+                if (executeUpdate(stmt, update) == 0) {
+                    throw e;
+                }
+                logger.debug("Queued " + identifier + "/" + mdPrefix
+                        + " again after it was queued concurrently");
+            }
+        }
+    }
+
     private String getQueueInsertSQL(String identifier, String mdPrefix,
                                      String sourceInfo, char queueSource) {
-        if ((sourceInfo.contains("\n")) || (sourceInfo.contains("\r"))) {
-            throw new ServerException("INSERT aborted: bad sourceInfo for "
-                    + identifier + "/" + mdPrefix + " (contains "
-                    + "newline(s))");
-        }
+        checkSourceInfo(identifier, mdPrefix, sourceInfo);
         return "INSERT INTO rcQueue (identifier, "
                 + "mdPrefix, "
                 + "sourceInfo, "
-                + "queueSource) "
+                + "queueSource, "
+                + "priority) "
                 + "VALUES (" + qsc(identifier)
                 + qsc(mdPrefix)
                 + qsc(sourceInfo)
-                + "'" + queueSource + "')";
+                + "'" + queueSource + "', "
+                + QueueItem.getPriority(queueSource) + ")";
+    }
+
+    /**
+     * Get the command that coalesces a newly queued record with the row
+     * already queued for it, if any.
+     * <p/>
+     * The row gets the new sourceInfo, keeps the higher of both priorities
+     * (along with the matching queueSource) and a new revision.  Note that
+     * MySQL assigns the columns from left to right, so queueSource must be
+     * assigned before priority to see its old value.
+     */
+    private String getQueueUpdateSQL(String identifier, String mdPrefix,
+                                     String sourceInfo, char queueSource) {
+        checkSourceInfo(identifier, mdPrefix, sourceInfo);
+        return "UPDATE rcQueue SET "
+                + getQueueAssignments(sourceInfo, queueSource, "") + " "
+                + "WHERE identifier = " + qs(identifier) + " "
+                + "AND mdPrefix = " + qs(mdPrefix);
+    }
+
+    /**
+     * Get the command that queues a record or coalesces it with the row
+     * already queued for it in one go, like the insert and update commands
+     * together.  Only if <code>m_canUpsertQueue</code> is this supported.
+     */
+    private String getQueueUpsertSQL(String identifier, String mdPrefix,
+                                     String sourceInfo, char queueSource) {
+        return m_ddlc.getUpsertSQL(m_queueSpec,
+                getQueueInsertSQL(identifier, mdPrefix, sourceInfo, queueSource),
+                getQueueAssignments(sourceInfo, queueSource, "rcQueue."));
+    }
+
+    /**
+     * Get the assignments that coalesce a newly queued record with its row,
+     * referring to the columns of the row with the given qualifier.
+     */
+    private String getQueueAssignments(String sourceInfo, char queueSource,
+                                       String qualifier) {
+        int priority = QueueItem.getPriority(queueSource);
+        return "sourceInfo = " + qs(sourceInfo) + ", "
+                + "queueSource = CASE WHEN " + qualifier + "priority < " + priority
+                + " THEN " + qualifier + "queueSource ELSE '" + queueSource + "' END, "
+                + "priority = CASE WHEN " + qualifier + "priority < " + priority
+                + " THEN " + qualifier + "priority ELSE " + priority + " END, "
+                + "queueRevision = " + qualifier + "queueRevision + 1";
+    }
+
+    private static void checkSourceInfo(String identifier, String mdPrefix,
+                                        String sourceInfo) {
+        if ((sourceInfo.contains("\n")) || (sourceInfo.contains("\r"))) {
+            throw new ServerException("INSERT aborted: bad sourceInfo for "
+                    + identifier + "/" + mdPrefix + " (contains "
+                    + "newline(s))");
+        }
     }
 
     public void queueRemoteRecord(Connection conn,
@@ -1176,8 +2259,7 @@ class RCDatabase {
         Statement stmt = null;
         try {
             stmt = conn.createStatement();
-            executeUpdate(stmt, getQueueInsertSQL(identifier, mdPrefix,
-                    sourceInfo, 'R'));
+            queueRecord(stmt, identifier, mdPrefix, sourceInfo, 'R');
         } catch (SQLException e) {
             throw new ServerException("Failed while attempting to enqueue "
                     + "remote record", e);
@@ -1189,6 +2271,105 @@ class RCDatabase {
         }
     }
 
+    /**
+     * Queue the given records found by polling, sending them all to the
+     * database at once as single upserts where possible, or else all
+     * updates of already queued records, followed by all inserts of the
+     * others.
+     */
+    public void queueRemoteRecords(Connection conn,
+                                   List<? extends Record> records) throws ServerException {
+        if (records.isEmpty()) return;
+
+        // if a record occurs more than once, the last one wins
+        Map<String, Record> byItem = new LinkedHashMap<>();
+        for (Record record : records) {
+            byItem.put(record.getItemID() + " " + record.getPrefix(), record);
+        }
+        List<Record> unique = new ArrayList<>(byItem.values());
+
+        Statement stmt = null;
+        try {
+            stmt = conn.createStatement();
+            if (m_canUpsertQueue) {
+                for (Record record : unique) {
+                    stmt.addBatch(getQueueUpsertSQL(record.getItemID(),
+                            record.getPrefix(), record.getSourceInfo(), 'R'));
+                }
+                stmt.executeBatch();
+                logger.debug("Queued " + unique.size() + " remote records");
+                return;
+            }
+            for (Record record : unique) {
+                stmt.addBatch(getQueueUpdateSQL(record.getItemID(),
+                        record.getPrefix(), record.getSourceInfo(), 'R'));
+            }
+            int[] updateCounts = stmt.executeBatch();
+            List<Record> inserted = new ArrayList<>();
+            List<Record> unknown = new ArrayList<>();
+            for (int i = 0; i < unique.size(); i++) {
+                Record record = unique.get(i);
+                if (updateCounts[i] == Statement.SUCCESS_NO_INFO) {
+                    // the driver can't tell whether the row existed
+                    unknown.add(record);
+                } else if (updateCounts[i] == 0) {
+                    String sql = getQueueInsertSQL(record.getItemID(),
+                            record.getPrefix(), record.getSourceInfo(), 'R');
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Adding insert to batch: " + sql);
+                    }
+                    stmt.addBatch(sql);
+                    inserted.add(record);
+                }
+            }
+            int insertCount = inserted.size();
+            if (insertCount > 0) {
+                try {
+                    stmt.executeBatch();
+                } catch (SQLException e) {
+                    // some were queued by another session since the updates
+                    logger.debug("Inserting queued remote records failed, "
+                            + "queueing them one by one: " + e.getMessage());
+                    stmt.clearBatch();
+                    unknown.addAll(inserted);
+                }
+            }
+            for (Record record : unknown) {
+                queueRecord(stmt, record.getItemID(), record.getPrefix(),
+                        record.getSourceInfo(), 'R');
+            }
+            logger.debug("Queued " + unique.size() + " remote records, "
+                    + insertCount + " of which were inserted as new rows");
+        } catch (SQLException e) {
+            throw new ServerException("Failed while attempting to enqueue "
+                    + records.size() + " remote records", e);
+        } finally {
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    public void queueChangedRecord(Connection conn,
+                                   String identifier,
+                                   String mdPrefix,
+                                   String sourceInfo) throws ServerException {
+        Statement stmt = null;
+        try {
+            stmt = conn.createStatement();
+            queueRecord(stmt, identifier, mdPrefix, sourceInfo, 'E');
+        } catch (SQLException e) {
+            throw new ServerException("Failed while attempting to enqueue "
+                    + "changed record", e);
+        } finally {
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
     public int getQueueSize(Connection conn) throws ServerException {
 
         Statement stmt = null;
@@ -1214,45 +2395,44 @@ class RCDatabase {
         }
     }
 
-    public void dumpQueue(Connection conn,
-                          PrintWriter writer) throws ServerException {
-
-        logger.debug("Preparing queue for processing...");
+    /**
+     * Get the next page of queued items of the given priority, that is, up
+     * to the given number of items queued after the item with the given
+     * key, in the order they were queued.
+     * <p/>
+     * Since the queue key is indexed, each page is read without scanning
+     * the items before it, no matter how long the queue is.
+     */
+    public List<QueueItem> getQueueItems(Connection conn,
+                                         int priority,
+                                         int afterQueueKey,
+                                         int maxItems) throws ServerException {
 
         Statement stmt = null;
         ResultSet results = null;
-        int resultCount = 0;
+        List<QueueItem> items = new ArrayList<>();
 
         try {
 
             stmt = conn.createStatement();
-            results = executeQuery(stmt, "SELECT queueKey, identifier, "
-                    + "mdPrefix, sourceInfo, queueSource "
+            stmt.setMaxRows(maxItems);
+            results = executeQuery(stmt, "SELECT queueKey, queueRevision, "
+                    + "identifier, mdPrefix, sourceInfo, queueSource "
                     + "FROM rcQueue "
+                    + "WHERE priority = " + priority + " "
+                    + "AND queueKey > " + afterQueueKey + " "
                     + "ORDER BY queueKey ASC");
             while (results.next()) {
-                resultCount++;
-
-                writer.print(results.getInt(1) + " ");
-
-                String identifier = results.getString(2);
-                writer.print(identifier + " ");
-
-                String mdPrefix = results.getString(3);
-                writer.print(mdPrefix + " ");
-
-                writer.print(results.getString(5) + " ");
-
-                String sourceInfo = DBUtil.getLongString(results, 4);
-                if (sourceInfo != null && ((sourceInfo.contains("\n")) || (sourceInfo.contains("\r")))) {
-                    throw new ServerException("rcQueue contains bad sourceInfo for "
-                            + identifier + "/" + mdPrefix + " (contains "
-                            + "newline(s)): '" + sourceInfo + "'");
-                }
-                writer.println(sourceInfo);
-            }
+                items.add(new QueueItem(results.getInt(1),
+                        results.getInt(2),
+                        results.getString(3),
+                        results.getString(4),
+                        DBUtil.getLongString(results, 5),
+                        results.getString(6).charAt(0)));
+            }
+            return items;
         } catch (SQLException e) {
-            throw new ServerException("Failed to dump queue", e);
+            throw new ServerException("Failed to read queue", e);
         } finally {
             if (results != null) try {
                 results.close();
@@ -1262,21 +2442,22 @@ class RCDatabase {
                 stmt.close();
             } catch (Exception ignored) {
             }
-
-            if (resultCount > 0) {
-                // JDBC driver may be using a lot of heap space at this point,
-                // so try to convince the VM to clean up after it
-                System.gc();
-            }
         }
     }
 
+    /**
+     * Remove a processed item from the queue, unless the record was queued
+     * again while it was being processed.  In that case, the row is left
+     * for the next round.
+     */
     public void removeFromQueue(Connection conn,
-                                int queueKey) throws ServerException {
+                                int queueKey,
+                                int queueRevision) throws ServerException {
         Statement stmt = null;
         try {
             stmt = conn.createStatement();
-            executeUpdate(stmt, "DELETE FROM rcQueue WHERE queueKey = " + queueKey);
+            executeUpdate(stmt, "DELETE FROM rcQueue WHERE queueKey = " + queueKey
+                    + " AND queueRevision = " + queueRevision);
         } catch (SQLException e) {
             throw new ServerException("Failed to remove record from queue", e);
         } finally {
@@ -1345,7 +2526,8 @@ class RCDatabase {
                            String mdPrefix,
                            String sourceInfo,
                            String failDate,
-                           String failReason) throws ServerException {
+                           String failReason,
+                           long nextAttemptDate) throws ServerException {
         Statement stmt = null;
         try {
             stmt = conn.createStatement();
@@ -1356,14 +2538,16 @@ class RCDatabase {
                     + "failCount, "
                     + "firstFailDate, "
                     + "lastFailDate, "
-                    + "lastFailReason) "
+                    + "lastFailReason, "
+                    + "nextAttemptDate) "
                     + "VALUES (" + qsc(identifier)
                     + qsc(mdPrefix)
                     + qsc(sourceInfo)
                     + "0, "
                     + qsc(failDate)
                     + qsc(failDate)
-                    + qs(failReason) + ")");
+                    + qsc(failReason)
+                    + nextAttemptDate + ")");
         } catch (SQLException e) {
             throw new ServerException("Failed to add row to rcFailure", e);
         } finally {
@@ -1380,7 +2564,8 @@ class RCDatabase {
                               String sourceInfo,
                               int newFailCount,
                               String failDate,
-                              String failReason) throws ServerException {
+                              String failReason,
+                              long nextAttemptDate) throws ServerException {
         Statement stmt = null;
         try {
             stmt = conn.createStatement();
@@ -1388,7 +2573,8 @@ class RCDatabase {
                     + "SET sourceInfo = " + qs(sourceInfo) + ", "
                     + "failCount = " + newFailCount + ", "
                     + "lastFailDate = " + qsc(failDate)
-                    + "lastFailReason = " + qss(failReason)
+                    + "lastFailReason = " + qsc(failReason)
+                    + "nextAttemptDate = " + nextAttemptDate + " "
                     + "WHERE identifier = " + qss(identifier)
                     + "AND mdPrefix = " + qs(mdPrefix));
         } catch (SQLException e) {
@@ -1493,4 +2679,61 @@ class RCDatabase {
             }
         }
     }
+
+    /**
+     * Receives cache file paths streamed from the database.
+     */
+    interface PathHandler {
+        void handlePath(String path);
+    }
+
+    /**
+     * Stream the paths of all cache files the database refers to,
+     * without holding them in memory.
+     * <p/>
+     * The connection should not be in auto-commit mode, so that drivers
+     * which support it can fetch large results through a cursor.
+     *
+     * @return the number of paths handled.
+     */
+    public long forEachReferencedPath(Connection conn,
+                                      PathHandler handler) throws ServerException {
+        List<String> queries = new ArrayList<>();
+        queries.add("SELECT xmlPath FROM rcRecord");
+        for (String suffix : new String[]{SHADOW_SUFFIX, OLD_SUFFIX}) {
+            if (tableExists(conn, "rcRecord" + suffix)) {
+                queries.add("SELECT xmlPath FROM rcRecord" + suffix);
+            }
+        }
+        queries.add("SELECT xmlPath FROM rcSet");
+        queries.add("SELECT identifyPath FROM rcAdmin WHERE identifyPath IS NOT NULL");
+        long count = 0;
+        for (String query : queries) {
+            Statement stmt = null;
+            ResultSet results = null;
+            try {
+                stmt = getStatement(conn, true);
+                if (!m_mySQLTrickling) {
+                    stmt.setFetchSize(10000);
+                }
+                results = executeQuery(stmt, query);
+                while (results.next()) {
+                    handler.handlePath(results.getString(1));
+                    count++;
+                }
+            } catch (SQLException e) {
+                throw new ServerException("Failed to list referenced paths", e);
+            } finally {
+                if (results != null) try {
+                    results.close();
+                } catch (Exception ignored) {
+                }
+                if (stmt != null) try {
+                    stmt.close();
+                } catch (Exception ignored) {
+                }
+            }
+        }
+        return count;
+    }
 }
@@ -23,12 +23,22 @@ import proai.error.ServerException;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.UUID;
+import java.util.zip.GZIPInputStream;
 
 /**
  * The file-based portion of the record cache.
@@ -37,12 +47,21 @@ class RCDisk {
 
     private static final String PATH_DATE_PATTERN = "yyyy/MM/dd/HH/mm/ss.SSS.'UUID'.'xml'";
 
+    /**
+     * Suffix of record files that are stored gzip-compressed.
+     */
+    static final String COMPRESSED_SUFFIX = ".gz";
+
     private static final Logger logger = LoggerFactory.getLogger(RCDisk.class);
 
     private final File m_baseDir;
+    private final boolean m_syncWrites;
+    private final boolean m_compressRecords;
 
-    public RCDisk(File baseDir) {
+    public RCDisk(File baseDir, boolean syncWrites, boolean compressRecords) {
         m_baseDir = baseDir;
+        m_syncWrites = syncWrites;
+        m_compressRecords = compressRecords;
         if (!m_baseDir.exists()) {
             m_baseDir.mkdirs();
         }
@@ -50,9 +69,11 @@ class RCDisk {
 
     /**
      * Get a new RCDiskWriter backed by a new file in the disk cache.
+     * <p/>
+     * If record compression is enabled, the file will be gzipped.
      */
     public RCDiskWriter getNewWriter() throws ServerException {
-        String path = getNewPath();
+        String path = getNewPath(m_compressRecords);
         try {
             return new RCDiskWriter(m_baseDir, path);
         } catch (Exception e) {
@@ -66,10 +87,13 @@ class RCDisk {
      * <p/>
      * If the directory for the path does not yet exist, it will be created.
      */
-    private String getNewPath() {
+    private String getNewPath(boolean compressed) {
         DateFormat formatter = new SimpleDateFormat(PATH_DATE_PATTERN);
         long now = System.currentTimeMillis();
         String path = formatter.format(new Date(now)).replaceAll("UUID", UUID.randomUUID().toString());
+        if (compressed) {
+            path = path + COMPRESSED_SUFFIX;
+        }
         File dir = new File(m_baseDir, path.substring(0, 16));
         dir.mkdirs();
         return path;
@@ -80,7 +104,7 @@ class RCDisk {
      * return the path of the file, relative to the disk cache base directory.
      */
     public String write(Writable writable) throws ServerException {
-        String path = getNewPath();
+        String path = getNewPath(false);
         try {
             PrintWriter writer = new PrintWriter(
                     new OutputStreamWriter(
@@ -89,12 +113,50 @@ class RCDisk {
                             "UTF-8"));
             writable.write(writer);
             writer.close();
+            sync(Collections.singletonList(path));
             return path;
         } catch (Exception e) {
             throw new ServerException("Error writing stream to file in cache: " + path, e);
         }
     }
 
+    /**
+     * Force the given files, and the directory entries pointing to them,
+     * to stable storage.
+     * <p/>
+     * This is meant to be called once for all files that are about to be
+     * referenced by a database transaction, right before it is committed,
+     * so the cost of syncing is shared by the whole group.  Directories are
+     * only synced once per call, no matter how many of the files they hold.
+     * <p/>
+     * Does nothing if syncing was disabled at construction time.
+     */
+    public void sync(Collection<String> paths) throws ServerException {
+        if (!m_syncWrites || paths.isEmpty()) return;
+        Set<File> dirs = new LinkedHashSet<>();
+        for (String path : paths) {
+            File file = getFile(path);
+            force(file, false);
+            dirs.add(file.getParentFile());
+        }
+        for (File dir : dirs) {
+            try {
+                force(dir, true);
+            } catch (ServerException e) {
+                // not all platforms allow opening a directory for syncing
+                logger.debug("Unable to sync directory " + dir.getPath(), e);
+            }
+        }
+    }
+
+    private static void force(File file, boolean metaData) throws ServerException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(metaData);
+        } catch (IOException e) {
+            throw new ServerException("Error syncing file in cache: " + file.getPath(), e);
+        }
+    }
+
     CachedContent getContent(String path) {
         if (path == null) return null;
         return new CachedContent(getFile(path));
@@ -105,6 +167,29 @@ class RCDisk {
         return new CachedContent(getFile(path), headersOnly);
     }
 
+    /**
+     * Whether the given cache file is stored compressed.
+     */
+    static boolean isCompressed(File file) {
+        return file.getName().endsWith(COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * Open a cache file for reading, decompressing it if needed.
+     */
+    static InputStream newInputStream(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (isCompressed(file)) {
+            try {
+                return new GZIPInputStream(in);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+        return in;
+    }
+
     File getFile(String path) {
         return new File(m_baseDir, path);
     }
@@ -18,17 +18,53 @@ package proai.cache;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
-public class RCDiskWriter extends PrintWriter {
+import proai.driver.RecordHeaderListener;
+
+/**
+ * Writes a new record file to the disk cache.
+ * <p/>
+ * If the path ends with <code>.gz</code>, the content is gzip-compressed
+ * on the way to disk.
+ * <p/>
+ * Drivers may report the header values of the record as they write it,
+ * which are then available to the cache without parsing the file.
+ */
+public class RCDiskWriter extends PrintWriter implements RecordHeaderListener {
 
     private File m_file;
     private String m_path;
+    private ContentHashOutputStream m_hashOut;
+    private String m_datestamp;
+    private List<String> m_setSpecs;
 
     public RCDiskWriter(File baseDir, String path) throws Exception {
-        super(new FileOutputStream(new File(baseDir, path)));
+        this(baseDir, path, new ContentHashOutputStream(
+                openFile(new File(baseDir, path))));
+    }
+
+    private RCDiskWriter(File baseDir,
+                         String path,
+                         ContentHashOutputStream hashOut) throws Exception {
+        super(new OutputStreamWriter(hashOut, "UTF-8"));
         m_path = path;
         m_file = new File(baseDir, path);
+        m_hashOut = hashOut;
+    }
+
+    private static OutputStream openFile(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (RCDisk.isCompressed(file)) {
+            return new GZIPOutputStream(out);
+        }
+        return out;
     }
 
     public String getPath() {
@@ -39,4 +75,47 @@ public class RCDiskWriter extends PrintWriter {
         return m_file;
     }
 
+    /**
+     * Get a hash of the written content, ignoring the record datestamp.
+     * <p/>
+     * Only valid after the writer has been closed.
+     */
+    public String getContentHash() {
+        return m_hashOut.getHash();
+    }
+
+    /**
+     * Get the number of uncompressed bytes written.
+     */
+    public long getContentLength() {
+        return m_hashOut.getCount();
+    }
+
+    @Override
+    public void recordHeader(String datestamp, List<String> setSpecs) {
+        m_datestamp = datestamp;
+        m_setSpecs = new ArrayList<>(setSpecs);
+    }
+
+    /**
+     * Whether the driver reported the header values of the record.
+     */
+    public boolean hasRecordHeader() {
+        return m_datestamp != null;
+    }
+
+    /**
+     * Get the datestamp reported by the driver, or null if none was.
+     */
+    public String getRecordDatestamp() {
+        return m_datestamp;
+    }
+
+    /**
+     * Get the setSpecs reported by the driver, or null if none were.
+     */
+    public List<String> getRecordSetSpecs() {
+        return m_setSpecs;
+    }
+
 }
@@ -16,10 +16,6 @@
 
 package proai.cache;
 
-import net.sf.bvalid.SchemaLanguage;
-import net.sf.bvalid.Validator;
-import net.sf.bvalid.ValidatorFactory;
-import net.sf.bvalid.ValidatorOption;
 import net.sf.bvalid.catalog.DiskSchemaCatalog;
 import net.sf.bvalid.catalog.FileSchemaIndex;
 import net.sf.bvalid.catalog.MemorySchemaCatalog;
@@ -40,6 +36,7 @@ import proai.driver.OAIDriver;
 import proai.driver.impl.MetadataFormatImpl;
 import proai.error.ServerException;
 import proai.util.DDLConverter;
+import proai.util.MetricsRegistry;
 import proai.util.StreamUtil;
 
 import java.io.File;
@@ -70,14 +67,28 @@ public class RecordCache extends Thread {
     private static final String PROP_BASEDIR = pfx + "cacheBaseDir";
     private static final String PROP_OAIDRIVERCLASSNAME = pfx + "driverClassName";
     private static final String PROP_POLLSECONDS = pfx + "driverPollSeconds";
+    private static final String PROP_CHANGENOTIFICATIONPOLLSECONDS = pfx + "changeNotificationPollSeconds";
+    private static final String PROP_MAXCONCURRENTFORMATPOLLS = pfx + "maxConcurrentFormatPolls";
+    private static final String PROP_STREAMPOLLEDRECORDS = pfx + "streamPolledRecords";
+    private static final String PROP_BOOTSTRAP = pfx + "bootstrap";
+    private static final String PROP_REBUILDSECONDSPERCYCLE = pfx + "rebuildSecondsPerCycle";
     private static final String PROP_POLLINGENABLED = pfx + "driverPollingEnabled";
     private static final String PROP_MAXWORKERS = pfx + "maxWorkers";
+    private static final String PROP_MAXINFLIGHTFETCHES = pfx + "maxInFlightFetches";
+    private static final String PROP_MINFETCHCONCURRENCY = pfx + "minFetchConcurrency";
+    private static final String PROP_TARGETFETCHMILLIS = pfx + "targetFetchMillis";
     private static final String PROP_MAXWORKBATCHSIZE = pfx + "maxWorkBatchSize";
     private static final String PROP_MAXFAILEDRETRIES = pfx + "maxFailedRetries";
+    private static final String PROP_FAILEDRETRYBASESECONDS = pfx + "failedRetryBaseSeconds";
+    private static final String PROP_FAILEDRETRYMAXSECONDS = pfx + "failedRetryMaxSeconds";
     private static final String PROP_MAXCOMMITQUEUESIZE = pfx + "maxCommitQueueSize";
     private static final String PROP_MAXRECORDSPERTRANS = pfx + "maxRecordsPerTransaction";
     private static final String PROP_SCHEMADIR = pfx + "schemaDir";
     private static final String PROP_VALIDATEUPDATES = pfx + "validateUpdates";
+    private static final String PROP_VALIDATION_SAMPLERATE = pfx + "validation.sampleRate.";
+    private static final String PROP_SYNCCACHEWRITES = pfx + "syncCacheWrites";
+    private static final String PROP_CACHECOMPRESSION = pfx + "cacheCompression";
+    private static final String PROP_SCANCACHEONSTARTUP = pfx + "scanCacheOnStartup";
     private static final String dbpfx = pfx + "db.";
     private static final String PROP_DB_DRIVERCLASSNAME = dbpfx + "driverClassName";
     private static final String PROP_DB_MYSQL_TRICKLING = dbpfx + "mySQLResultTrickling";
@@ -88,6 +99,15 @@ public class RecordCache extends Thread {
     private Updater m_updater;
 
     public RecordCache(Properties props) throws ServerException {
+        this(props, true);
+    }
+
+    /**
+     * Construct a RecordCache, optionally without starting the updater.
+     * <p/>
+     * This lets offline tools work with the cache's storage.
+     */
+    RecordCache(Properties props, boolean startUpdater) throws ServerException {
 
         String baseDir = getRequiredParam(props, PROP_BASEDIR);
         String oaiDriverClassName = getRequiredParam(props, PROP_OAIDRIVERCLASSNAME);
@@ -109,10 +129,52 @@ public class RecordCache extends Thread {
         driver.init(props);
 
         int pollSecondsInt = getRequiredInt(props, PROP_POLLSECONDS, 1, Integer.MAX_VALUE);
+        int changeNotificationPollSeconds = 3600;
+        if (props.getProperty(PROP_CHANGENOTIFICATIONPOLLSECONDS) != null) {
+            changeNotificationPollSeconds = getRequiredInt(props, PROP_CHANGENOTIFICATIONPOLLSECONDS, 1, Integer.MAX_VALUE);
+        }
+        int maxConcurrentFormatPolls = 4;
+        if (props.getProperty(PROP_MAXCONCURRENTFORMATPOLLS) != null) {
+            maxConcurrentFormatPolls = getRequiredInt(props, PROP_MAXCONCURRENTFORMATPOLLS, 1, Integer.MAX_VALUE);
+        }
+        boolean streamPolledRecords = true;
+        String spr = props.getProperty(PROP_STREAMPOLLEDRECORDS);
+        if (spr != null && spr.trim().equalsIgnoreCase("false")) {
+            streamPolledRecords = false;
+        }
+        boolean bootstrap = false;
+        String bs = props.getProperty(PROP_BOOTSTRAP);
+        if (bs != null && bs.trim().equalsIgnoreCase("true")) {
+            bootstrap = true;
+        }
+        int rebuildSecondsPerCycle = 0;
+        if (props.getProperty(PROP_REBUILDSECONDSPERCYCLE) != null) {
+            rebuildSecondsPerCycle = getRequiredInt(props, PROP_REBUILDSECONDSPERCYCLE, 0, Integer.MAX_VALUE);
+        }
         boolean pollingEnabled = getRequiredParam(props, PROP_POLLINGENABLED).equalsIgnoreCase("true");
         int maxWorkers = getRequiredInt(props, PROP_MAXWORKERS, 1, Integer.MAX_VALUE);
+        int maxInFlightFetches = maxWorkers;
+        if (props.getProperty(PROP_MAXINFLIGHTFETCHES) != null) {
+            maxInFlightFetches = getRequiredInt(props, PROP_MAXINFLIGHTFETCHES, 1, Integer.MAX_VALUE);
+        }
+        int minFetchConcurrency = 1;
+        if (props.getProperty(PROP_MINFETCHCONCURRENCY) != null) {
+            minFetchConcurrency = getRequiredInt(props, PROP_MINFETCHCONCURRENCY, 1, Integer.MAX_VALUE);
+        }
+        int targetFetchMillis = 0;
+        if (props.getProperty(PROP_TARGETFETCHMILLIS) != null) {
+            targetFetchMillis = getRequiredInt(props, PROP_TARGETFETCHMILLIS, 0, Integer.MAX_VALUE);
+        }
         int maxWorkBatchSize = getRequiredInt(props, PROP_MAXWORKBATCHSIZE, 1, Integer.MAX_VALUE);
         int maxFailedRetries = getRequiredInt(props, PROP_MAXFAILEDRETRIES, 0, Integer.MAX_VALUE);
+        int failedRetryBaseSeconds = 300;
+        if (props.getProperty(PROP_FAILEDRETRYBASESECONDS) != null) {
+            failedRetryBaseSeconds = getRequiredInt(props, PROP_FAILEDRETRYBASESECONDS, 1, Integer.MAX_VALUE);
+        }
+        int failedRetryMaxSeconds = 86400;
+        if (props.getProperty(PROP_FAILEDRETRYMAXSECONDS) != null) {
+            failedRetryMaxSeconds = getRequiredInt(props, PROP_FAILEDRETRYMAXSECONDS, 1, Integer.MAX_VALUE);
+        }
         int maxCommitQueueSize = getRequiredInt(props, PROP_MAXCOMMITQUEUESIZE, 1, Integer.MAX_VALUE);
         int maxRecordsPerTransaction = getRequiredInt(props, PROP_MAXRECORDSPERTRANS, 1, Integer.MAX_VALUE);
 
@@ -149,6 +211,24 @@ public class RecordCache extends Thread {
             backslashIsEscape = false;
         }
 
+        boolean syncCacheWrites = true;
+        String sw = props.getProperty(PROP_SYNCCACHEWRITES);
+        if (sw != null && sw.trim().equalsIgnoreCase("false")) {
+            syncCacheWrites = false;
+        }
+
+        boolean cacheCompression = false;
+        String cc = props.getProperty(PROP_CACHECOMPRESSION);
+        if (cc != null && cc.trim().equalsIgnoreCase("true")) {
+            cacheCompression = true;
+        }
+
+        boolean scanCacheOnStartup = false;
+        String sc = props.getProperty(PROP_SCANCACHEONSTARTUP);
+        if (sc != null && sc.trim().equalsIgnoreCase("true")) {
+            scanCacheOnStartup = true;
+        }
+
         File schemaDir = null;
         boolean validateUpdates = true;
         String vu = props.getProperty(PROP_VALIDATEUPDATES);
@@ -158,6 +238,16 @@ public class RecordCache extends Thread {
             schemaDir = new File(getRequiredParam(props, PROP_SCHEMADIR));
         }
 
+        Map<String, Integer> validationSampleRates = new HashMap<>();
+        Enumeration<?> names = props.propertyNames();
+        while (names.hasMoreElements()) {
+            String name = (String) names.nextElement();
+            if (name.startsWith(PROP_VALIDATION_SAMPLERATE)) {
+                validationSampleRates.put(name.substring(PROP_VALIDATION_SAMPLERATE.length()),
+                        getRequiredInt(props, name, 0, Integer.MAX_VALUE));
+            }
+        }
+
         init(pool,
                 ddlc,
                 mySQLTrickling,
@@ -165,14 +255,31 @@ public class RecordCache extends Thread {
                 pollingEnabled,
                 driver,
                 pollSecondsInt,
+                changeNotificationPollSeconds,
+                maxConcurrentFormatPolls,
+                streamPolledRecords,
+                bootstrap,
+                rebuildSecondsPerCycle,
                 new File(baseDir),
+                syncCacheWrites,
+                cacheCompression,
+                scanCacheOnStartup,
                 maxWorkers,
+                maxInFlightFetches,
+                minFetchConcurrency,
+                targetFetchMillis,
                 maxWorkBatchSize,
                 maxFailedRetries,
+                failedRetryBaseSeconds,
+                failedRetryMaxSeconds,
                 maxCommitQueueSize,
                 maxRecordsPerTransaction,
                 validateUpdates,
-                schemaDir);
+                schemaDir,
+                validationSampleRates);
+        if (startUpdater) {
+            m_updater.start();
+        }
     }
 
     private RecordCache(BasicDataSource pool,
@@ -182,14 +289,28 @@ public class RecordCache extends Thread {
                         boolean pollingEnabled,
                         OAIDriver driver,
                         int pollSeconds,
+                        int changeNotificationPollSeconds,
+                        int maxConcurrentFormatPolls,
+                        boolean streamPolledRecords,
+                        boolean bootstrap,
+                        int rebuildSecondsPerCycle,
                         File baseDir,
+                        boolean syncCacheWrites,
+                        boolean cacheCompression,
+                        boolean scanCacheOnStartup,
                         int maxWorkers,
+                        int maxInFlightFetches,
+                        int minFetchConcurrency,
+                        int targetFetchMillis,
                         int maxWorkBatchSize,
                         int maxFailedRetries,
+                        int failedRetryBaseSeconds,
+                        int failedRetryMaxSeconds,
                         int maxCommitQueueSize,
                         int maxRecordsPerTransaction,
                         boolean validateUpdates,
-                        File schemaDir) throws ServerException {
+                        File schemaDir,
+                        Map<String, Integer> validationSampleRates) throws ServerException {
         init(pool,
                 ddlc,
                 mySQLTrickling,
@@ -197,14 +318,29 @@ public class RecordCache extends Thread {
                 pollingEnabled,
                 driver,
                 pollSeconds,
+                changeNotificationPollSeconds,
+                maxConcurrentFormatPolls,
+                streamPolledRecords,
+                bootstrap,
+                rebuildSecondsPerCycle,
                 baseDir,
+                syncCacheWrites,
+                cacheCompression,
+                scanCacheOnStartup,
                 maxWorkers,
+                maxInFlightFetches,
+                minFetchConcurrency,
+                targetFetchMillis,
                 maxWorkBatchSize,
                 maxFailedRetries,
+                failedRetryBaseSeconds,
+                failedRetryMaxSeconds,
                 maxCommitQueueSize,
                 maxRecordsPerTransaction,
                 validateUpdates,
-                schemaDir);
+                schemaDir,
+                validationSampleRates);
+        m_updater.start();
     }
 
     private static String getRequiredParam(Properties props,
@@ -321,21 +457,35 @@ public class RecordCache extends Thread {
                       boolean pollingEnabled,
                       OAIDriver driver,
                       int pollSeconds,
+                      int changeNotificationPollSeconds,
+                      int maxConcurrentFormatPolls,
+                      boolean streamPolledRecords,
+                      boolean bootstrap,
+                      int rebuildSecondsPerCycle,
                       File baseDir,
+                      boolean syncCacheWrites,
+                      boolean cacheCompression,
+                      boolean scanCacheOnStartup,
                       int maxWorkers,
+                      int maxInFlightFetches,
+                      int minFetchConcurrency,
+                      int targetFetchMillis,
                       int maxWorkBatchSize,
                       int maxFailedRetries,
+                      int failedRetryBaseSeconds,
+                      int failedRetryMaxSeconds,
                       int maxCommitQueueSize,
                       int maxRecordsPerTransaction,
                       boolean validateUpdates,
-                      File schemaDir) throws ServerException {
+                      File schemaDir,
+                      Map<String, Integer> validationSampleRates) throws ServerException {
 
         logger.info("Initializing Record Cache...");
 
         s_pool = pool;
 
         // this creates baseDir if it doesn't exist yet
-        m_rcDisk = new RCDisk(baseDir);
+        m_rcDisk = new RCDisk(baseDir, syncCacheWrites, cacheCompression);
         logger.debug("Record Cache Initialized");
 
         // init RCDatabase (creates tables if needed)
@@ -350,7 +500,7 @@ public class RecordCache extends Thread {
         }
 
         // initialize the validator if needed
-        Validator validator = null;
+        RecordValidator validator = null;
         if (validateUpdates) {
 
             // make sure schemaDir exists
@@ -362,30 +512,39 @@ public class RecordCache extends Thread {
                 }
             }
 
-            Map<ValidatorOption, String> opts = new HashMap<>();
-            opts.put(ValidatorOption.CACHE_PARSED_GRAMMARS, "true");
             try {
-                validator = ValidatorFactory.getValidator(SchemaLanguage.XSD,
-                        createLocator(schemaDir),
-                        opts);
+                validator = new RecordValidator(createLocator(schemaDir));
             } catch (Exception e) {
                 throw new ServerException("Unable to initialize schema "
                         + "validator", e);
             }
         }
 
-        // finally, start the Updater thread
+        // finally, create the Updater thread
         m_updater = new Updater(driver,
                 m_rcdb,
                 m_rcDisk,
                 pollSeconds,
+                changeNotificationPollSeconds,
+                maxConcurrentFormatPolls,
+                streamPolledRecords,
+                bootstrap,
+                rebuildSecondsPerCycle,
+                scanCacheOnStartup,
                 maxWorkers,
+                maxInFlightFetches,
+                minFetchConcurrency,
+                targetFetchMillis,
                 maxWorkBatchSize,
                 maxFailedRetries,
+                failedRetryBaseSeconds,
+                failedRetryMaxSeconds,
                 maxCommitQueueSize,
                 maxRecordsPerTransaction,
-                validator);
-        m_updater.start();
+                validator,
+                validationSampleRates);
+
+        MetricsRegistry.getInstance().registerMBean();
     }
 
     private SchemaLocator createLocator(File schemaDir) throws Exception {
@@ -404,6 +563,23 @@ public class RecordCache extends Thread {
 
     //////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Check the disk cache against the database, logging orphaned and
+     * missing files.  This is safe to call while updates are in progress.
+     *
+     * @param reclaim whether to delete orphaned files.
+     */
+    public void scanCache(boolean reclaim) throws ServerException {
+        scanCache(reclaim, System.currentTimeMillis() - CacheScanner.ONLINE_GRACE_MILLIS);
+    }
+
+    void scanCache(boolean reclaim, long cutoffTime) throws ServerException {
+        new CacheScanner(m_rcdb, m_rcDisk, CacheScanner.defaultParallelism())
+                .scan(reclaim, cutoffTime);
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+
     public File getFile(String cachePath) {
         return m_rcDisk.getFile(cachePath);
     }
@@ -600,6 +776,7 @@ public class RecordCache extends Thread {
         if (s_pool != null) {  // if it's not already closed
 
             m_updater.shutdown(true);
+            MetricsRegistry.getInstance().unregisterMBean();
 
             // shut down db pool, etc.
             try {
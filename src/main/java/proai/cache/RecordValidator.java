@@ -0,0 +1,325 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.cache;
+
+import net.sf.bvalid.locator.SchemaLocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.SAXException;
+import proai.error.ServerException;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Validates cached records against the OAI-PMH schema and the schemas of
+ * the metadata they contain.
+ * <p/>
+ * <p>Record files are streamed through the validator inside a minimal
+ * OAI-PMH envelope, without being copied into memory.  The schemas are
+ * compiled once for each combination of namespaces that records declare
+ * with <code>xsi:schemaLocation</code>, which in practice means once per
+ * metadata format, and are then shared by all threads.  Schema documents
+ * are retrieved through a <code>SchemaLocator</code>, so they are cached
+ * on disk as before.
+ * <p/>
+ * <p>This class is thread-safe.
+ */
+class RecordValidator {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecordValidator.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] ENVELOPE_START = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\">\n"
+            + "<responseDate>2002-02-08T08:55:46Z</responseDate>\n"
+            + "<request verb=\"GetRecord\" identifier=\"oai:arXiv.org:cs/0112017\" "
+            + "metadataPrefix=\"oai_dc\">http://arXiv.org/oai2</request>\n"
+            + "<GetRecord>\n").getBytes(UTF8);
+
+    private static final byte[] ENVELOPE_END = ("</GetRecord>\n"
+            + "</OAI-PMH>").getBytes(UTF8);
+
+    private final SchemaLocator _locator;
+    private final XMLInputFactory _inputFactory;
+    private final Map<String, Schema> _schemas = new ConcurrentHashMap<>();
+
+    RecordValidator(SchemaLocator locator) {
+        _locator = locator;
+        _inputFactory = XMLInputFactory.newInstance();
+        _inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        _inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    /**
+     * Validate the given record file.
+     *
+     * @throws ServerException if the record is not valid, or could not
+     *                         be validated.
+     */
+    void validate(File recordFile) throws ServerException {
+        Schema schema = getSchema(getSchemaLocations(recordFile));
+        try (InputStream in = new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                new ByteArrayInputStream(ENVELOPE_START),
+                RCDisk.newInputStream(recordFile),
+                new ByteArrayInputStream(ENVELOPE_END))))) {
+            schema.newValidator().validate(new StreamSource(in));
+        } catch (SAXException e) {
+            // line numbers are off by the lines of the envelope start
+            throw new ServerException("Record is not valid: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new ServerException("Error reading record for validation", e);
+        }
+    }
+
+    /**
+     * Get the schema locations declared in the given record, by namespace.
+     */
+    private Map<String, String> getSchemaLocations(File recordFile) throws ServerException {
+        Map<String, String> locations = new TreeMap<>();
+        try (InputStream in = RCDisk.newInputStream(recordFile)) {
+            XMLStreamReader reader = _inputFactory.createXMLStreamReader(in, "UTF-8");
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        String hints = reader.getAttributeValue(
+                                XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "schemaLocation");
+                        if (hints != null) {
+                            String[] parts = hints.trim().split("\\s+");
+                            for (int i = 0; i + 1 < parts.length; i += 2) {
+                                locations.put(parts[i], parts[i + 1]);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new ServerException("Record is not well-formed: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new ServerException("Error reading record for validation", e);
+        }
+        return locations;
+    }
+
+    /**
+     * Get the schema for the OAI-PMH namespace and the given namespaces,
+     * compiling it if this is the first time the combination is seen.
+     */
+    private Schema getSchema(Map<String, String> locations) throws ServerException {
+        String key = locations.toString();
+        Schema schema = _schemas.get(key);
+        if (schema == null) {
+            synchronized (this) {
+                schema = _schemas.get(key);
+                if (schema == null) {
+                    schema = compileSchema(locations);
+                    _schemas.put(key, schema);
+                }
+            }
+        }
+        return schema;
+    }
+
+    private Schema compileSchema(Map<String, String> locations) throws ServerException {
+        logger.info("Compiling schema for namespaces " + locations.keySet());
+        Set<String> urls = new LinkedHashSet<>();
+        List<InputStream> streams = new ArrayList<>();
+        try {
+            List<Source> sources = new ArrayList<>();
+            sources.add(getSource(RecordCache.OAI_SCHEMA_URL, urls, streams));
+            for (Map.Entry<String, String> entry : locations.entrySet()) {
+                if (!entry.getKey().equals(RecordCache.OAI_SCHEMA_URL)) {
+                    sources.add(getSource(entry.getValue(), urls, streams));
+                }
+            }
+            SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+            factory.setResourceResolver(new LocatorResourceResolver(urls, streams));
+            Schema schema = factory.newSchema(sources.toArray(new Source[sources.size()]));
+            for (String url : urls) {
+                _locator.successfullyUsed(url);
+            }
+            return schema;
+        } catch (ServerException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ServerException("Unable to compile schema for namespaces "
+                    + locations.keySet(), e);
+        } finally {
+            for (InputStream in : streams) {
+                try {
+                    in.close();
+                } catch (Exception ignored) {
+                }
+            }
+        }
+    }
+
+    private InputStream getSchemaStream(String url,
+                                        Set<String> urls,
+                                        List<InputStream> streams) throws Exception {
+        InputStream in = _locator.get(url, true);
+        urls.add(url);
+        streams.add(in);
+        return in;
+    }
+
+    private Source getSource(String url,
+                             Set<String> urls,
+                             List<InputStream> streams) throws Exception {
+        return new StreamSource(getSchemaStream(url, urls, streams), url);
+    }
+
+    /**
+     * Resolves schema documents imported or included by other schema
+     * documents through the <code>SchemaLocator</code>.
+     */
+    private class LocatorResourceResolver implements LSResourceResolver {
+
+        private final Set<String> _urls;
+        private final List<InputStream> _streams;
+
+        private LocatorResourceResolver(Set<String> urls, List<InputStream> streams) {
+            _urls = urls;
+            _streams = streams;
+        }
+
+        public LSInput resolveResource(String type,
+                                       String namespaceURI,
+                                       String publicId,
+                                       String systemId,
+                                       String baseURI) {
+            if (systemId == null) return null;
+            String url = systemId;
+            try {
+                if (baseURI != null) {
+                    url = new URI(baseURI).resolve(systemId).toString();
+                }
+                return new SchemaInput(publicId, url, baseURI, getSchemaStream(url, _urls, _streams));
+            } catch (Exception e) {
+                logger.warn("Unable to resolve schema " + url + ": " + e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A schema document given to the <code>SchemaFactory</code>.
+     */
+    private static class SchemaInput implements LSInput {
+
+        private String _publicId;
+        private String _systemId;
+        private String _baseURI;
+        private InputStream _byteStream;
+
+        private SchemaInput(String publicId, String systemId, String baseURI, InputStream byteStream) {
+            _publicId = publicId;
+            _systemId = systemId;
+            _baseURI = baseURI;
+            _byteStream = byteStream;
+        }
+
+        public Reader getCharacterStream() {
+            return null;
+        }
+
+        public void setCharacterStream(Reader characterStream) {
+        }
+
+        public InputStream getByteStream() {
+            return _byteStream;
+        }
+
+        public void setByteStream(InputStream byteStream) {
+            _byteStream = byteStream;
+        }
+
+        public String getStringData() {
+            return null;
+        }
+
+        public void setStringData(String stringData) {
+        }
+
+        public String getSystemId() {
+            return _systemId;
+        }
+
+        public void setSystemId(String systemId) {
+            _systemId = systemId;
+        }
+
+        public String getPublicId() {
+            return _publicId;
+        }
+
+        public void setPublicId(String publicId) {
+            _publicId = publicId;
+        }
+
+        public String getBaseURI() {
+            return _baseURI;
+        }
+
+        public void setBaseURI(String baseURI) {
+            _baseURI = baseURI;
+        }
+
+        public String getEncoding() {
+            return null;
+        }
+
+        public void setEncoding(String encoding) {
+        }
+
+        public boolean getCertifiedText() {
+            return false;
+        }
+
+        public void setCertifiedText(boolean certifiedText) {
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.cache;
+
+import java.util.Random;
+
+/**
+ * Decides when a record that failed to be cached should be retried.
+ * <p/>
+ * <p>The delay before a retry doubles with every failure, starting at the
+ * base delay, until the given number of retries with backoff is used up or
+ * the maximum delay is reached.  From then on, the record is retried at the
+ * maximum delay, indefinitely, until it succeeds.  Each delay is randomly
+ * shortened by up to half, so records that failed together, for example
+ * during a repository outage, are not all retried at the same moment.
+ * <p/>
+ * <p>If the number of retries with backoff is zero, failed records are not
+ * retried at all.
+ */
+class RetryPolicy {
+
+    private final int _backoffRetries;
+    private final long _baseDelay;
+    private final long _maxDelay;
+    private final Random _random = new Random();
+
+    /**
+     * @param backoffRetries how many times to retry with increasing delays.
+     * @param baseDelay      the delay in ms before the first retry.
+     * @param maxDelay       the largest delay in ms between retries.
+     */
+    RetryPolicy(int backoffRetries, long baseDelay, long maxDelay) {
+        _backoffRetries = backoffRetries;
+        _baseDelay = baseDelay;
+        _maxDelay = Math.max(baseDelay, maxDelay);
+    }
+
+    /**
+     * Whether failed records are retried at all.
+     */
+    boolean isEnabled() {
+        return _backoffRetries > 0;
+    }
+
+    /**
+     * Get the date, in epoch-ms, at which a record that has just failed
+     * should be retried.
+     *
+     * @param failCount how many retries of the record have failed before,
+     *                  0 if this was the first attempt.
+     * @param now       the current date, in epoch-ms.
+     */
+    long getNextAttemptDate(int failCount, long now) {
+        long delay = _maxDelay;
+        if (failCount < _backoffRetries) {
+            delay = _baseDelay;
+            for (int i = 0; i < failCount && delay < _maxDelay; i++) {
+                delay *= 2;
+            }
+            delay = Math.min(delay, _maxDelay);
+        }
+        long jitter;
+        synchronized (_random) {
+            jitter = (long) (_random.nextDouble() * (delay / 2));
+        }
+        return now + delay - jitter;
+    }
+}
@@ -30,70 +30,188 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.httpclient.util.DateUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import net.sf.bvalid.Validator;
 import oaiprovider.FedoraSetInfo;
 import oaiprovider.mappings.ListSetConfJson;
 import proai.MetadataFormat;
 import proai.Record;
 import proai.SetInfo;
+import proai.driver.ChangeListener;
+import proai.driver.ChangeNotifyingOAIDriver;
+import proai.driver.CountingOAIDriver;
+import proai.driver.FetchingOAIDriver;
 import proai.driver.OAIDriver;
 import proai.driver.RemoteIterator;
+import proai.driver.WindowedRemoteIterator;
 import proai.driver.daos.json.SetSpecDaoJson;
 import proai.error.ImmediateShutdownException;
 import proai.error.RepositoryException;
 import proai.error.ServerException;
+import proai.util.MetricsRegistry;
 import proai.util.SetSpec;
 
-class Updater extends Thread {
+class Updater extends Thread implements ChangeListener {
 
     private static final Logger logger = LoggerFactory.getLogger(Updater.class);
 
+    /**
+     * How many polled records to queue at once.
+     */
+    private static final int QUEUE_BATCH_SIZE = 1000;
+
+    /**
+     * How many times to try queueing a batch of changed records.
+     */
+    private static final int CHANGE_QUEUE_ATTEMPTS = 3;
+
+    /**
+     * How long to wait before the first retry of queueing a batch of changed
+     * records, in ms.  Each further retry waits this much longer.
+     */
+    private static final long CHANGE_QUEUE_RETRY_DELAY = 1000;
+
+    /**
+     * How many queued records to read at once for processing.
+     */
+    private static final int QUEUE_PAGE_SIZE = 500;
+
+    /**
+     * The indexes that are not needed while loading records in bulk, each
+     * given as <code>table.column</code>.
+     */
+    private static final String[] DEFERRED_INDEXES = {
+            "rcRecord.formatKey",
+            "rcRecord.modDate",
+            "rcRecord.xmlPath",
+            "rcMembership.setKey",
+            "rcMembership.recordKey"};
+
     private final RCDatabase _db;
     private final RCDisk _disk;
     private final OAIDriver _driver;
     private final int _maxCommitQueueSize;
-    private final int _maxFailedRetries;
+    private final RetryPolicy _retryPolicy;
+    private final int _maxInFlightFetches;
+    private final int _minFetchConcurrency;
+    private final int _targetFetchMillis;
+    private volatile ConcurrencyLimiter _fetchLimiter;
     private final int _maxRecordsPerTransaction;
     private final int _maxWorkBatchSize;
     private final int _maxWorkers;
     private final int _pollSeconds;
-    private final Validator _validator;
-    private Committer _committer;
+    private final int _changeNotificationPollSeconds;
+    private final int _maxConcurrentFormatPolls;
+    private final boolean _streamPolledRecords;
+    private final boolean _bootstrap;
+    private final int _rebuildSecondsPerCycle;
+    private volatile boolean _polling;
+    private final Object _changeLock = new Object();
+    private boolean _changesQueued;
+    private volatile boolean _changeNotificationStarted;
+    private final boolean _scanCacheOnStartup;
+    private final RecordValidator _validator;
+    private final Map<String, Integer> _validationSampleRates;
     private boolean _immediateShutdownRequested;
     private boolean _processingAborted;
-    private QueueIterator _queueIterator;
-    private boolean _shutdownRequested;
-    private String _status;
-    private Worker[] _workers;
+    private volatile boolean _shutdownRequested;
+    private volatile List<PipelineStage> _stages;
+    private volatile String _status;
+    private volatile int _queueSize;
+    private volatile double _processingRate;
+    private final MetricsRegistry.Histogram _pollMetric;
 
     public Updater(OAIDriver driver,
                    RCDatabase db,
                    RCDisk disk,
                    int pollSeconds,
+                   int changeNotificationPollSeconds,
+                   int maxConcurrentFormatPolls,
+                   boolean streamPolledRecords,
+                   boolean bootstrap,
+                   int rebuildSecondsPerCycle,
+                   boolean scanCacheOnStartup,
                    int maxWorkers,
+                   int maxInFlightFetches,
+                   int minFetchConcurrency,
+                   int targetFetchMillis,
                    int maxWorkBatchSize,
                    int maxFailedRetries,
+                   int failedRetryBaseSeconds,
+                   int failedRetryMaxSeconds,
                    int maxCommitQueueSize,
                    int maxRecordsPerTransaction,
-                   Validator validator) {
+                   RecordValidator validator,
+                   Map<String, Integer> validationSampleRates) {
         _driver = driver;
         _db = db;
         _disk = disk;
 
         _pollSeconds = pollSeconds;
+        _changeNotificationPollSeconds = changeNotificationPollSeconds;
+        _maxConcurrentFormatPolls = maxConcurrentFormatPolls;
+        _streamPolledRecords = streamPolledRecords;
+        _bootstrap = bootstrap;
+        _rebuildSecondsPerCycle = rebuildSecondsPerCycle;
+        _scanCacheOnStartup = scanCacheOnStartup;
         _maxWorkers = maxWorkers;
+        _maxInFlightFetches = maxInFlightFetches;
+        _minFetchConcurrency = minFetchConcurrency;
+        _targetFetchMillis = targetFetchMillis;
         _maxWorkBatchSize = maxWorkBatchSize;
-        _maxFailedRetries = maxFailedRetries;
+        _retryPolicy = new RetryPolicy(maxFailedRetries,
+                failedRetryBaseSeconds * 1000L,
+                failedRetryMaxSeconds * 1000L);
         _maxCommitQueueSize = maxCommitQueueSize;
         _maxRecordsPerTransaction = maxRecordsPerTransaction;
         _validator = validator;
+        _validationSampleRates = validationSampleRates;
+
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.gauge("proai_updater_phase", "What the updater is currently doing.",
+                new MetricsRegistry.Gauge() {
+                    public Object getValue() {
+                        return _status;
+                    }
+                });
+        metrics.gauge("proai_queue_size", "Records on the queue when it was last counted.",
+                new MetricsRegistry.Gauge() {
+                    public Object getValue() {
+                        return _queueSize;
+                    }
+                });
+        metrics.gauge("proai_processing_rate", "Records per second committed by the last round of processing.",
+                new MetricsRegistry.Gauge() {
+                    public Object getValue() {
+                        return _processingRate;
+                    }
+                });
+        metrics.gauge("proai_fetch_concurrency_limit", "Fetches currently allowed in flight at once.",
+                new MetricsRegistry.Gauge() {
+                    public Object getValue() {
+                        ConcurrencyLimiter limiter = _fetchLimiter;
+                        return limiter == null ? null : limiter.getLimit();
+                    }
+                });
+        _pollMetric = metrics.histogram("proai_poll_seconds",
+                "Time taken to poll the driver for changes and queue them.");
     }
 
     /**
@@ -101,7 +219,7 @@ class Updater extends Thread {
      * <p/>
      * <p><pre>[h hours, ][m minutes, ]sec.ms seconds</pre>
      */
-    private static String getHMSString(long ms) {
+    static String getHMSString(long ms) {
 
         StringBuilder out = new StringBuilder();
 
@@ -146,6 +264,29 @@ class Updater extends Thread {
 
         logger.info("Updater started");
 
+        if (_scanCacheOnStartup) {
+            // nothing has been written by this process yet, so any
+            // unreferenced file is left over from an earlier run
+            _status = "Scanning cache for orphaned files";
+            try {
+                new CacheScanner(_db, _disk, CacheScanner.defaultParallelism())
+                        .scan(true, System.currentTimeMillis());
+            } catch (Throwable th) {
+                logger.error("Cache scan failed", th);
+            }
+        }
+
+        if (_bootstrap) {
+            _status = "Bootstrapping cache";
+            try {
+                bootstrap();
+            } catch (ImmediateShutdownException e) {
+                logger.info("Bootstrap aborted due to immediate shutdown request");
+            } catch (Throwable th) {
+                logger.error("Bootstrap failed", th);
+            }
+        }
+
         while (!_shutdownRequested) {
 
             long cycleStartTime = System.currentTimeMillis();
@@ -155,29 +296,45 @@ class Updater extends Thread {
             try {
                 // It's important to do this first because old items may have
                 // been left in the queue due to an immediate or improper
-                // shutdown.  This ensures that unintentional duplicates
-                // (especially old failures) aren't entered into the queue
-                // during the polling+updating phase.
+                // shutdown.  Records queued again during the polling+updating
+                // phase are coalesced with them, but processing them first
+                // keeps old failures from being retried sooner than due.
                 _status = "Processing any old items in queue";
                 checkImmediateShutdown();
                 logger.debug("Processing old records in queue...");
                 processQueue();
 
                 checkImmediateShutdown();
-                _status = "Polling and updating queue and database";
-                pollAndUpdate();
+                if (_streamPolledRecords) {
+                    _status = "Polling and processing new items in queue";
+                    pollAndProcessQueue();
+                } else {
+                    _status = "Polling and updating queue and database";
+                    pollAndUpdate();
+                }
+
+                // only now are the formats of changed records known
+                startChangeNotificationIfNeeded();
 
                 _status = "Processing any new items in queue";
                 checkImmediateShutdown();
                 logger.debug("Processing new records in queue...");
                 processQueue();
 
+                checkImmediateShutdown();
+                _status = "Reclaiming old generation of cache if needed";
+                reclaimOldGenerationIfNeeded();
+
                 checkImmediateShutdown();
                 _status = "Pruning old files from cache if needed";
                 pruneIfNeeded();
 
+                checkImmediateShutdown();
+                _status = "Rebuilding cache if requested";
+                rebuildIfRequested();
+
                 long sec = (System.currentTimeMillis() - cycleStartTime) / 1000;
-                logger.debug(format("Update cycle finished in %dsec.Next cycle scheduled in %dsec.", sec, _pollSeconds));
+                logger.debug(format("Update cycle finished in %dsec.Next cycle scheduled in %dsec.", sec, getPollSeconds()));
 
             } catch (ImmediateShutdownException e) {
                 logger.info("Update cycle aborted due to immediate shutdown request");
@@ -185,21 +342,184 @@ class Updater extends Thread {
                 logger.error("Update cycle failed", th);
             }
 
+            // until the next cycle, process records as soon as change
+            // notifications put them on the queue
             _status = "Sleeping";
-            int waitedSeconds = 0;
-            while (!_shutdownRequested && waitedSeconds < _pollSeconds) {
-                try {
-                    Thread.sleep(1000);
-                } catch (Exception ignored) {
+            long nextCycleTime = System.currentTimeMillis() + getPollSeconds() * 1000L;
+            while (!_shutdownRequested && System.currentTimeMillis() < nextCycleTime) {
+                if (waitForChanges(nextCycleTime)) {
+                    processChangedRecords();
+                    _status = "Sleeping";
                 }
-                waitedSeconds++;
             }
 
         }
+
+        if (_changeNotificationStarted) {
+            _status = "Stopping change notification";
+            ((ChangeNotifyingOAIDriver) _driver).stopChangeNotification();
+        }
+        if (_driver instanceof FetchingOAIDriver) {
+            _status = "Stopping fetching";
+            ((FetchingOAIDriver) _driver).stopFetching();
+        }
         _status = "Finished";
 
     }
 
+    /**
+     * Get the number of seconds between update cycles.  If the driver
+     * notifies of changes, polling only serves as a safety net and is done
+     * less often.
+     */
+    private int getPollSeconds() {
+        return _changeNotificationStarted ? _changeNotificationPollSeconds : _pollSeconds;
+    }
+
+    private void startChangeNotificationIfNeeded() {
+        if (!_changeNotificationStarted && _driver instanceof ChangeNotifyingOAIDriver) {
+            try {
+                _changeNotificationStarted =
+                        ((ChangeNotifyingOAIDriver) _driver).startChangeNotification(this);
+                if (_changeNotificationStarted) {
+                    logger.info(format("Change notification started, polling every %dsec.",
+                            _changeNotificationPollSeconds));
+                }
+            } catch (Throwable th) {
+                logger.error("Unable to start change notification, polling every "
+                        + _pollSeconds + "sec.", th);
+            }
+        }
+    }
+
+    /**
+     * Wait up to a second, but not beyond the given time, for change
+     * notifications to put records on the queue.
+     *
+     * @return whether any records were put on the queue since the last call.
+     */
+    private boolean waitForChanges(long untilTime) {
+        synchronized (_changeLock) {
+            long waitTime = Math.min(1000, untilTime - System.currentTimeMillis());
+            if (!_changesQueued && waitTime > 0) {
+                try {
+                    _changeLock.wait(waitTime);
+                } catch (InterruptedException ignored) {
+                }
+            }
+            boolean changesQueued = _changesQueued;
+            _changesQueued = false;
+            return changesQueued;
+        }
+    }
+
+    private void processChangedRecords() {
+        _status = "Processing changed records in queue";
+        try {
+            checkImmediateShutdown();
+            logger.debug("Processing changed records in queue...");
+            processQueue();
+        } catch (ImmediateShutdownException e) {
+            logger.info("Processing of changed records aborted due to immediate shutdown request");
+        } catch (Throwable th) {
+            logger.error("Processing of changed records failed", th);
+        }
+    }
+
+    /**
+     * Put records the driver was notified of as changed on the queue, and
+     * have them processed without waiting for the next update cycle.
+     * <p/>
+     * This is called from a thread of the driver.  Nothing is queued while
+     * polling is disabled.  Since the notification won't come again, a
+     * batch that fails to be queued, for instance because it conflicts
+     * with a poll queueing the same records, is tried again a few times,
+     * waiting a little longer before each attempt so the conflicting
+     * transaction has a chance to finish.
+     */
+    @Override
+    public void recordsChanged(RemoteIterator<? extends Record> records) {
+
+        List<Record> changed = new ArrayList<>();
+        try {
+            while (records.hasNext()) {
+                changed.add(records.next());
+            }
+        } finally {
+            try {
+                records.close();
+            } catch (Exception e) {
+                logger.debug("Unable to close remote record iterator", e);
+            }
+        }
+        if (changed.isEmpty()) return;
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                queueChangedRecords(changed);
+                return;
+            } catch (ServerException e) {
+                if (attempt == CHANGE_QUEUE_ATTEMPTS) throw e;
+                logger.warn(format("Failed to queue %d changed records, trying again: %s",
+                        changed.size(), e.getMessage()));
+                try {
+                    Thread.sleep(attempt * CHANGE_QUEUE_RETRY_DELAY);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void queueChangedRecords(List<Record> records) throws ServerException {
+
+        Connection conn = null;
+        boolean startedTransaction = false;
+        try {
+            conn = RecordCache.getConnection();
+            if (!_db.isPollingEnabled(conn)) {
+                logger.debug("Ignoring changed records -- polling is disabled");
+                return;
+            }
+            conn.setAutoCommit(false);
+            startedTransaction = true;
+
+            for (Record record : records) {
+                _db.queueChangedRecord(conn,
+                        record.getItemID(),
+                        record.getPrefix(),
+                        record.getSourceInfo());
+            }
+            conn.commit();
+
+            logger.debug(format("Queued %d changed records.", records.size()));
+            synchronized (_changeLock) {
+                _changesQueued = true;
+                _changeLock.notifyAll();
+            }
+        } catch (Throwable th) {
+            if (startedTransaction) {
+                try {
+                    conn.rollback();
+                } catch (SQLException e) {
+                    logger.error("Failed to roll back failed transaction", e);
+                }
+            }
+            throw new ServerException("Failed to queue changed records", th);
+        } finally {
+            if (conn != null) {
+                try {
+                    if (startedTransaction) conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    logger.error("Failed to set autoCommit to true", e);
+                } finally {
+                    RecordCache.releaseConnection(conn);
+                }
+            }
+        }
+    }
+
     private void checkImmediateShutdown() throws ImmediateShutdownException {
         if (_immediateShutdownRequested) {
             throw new ImmediateShutdownException();
@@ -217,6 +537,9 @@ class Updater extends Thread {
 
             _shutdownRequested = true;
             _immediateShutdownRequested = immediate;
+            if (immediate) {
+                interruptStages();
+            }
 
             logger.info(format("Waiting for updater to finish.  Current status: %s", _status));
             while (this.isAlive()) {
@@ -235,143 +558,590 @@ class Updater extends Thread {
      */
     void handleCommitException(Throwable th) {
         logger.warn("Processing aborted due to commit failure", th);
-        _processingAborted = true;
+        abortProcessing();
+    }
+
+    /**
+     * Handle an unexpected exception that ended a thread of a pipeline stage.
+     */
+    void handleStageException(PipelineStage stage, Throwable th) {
+        logger.warn("Processing aborted due to unexpected error in " + stage.getName(), th);
+        abortProcessing();
+    }
+
+    private void abortProcessing() {
+        synchronized (this) {
+            _processingAborted = true;
+        }
+        interruptStages();
+    }
+
+    /**
+     * Make all threads of the currently running pipeline, if any, stop
+     * waiting on their queues.
+     */
+    private void interruptStages() {
+        List<PipelineStage> stages = _stages;
+        if (stages != null) {
+            for (PipelineStage stage : stages) {
+                stage.interrupt();
+            }
+        }
+    }
+
+    private int countItemsInQueue() throws Exception {
+        Connection conn = RecordCache.getConnection();
+        try {
+            _queueSize = _db.getQueueSize(conn);
+            return _queueSize;
+        } finally {
+            RecordCache.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Get a new <code>QueueIterator</code> over the items of the given
+     * priority that are queued after the item with the given key.
+     */
+    QueueIterator newQueueIterator(int priority, int afterQueueKey) {
+        return new QueueIterator(_db, priority, afterQueueKey, QUEUE_PAGE_SIZE);
     }
 
-    // return null if no more batches or processing should stop
-    List<QueueItem> getNextBatch(List<QueueItem> finishedItems) {
+    /**
+     * Get the maximum number of fetching threads.
+     * <p/>
+     * If the driver can fetch records apart from writing them, fetching gets
+     * its own threads, up to the maximum number of fetches in flight, and
+     * workers only write.  How many of them fetch at once adapts to how the
+     * repository copes, carrying over between rounds.
+     */
+    private int getMaxFetchers() {
+        int maxFetchers = _driver instanceof FetchingOAIDriver ? _maxInFlightFetches : _maxWorkers;
+        if (_fetchLimiter == null) {
+            _fetchLimiter = new ConcurrencyLimiter(
+                    Math.min(_minFetchConcurrency, maxFetchers),
+                    maxFetchers,
+                    _targetFetchMillis);
+        }
+        return maxFetchers;
+    }
 
-        List<QueueItem> nextBatch = null;
+    /**
+     * Add the stages that take items from the fetch queue, fetch, write,
+     * validate and parse them, and put them on the given output queue.
+     *
+     * @return the fetching stage and the writing stage, which are the same
+     * if the driver can't fetch records apart from writing them.
+     */
+    private Worker[] addProcessingStages(List<PipelineStage> stages,
+                                         BlockingQueue<QueueItem> fetchQueue,
+                                         BlockingQueue<QueueItem> output,
+                                         int numFetchers) {
+
+        // the CPU-bound stages need no more threads than there
+        // are processors, or fetchers to keep them busy
+        int numProcessors = Math.min(Math.min(numFetchers, _maxWorkers),
+                Runtime.getRuntime().availableProcessors());
+
+        BlockingQueue<QueueItem> parseQueue =
+                new ArrayBlockingQueue<>(_maxCommitQueueSize);
+        BlockingQueue<QueueItem> writtenQueue = parseQueue;
+        BlockingQueue<QueueItem> validationQueue = null;
+        if (_validator != null) {
+            validationQueue = new ArrayBlockingQueue<>(_maxCommitQueueSize);
+            writtenQueue = validationQueue;
+        }
 
-        if (processingShouldContinue()) {
+        Worker fetcher;
+        Worker worker;
+        if (_driver instanceof FetchingOAIDriver) {
+            BlockingQueue<QueueItem> writeQueue =
+                    new ArrayBlockingQueue<>(_maxCommitQueueSize);
+            fetcher = new Worker(numFetchers, this, fetchQueue, writeQueue,
+                    (FetchingOAIDriver) _driver, _fetchLimiter);
+            worker = new Worker(numProcessors, this, writeQueue, writtenQueue, _driver, _disk, null);
+            stages.add(fetcher);
+            stages.add(worker);
+        } else {
+            worker = new Worker(numFetchers, this, fetchQueue, writtenQueue, _driver, _disk, _fetchLimiter);
+            fetcher = worker;
+            stages.add(worker);
+        }
+        if (_validator != null) {
+            stages.add(new ValidationStage(numProcessors, this, validationQueue, parseQueue,
+                    _validator, _validationSampleRates));
+        }
+        stages.add(new ParseStage(numProcessors, this, parseQueue, output));
+        return new Worker[]{fetcher, worker};
+    }
 
-            if (finishedItems != null) {
-                _committer.handoff(finishedItems);
+    /**
+     * Load the records of all formats that have never been polled straight
+     * into the cache, bypassing the queue.
+     * <p/>
+     * Records are fetched by as many threads as allowed and loaded in bulk.
+     * If the cache has no records yet, the indexes listed in
+     * <code>DEFERRED_INDEXES</code> are dropped beforehand and
+     * built once loading has finished.  A checkpoint per format is committed
+     * with each load, so an interrupted bootstrap resumes where it left off.
+     * Formats whose records have all been loaded are marked as polled up to
+     * the date the bootstrap started with, and from then on are kept up to
+     * date by the regular update cycles.
+     */
+    private void bootstrap() throws Exception {
+
+        BootstrapProgress progress = new BootstrapProgress();
+        boolean deferIndexes;
+
+        Connection conn = null;
+        boolean startedTransaction = false;
+        try {
+            conn = RecordCache.getConnection();
+            conn.setAutoCommit(false);
+            startedTransaction = true;
+
+            if (!_db.isPollingEnabled(conn)) {
+                logger.info("Bootstrap skipped -- polling is disabled");
+                return;
             }
 
-            try {
-                synchronized (_queueIterator) {
-                    if (_queueIterator.hasNext()) {
-                        nextBatch = new ArrayList<>();
-                        while (_queueIterator.hasNext() &&
-                                nextBatch.size() < _maxWorkBatchSize) {
-                            nextBatch.add(_queueIterator.next());
-                        }
-                    }
+            Date latestRemoteDate = _driver.getLatestDate();
+            updateIdentify(conn);
+            List<String> allPrefixes = updateFormats(conn);
+            updateSets(conn);
+
+            for (String mdPrefix : allPrefixes) {
+                if (_db.getLastPollDate(conn, mdPrefix) != 0) continue;
+
+                // resume an interrupted bootstrap with its original until date
+                long pollUntilDate = _db.getPollUntilDate(conn, mdPrefix);
+                Date fromDate = new Date(0);
+                Date untilDate = latestRemoteDate;
+                String afterItemID = null;
+                if (pollUntilDate > 0) {
+                    fromDate = new Date(_db.getPollFromDate(conn, mdPrefix));
+                    untilDate = new Date(pollUntilDate);
+                    afterItemID = _db.getPollItemID(conn, mdPrefix);
                 }
-            } catch (Throwable th) {
-                logger.warn("Processing aborted due to commit failure", th);
-                synchronized (this) {
-                    _processingAborted = true;
+                _db.setPollCheckpoint(conn, mdPrefix, untilDate, fromDate, afterItemID);
+                progress.addFormat(mdPrefix, fromDate, untilDate, afterItemID);
+            }
+            deferIndexes = !_db.hasRecords(conn);
+
+            conn.commit();
+        } catch (Throwable th) {
+            if (startedTransaction) {
+                try {
+                    conn.rollback();
+                } catch (SQLException e) {
+                    logger.error("Failed to roll back failed transaction", e);
                 }
-                nextBatch = null;
             }
+            throw new ServerException("Preparing bootstrap failed", th);
+        } finally {
+            if (conn != null) {
+                try {
+                    if (startedTransaction) conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    logger.error("Failed to set autoCommit to true", e);
+                } finally {
+                    RecordCache.releaseConnection(conn);
+                }
+            }
+        }
 
+        List<String> prefixes = progress.getPrefixes();
+        if (prefixes.isEmpty()) {
+            logger.info("Bootstrap skipped -- all formats have been polled before");
+            return;
         }
+        logger.info("Bootstrapping " + prefixes + " records...");
 
-        return nextBatch;
-    }
+        if (deferIndexes) {
+            conn = RecordCache.getConnection();
+            try {
+                _db.dropIndexes(conn, DEFERRED_INDEXES);
+            } finally {
+                RecordCache.releaseConnection(conn);
+            }
+        }
+        try {
+            startCounting(progress);
+            loadBootstrapRecords(progress, false, Long.MAX_VALUE);
+        } finally {
+            if (deferIndexes) {
+                conn = RecordCache.getConnection();
+                try {
+                    _db.createMissingIndexes(conn, DEFERRED_INDEXES);
+                } finally {
+                    RecordCache.releaseConnection(conn);
+                }
+            }
+        }
 
-    private int countItemsInQueue() throws Exception {
-        Connection conn = RecordCache.getConnection();
+        conn = RecordCache.getConnection();
         try {
-            return _db.getQueueSize(conn);
+            for (String mdPrefix : prefixes) {
+                if (progress.isComplete(mdPrefix)) {
+                    _db.setLastPollDate(conn, mdPrefix, progress.getUntilDate(mdPrefix));
+                } else {
+                    logger.info("Bootstrap of " + mdPrefix + " records was interrupted; "
+                            + "it will be resumed on the next start");
+                }
+            }
         } finally {
             RecordCache.releaseConnection(conn);
         }
+        logger.info("Bootstrap finished: " + progress.getStatus());
+    }
+
+    /**
+     * Run the bootstrap pipeline till all records have been loaded, or the
+     * deadline has passed:
+     * feed -> fetch [-> write] [-> validate] -> parse -> load
+     *
+     * @param shadow whether to load records into the shadow generation.
+     */
+    private void loadBootstrapRecords(BootstrapProgress progress,
+                                      boolean shadow,
+                                      long deadline) throws Exception {
+        List<PipelineStage> stages = new ArrayList<>();
+        _processingAborted = false;
+        try {
+            int numFetchers = getMaxFetchers();
+            BlockingQueue<QueueItem> fetchQueue =
+                    new ArrayBlockingQueue<>(numFetchers * _maxWorkBatchSize);
+            BlockingQueue<QueueItem> loadQueue =
+                    new ArrayBlockingQueue<>(BulkLoader.LOAD_BATCH_SIZE);
+            BulkLoader loader = new BulkLoader(this, loadQueue, _db, _disk, _retryPolicy, progress, shadow);
+
+            stages.add(new BootstrapFeeder(this, fetchQueue, _driver, progress, deadline));
+            addProcessingStages(stages, fetchQueue, loadQueue, numFetchers);
+            stages.add(loader);
+
+            _stages = stages;
+            for (PipelineStage stage : stages) {
+                stage.start();
+            }
+            for (PipelineStage stage : stages) {
+                stage.join();
+            }
+
+            checkImmediateShutdown();
+        } finally {
+            _stages = null;
+            for (PipelineStage stage : stages) {
+                stage.discardInput();
+            }
+        }
+        if (_processingAborted) {
+            throw new ServerException("Bootstrap was aborted due to unexpected error");
+        }
     }
 
     /**
-     * Get a new <code>QueueIterator</code> over the current queue.
+     * If a rebuild of the cache was requested, fetch all records again into
+     * a shadow generation, and swap it in once complete.
+     * <p/>
+     * The current generation keeps being served, and updated by the update
+     * cycles, until the swap.  If <code>rebuildSecondsPerCycle</code> is
+     * set, no more records are fed after that time, and the rebuild resumes
+     * from the checkpoint of each format in the next cycle, as it does
+     * after a restart.
      */
-    private QueueIterator newQueueIterator() throws Exception {
+    private void rebuildIfRequested() throws Exception {
+
+        BootstrapProgress progress = new BootstrapProgress();
 
         Connection conn = null;
-        File queueFile = null;
-        PrintWriter queueWriter = null;
+        boolean startedTransaction = false;
         try {
-
             conn = RecordCache.getConnection();
+            if (!_db.isRebuildRequested(conn)) return;
+            if (!_db.canSwapGenerations()) {
+                logger.warn("Rebuild of cache requested, but not supported by this database");
+                return;
+            }
+            if (!_db.hasGeneration(conn, RCDatabase.SHADOW_SUFFIX)) {
+                logger.info("Starting rebuild of cache into shadow generation");
+                _db.createShadowGeneration(conn, DEFERRED_INDEXES);
+            }
 
-            queueFile = File.createTempFile("proai-queue", ".txt");
-            queueWriter = new PrintWriter(
-                    new OutputStreamWriter(
-                            new FileOutputStream(queueFile), "UTF-8"));
-            _db.dumpQueue(conn, queueWriter);
-            queueWriter.close();
+            conn.setAutoCommit(false);
+            startedTransaction = true;
 
-            return new QueueIterator(queueFile);
+            Date latestRemoteDate = _driver.getLatestDate();
+            for (CachedMetadataFormat format : _db.getFormats(conn)) {
+                String mdPrefix = format.getPrefix();
+                long rebuildUntilDate = _db.getRebuildUntilDate(conn, mdPrefix);
+                Date fromDate = new Date(0);
+                Date untilDate = latestRemoteDate;
+                String afterItemID = null;
+                if (rebuildUntilDate > 0) {
+                    fromDate = new Date(_db.getRebuildFromDate(conn, mdPrefix));
+                    untilDate = new Date(rebuildUntilDate);
+                    afterItemID = _db.getRebuildItemID(conn, mdPrefix);
+                } else {
+                    _db.setRebuildCheckpoint(conn, mdPrefix, untilDate, fromDate, null);
+                }
+                progress.addFormat(mdPrefix, fromDate, untilDate, afterItemID);
+            }
 
+            conn.commit();
+        } catch (Throwable th) {
+            if (startedTransaction) {
+                try {
+                    conn.rollback();
+                } catch (SQLException e) {
+                    logger.error("Failed to roll back failed transaction", e);
+                }
+            }
+            throw new ServerException("Preparing rebuild failed", th);
         } finally {
-            if (queueWriter != null) {
+            if (conn != null) {
                 try {
-                    queueWriter.close();
-                } catch (Exception ignored) {
+                    if (startedTransaction) conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    logger.error("Failed to set autoCommit to true", e);
+                } finally {
+                    RecordCache.releaseConnection(conn);
                 }
             }
-            if (queueFile != null) {
-                queueFile.delete();
+        }
+
+        logger.info("Rebuilding " + progress.getPrefixes() + " records into shadow generation...");
+        long deadline = Long.MAX_VALUE;
+        if (_rebuildSecondsPerCycle > 0) {
+            deadline = System.currentTimeMillis() + _rebuildSecondsPerCycle * 1000L;
+        }
+        startCounting(progress);
+        loadBootstrapRecords(progress, true, deadline);
+
+        for (String mdPrefix : progress.getPrefixes()) {
+            if (!progress.isComplete(mdPrefix)) {
+                logger.info("Rebuild paused: " + progress.getStatus()
+                        + "; it will be resumed in the next update cycle");
+                return;
             }
+        }
+
+        conn = RecordCache.getConnection();
+        try {
+            _db.createShadowIndexes(conn, DEFERRED_INDEXES);
+        } finally {
             RecordCache.releaseConnection(conn);
         }
 
+        startedTransaction = false;
+        try {
+            conn = RecordCache.getConnection();
+            conn.setAutoCommit(false);
+            startedTransaction = true;
+            _db.swapGenerations(conn, new Date());
+            conn.commit();
+        } catch (Throwable th) {
+            if (startedTransaction) {
+                try {
+                    conn.rollback();
+                } catch (SQLException e) {
+                    logger.error("Failed to roll back failed transaction", e);
+                }
+            }
+            throw new ServerException("Swapping generations failed", th);
+        } finally {
+            if (conn != null) {
+                try {
+                    if (startedTransaction) conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    logger.error("Failed to set autoCommit to true", e);
+                } finally {
+                    RecordCache.releaseConnection(conn);
+                }
+            }
+        }
+        logger.info("Rebuild finished, new generation swapped in: " + progress.getStatus());
+    }
+
+    /**
+     * Reclaim the generation replaced by a rebuild, if any.
+     * <p/>
+     * This is done an update cycle after the swap, so sessions that were
+     * listing records of the old generation have had time to finish.  Its
+     * files are deleted by the pruning that follows.
+     */
+    private void reclaimOldGenerationIfNeeded() throws Exception {
+        Connection conn = RecordCache.getConnection();
+        try {
+            if (_db.hasOldGeneration(conn)) {
+                logger.info("Reclaiming old generation of cache");
+                _db.reclaimOldGeneration(conn);
+            }
+        } finally {
+            RecordCache.releaseConnection(conn);
+        }
     }
 
     /**
-     * Process the queue till it's empty.
+     * Count the records to bootstrap in the background, so the progress can
+     * include an estimate of the time left once they have been counted.
+     * <p/>
+     * Only a driver that can count records with a single query is asked;
+     * otherwise the progress goes without an estimate.  Records from the
+     * checkpoint date of each format on are counted, so if an interrupted
+     * bootstrap is resumed, some of them may have been loaded already.
+     */
+    private void startCounting(final BootstrapProgress progress) {
+        if (!(_driver instanceof CountingOAIDriver)) {
+            logger.debug("Driver can't count records; no time estimate available");
+            return;
+        }
+        final CountingOAIDriver driver = (CountingOAIDriver) _driver;
+        Thread counter = new Thread("BootstrapCounter") {
+            public void run() {
+                try {
+                    long totalCount = 0;
+                    for (String mdPrefix : progress.getPrefixes()) {
+                        totalCount += driver.countRecords(
+                                progress.getFromDate(mdPrefix),
+                                progress.getUntilDate(mdPrefix),
+                                mdPrefix);
+                    }
+                    progress.setTotalCount(totalCount);
+                    logger.info(format("Bootstrap will load about %d records", totalCount));
+                } catch (Throwable th) {
+                    logger.warn("Unable to count records to bootstrap; no time estimate available", th);
+                }
+            }
+        };
+        counter.setDaemon(true);
+        counter.start();
+    }
+
+    /**
+     * Whether shutdown has been requested, immediate or not.
+     */
+    boolean shutdownRequested() {
+        return _shutdownRequested;
+    }
+
+    /**
+     * Whether polling is under way while the queue is being processed.
+     */
+    boolean isPolling() {
+        return _polling;
+    }
+
+    /**
+     * Poll in a separate thread while processing the queue, so records are
+     * fetched as soon as polling has queued them.
+     * <p/>
+     * The formats and sets are updated before processing starts, so they
+     * don't change while records are committed.  Processing goes on until
+     * polling has finished and the queue is empty.
+     */
+    private void pollAndProcessQueue() throws Exception {
+        final AtomicReference<Throwable> pollFailure = new AtomicReference<>();
+        PollPlan plan = null;
+        try {
+            plan = preparePoll();
+        } catch (Throwable th) {
+            pollFailure.set(th);
+        }
+        Thread poller = null;
+        if (plan != null) {
+            final PollPlan queuedPlan = plan;
+            poller = new Thread("Poller") {
+                public void run() {
+                    try {
+                        pollUpdatedRecords(queuedPlan);
+                    } catch (Throwable th) {
+                        pollFailure.set(th);
+                    } finally {
+                        _polling = false;
+                    }
+                }
+            };
+            _polling = true;
+            poller.start();
+        }
+        try {
+            processQueue();
+        } finally {
+            // even if processing failed, leave polling to finish on its own
+            if (poller != null) poller.join();
+        }
+        Throwable th = pollFailure.get();
+        if (th instanceof ServerException) {
+            throw (ServerException) th;
+        } else if (th != null) {
+            throw new ServerException("Polling failed", th);
+        }
+    }
+
+    /**
+     * Process the queue till it's empty and polling, if under way, has
+     * finished.
      */
     private void processQueue() throws Exception {
 
         int itemsInQueue = countItemsInQueue();
 
         checkImmediateShutdown();
-        if (itemsInQueue > 0) {
+        if (itemsInQueue > 0 || _polling) {
 
             long processingStartTime = System.currentTimeMillis();
             _processingAborted = false;
 
-            while (itemsInQueue > 0 && !_processingAborted) {
+            while ((itemsInQueue > 0 || _polling) && !_processingAborted) {
 
+                List<PipelineStage> stages = new ArrayList<>();
+                Worker fetcher = null;
+                Worker worker = null;
+                Committer committer = null;
                 try {
 
-                    _queueIterator = newQueueIterator();
-
-                    // the committer must exist before the workers are started
-                    _committer = new Committer(this,
-                            _db,
-                            _maxCommitQueueSize,
-                            _maxRecordsPerTransaction);
+                    boolean splitFetching = _driver instanceof FetchingOAIDriver;
+                    int maxFetchers = getMaxFetchers();
 
-                    // decide how many workers to create (1 to _maxWorkers)
-                    int numWorkers = itemsInQueue / _maxWorkBatchSize;
-                    if (numWorkers > _maxWorkers) numWorkers = _maxWorkers;
-                    if (numWorkers == 0) numWorkers = 1;
+                    // decide how many fetching threads to create (1 to maxFetchers),
+                    // assuming polling will queue plenty if it's under way
+                    int numFetchers = itemsInQueue / _maxWorkBatchSize;
+                    if (numFetchers > maxFetchers || _polling) numFetchers = maxFetchers;
+                    if (numFetchers == 0) numFetchers = 1;
 
                     logger.info(format(
-                            "Queue has %d records.  Starting %d worker threads for processing.",
-                            itemsInQueue, numWorkers));
-
-                    // start the workers
-                    _workers = new Worker[numWorkers];
-                    for (int i = 0; i < _workers.length; i++) {
-                        _workers[i] = new Worker(i + 1,
-                                _workers.length,
-                                this,
-                                _driver,
-                                _disk,
-                                _validator);
-                        _workers[i].start();
+                            "Queue has %d records%s.  Starting %d %s threads for processing.",
+                            itemsInQueue, _polling ? " so far, polling is under way" : "",
+                            numFetchers, splitFetching ? "fetcher" : "worker"));
+
+                    // build the pipeline:
+                    // feed -> fetch [-> write] [-> validate] -> parse -> commit
+                    BlockingQueue<QueueItem> fetchQueue =
+                            new ArrayBlockingQueue<>(numFetchers * _maxWorkBatchSize);
+                    BlockingQueue<QueueItem> commitQueue =
+                            new ArrayBlockingQueue<>(_maxCommitQueueSize);
+
+                    committer = new Committer(this,
+                            commitQueue,
+                            _db,
+                            _disk,
+                            _maxRecordsPerTransaction,
+                            _retryPolicy);
+
+                    stages.add(new QueueFeeder(this, fetchQueue));
+                    Worker[] workers = addProcessingStages(stages, fetchQueue, commitQueue, numFetchers);
+                    fetcher = workers[0];
+                    worker = workers[1];
+                    stages.add(committer);
+
+                    _stages = stages;
+                    for (PipelineStage stage : stages) {
+                        stage.start();
                     }
 
-                    // the workers must exist before the committer is started
-                    _committer.start();
-
-                    // wait for workers and committer to finish
-                    while (_committer.isAlive()) {
-                        try {
-                            Thread.sleep(1000);
-                        } catch (Exception ignored) {
-                        }
+                    // wait for all stages to finish
+                    for (PipelineStage stage : stages) {
+                        stage.join();
                     }
 
                     checkImmediateShutdown();
@@ -379,15 +1149,18 @@ class Updater extends Thread {
                 } finally {
 
                     // clean up and log stats for this round of processing
-                    if (_queueIterator != null) {
-                        _queueIterator.close();
+                    _stages = null;
+                    for (PipelineStage stage : stages) {
+                        stage.discardInput();
                     }
 
-                    if (_workers != null) {
-                        logProcessingStats(itemsInQueue,
+                    if (committer != null && worker != null) {
+                        logProcessingStats(stages,
+                                fetcher,
+                                worker,
+                                committer,
+                                itemsInQueue,
                                 System.currentTimeMillis() - processingStartTime);
-                        _workers = null;
-                        _committer = null;
                     }
                 }
 
@@ -405,7 +1178,22 @@ class Updater extends Thread {
     }
 
     private void pollAndUpdate() throws ServerException {
+        PollPlan plan = preparePoll();
+        if (plan != null) {
+            pollUpdatedRecords(plan);
+        }
+    }
 
+    /**
+     * Queue failed records that are due for retry and, if anything may
+     * have changed remotely, update the identity, formats and sets.
+     *
+     * @return what to poll for, or <code>null</code> if nothing has changed.
+     */
+    private PollPlan preparePoll() throws ServerException {
+
+        long pollStartTime = System.nanoTime();
+        PollPlan plan = null;
         Connection conn = null;
         boolean startedTransaction = false;
         try {
@@ -413,7 +1201,10 @@ class Updater extends Thread {
             conn.setAutoCommit(false);
             startedTransaction = true;
 
-            _db.queueFailedRecords(conn, _maxFailedRetries);
+            if (_retryPolicy.isEnabled()) {
+                _db.queueFailedRecords(conn, System.currentTimeMillis());
+                conn.commit();
+            }
 
             if (_db.isPollingEnabled(conn)) {
                 Date latestRemoteDate = _driver.getLatestDate();
@@ -436,8 +1227,7 @@ class Updater extends Thread {
                     checkImmediateShutdown();
                     updateSets(conn);
 
-                    checkImmediateShutdown();
-                    queueUpdatedRecords(conn, allPrefixes, latestRemoteDate);
+                    plan = new PollPlan(allPrefixes, latestRemoteDate, pollStartTime);
                 } else {
                     logger.debug("Skipping update process; source data of interest has not changed");
                 }
@@ -446,6 +1236,7 @@ class Updater extends Thread {
             }
 
             conn.commit();
+            return plan;
         } catch (Throwable th) {
             if (startedTransaction) {
                 try {
@@ -456,6 +1247,9 @@ class Updater extends Thread {
             }
             throw new ServerException("Update cycle phase one aborted", th);
         } finally {
+            if (plan == null) {
+                _pollMetric.observe(System.nanoTime() - pollStartTime);
+            }
             if (conn != null) {
                 try {
                     if (startedTransaction) conn.setAutoCommit(false);
@@ -466,7 +1260,29 @@ class Updater extends Thread {
                 }
             }
         }
+    }
 
+    /**
+     * Query for records that changed since the last poll and queue them.
+     * <p/>
+     * Records are queued and committed in chunks, so no locks are held on
+     * the tables updated by <code>preparePoll</code> meanwhile.
+     */
+    private void pollUpdatedRecords(PollPlan plan) throws ServerException {
+
+        Connection conn = null;
+        try {
+            conn = RecordCache.getConnection();
+            checkImmediateShutdown();
+            queueUpdatedRecords(conn, plan.prefixes, plan.latestRemoteDate);
+        } catch (Throwable th) {
+            throw new ServerException("Update cycle phase one aborted", th);
+        } finally {
+            _pollMetric.observe(System.nanoTime() - plan.startNanos);
+            if (conn != null) {
+                RecordCache.releaseConnection(conn);
+            }
+        }
     }
 
     private void pruneIfNeeded() throws Exception {
@@ -560,41 +1376,89 @@ class Updater extends Thread {
 
     /**
      * Log stats for a round of processing.
-     * <p/>
-     * This assumes the array of workers and the committer have been
-     * initialized.
      */
-    private void logProcessingStats(int initialQueueSize,
+    private void logProcessingStats(List<PipelineStage> stages,
+                                    Worker fetcher,
+                                    Worker worker,
+                                    Committer committer,
+                                    int initialQueueSize,
                                     long totalDuration) {
 
-        int recordsProcessed = _committer.getProcessedCount();
+        int recordsProcessed = committer.getProcessedCount();
         double processingRate = recordsProcessed / (totalDuration / 1000.0);
+        _processingRate = processingRate;
 
         int failedCount = 0;
-        int attemptedCount = 0;
-        long totalFetchTime = 0;
-        for (Worker _worker : _workers) {
-            failedCount += _worker.getFailedCount();
-            attemptedCount += _worker.getAttemptedCount();
-            totalFetchTime += _worker.getTotalFetchTime();
-        }
-        long msPerAttempt = totalFetchTime / attemptedCount;
-        int transactionCount = _committer.getTransactionCount();
-        long msPerTrans = Math.round((double) _committer.getTotalCommitTime() / (double) transactionCount);
-        double recsPerTrans = (double) recordsProcessed / (double) transactionCount;
+        for (PipelineStage stage : stages) {
+            failedCount += stage.getFailedCount();
+        }
+        int attemptedCount = fetcher.getAttemptedCount();
+        long contentBytes = worker.getTotalContentBytes();
+        long storedBytes = worker.getTotalStoredBytes();
+        double compressionRatio = storedBytes == 0 ? 1.0 : (double) contentBytes / (double) storedBytes;
+        long decodeMillis = CachedContent.getDecodeMillis();
+        double decodeRate = decodeMillis == 0 ? 0.0
+                : (CachedContent.getDecodedBytes() / 1048576.0) / (decodeMillis / 1000.0);
+        long msPerAttempt = attemptedCount == 0 ? 0 : fetcher.getTotalFetchTime() / attemptedCount;
+        int transactionCount = committer.getTransactionCount();
+        long msPerTrans = transactionCount == 0 ? 0
+                : Math.round((double) committer.getTotalCommitTime() / (double) transactionCount);
+        double recsPerTrans = transactionCount == 0 ? 0.0
+                : (double) recordsProcessed / (double) transactionCount;
 
         StringBuilder stats = new StringBuilder()
                 .append(format("\tRecords processed\t\t\t: %d of %d on queue\n", recordsProcessed, initialQueueSize))
                 .append(format("\tTotal processing time\t\t\t: %s\n", getHMSString(totalDuration)))
                 .append(format("\tProcessing rate\t\t\t: %s records/second\n", round(processingRate)))
-                .append(format("\tWorkers spawned\t\t\t: %d of %d maximum\n", _workers.length, _maxWorkers))
+                .append(format("\tWorkers spawned\t\t\t: %d of %d maximum\n", worker.getThreadCount(), _maxWorkers))
+                .append(format("\tFetches in flight\t\t\t: up to %d\n", fetcher.getThreadCount()))
+                .append(format("\tFetch concurrency limit\t\t\t: %d (%d to %d, %d increases, %d decreases since startup)\n",
+                        _fetchLimiter.getLimit(), _fetchLimiter.getMinLimit(), _fetchLimiter.getMaxLimit(),
+                        _fetchLimiter.getIncreaseCount(), _fetchLimiter.getDecreaseCount()))
                 .append(format("\tFailed record loads\t\t\t: %d of %d attempted\n", failedCount, attemptedCount))
+                .append(format("\tUnchanged records skipped\t\t\t: %d\n", committer.getUnchangedCount()))
                 .append(format("\tAvg roundtrip fetch time\t\t\t: %s\n", getHMSString(msPerAttempt)))
+                .append(format("\tCache compression ratio\t\t\t: %s (%d bytes stored for %d)\n", round(compressionRatio), storedBytes, contentBytes))
+                .append(format("\tCache decode throughput\t\t\t: %s MB/second since startup (%d files sent still compressed)\n", round(decodeRate), CachedContent.getPassedThroughFiles()))
                 .append(format("\tTotal DB transactions\t\t\t: %d\n", transactionCount))
-                .append(format("\tTotal transaction time\t\t\t: %s\n", getHMSString(_committer.getTotalCommitTime())))
+                .append(format("\tTotal transaction time\t\t\t: %s\n", getHMSString(committer.getTotalCommitTime())))
+                .append(format("\tTotal file sync time\t\t\t: %s\n", getHMSString(committer.getTotalSyncTime())))
                 .append(format("\tAvg time/transaction\t\t\t: %s\n", getHMSString(msPerTrans)))
                 .append(format("\tAvg recs/transaction\t\t\t: %s of %d maximum\n", round(recsPerTrans), _maxRecordsPerTransaction));
 
+        // per stage: threads, throughput, how full its input queue was, and
+        // how long its threads waited for input or for the next stage
+        for (PipelineStage stage : stages) {
+            double stageRate = stage.getProcessedCount() / (totalDuration / 1000.0);
+            stats.append(format("\t%s stage\t\t\t: %d threads, %s records/second",
+                    stage.getName(), stage.getThreadCount(), round(stageRate)));
+            if (stage.hasInput()) {
+                stats.append(format(", avg queue depth %s of %d, idle %s",
+                        round(stage.getAverageQueueDepth()), stage.getInputCapacity(),
+                        getHMSString(stage.getIdleTime())));
+            }
+            if (stage instanceof QueueFeeder) {
+                QueueFeeder feeder = (QueueFeeder) stage;
+                stats.append(format(", %d changed, %d polled, %d retried, %d left for next round",
+                        feeder.getFedCount(QueueItem.PRIORITY_CHANGED),
+                        feeder.getFedCount(QueueItem.PRIORITY_POLLED),
+                        feeder.getFedCount(QueueItem.PRIORITY_RETRIED),
+                        feeder.getSkippedCount()));
+            }
+            if (stage instanceof ValidationStage) {
+                stats.append(format(", %d skipped by sampling",
+                        ((ValidationStage) stage).getSkippedCount()));
+            }
+            if (stage instanceof ParseStage) {
+                stats.append(format(", %d parsed from file",
+                        ((ParseStage) stage).getParsedCount()));
+            }
+            if (stage.hasOutput()) {
+                stats.append(format(", blocked %s", getHMSString(stage.getBlockedTime())));
+            }
+            stats.append("\n");
+        }
+
         logger.info(format("A round of queue processing has finished.\n\nProcessing Stats:\n%s", stats.toString()));
     }
 
@@ -737,14 +1601,22 @@ class Updater extends Thread {
         }
     }
 
+    /**
+     * Query for records in each format that changed since it was last
+     * polled, and put them on the queue.
+     * <p/>
+     * Formats are polled concurrently, each by its own thread, up to the
+     * configured maximum, so the remote queries of different formats
+     * overlap.
+     */
     private void queueUpdatedRecords(Connection conn,
                                      List<String> allPrefixes,
-                                     Date latestRemoteDate) {
+                                     final Date latestRemoteDate) throws Exception {
 
         logger.debug("Querying and queueing updated records...");
 
         long queueStartTime = System.currentTimeMillis();
-        int totalQueuedCount = 0;
+        final Map<String, Date> lastPollDates = new LinkedHashMap<>();
         for (String mdPrefix : allPrefixes) {
 
             Date lastPollDate = new Date(_db.getLastPollDate(conn, mdPrefix));
@@ -757,45 +1629,48 @@ class Updater extends Thread {
                 logger.debug(format(
                         "Querying for changed %s records because %d is less than %d",
                         mdPrefix, lastPollDate.getTime(), latestRemoteDate.getTime()));
+                lastPollDates.put(mdPrefix, lastPollDate);
+            } else {
+                logger.debug(format(
+                        "Skipping %s records because %d is not less than %d",
+                        mdPrefix, lastPollDate.getTime(), latestRemoteDate.getTime()));
+            }
+        }
 
-                checkImmediateShutdown();
-                RemoteIterator<? extends Record> riter = _driver.listRecords(
-                        lastPollDate,
-                        latestRemoteDate,
-                        mdPrefix);
-                try {
-
-                    int queuedCount = 0;
-
-                    while (riter.hasNext()) {
-
-                        Record record = riter.next();
-                        checkImmediateShutdown();
-                        _db.queueRemoteRecord(conn,
-                                record.getItemID(),
-                                record.getPrefix(),
-                                record.getSourceInfo());
-                        queuedCount++;
-                    }
-
-                    logger.debug(format(
-                            "Queued %d new/modified %s records.",
-                            queuedCount, mdPrefix));
+        int totalQueuedCount = 0;
+        if (!lastPollDates.isEmpty()) {
 
-                    _db.setLastPollDate(conn, mdPrefix, latestRemoteDate);
+            int threadCount = Math.min(_maxConcurrentFormatPolls, lastPollDates.size());
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                private final AtomicInteger _threadNumber = new AtomicInteger();
 
-                    totalQueuedCount += queuedCount;
-                } finally {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "FormatPoller-" + _threadNumber.incrementAndGet());
+                }
+            });
+            try {
+                List<Future<Integer>> results = new ArrayList<>();
+                for (final String mdPrefix : lastPollDates.keySet()) {
+                    results.add(executor.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            return queueUpdatedRecords(mdPrefix,
+                                    lastPollDates.get(mdPrefix),
+                                    latestRemoteDate);
+                        }
+                    }));
+                }
+                for (Future<Integer> result : results) {
                     try {
-                        riter.close();
-                    } catch (Exception e) {
-                        logger.debug("Unable to close remote record iterator", e);
+                        totalQueuedCount += result.get();
+                    } catch (ExecutionException e) {
+                        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
                     }
                 }
-            } else {
-                logger.debug(format(
-                        "Skipping %s records because %d is not less than %d",
-                        mdPrefix, lastPollDate.getTime(), latestRemoteDate.getTime()));
+            } finally {
+                // if one format failed, don't wait for the others
+                executor.shutdownNow();
             }
         }
 
@@ -805,18 +1680,192 @@ class Updater extends Thread {
                 totalQueuedCount, sec));
     }
 
+    /**
+     * Query for records in the given format that changed since the last
+     * poll, up to the given date, and put them on the queue.
+     * <p/>
+     * Records are queued in chunks, each committed along with a checkpoint
+     * of how far the poll has got.  If a poll was interrupted, it is first
+     * resumed with its original until date, skipping the records that were
+     * already queued, before the rest of the changes is polled for.
+     * <p/>
+     * This may be called concurrently for different formats.
+     *
+     * @return the number of records queued.
+     */
+    private int queueUpdatedRecords(String mdPrefix,
+                                    Date lastPollDate,
+                                    Date latestRemoteDate) throws Exception {
+
+        Connection conn = null;
+        boolean startedTransaction = false;
+        try {
+            conn = RecordCache.getConnection();
+            conn.setAutoCommit(false);
+            startedTransaction = true;
+
+            int queuedCount = 0;
+            long pollUntilDate = _db.getPollUntilDate(conn, mdPrefix);
+            if (pollUntilDate > lastPollDate.getTime() && pollUntilDate <= latestRemoteDate.getTime()) {
+                long pollFromDate = Math.max(_db.getPollFromDate(conn, mdPrefix), lastPollDate.getTime());
+                String pollItemID = _db.getPollItemID(conn, mdPrefix);
+                logger.info(format("Resuming interrupted poll for %s records from %d up to %d after itemID %s",
+                        mdPrefix, pollFromDate, pollUntilDate, pollItemID));
+                if (pollFromDate <= pollUntilDate) {
+                    queuedCount += queueUpdatedRecords(conn, mdPrefix, new Date(pollFromDate),
+                            new Date(pollUntilDate), pollItemID);
+                } else {
+                    _db.setLastPollDate(conn, mdPrefix, new Date(pollUntilDate));
+                    conn.commit();
+                }
+                lastPollDate = new Date(pollUntilDate);
+            }
+            if (lastPollDate.before(latestRemoteDate)) {
+                queuedCount += queueUpdatedRecords(conn, mdPrefix, lastPollDate,
+                        latestRemoteDate, null);
+            }
+            return queuedCount;
+        } catch (Throwable th) {
+            if (startedTransaction) {
+                try {
+                    conn.rollback();
+                } catch (SQLException e) {
+                    logger.error("Failed to roll back failed transaction", e);
+                }
+            }
+            throw th instanceof Exception ? (Exception) th : new ServerException("Polling " + mdPrefix + " records failed", th);
+        } finally {
+            if (conn != null) {
+                try {
+                    if (startedTransaction) conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    logger.error("Failed to set autoCommit to true", e);
+                } finally {
+                    RecordCache.releaseConnection(conn);
+                }
+            }
+        }
+    }
+
+    /**
+     * Query for records in the given format that changed in the given date
+     * range and put them on the queue, committing a chunk at a time.
+     * <p/>
+     * If the driver lists the records in itemID order, the checkpoint of
+     * each chunk is the itemID of its last record.  If it lists them in
+     * windows of time, it is the end of the last window that has been
+     * queued completely, and the poll is resumed after it.
+     *
+     * @param afterItemID if not <code>null</code>, the itemID of the last
+     *                    record already queued by an earlier attempt.
+     *                    Ignored if the records are listed in windows.
+     * @return the number of records queued.
+     */
+    private int queueUpdatedRecords(Connection conn,
+                                    String mdPrefix,
+                                    Date fromDate,
+                                    Date untilDate,
+                                    String afterItemID) throws SQLException {
+
+        _db.setPollCheckpoint(conn, mdPrefix, untilDate, fromDate, afterItemID);
+        conn.commit();
+
+        checkImmediateShutdown();
+        RemoteIterator<? extends Record> riter = _driver.listRecords(
+                fromDate,
+                untilDate,
+                mdPrefix);
+        try {
+
+            int queuedCount = 0;
+            int skippedCount = 0;
+            List<Record> batch = new ArrayList<>(QUEUE_BATCH_SIZE);
+
+            // only if records come in itemID order can the itemID of the
+            // last one queued tell which ones have been queued
+            WindowedRemoteIterator<?> windows = riter instanceof WindowedRemoteIterator
+                    ? (WindowedRemoteIterator<?>) riter : null;
+            boolean ordered = windows == null;
+            String previousItemID = null;
+
+            while (riter.hasNext()) {
+
+                Record record = riter.next();
+                String itemID = record.getItemID();
+                if (previousItemID != null && itemID.compareTo(previousItemID) <= 0) {
+                    ordered = false;
+                }
+                previousItemID = itemID;
+
+                if (afterItemID != null && ordered && itemID.compareTo(afterItemID) <= 0) {
+                    skippedCount++;
+                    continue;
+                }
+
+                batch.add(record);
+                if (batch.size() == QUEUE_BATCH_SIZE) {
+                    checkImmediateShutdown();
+                    _db.queueRemoteRecords(conn, batch);
+                    _db.setPollCheckpoint(conn, mdPrefix, untilDate,
+                            resumeDate(windows, fromDate), ordered ? itemID : null);
+                    conn.commit();
+                    queuedCount += batch.size();
+                    batch.clear();
+                }
+            }
+            checkImmediateShutdown();
+            _db.queueRemoteRecords(conn, batch);
+            _db.setLastPollDate(conn, mdPrefix, untilDate);
+            conn.commit();
+            queuedCount += batch.size();
+
+            if (!ordered) {
+                logger.debug(format("%s records were not listed in itemID order", mdPrefix));
+            }
+            logger.debug(format(
+                    "Queued %d new/modified %s records, skipped %d queued before.",
+                    queuedCount, mdPrefix, skippedCount));
+
+            return queuedCount;
+        } finally {
+            try {
+                riter.close();
+            } catch (Exception e) {
+                logger.debug("Unable to close remote record iterator", e);
+            }
+        }
+    }
+
+    /**
+     * Get the date from which to resume a listing that started at the given
+     * date: the end of the last completely returned window, if any.
+     */
+    static Date resumeDate(WindowedRemoteIterator<?> windows, Date fromDate) {
+        Date completedUntil = windows == null ? null : windows.getCompletedUntil();
+        if (completedUntil == null || !completedUntil.after(fromDate)) {
+            return fromDate;
+        }
+        return new Date(completedUntil.getTime() + 1);
+    }
+
     synchronized boolean processingShouldContinue() {
         return !_processingAborted && !_immediateShutdownRequested;
     }
 
-    boolean anyWorkersAreRunning() {
-        if (_workers == null) {
-            return false;
-        } else {
-            for (Worker _worker : _workers) {
-                if (_worker.isAlive()) return true;
-            }
-            return false;
+    /**
+     * The formats to poll for changed records, as found by
+     * <code>preparePoll</code>.
+     */
+    private static class PollPlan {
+
+        final List<String> prefixes;
+        final Date latestRemoteDate;
+        final long startNanos;
+
+        PollPlan(List<String> prefixes, Date latestRemoteDate, long startNanos) {
+            this.prefixes = prefixes;
+            this.latestRemoteDate = latestRemoteDate;
+            this.startNanos = startNanos;
         }
     }
 }
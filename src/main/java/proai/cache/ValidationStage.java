@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.cache;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The validation stage of queue processing.
+ * <p/>
+ * <p>Each thread validates fetched records against the OAI-PMH schema,
+ * failing those that are not valid.
+ * <p/>
+ * <p>For trusted formats, only a sample of the records may be validated:
+ * with a sample rate of N, only every N-th record of the format is
+ * validated, and with a sample rate of 0, none are.
+ */
+class ValidationStage extends PipelineStage {
+
+    private final RecordValidator _validator;
+    private final Map<String, Integer> _sampleRates;
+    private final ConcurrentMap<String, AtomicInteger> _formatCounts = new ConcurrentHashMap<>();
+    private final AtomicInteger _skippedCount = new AtomicInteger();
+
+    public ValidationStage(int threadCount,
+                           Updater updater,
+                           BlockingQueue<QueueItem> input,
+                           BlockingQueue<QueueItem> output,
+                           RecordValidator validator,
+                           Map<String, Integer> sampleRates) {
+        super("Validator", threadCount, 0, updater, input, output);
+        _validator = validator;
+        _sampleRates = sampleRates;
+    }
+
+    protected void process(QueueItem qi) {
+        if (!isSampled(qi.getMDPrefix())) {
+            _skippedCount.incrementAndGet();
+            return;
+        }
+        try {
+            _validator.validate(qi.getDiskWriter().getFile());
+        } catch (Throwable th) {
+            fail(qi, th);
+        }
+    }
+
+    /**
+     * Whether the next record of the given format should be validated.
+     */
+    boolean isSampled(String mdPrefix) {
+        Integer rate = _sampleRates.get(mdPrefix);
+        if (rate == null || rate == 1) return true;
+        if (rate == 0) return false;
+        AtomicInteger count = _formatCounts.get(mdPrefix);
+        if (count == null) {
+            _formatCounts.putIfAbsent(mdPrefix, new AtomicInteger());
+            count = _formatCounts.get(mdPrefix);
+        }
+        return (count.getAndIncrement() & Integer.MAX_VALUE) % rate == 0;
+    }
+
+    /**
+     * Get the number of records that were not validated due to sampling.
+     */
+    int getSkippedCount() {
+        return _skippedCount.get();
+    }
+}
@@ -16,157 +16,180 @@
 
 package proai.cache;
 
-import net.sf.bvalid.Validator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import proai.driver.FetchingOAIDriver;
 import proai.driver.OAIDriver;
-import proai.util.StreamUtil;
 
-import java.io.*;
-import java.util.Iterator;
-import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The fetch stage of queue processing.
+ * <p/>
+ * <p>Each thread retrieves records from the driver and writes them to new
+ * files in the disk cache, so the following stages can work on them.
+ * <p/>
+ * <p>If the driver is a <code>FetchingOAIDriver</code>, this is split in two
+ * stages: one that only fetches record content, with many threads that
+ * mostly wait for the repository, followed by one that writes the records,
+ * with few threads that do the CPU-bound work.
+ * <p/>
+ * <p>The stage that fetches may be given a <code>ConcurrencyLimiter</code>,
+ * which then decides how many of its threads may fetch at the same time.
+ */
+class Worker extends PipelineStage {
 
-class Worker extends Thread {
+    /**
+     * Stack size of threads that only fetch content.  These only wait for
+     * the repository, so there can be many of them without wasting memory.
+     */
+    static final long FETCH_THREAD_STACK_SIZE = 256 * 1024;
 
     private static final Logger _LOG = LoggerFactory.getLogger(Worker.class);
 
     private final RCDisk _disk;
     private final OAIDriver _driver;
-    private final Updater _updater;
-    private final Validator _validator;
-    private int _attemptedCount;
-    private int _failedCount;
-    private long _totalFetchTime;
-    private long _totalValidationTime;
-
-    public Worker(int num,
-                  int of,
+    private final boolean _fetchOnly;
+    private final ConcurrencyLimiter _limiter;
+    private final AtomicLong _totalFetchTime = new AtomicLong();
+    private final AtomicLong _totalContentBytes = new AtomicLong();
+    private final AtomicLong _totalStoredBytes = new AtomicLong();
+
+    /**
+     * Create a stage that fetches and writes records.
+     *
+     * @param limiter the limiter of concurrent fetches, or <code>null</code>
+     *                if the records were already fetched by a previous stage.
+     */
+    public Worker(int threadCount,
                   Updater updater,
+                  BlockingQueue<QueueItem> input,
+                  BlockingQueue<QueueItem> output,
                   OAIDriver driver,
                   RCDisk disk,
-                  Validator validator) {
-        super("Worker-" + num + "of" + of);
-        _updater = updater;
+                  ConcurrencyLimiter limiter) {
+        super("Worker", threadCount, 0, updater, input, output);
         _driver = driver;
         _disk = disk;
-        _validator = validator;
+        _fetchOnly = false;
+        _limiter = limiter;
     }
 
-    public void run() {
+    /**
+     * Create a stage that only fetches record content, to be written
+     * by a following stage created with the other constructor.
+     */
+    public Worker(int threadCount,
+                  Updater updater,
+                  BlockingQueue<QueueItem> input,
+                  BlockingQueue<QueueItem> output,
+                  FetchingOAIDriver driver,
+                  ConcurrencyLimiter limiter) {
+        super("Fetcher", threadCount, FETCH_THREAD_STACK_SIZE, updater, input, output);
+        _driver = driver;
+        _disk = null;
+        _fetchOnly = true;
+        _limiter = limiter;
+    }
 
-        _LOG.info("Worker started");
+    protected void process(QueueItem qi) throws InterruptedException {
+        if (_fetchOnly) {
+            fetch(qi);
+        } else {
+            write(qi);
+        }
+    }
 
-        List<QueueItem> queueItems = _updater.getNextBatch(null);
+    private void fetch(QueueItem qi) throws InterruptedException {
 
-        while (queueItems != null && _updater.processingShouldContinue()) {
+        if (_limiter != null) _limiter.acquire();
+        long startFetchTime = System.currentTimeMillis();
+        Throwable failure = null;
+        try {
 
-            Iterator<QueueItem> iter = queueItems.iterator();
-            while (iter.hasNext() && _updater.processingShouldContinue()) {
+            qi.setFetchedContent(((FetchingOAIDriver) _driver).fetchRecordContent(qi.getIdentifier(),
+                    qi.getMDPrefix(),
+                    qi.getSourceInfo()));
 
-                attempt(iter.next());
-            }
+            _LOG.debug("Fetched record " + qi.getIdentifier());
 
-            if (_updater.processingShouldContinue()) {
-                queueItems = _updater.getNextBatch(queueItems);
-            } else {
-                _LOG.debug("About to finish prematurely because processing should stop");
-            }
+        } catch (Throwable th) {
+            failure = th;
+            fail(qi, th);
+        } finally {
+            completed(System.currentTimeMillis() - startFetchTime, failure);
         }
-
-        _LOG.info("Worker finished");
     }
 
-    private void attempt(QueueItem qi) {
+    private void write(QueueItem qi) throws InterruptedException {
 
-        RCDiskWriter diskWriter = null;
-        long retrievalDelay = 0;
-        long validationDelay = 0;
+        if (_limiter != null) _limiter.acquire();
+        long startFetchTime = System.currentTimeMillis();
+        Throwable failure = null;
         try {
 
-            diskWriter = _disk.getNewWriter();
-
-            long startFetchTime = System.currentTimeMillis();
-            _driver.writeRecordXML(qi.getIdentifier(),
-                    qi.getMDPrefix(),
-                    qi.getSourceInfo(),
-                    diskWriter);
+            RCDiskWriter diskWriter = _disk.getNewWriter();
+            qi.setDiskWriter(diskWriter);
+
+            Object content = qi.getFetchedContent();
+            if (content != null) {
+                ((FetchingOAIDriver) _driver).writeRecordXML(qi.getIdentifier(),
+                        qi.getMDPrefix(),
+                        qi.getSourceInfo(),
+                        content,
+                        diskWriter);
+                qi.setFetchedContent(null);
+            } else {
+                _driver.writeRecordXML(qi.getIdentifier(),
+                        qi.getMDPrefix(),
+                        qi.getSourceInfo(),
+                        diskWriter);
+            }
             diskWriter.flush();
             diskWriter.close();
+            _totalContentBytes.addAndGet(diskWriter.getContentLength());
+            _totalStoredBytes.addAndGet(diskWriter.getFile().length());
 
-            long endFetchTime = System.currentTimeMillis();
-
-            retrievalDelay = endFetchTime - startFetchTime;
-
-            if (_validator != null) {
-
-                _validator.validate(getRecordStreamForValidation(diskWriter.getFile()),
-                        RecordCache.OAI_SCHEMA_URL);
-                validationDelay = System.currentTimeMillis() - endFetchTime;
-            }
-
-            qi.setParsedRecord(new ParsedRecord(qi.getIdentifier(),
-                    qi.getMDPrefix(),
-                    diskWriter.getPath(),
-                    diskWriter.getFile()));
-
-            qi.setSucceeded(true);
-
-            _LOG.debug("Successfully processed record " + qi.getIdentifier());
+            _LOG.debug("Wrote record " + qi.getIdentifier());
 
         } catch (Throwable th) {
-
-            _LOG.warn(String.format("Failed to process record %s: %s", qi.getIdentifier(), th.getMessage()));
-
-            if (diskWriter != null) {
-                diskWriter.close();
-                diskWriter.getFile().delete();
-            }
-
-            StringWriter failReason = new StringWriter();
-            th.printStackTrace(new PrintWriter(failReason, true));
-
-            qi.setFailReason(failReason.toString());
-            qi.setFailDate(StreamUtil.nowUTCString());
-            _failedCount++;
+            failure = th;
+            qi.setFetchedContent(null);
+            fail(qi, th);
         } finally {
-            _attemptedCount++;
-            _totalFetchTime += retrievalDelay;
-            _totalValidationTime += validationDelay;
+            completed(System.currentTimeMillis() - startFetchTime, failure);
         }
     }
 
-    private InputStream getRecordStreamForValidation(File recordFile) throws Exception {
-        StringBuilder builder = new StringBuilder();
-        builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-        builder.append("<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\">\n");
-        builder.append("<responseDate>2002-02-08T08:55:46Z</responseDate>\n");
-        builder.append("<request verb=\"GetRecord\" identifier=\"oai:arXiv.org:cs/0112017\" ");
-        builder.append("metadataPrefix=\"oai_dc\">http://arXiv.org/oai2</request>\n");
-        builder.append("<GetRecord>\n");
-        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(recordFile)));
-        String line = reader.readLine();
-        while (line != null) {
-            builder.append(line + "\n");
-            line = reader.readLine();
-        }
-        builder.append("</GetRecord>\n");
-        builder.append("</OAI-PMH>");
-        return new ByteArrayInputStream(builder.toString().getBytes("UTF-8"));
+    private void completed(long fetchTime, Throwable failure) {
+        _totalFetchTime.addAndGet(fetchTime);
+        if (_limiter != null) _limiter.release(fetchTime, failure);
     }
 
     public int getAttemptedCount() {
-        return _attemptedCount;
+        return getProcessedCount();
     }
 
-    public int getFailedCount() {
-        return _failedCount;
+    /**
+     * Get the time spent fetching, or fetching and writing, records, summed
+     * over all threads.
+     */
+    public long getTotalFetchTime() {
+        return _totalFetchTime.get();
     }
 
-    public long getTotalFetchTime() {
-        return _totalFetchTime;
+    /**
+     * Get the number of record bytes written to the cache, before compression.
+     */
+    public long getTotalContentBytes() {
+        return _totalContentBytes.get();
     }
 
-    public long getTotalValidationTime() {
-        return _totalValidationTime;
+    /**
+     * Get the number of bytes the written records take up on disk.
+     */
+    public long getTotalStoredBytes() {
+        return _totalStoredBytes.get();
     }
 }
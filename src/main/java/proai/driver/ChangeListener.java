@@ -0,0 +1,36 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.driver;
+
+import proai.Record;
+
+/**
+ * Receives records that a <code>ChangeNotifyingOAIDriver</code> has been
+ * notified of as changed in the repository.
+ */
+public interface ChangeListener {
+
+    /**
+     * Handle records that have changed.
+     * <p/>
+     * The iterator must be closed by the listener.  This is called from a
+     * thread of the driver, and may be called while records are being
+     * fetched by other threads.
+     */
+    void recordsChanged(RemoteIterator<? extends Record> records);
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.driver;
+
+import proai.error.RepositoryException;
+
+/**
+ * An <code>OAIDriver</code> that can tell the record cache about changes
+ * in the repository as they happen, rather than only when polled.
+ * <p/>
+ * Notifications are best effort.  The record cache keeps polling
+ * <code>getLatestDate()</code>, although less often, to pick up any change
+ * that was missed, for example while the notification source was down.
+ */
+public interface ChangeNotifyingOAIDriver extends OAIDriver {
+
+    /**
+     * Start passing changed records to the given listener.
+     *
+     * @return false if change notification is not configured for this
+     * driver, in which case the listener will never be called.
+     * @throws RepositoryException if change notification is configured, but
+     *                             could not be started.
+     */
+    boolean startChangeNotification(ChangeListener listener) throws RepositoryException;
+
+    /**
+     * Stop passing changed records to the listener, waiting for any call
+     * to it that is in progress to finish.
+     */
+    void stopChangeNotification();
+
+}
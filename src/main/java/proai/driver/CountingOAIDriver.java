@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package proai.driver;
+
+import proai.error.RepositoryException;
+
+import java.util.Date;
+
+/**
+ * An <code>OAIDriver</code> that can count records without listing them,
+ * so the progress of a long-running load of the cache can include an
+ * estimate of the time left.
+ */
+public interface CountingOAIDriver extends OAIDriver {
+
+    /**
+     * Get about how many records in the format indicated by mdPrefix have
+     * changed in the given date range, as <code>listRecords</code> would
+     * list them.
+     *
+     * @see #listRecords(Date, Date, String)
+     */
+    long countRecords(Date from,
+                      Date until,
+                      String mdPrefix) throws RepositoryException;
+
+}
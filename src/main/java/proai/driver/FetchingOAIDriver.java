@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.driver;
+
+import java.io.PrintWriter;
+
+import proai.error.RepositoryException;
+
+/**
+ * An <code>OAIDriver</code> that can split writing a record into fetching
+ * its content from the repository and producing the XML from it.
+ * <p/>
+ * Fetching is expected to be dominated by waiting for the repository, and
+ * writing by CPU work.  This lets the record cache run many fetches at once
+ * without running as many CPU-bound writes, which only need about as many
+ * threads as there are processors.
+ * <p/>
+ * Both methods may be called concurrently from different threads, and the
+ * content fetched by one thread may be written by another.
+ */
+public interface FetchingOAIDriver extends OAIDriver {
+
+    /**
+     * Fetch whatever remote content is needed to write the XML of the
+     * record whose source info is given.
+     * <p/>
+     * This should do as little processing as possible.
+     *
+     * @return the fetched content, to be passed to
+     * {@link #writeRecordXML(String, String, String, Object, PrintWriter)}.
+     */
+    Object fetchRecordContent(String itemID,
+                              String mdPrefix,
+                              String sourceInfo) throws RepositoryException;
+
+    /**
+     * Write the XML of the record whose source info is given, using the
+     * content that was fetched for it.
+     * <p/>
+     * The XML must be the same as written by
+     * {@link OAIDriver#writeRecordXML(String, String, String, PrintWriter)}.
+     */
+    void writeRecordXML(String itemID,
+                        String mdPrefix,
+                        String sourceInfo,
+                        Object content,
+                        PrintWriter writer) throws RepositoryException;
+
+    /**
+     * Release whatever is held for fetching record content, such as
+     * threads.  This is called once no more records will be fetched.
+     */
+    void stopFetching();
+
+}
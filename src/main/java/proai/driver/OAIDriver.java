@@ -109,6 +109,13 @@ public interface OAIDriver extends Writable {
      * <p><strong>Regarding dates:</strong>
      * <em>If from is not null, the date is greater than (non-inclusive)
      * Until must be specified, and it is less than or equal to (inclusive).</em>
+     * <p/>
+     * <p>Records should be listed in ascending order of itemID, which lets an
+     * interrupted poll be resumed after the last record that was queued.
+     * A driver that lists records in windows of time instead should return
+     * a <code>WindowedRemoteIterator</code>, so an interrupted poll is
+     * resumed after the last window that was completely queued.
+     * Otherwise, an interrupted poll starts over.
      *
      * @see proai.Record
      */
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.driver;
+
+import java.util.List;
+
+/**
+ * Receives the header values of a record while it is being written.
+ * <p/>
+ * The record cache passes a <code>PrintWriter</code> implementing this
+ * interface to {@link OAIDriver#writeRecordXML}.  A driver that knows the
+ * datestamp and setSpecs of the record when it writes the header should
+ * report them here, so the cache does not need to parse the record again
+ * to find them.  Drivers that don't are still supported.
+ */
+public interface RecordHeaderListener {
+
+    /**
+     * Report the header values of the record being written.
+     *
+     * @param datestamp the datestamp, exactly as written.
+     * @param setSpecs  the setSpecs, exactly as written.
+     */
+    void recordHeader(String datestamp, List<String> setSpecs);
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package proai.driver;
+
+import java.util.Date;
+
+/**
+ * A <code>RemoteIterator</code> over records that are listed one window of
+ * time at a time.
+ * <p/>
+ * Records are not listed in itemID order, so no itemID can tell how far a
+ * listing has got.  Instead, once all records of a window have been
+ * returned, so have all records of the windows before it, and a listing
+ * that is interrupted can be resumed from the end of that window.
+ */
+public interface WindowedRemoteIterator<T> extends RemoteIterator<T> {
+
+    /**
+     * Get the latest date up to which all records have been returned, or
+     * <code>null</code> if no window has been completely returned yet.
+     * <p/>
+     * This only counts records returned by <code>next()</code> so far.
+     */
+    Date getCompletedUntil();
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.service;
+
+import proai.util.MetricsRegistry;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ * Serves the metrics of the service as plain text, in the format Prometheus
+ * scrapes.
+ * <p/>
+ * The same metrics are available via JMX, as attributes of the
+ * <code>proai:type=Metrics</code> MBean.
+ * <p/>
+ * Since the metrics tell about the contents of the repository, they are only
+ * served if <code>proai.metricsEnabled</code> is set to <code>true</code>,
+ * either as a system property or as a context parameter of the web
+ * application.  Otherwise, requests are answered with 404 Not Found.
+ */
+public class MetricsServlet extends HttpServlet {
+    static final long serialVersionUID = 1;
+
+    private boolean enabled;
+
+    @Override
+    public void init() throws ServletException {
+        String s = System.getProperty("proai.metricsEnabled");
+        if (s == null || s.isEmpty()) {
+            s = getServletContext().getInitParameter("proai.metricsEnabled");
+        }
+        enabled = Boolean.valueOf(s);
+    }
+
+    @Override
+    public void doGet(HttpServletRequest request,
+                      HttpServletResponse response) throws IOException {
+        if (!enabled) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+        MetricsRegistry.getInstance().writeText(out);
+        out.close();
+    }
+}
@@ -22,6 +22,7 @@ import ch.qos.logback.core.joran.spi.JoranException;
 import ch.qos.logback.core.util.StatusPrinter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import proai.cache.GzipResponseWriter;
 import proai.driver.daos.json.DissTermsDaoJson;
 import proai.driver.daos.json.SetSpecDaoJson;
 import proai.error.BadArgumentException;
@@ -61,6 +62,7 @@ public class ProviderServlet extends HttpServlet {
             + "                             http://www.openarchives.org/OAI/2.0/OAI-PMH.xsd\">\n";
     private Responder m_responder;
     private boolean useStylesheet;
+    private boolean gzipResponses;
 
     /**
      * Close the Responder at shutdown-time.
@@ -125,6 +127,7 @@ public class ProviderServlet extends HttpServlet {
             props.put("dynSetSpecs", new SetSpecDaoJson(setSpecsConfiguration));
 
             useStylesheet = Boolean.valueOf(props.getProperty("proai.useStylesheet"));
+            gzipResponses = Boolean.valueOf(props.getProperty("proai.cacheCompression"));
 
             m_responder = new Responder(props);
         } catch (Exception e) {
@@ -307,9 +310,17 @@ public class ProviderServlet extends HttpServlet {
             }
             response.setStatus(HttpServletResponse.SC_OK);
             response.setContentType("text/xml; charset=UTF-8");
-            PrintWriter writer = response.getWriter();
+            PrintWriter writer;
+            if (gzipResponses && acceptsGzip(request)) {
+                // lets compressed cache files go out without re-encoding
+                response.setHeader("Content-Encoding", "gzip");
+                response.setHeader("Vary", "Accept-Encoding");
+                writer = new GzipResponseWriter(response.getOutputStream());
+            } else {
+                writer = response.getWriter();
+            }
             writer.print(getResponseStart(url, verb, identifier, from, until, metadataPrefix, sets, resumptionToken, null));
-            data.write(response.getWriter());
+            data.write(writer);
             writer.println("</OAI-PMH>");
             writer.flush();
             writer.close();
@@ -400,6 +411,18 @@ public class ProviderServlet extends HttpServlet {
         }
     }
 
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        String accept = request.getHeader("Accept-Encoding");
+        if (accept == null) return false;
+        for (String coding : accept.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                return parts.length == 1 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
     private static String firstOf(String... strings) {
         for (String s : strings) {
             if (!orEmptyString(s).isEmpty()) return s;
@@ -29,7 +29,92 @@ public interface DDLConverter {
 
     List<String> getDDL(TableSpec tableSpec);
 
-    String getDropDDL(String command);
+    /**
+     * Gets the commands needed to add a single column (and its index,
+     * if any) to an existing table that was created from an older
+     * version of the given TableSpec.
+     *
+     * @param tableSpec  The current specification of the table.
+     * @param columnName The name of the column to add.
+     * @return The DDL commands, in the order they should be executed.
+     */
+    List<String> getAddColumnDDL(TableSpec tableSpec, String columnName);
+
+    /**
+     * Gets the commands needed to add the unique key of the given
+     * TableSpec to an existing table that was created without it.
+     *
+     * @param tableSpec The current specification of the table, which
+     *                  must have a unique key.
+     * @return The DDL commands, in the order they should be executed.
+     */
+    List<String> getAddUniqueKeyDDL(TableSpec tableSpec);
+
+    /**
+     * Gets the name of the index on the given column, as the database
+     * will report it.
+     *
+     * @param tableSpec  The specification of the table.
+     * @param columnName The name of an indexed column.
+     * @return The name, or null if indexes can't be created and dropped
+     * apart from their column in this database.
+     */
+    String getIndexName(TableSpec tableSpec, String columnName);
+
+    /**
+     * Gets the commands needed to create the index on the given column.
+     *
+     * @param tableSpec  The specification of the table.
+     * @param columnName The name of an indexed column.
+     * @return The DDL commands, or an empty list if indexes can't be
+     * created apart from their column in this database.
+     */
+    List<String> getCreateIndexDDL(TableSpec tableSpec, String columnName);
+
+    /**
+     * Gets the commands needed to drop the index on the given column.
+     *
+     * @param tableSpec  The specification of the table.
+     * @param columnName The name of an indexed column.
+     * @return The DDL commands, or an empty list if indexes can't be
+     * dropped apart from their column in this database.
+     */
+    List<String> getDropIndexDDL(TableSpec tableSpec, String columnName);
+
+    /**
+     * Gets the commands needed to rename the given tables, along with
+     * any indexes whose names are derived from the table name.
+     * <p/>
+     * If the database allows it, the commands rename all tables at once,
+     * so no other session ever sees only some of them renamed.
+     *
+     * @param tableSpecs The specifications of the tables, by their
+     *                   current names.
+     * @param newNames   The new name of each table, in the same order.
+     * @return The DDL commands, in the order they should be executed, or
+     * an empty list if tables can't be renamed in this database.
+     */
+    List<String> getRenameTablesDDL(List<TableSpec> tableSpecs, List<String> newNames);
+
+        String getDropDDL(String command);
+
+    /**
+     * Gets the command that inserts a row into the given table or, if a
+     * row with the same unique key exists already, updates that row
+     * instead, in a single statement, so that concurrent sessions can't
+     * both insert the row.
+     *
+     * @param tableSpec   The specification of the table, which must have
+     *                    a unique key.
+     * @param insert      The INSERT command for the new row.
+     * @param assignments The assignments to make to the existing row, as
+     *                    in the SET clause of an UPDATE, with all column
+     *                    references on the right-hand side qualified by
+     *                    the table name.
+     * @return The command, or null if this can't be done in a single
+     * statement in this database.
+     */
+    String getUpsertSQL(TableSpec tableSpec, String insert, String assignments);
 
 }
 
@@ -41,20 +41,7 @@ public class McKoiDDLConverter
             out.append("  ");
             out.append(cs.getName());
             out.append(' ');
-            out.append(cs.getType());
-            if (cs.isAutoIncremented()) {
-                out.append(" default UNIQUEKEY('");
-                out.append(spec.getName());
-                out.append("')");
-            }
-            if (cs.getDefaultValue() != null) {
-                out.append(" default '");
-                out.append(cs.getDefaultValue());
-                out.append("'");
-            }
-            if (cs.isNotNull()) {
-                out.append(" NOT NULL");
-            }
+            appendColumnType(out, cs, spec.getName());
             if (cs.isUnique()) {
                 if (!end.toString().equals("")) {
                     end.append(",\n");
@@ -63,9 +50,6 @@ public class McKoiDDLConverter
                 end.append(cs.getName());
                 end.append(")");
             }
-            if (cs.getIndexName() != null) {
-                out.append(" INDEX_BLIST");
-            }
             if (cs.getForeignTableName() != null) {
                 if (!end.toString().equals("")) {
                     end.append(",\n");
@@ -90,6 +74,14 @@ public class McKoiDDLConverter
             out.append(spec.getPrimaryColumnName());
             out.append(")");
         }
+        if (spec.getUniqueColumnNames() != null) {
+            if (!end.toString().equals("")) {
+                end.append(",\n");
+            }
+            end.append("  UNIQUE (");
+            end.append(spec.getUniqueColumnNames());
+            end.append(")");
+        }
         if (!end.toString().equals("")) {
             out.append(",\n");
             out.append(end);
@@ -101,6 +93,68 @@ public class McKoiDDLConverter
         return l;
     }
 
+    public List<String> getAddColumnDDL(TableSpec spec, String columnName) {
+        ColumnSpec cs = spec.getColumnSpec(columnName);
+        StringBuilder out = new StringBuilder();
+        out.append("ALTER TABLE " + spec.getName() + " ADD COLUMN ");
+        out.append(cs.getName());
+        out.append(' ');
+        appendColumnType(out, cs, spec.getName());
+        ArrayList<String> l = new ArrayList<>();
+        l.add(out.toString());
+        return l;
+    }
+
+    private static void appendColumnType(StringBuilder out, ColumnSpec cs, String tableName) {
+        out.append(cs.getType());
+        if (cs.isAutoIncremented()) {
+            out.append(" default UNIQUEKEY('");
+            out.append(tableName);
+            out.append("')");
+        }
+        if (cs.getDefaultValue() != null) {
+            out.append(" default '");
+            out.append(cs.getDefaultValue());
+            out.append("'");
+        }
+        if (cs.isNotNull()) {
+            out.append(" NOT NULL");
+        }
+        if (cs.getIndexName() != null) {
+            out.append(" INDEX_BLIST");
+        }
+    }
+
+    public String getIndexName(TableSpec spec, String columnName) {
+        // indexes are part of the column definition
+        return null;
+    }
+
+    public List<String> getCreateIndexDDL(TableSpec spec, String columnName) {
+        return new ArrayList<>();
+    }
+
+    public List<String> getDropIndexDDL(TableSpec spec, String columnName) {
+        return new ArrayList<>();
+    }
+
+    public List<String> getRenameTablesDDL(List<TableSpec> specs, List<String> newNames) {
+        // tables can't be renamed
+        return new ArrayList<>();
+    }
+
+    public List<String> getAddUniqueKeyDDL(TableSpec spec) {
+        ArrayList<String> l = new ArrayList<>();
+        l.add("ALTER TABLE " + spec.getName() + " ADD UNIQUE ("
+                + spec.getUniqueColumnNames() + ")");
+        return l;
+    }
+
+    public String getUpsertSQL(TableSpec spec, String insert, String assignments) {
+        // there is no upsert
+        return null;
+    }
+
     public String getDropDDL(String command) {
         String[] parts = command.split(" ");
         String tableName = parts[2];
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A registry of metrics that tell what the service is doing, readable via
+ * JMX and as plain text.
+ * <p/>
+ * <p>There are three kinds of metrics:
+ * <ul>
+ * <li> Counters, which only go up, like the number of records processed.
+ * <li> Gauges, which are read whenever the metrics are, like the size of the
+ * queue.  A gauge may also read as text, like the current phase of the
+ * updater.
+ * <li> Histograms of durations, like the time taken to fetch a record.
+ * </ul>
+ * <p>Each metric has a name and, optionally, a label that tells apart
+ * metrics of the same name, like the stage of the pipeline they belong to.
+ * The plain text format is the one Prometheus scrapes, so text gauges are
+ * written with their text as a label and a value of 1.  Via JMX, each
+ * metric is an attribute, and histograms are summed up by their count,
+ * sum, maximum and estimated percentiles.
+ * <p/>
+ * <p>There is one registry per class loader, so the service, its updater and
+ * the servlets that expose the metrics all share it.</p>
+ */
+public class MetricsRegistry implements DynamicMBean {
+
+    /**
+     * The name under which the registry is registered with JMX.
+     */
+    public static final String OBJECT_NAME = "proai:type=Metrics";
+
+    /**
+     * The upper bounds of histogram buckets, in seconds.
+     */
+    private static final double[] BUCKETS = {
+            0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300};
+
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricsRegistry.class);
+
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+    private final Map<String, Metric> m_metrics = new LinkedHashMap<>();
+    private final Map<String, String> m_help = new LinkedHashMap<>();
+    private final Map<String, String> m_types = new LinkedHashMap<>();
+
+    public static MetricsRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * A metric whose value is read whenever the metrics are.
+     */
+    public interface Gauge {
+
+        /**
+         * Get the current value, a <code>Number</code> or a
+         * <code>String</code>.
+         */
+        Object getValue();
+    }
+
+    /**
+     * A count that only goes up.
+     */
+    public static class Counter {
+
+        private final AtomicLong m_count = new AtomicLong();
+
+        public void inc() {
+            m_count.incrementAndGet();
+        }
+
+        public void add(long n) {
+            m_count.addAndGet(n);
+        }
+
+        public long get() {
+            return m_count.get();
+        }
+    }
+
+    /**
+     * A histogram of durations, counting them in fixed buckets.
+     */
+    public static class Histogram {
+
+        private final AtomicLongArray m_bucketCounts = new AtomicLongArray(BUCKETS.length + 1);
+        private final AtomicLong m_count = new AtomicLong();
+        private final AtomicLong m_sumNanos = new AtomicLong();
+        private final AtomicLong m_maxNanos = new AtomicLong();
+
+        public void observe(long nanos) {
+            double seconds = nanos / 1e9;
+            int i = 0;
+            while (i < BUCKETS.length && seconds > BUCKETS[i]) {
+                i++;
+            }
+            m_bucketCounts.incrementAndGet(i);
+            m_count.incrementAndGet();
+            m_sumNanos.addAndGet(nanos);
+            long max = m_maxNanos.get();
+            while (nanos > max && !m_maxNanos.compareAndSet(max, nanos)) {
+                max = m_maxNanos.get();
+            }
+        }
+
+        public long getCount() {
+            return m_count.get();
+        }
+
+        /**
+         * Get the sum of all durations, in seconds.
+         */
+        public double getSum() {
+            return m_sumNanos.get() / 1e9;
+        }
+
+        /**
+         * Get the longest duration, in seconds.
+         */
+        public double getMax() {
+            return m_maxNanos.get() / 1e9;
+        }
+
+        /**
+         * Estimate the given percentile, in seconds, as the upper bound of
+         * the bucket it falls into.
+         */
+        public double getPercentile(double fraction) {
+            long count = m_count.get();
+            if (count == 0) return 0.0;
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                seen += m_bucketCounts.get(i);
+                if (seen >= rank) {
+                    return Math.min(BUCKETS[i], getMax());
+                }
+            }
+            return getMax();
+        }
+
+        long getBucketCount(int i) {
+            return m_bucketCounts.get(i);
+        }
+    }
+
+    private static class Metric {
+
+        final String name;
+        final String label;
+        final String labelValue;
+        final Object value;
+
+        Metric(String name, String label, String labelValue, Object value) {
+            this.name = name;
+            this.label = label;
+            this.labelValue = labelValue;
+            this.value = value;
+        }
+
+        /**
+         * Get the name of the metric with its label, if any, like this:
+         * <p/>
+         * <p><pre>proai_stage_processed_total{stage="Fetcher"}</pre>
+         */
+        String getKey() {
+            return label == null ? name : name + "{" + label + "=\"" + escape(labelValue) + "\"}";
+        }
+    }
+
+    public Counter counter(String name, String help) {
+        return counter(name, help, null, null);
+    }
+
+    /**
+     * Get the counter with the given name and label, creating it if needed.
+     */
+    public synchronized Counter counter(String name,
+                                        String help,
+                                        String label,
+                                        String labelValue) {
+        Metric metric = m_metrics.get(new Metric(name, label, labelValue, null).getKey());
+        if (metric != null && metric.value instanceof Counter) {
+            return (Counter) metric.value;
+        }
+        Counter counter = new Counter();
+        add(new Metric(name, label, labelValue, counter), help, "counter");
+        return counter;
+    }
+
+    public Histogram histogram(String name, String help) {
+        return histogram(name, help, null, null);
+    }
+
+    /**
+     * Get the histogram with the given name and label, creating it if needed.
+     */
+    public synchronized Histogram histogram(String name,
+                                            String help,
+                                            String label,
+                                            String labelValue) {
+        Metric metric = m_metrics.get(new Metric(name, label, labelValue, null).getKey());
+        if (metric != null && metric.value instanceof Histogram) {
+            return (Histogram) metric.value;
+        }
+        Histogram histogram = new Histogram();
+        add(new Metric(name, label, labelValue, histogram), help, "histogram");
+        return histogram;
+    }
+
+    public void gauge(String name, String help, Gauge gauge) {
+        gauge(name, help, null, null, gauge);
+    }
+
+    /**
+     * Set the gauge with the given name and label, replacing any set before.
+     */
+    public synchronized void gauge(String name,
+                                   String help,
+                                   String label,
+                                   String labelValue,
+                                   Gauge gauge) {
+        add(new Metric(name, label, labelValue, gauge), help, "gauge");
+    }
+
+    private void add(Metric metric, String help, String type) {
+        m_metrics.put(metric.getKey(), metric);
+        m_help.put(metric.name, help);
+        m_types.put(metric.name, type);
+    }
+
+    private synchronized List<Metric> getMetrics() {
+        return new ArrayList<>(m_metrics.values());
+    }
+
+    /**
+     * Write all metrics in the plain text format of Prometheus, grouped
+     * by name.
+     */
+    public void writeText(PrintWriter out) {
+        List<Metric> metrics = getMetrics();
+        Map<String, String> help;
+        Map<String, String> types;
+        synchronized (this) {
+            help = new LinkedHashMap<>(m_help);
+            types = new LinkedHashMap<>(m_types);
+        }
+        for (Map.Entry<String, String> entry : help.entrySet()) {
+            String name = entry.getKey();
+            out.print("# HELP " + name + " " + entry.getValue() + "\n");
+            out.print("# TYPE " + name + " " + types.get(name) + "\n");
+            for (Metric metric : metrics) {
+                if (metric.name.equals(name)) {
+                    writeText(out, metric);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeText(PrintWriter out, Metric metric) {
+        if (metric.value instanceof Counter) {
+            out.print(metric.getKey() + " " + ((Counter) metric.value).get() + "\n");
+        } else if (metric.value instanceof Histogram) {
+            Histogram histogram = (Histogram) metric.value;
+            long cumulative = 0;
+            for (int i = 0; i <= BUCKETS.length; i++) {
+                cumulative += histogram.getBucketCount(i);
+                String le = i < BUCKETS.length ? Double.toString(BUCKETS[i]) : "+Inf";
+                out.print(metric.name + "_bucket{" + getLabels(metric, "le=\"" + le + "\"")
+                        + "} " + cumulative + "\n");
+            }
+            String labels = getLabels(metric, null);
+            labels = labels.isEmpty() ? "" : "{" + labels + "}";
+            out.print(metric.name + "_sum" + labels + " " + histogram.getSum() + "\n");
+            out.print(metric.name + "_count" + labels + " " + histogram.getCount() + "\n");
+        } else {
+            Object value = readGauge(metric);
+            if (value instanceof Number) {
+                out.print(metric.getKey() + " " + ((Number) value).doubleValue() + "\n");
+            } else if (value != null) {
+                out.print(metric.name + "{" + getLabels(metric, "value=\"" + escape(value.toString()) + "\"")
+                        + "} 1\n");
+            }
+        }
+    }
+
+    private static String getLabels(Metric metric, String extra) {
+        StringBuilder labels = new StringBuilder();
+        if (metric.label != null) {
+            labels.append(metric.label).append("=\"").append(escape(metric.labelValue)).append("\"");
+        }
+        if (extra != null) {
+            if (labels.length() > 0) labels.append(",");
+            labels.append(extra);
+        }
+        return labels.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static Object readGauge(Metric metric) {
+        try {
+            return ((Gauge) metric.value).getValue();
+        } catch (RuntimeException e) {
+            logger.debug("Unable to read gauge " + metric.getKey(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Get the current values of all metrics, as exposed via JMX.
+     */
+    public Map<String, Object> getValues() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Metric metric : getMetrics()) {
+            String key = metric.getKey();
+            if (metric.value instanceof Counter) {
+                values.put(key, ((Counter) metric.value).get());
+            } else if (metric.value instanceof Histogram) {
+                Histogram histogram = (Histogram) metric.value;
+                values.put(key + "_count", histogram.getCount());
+                values.put(key + "_sum", histogram.getSum());
+                values.put(key + "_max", histogram.getMax());
+                for (double percentile : PERCENTILES) {
+                    values.put(key + "_p" + Math.round(percentile * 100), histogram.getPercentile(percentile));
+                }
+            } else {
+                Object value = readGauge(metric);
+                if (value instanceof Number) {
+                    values.put(key, ((Number) value).doubleValue());
+                } else {
+                    values.put(key, value == null ? null : value.toString());
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Register the registry with the platform MBean server, unless it was
+     * registered before.
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to register metrics with JMX", e);
+        }
+    }
+
+    public void unregisterMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to unregister metrics from JMX", e);
+        }
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Map<String, Object> values = getValues();
+        if (!values.containsKey(attribute)) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return values.get(attribute);
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> values = getValues();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                list.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : getValues().entrySet()) {
+            Object value = entry.getValue();
+            String type = value == null ? String.class.getName() : value.getClass().getName();
+            attributes.add(new MBeanAttributeInfo(entry.getKey(), type, entry.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(),
+                "Metrics of the OAI provider",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                null,
+                new MBeanOperationInfo[0],
+                new MBeanNotificationInfo[0]);
+    }
+}
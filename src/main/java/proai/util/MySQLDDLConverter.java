@@ -41,31 +41,7 @@ public class MySQLDDLConverter
             out.append("  ");
             out.append(cs.getName());
             out.append(' ');
-            if (cs.getType().equalsIgnoreCase("text")) {
-                if (cs.getBinary()) {
-                    out.append("blob");
-                } else {
-                    out.append(cs.getType());
-                }
-            } else {
-                out.append(cs.getType());
-                if (cs.getType().toLowerCase().startsWith("varchar")) {
-                    if (cs.getBinary()) {
-                        out.append(" BINARY");
-                    }
-                }
-            }
-            if (cs.isNotNull()) {
-                out.append(" NOT NULL");
-            }
-            if (cs.isAutoIncremented()) {
-                out.append(" auto_increment");
-            }
-            if (cs.getDefaultValue() != null) {
-                out.append(" default '");
-                out.append(cs.getDefaultValue());
-                out.append("'");
-            }
+            appendColumnType(out, cs);
             if (cs.isUnique()) {
                 if (!end.toString().equals("")) {
                     end.append(",\n");
@@ -110,6 +86,14 @@ public class MySQLDDLConverter
             out.append(spec.getPrimaryColumnName());
             out.append(")");
         }
+        if (spec.getUniqueColumnNames() != null) {
+            if (!end.toString().equals("")) {
+                end.append(",\n");
+            }
+            end.append("  UNIQUE KEY " + spec.getUniqueKeyName() + " (");
+            end.append(spec.getUniqueColumnNames());
+            end.append(")");
+        }
         if (!end.toString().equals("")) {
             out.append(",\n");
             out.append(end);
@@ -124,6 +108,96 @@ public class MySQLDDLConverter
         return l;
     }
 
+    public List<String> getAddColumnDDL(TableSpec spec, String columnName) {
+        ColumnSpec cs = spec.getColumnSpec(columnName);
+        ArrayList<String> l = new ArrayList<>();
+        StringBuilder out = new StringBuilder();
+        out.append("ALTER TABLE " + spec.getName() + " ADD COLUMN ");
+        out.append(cs.getName());
+        out.append(' ');
+        appendColumnType(out, cs);
+        l.add(out.toString());
+        if (cs.getIndexName() != null) {
+            l.addAll(getCreateIndexDDL(spec, columnName));
+        }
+        return l;
+    }
+
+    public String getIndexName(TableSpec spec, String columnName) {
+        return spec.getColumnSpec(columnName).getIndexName();
+    }
+
+    public List<String> getCreateIndexDDL(TableSpec spec, String columnName) {
+        ArrayList<String> l = new ArrayList<>();
+        l.add("ALTER TABLE " + spec.getName() + " ADD KEY "
+                + getIndexName(spec, columnName) + " (" + columnName + ")");
+        return l;
+    }
+
+    public List<String> getDropIndexDDL(TableSpec spec, String columnName) {
+        ArrayList<String> l = new ArrayList<>();
+        l.add("ALTER TABLE " + spec.getName() + " DROP KEY "
+                + getIndexName(spec, columnName));
+        return l;
+    }
+
+    public List<String> getRenameTablesDDL(List<TableSpec> specs, List<String> newNames) {
+        // a single RENAME TABLE renames all tables at once, while renaming
+        // them one by one would show some of them renamed to other sessions.
+        // Note that it implicitly commits the current transaction first, so
+        // whatever was done before it is committed even if it fails.
+        StringBuilder out = new StringBuilder("RENAME TABLE ");
+        for (int i = 0; i < specs.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            out.append(specs.get(i).getName() + " TO " + newNames.get(i));
+        }
+        ArrayList<String> l = new ArrayList<>();
+        l.add(out.toString());
+        return l;
+    }
+
+    private static void appendColumnType(StringBuilder out, ColumnSpec cs) {
+        if (cs.getType().equalsIgnoreCase("text")) {
+            if (cs.getBinary()) {
+                out.append("blob");
+            } else {
+                out.append(cs.getType());
+            }
+        } else {
+            out.append(cs.getType());
+            if (cs.getType().toLowerCase().startsWith("varchar")) {
+                if (cs.getBinary()) {
+                    out.append(" BINARY");
+                }
+            }
+        }
+        if (cs.isNotNull()) {
+            out.append(" NOT NULL");
+        }
+        if (cs.isAutoIncremented()) {
+            out.append(" auto_increment");
+        }
+        if (cs.getDefaultValue() != null) {
+            out.append(" default '");
+            out.append(cs.getDefaultValue());
+            out.append("'");
+        }
+    }
+
+    public List<String> getAddUniqueKeyDDL(TableSpec spec) {
+        ArrayList<String> l = new ArrayList<>();
+        l.add("ALTER TABLE " + spec.getName() + " ADD UNIQUE KEY "
+                + spec.getUniqueKeyName() + " ("
+                + spec.getUniqueColumnNames() + ")");
+        return l;
+    }
+
+    public String getUpsertSQL(TableSpec spec, String insert, String assignments) {
+        return insert + " ON DUPLICATE KEY UPDATE " + assignments;
+    }
+
     public String getDropDDL(String command) {
         String[] parts = command.split(" ");
         String tableName = parts[2];
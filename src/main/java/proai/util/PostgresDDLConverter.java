@@ -52,30 +52,7 @@ public class PostgresDDLConverter
             out.append("  ");
             out.append(cs.getName());
             out.append(' ');
-            if (cs.isAutoIncremented()) {
-                out.append(" bigserial");
-            } else {
-                if (cs.getType().toLowerCase().indexOf("int(") == 0) {
-                    // if precision was specified for int, use postgres's default int precision
-                    out.append("int");
-                } else if (cs.getType().toLowerCase().indexOf("smallint(") == 0) {
-                    out.append("smallint");
-                } else {
-                    out.append(cs.getType());
-                }
-                if (cs.isNotNull()) {
-                    out.append(" NOT NULL");
-                }
-
-                if (cs.getDefaultValue() != null) {
-                    out.append(" DEFAULT ");
-                    if (cs.getType().toLowerCase().contains("char(") || cs.getType().toLowerCase().contains("text"))
-                        out.append("'");
-                    out.append(cs.getDefaultValue());
-                    if (cs.getType().toLowerCase().contains("char(") || cs.getType().toLowerCase().contains("text"))
-                        out.append("'");
-                }
-            }
+            appendColumnType(out, cs);
             if (cs.isUnique()) {
                 if (!end.toString().equals("")) {
                     end.append(",\n");
@@ -116,6 +93,14 @@ public class PostgresDDLConverter
             out.append(spec.getPrimaryColumnName());
             out.append(")");
         }
+        if (spec.getUniqueColumnNames() != null) {
+            if (!end.toString().equals("")) {
+                end.append(",\n");
+            }
+            end.append("  CONSTRAINT " + spec.getUniqueKeyName() + " UNIQUE (");
+            end.append(spec.getUniqueColumnNames());
+            end.append(")");
+        }
         if (!end.toString().equals("")) {
             out.append(",\n");
             out.append(end);
@@ -127,6 +112,94 @@ public class PostgresDDLConverter
         return l;
     }
 
+    public List<String> getAddColumnDDL(TableSpec spec, String columnName) {
+        ColumnSpec cs = spec.getColumnSpec(columnName);
+        ArrayList<String> l = new ArrayList<>();
+        StringBuilder out = new StringBuilder();
+        out.append("ALTER TABLE " + spec.getName() + " ADD COLUMN ");
+        out.append(cs.getName());
+        out.append(' ');
+        appendColumnType(out, cs);
+        l.add(out.toString());
+        if (cs.getIndexName() != null) {
+            l.addAll(getCreateIndexDDL(spec, columnName));
+        }
+        return l;
+    }
+
+    public String getIndexName(TableSpec spec, String columnName) {
+        return spec.getName() + "_" + columnName;
+    }
+
+    public List<String> getCreateIndexDDL(TableSpec spec, String columnName) {
+        ArrayList<String> l = new ArrayList<>();
+        l.add("CREATE INDEX " + getIndexName(spec, columnName)
+                + " ON " + spec.getName() + " (" + columnName + ")");
+        return l;
+    }
+
+    public List<String> getDropIndexDDL(TableSpec spec, String columnName) {
+        ArrayList<String> l = new ArrayList<>();
+        l.add("DROP INDEX " + getIndexName(spec, columnName));
+        return l;
+    }
+
+    public List<String> getRenameTablesDDL(List<TableSpec> specs, List<String> newNames) {
+        // DDL is transactional, so the renames are atomic if run in one
+        ArrayList<String> l = new ArrayList<>();
+        for (int i = 0; i < specs.size(); i++) {
+            TableSpec spec = specs.get(i);
+            TableSpec renamed = spec.withName(newNames.get(i));
+            l.add("ALTER TABLE " + spec.getName() + " RENAME TO " + renamed.getName());
+            for (String column : spec.getIndexedColumnNames()) {
+                l.add("ALTER INDEX " + getIndexName(spec, column)
+                        + " RENAME TO " + getIndexName(renamed, column));
+            }
+        }
+        return l;
+    }
+
+    private static void appendColumnType(StringBuilder out, ColumnSpec cs) {
+        if (cs.isAutoIncremented()) {
+            out.append(" bigserial");
+        } else {
+            if (cs.getType().toLowerCase().indexOf("int(") == 0) {
+                // if precision was specified for int, use postgres's default int precision
+                out.append("int");
+            } else if (cs.getType().toLowerCase().indexOf("smallint(") == 0) {
+                out.append("smallint");
+            } else {
+                out.append(cs.getType());
+            }
+            if (cs.isNotNull()) {
+                out.append(" NOT NULL");
+            }
+
+            if (cs.getDefaultValue() != null) {
+                out.append(" DEFAULT ");
+                if (cs.getType().toLowerCase().contains("char(") || cs.getType().toLowerCase().contains("text"))
+                    out.append("'");
+                out.append(cs.getDefaultValue());
+                if (cs.getType().toLowerCase().contains("char(") || cs.getType().toLowerCase().contains("text"))
+                    out.append("'");
+            }
+        }
+    }
+
+    public List<String> getAddUniqueKeyDDL(TableSpec spec) {
+        ArrayList<String> l = new ArrayList<>();
+        l.add("ALTER TABLE " + spec.getName() + " ADD CONSTRAINT "
+                + spec.getUniqueKeyName() + " UNIQUE ("
+                + spec.getUniqueColumnNames() + ")");
+        return l;
+    }
+
+    public String getUpsertSQL(TableSpec spec, String insert, String assignments) {
+        // available as of PostgreSQL 9.5
+        return insert + " ON CONFLICT (" + spec.getUniqueColumnNames()
+                + ") DO UPDATE SET " + assignments;
+    }
+
     public String getDropDDL(String command) {
         String[] parts = command.split(" ");
         String objectType = parts[1];
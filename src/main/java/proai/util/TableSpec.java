@@ -20,6 +20,7 @@ import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -38,6 +39,7 @@ public class TableSpec {
     private final String m_name;
     private final String m_primaryColumnName;
     private String m_type;
+    private String m_uniqueColumnNames;
 
     /**
      * Constructs a TableSpec given a name, a set of ColumnSpecs, and the
@@ -74,6 +76,24 @@ public class TableSpec {
         m_type = type;
     }
 
+    /**
+     * Constructs a TableSpec given a name, a set of ColumnSpecs, the
+     * name of the primary key column, a table type, and the names of
+     * columns whose combined values must be unique.
+     *
+     * @param name              The table name.
+     * @param columnSpecs       ColumnSpec objects describing columns in the table.
+     * @param primaryColumnName The column that is the primary key for the table.
+     * @param type              The table type.
+     * @param uniqueColumnNames Comma-separated names of the columns that make
+     *                          up the unique key of the table, or null if none.
+     */
+    public TableSpec(String name, List<ColumnSpec> columnSpecs, String primaryColumnName,
+                     String type, String uniqueColumnNames) {
+        this(name, columnSpecs, primaryColumnName, type);
+        m_uniqueColumnNames = uniqueColumnNames;
+    }
+
     /**
      * Gets a TableSpec for each table element in the stream, where
      * the stream contains a valid XML document containing one or
@@ -82,7 +102,8 @@ public class TableSpec {
      * Input is of the form:
      * <pre>
      * &lt;database&gt;
-     *   &lt;table name=&quot;<i>tableName</i>&quot; primaryKey=&quot;<i>primaryColumnName</i>&quot; type=&quot;<i>tableType</i>&quot;&gt;
+     *   &lt;table name=&quot;<i>tableName</i>&quot; primaryKey=&quot;<i>primaryColumnName</i>&quot; type=&quot;<i>tableType</i>&quot;
+     *          uniqueKey=&quot;<i>uniqueColumnNames</i>&quot;&gt;
      *     &lt;column name=&quot;<i>columnName</i>&quot;
      *                type=&quot;<i>typeSpec</i>&quot;
      *                autoIncrement=&quot;<i>isAutoIncremented</i>&quot;
@@ -102,6 +123,8 @@ public class TableSpec {
      * and can't be a foreign key.
      * <li> <b>type</b> - The table type, which is RDBMS-specific.  See
      * TableSpec(String, Set, String, String) for detail.
+     * <li> <b>uniqueColumnNames</b> - Optionally identifies, separated by
+     * commas, columns whose combined values must be unique in the table.
      * <li> <b>columnName</b> - The name of the column.
      * <li> <b>typeSpec</b> - The value type of the column.  For instance,
      * varchar(255).  This is not checked for validity. See
@@ -166,6 +189,36 @@ public class TableSpec {
         return m_primaryColumnName;
     }
 
+    /**
+     * Gets the comma-separated names of the columns that make up the
+     * unique key of the table.
+     *
+     * @return The names, or null if the table has no unique key.
+     */
+    public String getUniqueColumnNames() {
+        return m_uniqueColumnNames;
+    }
+
+    /**
+     * Gets the name of the unique key of the table.
+     *
+     * @return The name, derived from the table name.
+     */
+    public String getUniqueKeyName() {
+        return m_name + "_unique";
+    }
+
+    /**
+     * Gets a copy of this TableSpec for a table with the given name,
+     * but otherwise the same columns, keys and type.
+     *
+     * @param name The name of the other table.
+     * @return The copy.
+     */
+    public TableSpec withName(String name) {
+        return new TableSpec(name, m_columnSpecs, m_primaryColumnName, m_type, m_uniqueColumnNames);
+    }
+
     /**
      * Gets the type of the table.
      *
@@ -184,4 +237,48 @@ public class TableSpec {
         return m_columnSpecs.iterator();
     }
 
+    /**
+     * Gets the names of all columns, in the order they were specified.
+     *
+     * @return The column names.
+     */
+    public List<String> getColumnNames() {
+        List<String> names = new ArrayList<>();
+        for (ColumnSpec cs : m_columnSpecs) {
+            names.add(cs.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Gets the names of all columns that have an index, in the order they
+     * were specified.
+     *
+     * @return The column names.
+     */
+    public List<String> getIndexedColumnNames() {
+        List<String> names = new ArrayList<>();
+        for (ColumnSpec cs : m_columnSpecs) {
+            if (cs.getIndexName() != null) {
+                names.add(cs.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Gets the spec of the named column.
+     *
+     * @param columnName The name of the column.
+     * @return The ColumnSpec, or null if no such column is specified.
+     */
+    ColumnSpec getColumnSpec(String columnName) {
+        for (ColumnSpec cs : m_columnSpecs) {
+            if (cs.getName().equalsIgnoreCase(columnName)) {
+                return cs;
+            }
+        }
+        return null;
+    }
+
 }
@@ -42,6 +42,7 @@ class TableSpecDeserializer
     private String m_table_name;
     private String m_table_primaryKey;
     private String m_table_type;
+    private String m_table_uniqueKey;
 
     TableSpecDeserializer() {
         m_tableSpecList = new ArrayList<>();
@@ -61,6 +62,7 @@ class TableSpecDeserializer
             }
             m_table_primaryKey = a.getValue("primaryKey");
             m_table_type = a.getValue("type");
+            m_table_uniqueKey = a.getValue("uniqueKey");
         } else if (localName.equals("column")) {
             m_column_name = a.getValue("name");
             if (m_column_name == null) {
@@ -110,10 +112,12 @@ class TableSpecDeserializer
     public void endElement(String uri, String localName, String qName) {
         if (localName.equals("table")) {
             m_tableSpecList.add(new TableSpec(m_table_name,
-                    m_columnSpecList, m_table_primaryKey, m_table_type));
+                    m_columnSpecList, m_table_primaryKey, m_table_type,
+                    m_table_uniqueKey));
             m_table_name = null;
             m_table_primaryKey = null;
             m_table_type = null;
+            m_table_uniqueKey = null;
             m_columnSpecList = new ArrayList<>();
         } else if (localName.equals("column")) {
             m_columnSpecList.add(new ColumnSpec(m_column_name, m_column_type, m_column_binary,
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package oaiprovider.driver;
+
+import oaiprovider.FedoraRecord;
+import org.fcrepo.common.Constants;
+import org.jrdf.graph.Node;
+import org.junit.Assert;
+import org.junit.Test;
+import org.trippi.TupleIterator;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class CombinerRecordIteratorTest {
+
+    private static final String DELETED = "info:fedora/fedora-system:def/model#Deleted";
+
+    @Test
+    public void mergesSetsAndAboutsByItemID() throws Exception {
+        Tuples primary = new Tuples(
+                primary("test:1", "oai:example.org:1", "2016-01-01T10:00:00.123", Constants.MODEL.ACTIVE.uri),
+                primary("test:2", "oai:example.org:2", "2016-01-01T11:00:00", DELETED),
+                primary("test:3", "oai:example.org:3", "2016-01-01T12:00:00Z", Constants.MODEL.ACTIVE.uri));
+        Tuples sets = new Tuples(
+                tuple("itemID", "oai:example.org:1", "setSpec", "ddc:004"),
+                tuple("itemID", "oai:example.org:1", "setSpec", "doc-type:article"),
+                tuple("itemID", "oai:example.org:3", "setSpec", "ddc:020"));
+        Tuples abouts = new Tuples(
+                tuple("itemID", "oai:example.org:2"));
+
+        List<String> sourceInfos = new ArrayList<>();
+        CombinerRecordIterator records = new CombinerRecordIterator("oai_dc",
+                "info:fedora/*/oai_dc", "info:fedora/*/about", primary, sets, abouts);
+        while (records.hasNext()) {
+            FedoraRecord record = records.next();
+            Assert.assertEquals("oai_dc", record.getPrefix());
+            sourceInfos.add(record.getItemID() + " " + record.getSourceInfo());
+        }
+
+        Assert.assertEquals(Arrays.asList(
+                "oai:example.org:1 info:fedora/test:1/oai_dc null false 2016-01-01T10:00:00Z ddc:004 doc-type:article",
+                "oai:example.org:2 info:fedora/test:2/oai_dc info:fedora/test:2/about true 2016-01-01T11:00:00Z",
+                "oai:example.org:3 info:fedora/test:3/oai_dc null false 2016-01-01T12:00:00Z ddc:020"),
+                sourceInfos);
+        Assert.assertTrue(primary.closed && sets.closed && abouts.closed);
+    }
+
+    @Test
+    public void closesAllQueriesWhenClosedEarly() throws Exception {
+        Tuples primary = new Tuples(
+                primary("test:1", "oai:example.org:1", "2016-01-01T10:00:00", Constants.MODEL.ACTIVE.uri),
+                primary("test:2", "oai:example.org:2", "2016-01-01T11:00:00", Constants.MODEL.ACTIVE.uri));
+        Tuples sets = new Tuples(tuple("itemID", "oai:example.org:2", "setSpec", "ddc:004"));
+
+        CombinerRecordIterator records = new CombinerRecordIterator("oai_dc",
+                "info:fedora/*/oai_dc", null, primary, sets, null);
+        Assert.assertTrue(records.next().getSourceInfo().endsWith(" false 2016-01-01T10:00:00Z"));
+        records.close();
+
+        Assert.assertFalse(records.hasNext());
+        Assert.assertTrue(primary.closed && sets.closed);
+    }
+
+    private static Map<String, Node> primary(String pid, String itemID, String date, String state) {
+        return tuple("item", "info:fedora/" + pid, "itemID", itemID, "date", date, "state", state);
+    }
+
+    private static Map<String, Node> tuple(String... namesAndValues) {
+        Map<String, Node> tuple = new HashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            tuple.put(namesAndValues[i], node(namesAndValues[i + 1]));
+        }
+        return tuple;
+    }
+
+    private static Node node(final String value) {
+        return (Node) Proxy.newProxyInstance(CombinerRecordIteratorTest.class.getClassLoader(),
+                new Class<?>[]{Node.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object o, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "stringValue":
+                            case "toString":
+                                return value;
+                            case "hashCode":
+                                return value.hashCode();
+                            case "equals":
+                                return o == args[0];
+                            default:
+                                return null;
+                        }
+                    }
+                });
+    }
+
+    private static class Tuples extends TupleIterator {
+
+        private final Iterator<Map<String, Node>> m_tuples;
+        boolean closed;
+
+        @SafeVarargs
+        Tuples(Map<String, Node>... tuples) {
+            m_tuples = Arrays.asList(tuples).iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return m_tuples.hasNext();
+        }
+
+        @Override
+        public Map<String, Node> next() {
+            return m_tuples.next();
+        }
+
+        @Override
+        public String[] names() {
+            return new String[0];
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package oaiprovider.driver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class DisseminationXmlTest {
+
+    private String writeMetadata(String xml, String encoding) throws Exception {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        FedoraOAIDriver.writeRecordMetadata(writer,
+                FedoraOAIDriver.getDisseminationXml(xml.getBytes(encoding), "info:fedora/test", null));
+        writer.flush();
+        return out.toString().replace(System.getProperty("line.separator"), "\n");
+    }
+
+    @Test
+    public void copiesPlainDissemination() throws Exception {
+        String metadata = writeMetadata("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n"
+                + "<!-- generated -->\n"
+                + "<dc xmlns=\"http://purl.org/dc/elements/1.1/\"><title>Gr\u00fc\u00dfe</title></dc>\n",
+                "ISO-8859-1");
+        Assert.assertEquals("  <metadata>\n"
+                + "<dc xmlns=\"http://purl.org/dc/elements/1.1/\"><title>Gr\u00fc\u00dfe</title></dc>\n"
+                + "  </metadata>\n", metadata);
+    }
+
+    @Test
+    public void expandsEntitiesOfDoctype() throws Exception {
+        String metadata = writeMetadata("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<!DOCTYPE dc [\n<!ENTITY publisher \"SLUB Dresden\">\n]>\n"
+                + "<dc xmlns=\"http://purl.org/dc/elements/1.1/\"><publisher>&publisher;</publisher></dc>\n",
+                "UTF-8");
+        Assert.assertFalse(metadata.contains("DOCTYPE"));
+        Assert.assertEquals("  <metadata>\n"
+                + "<dc xmlns=\"http://purl.org/dc/elements/1.1/\"><publisher>SLUB Dresden</publisher></dc>\n"
+                + "  </metadata>\n", metadata);
+    }
+
+    @Test(expected = proai.error.RepositoryException.class)
+    public void rejectsMalformedDissemination() throws Exception {
+        writeMetadata("<dc><title></dc>", "UTF-8");
+    }
+}
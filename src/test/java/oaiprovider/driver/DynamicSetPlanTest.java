@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package oaiprovider.driver;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import proai.driver.daos.json.DissTermsDaoJson;
+import proai.driver.daos.json.SetSpecDaoJson;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+public class DynamicSetPlanTest {
+
+    private static final String XMETADISSPLUS =
+            "<xMetaDiss:xMetaDiss xmlns:xMetaDiss=\"http://www.d-nb.de/standards/xmetadissplus/\""
+                    + " xmlns:dc=\"http://purl.org/dc/elements/1.1/\""
+                    + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
+                    + "<dc:title>Test</dc:title>"
+                    + "<dc:subject xsi:type=\"dcterms:DDC\">004</dc:subject>"
+                    + "<dc:subject xsi:type=\"dcterms:DDC\">020</dc:subject>"
+                    + "</xMetaDiss:xMetaDiss>";
+
+    private DynamicSetPlan compile(String mdPrefix) throws Exception {
+        return DynamicSetPlan.compile(mdPrefix,
+                new DissTermsDaoJson(getClass().getResourceAsStream("/config/dissemination-config.json")),
+                new SetSpecDaoJson(getClass().getResourceAsStream("/config/list-set-conf.json")));
+    }
+
+    private Document parse(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void matchesSetsOfRecord() throws Exception {
+        List<String> setSpecs = compile("xmetadissplus").evaluate(parse(XMETADISSPLUS));
+        Assert.assertTrue(setSpecs.contains("ddc:004"));
+        Assert.assertTrue(setSpecs.contains("ddc:020"));
+        Assert.assertFalse(setSpecs.contains("ddc:000"));
+        Assert.assertFalse(setSpecs.contains("ddc:010"));
+    }
+
+    @Test
+    public void emptyForFormatWithoutTerms() throws Exception {
+        DynamicSetPlan plan = compile("unknown_format");
+        Assert.assertTrue(plan.isEmpty());
+        Assert.assertTrue(plan.evaluate(parse(XMETADISSPLUS)).isEmpty());
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package oaiprovider.driver;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class FedoraChangeFeedTest {
+
+    private ServerSocket broker;
+    private FedoraChangeFeed feed;
+    private final BlockingQueue<Set<String>> batches = new LinkedBlockingQueue<>();
+
+    @Before
+    public void startBroker() throws Exception {
+        broker = new ServerSocket(0);
+        Thread brokerThread = new Thread() {
+            @Override
+            public void run() {
+                try (Socket socket = broker.accept()) {
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    Assert.assertTrue(readFrame(in).startsWith("CONNECT\n"));
+                    writeFrame(out, "CONNECTED\nversion:1.1\n\n");
+                    Assert.assertTrue(readFrame(in).contains("destination:/topic/fedora.apim.update\n"));
+                    writeFrame(out, "MESSAGE\nmessage-id:1\npid:demo:1\nmethodName:modifyDatastreamByValue\n\n<entry/>");
+                    writeFrame(out, "\nMESSAGE\nmessage-id:2\n\n<entry xmlns=\"http://www.w3.org/2005/Atom\">"
+                            + "<title type=\"text\">addRelationship</title>"
+                            + "<summary type=\"text\">demo:2</summary></entry>");
+                    writeFrame(out, "MESSAGE\nmessage-id:3\npid:demo:1\n\n<entry/>");
+                    writeFrame(out, "MESSAGE\nmessage-id:4\npid:not a pid\n\n<entry/>");
+                    readFrame(in);
+                } catch (Exception ignored) {
+                }
+            }
+        };
+        brokerThread.setDaemon(true);
+        brokerThread.start();
+    }
+
+    @After
+    public void stop() throws Exception {
+        if (feed != null) feed.shutdown();
+        broker.close();
+    }
+
+    @Test
+    public void passesOnChangedPIDsInOneBatch() throws Exception {
+        feed = new FedoraChangeFeed("localhost", broker.getLocalPort(), null, null,
+                "/topic/fedora.apim.update", 200,
+                new FedoraChangeFeed.Handler() {
+                    @Override
+                    public void pidsChanged(Set<String> pids) {
+                        batches.add(pids);
+                    }
+                });
+        feed.start();
+
+        Set<String> pids = batches.poll(10, TimeUnit.SECONDS);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("demo:1", "demo:2")), pids);
+        Assert.assertNull(batches.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    private static String readFrame(InputStream in) throws Exception {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        int b = in.read();
+        while (b > 0) {
+            frame.write(b);
+            b = in.read();
+        }
+        return frame.toString("UTF-8");
+    }
+
+    private static void writeFrame(OutputStream out, String frame) throws Exception {
+        out.write(frame.getBytes("UTF-8"));
+        out.write(0);
+        out.flush();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package oaiprovider.driver;
+
+import oaiprovider.FedoraMetadataFormat;
+import oaiprovider.FedoraRecord;
+import oaiprovider.InvocationSpec;
+import oaiprovider.QueryFactory;
+import org.fcrepo.client.FedoraClient;
+import org.junit.Assert;
+import org.junit.Test;
+import proai.MetadataFormat;
+import proai.SetInfo;
+import proai.driver.RemoteIterator;
+import proai.driver.impl.RemoteIteratorImpl;
+import proai.error.RepositoryException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+public class WindowedRecordIteratorTest {
+
+    private static final FedoraMetadataFormat FORMAT =
+            new FedoraMetadataFormat("oai_dc", "http://www.openarchives.org/OAI/2.0/oai_dc/", "", null, null);
+
+    @Test
+    public void listsEachRecordOnce() throws Exception {
+        RecordQueryFactory queryFactory = new RecordQueryFactory(100, Long.MAX_VALUE);
+        List<String> itemIDs = list(new WindowedRecordIterator(queryFactory, FORMAT,
+                new Date(0), new Date(99000), 10000, 5, 2, 3));
+        Assert.assertEquals(100, itemIDs.size());
+        Assert.assertEquals(100, new HashSet<>(itemIDs).size());
+    }
+
+    @Test
+    public void splitsWindowsThatFail() throws Exception {
+        RecordQueryFactory queryFactory = new RecordQueryFactory(100, 5000);
+        List<String> itemIDs = list(new WindowedRecordIterator(queryFactory, FORMAT,
+                new Date(0), new Date(99000), 20000, 5, 2, 5));
+        Assert.assertEquals(100, itemIDs.size());
+        Assert.assertEquals(100, new HashSet<>(itemIDs).size());
+        Assert.assertTrue(queryFactory.failures > 0);
+    }
+
+    @Test(expected = RepositoryException.class)
+    public void givesUpAfterAttempts() throws Exception {
+        RecordQueryFactory queryFactory = new RecordQueryFactory(100, 0);
+        list(new WindowedRecordIterator(queryFactory, FORMAT,
+                new Date(0), new Date(99000), 20000, 5, 2, 2));
+    }
+
+    @Test
+    public void recordsFollowCompletedWindows() throws Exception {
+        RecordQueryFactory queryFactory = new RecordQueryFactory(100, Long.MAX_VALUE);
+        WindowedRecordIterator riter = new WindowedRecordIterator(queryFactory, FORMAT,
+                new Date(0), new Date(99000), 10000, 5, 2, 3);
+        Assert.assertNull(riter.getCompletedUntil());
+        long completedUntil = -1;
+        Set<String> itemIDs = new HashSet<>();
+        while (riter.hasNext()) {
+            Date windowEnd = riter.getCompletedUntil();
+            if (windowEnd != null) {
+                Assert.assertTrue(windowEnd.getTime() >= completedUntil);
+                completedUntil = windowEnd.getTime();
+            }
+            FedoraRecord record = riter.next();
+            // a listing resumed after the completed windows still gets it
+            Assert.assertTrue(dateOf(record) > completedUntil);
+            itemIDs.add(record.getItemID());
+        }
+        Assert.assertEquals(100, itemIDs.size());
+        Assert.assertEquals(99000L, riter.getCompletedUntil().getTime());
+    }
+
+    private static List<String> list(RemoteIterator<FedoraRecord> riter) throws Exception {
+        List<String> itemIDs = new ArrayList<>();
+        try {
+            while (riter.hasNext()) {
+                itemIDs.add(riter.next().getItemID());
+            }
+        } finally {
+            riter.close();
+        }
+        return itemIDs;
+    }
+
+    private static long dateOf(FedoraRecord record) {
+        return Long.parseLong(record.getItemID().substring("item-".length()));
+    }
+
+    /**
+     * Lists one record per second, failing queries longer than a limit.
+     */
+    private static class RecordQueryFactory implements QueryFactory {
+
+        private final int m_count;
+        private final long m_maxMillis;
+        private int failures;
+
+        RecordQueryFactory(int count, long maxMillis) {
+            m_count = count;
+            m_maxMillis = maxMillis;
+        }
+
+        @Override
+        public RemoteIterator<FedoraRecord> listRecords(Date from, Date until, FedoraMetadataFormat format) {
+            if (until.getTime() - from.getTime() >= m_maxMillis) {
+                synchronized (this) {
+                    failures++;
+                }
+                throw new RepositoryException("Query timed out");
+            }
+            List<FedoraRecord> records = new ArrayList<>();
+            for (long date = 0; date < m_count * 1000L; date += 1000) {
+                if (date >= from.getTime() && date <= until.getTime()) {
+                    records.add(new FedoraRecord("item-" + date, format.getPrefix(),
+                            "", String.valueOf(date), false, new String[0], ""));
+                }
+            }
+            return new RemoteIteratorImpl<>(records.iterator());
+        }
+
+        @Override
+        public void init(FedoraClient client, FedoraClient queryClient, Properties props) {
+        }
+
+        @Override
+        public Date latestRecordDate(Iterator<? extends MetadataFormat> fedoraMetadataFormats) {
+            return new Date((m_count - 1) * 1000L);
+        }
+
+        @Override
+        public Date earliestRecordDate(Iterator<? extends MetadataFormat> fedoraMetadataFormats) {
+            return new Date(0);
+        }
+
+        @Override
+        public RemoteIterator<SetInfo> listSetInfo(InvocationSpec setInfoSpec) {
+            return new RemoteIteratorImpl<>(new ArrayList<SetInfo>().iterator());
+        }
+
+        @Override
+        public long countRecords(Date from, Date until, FedoraMetadataFormat format) {
+            return m_count;
+        }
+
+        @Override
+        public RemoteIterator<FedoraRecord> listRecords(Collection<String> pids, FedoraMetadataFormat format) {
+            return new RemoteIteratorImpl<>(new ArrayList<FedoraRecord>().iterator());
+        }
+    }
+}
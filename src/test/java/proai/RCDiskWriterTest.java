@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package proai;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import proai.cache.RCDiskWriter;
+
+import java.io.File;
+
+public class RCDiskWriterTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void datestampDoesNotAffectContentHash() throws Exception {
+        String first = write("a.xml", "2016-01-01T00:00:00Z", "doc-type:article");
+        String second = write("b.xml", "2017-02-03T04:05:06Z", "doc-type:article");
+        Assert.assertEquals(first, second);
+    }
+
+    @Test
+    public void contentChangesContentHash() throws Exception {
+        String first = write("a.xml", "2016-01-01T00:00:00Z", "doc-type:article");
+        String second = write("b.xml", "2016-01-01T00:00:00Z", "doc-type:book");
+        Assert.assertNotEquals(first, second);
+    }
+
+    private String write(String path, String datestamp, String setSpec) throws Exception {
+        File baseDir = tempFolder.getRoot();
+        RCDiskWriter writer = new RCDiskWriter(baseDir, path);
+        writer.print("<record><header><identifier>oai:example:1</identifier>");
+        writer.print("<datestamp>" + datestamp + "</datestamp>");
+        writer.print("<setSpec>" + setSpec + "</setSpec></header>");
+        writer.print("<metadata><dc/></metadata></record>");
+        writer.close();
+        return writer.getContentHash();
+    }
+
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package proai.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+import proai.MetadataFormat;
+import proai.Record;
+import proai.SetInfo;
+import proai.driver.OAIDriver;
+import proai.driver.RemoteIterator;
+import proai.driver.WindowedRemoteIterator;
+import proai.driver.impl.RemoteIteratorImpl;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class BootstrapResumeTest {
+
+    private static final String PREFIX = "oai_dc";
+    private static final Date UNTIL = new Date(99000);
+
+    @Test
+    public void resumesWindowedListingFromCheckpointDate() throws Exception {
+        ListingDriver driver = new ListingDriver(100, true);
+
+        BootstrapProgress progress = new BootstrapProgress();
+        progress.addFormat(PREFIX, new Date(0), UNTIL, null);
+        List<QueueItem> items = feed(driver, progress);
+        Assert.assertEquals(100, items.size());
+
+        // the loader gets through the first records out of order before
+        // the bootstrap is interrupted
+        Set<String> loaded = load(progress, items, 35, 40, 60);
+        Date checkpointDate = progress.getCheckpointDate(PREFIX);
+        Assert.assertNull(progress.getCheckpoint(PREFIX));
+        Assert.assertTrue(checkpointDate.getTime() > 0);
+
+        BootstrapProgress resumed = new BootstrapProgress();
+        resumed.addFormat(PREFIX, checkpointDate, UNTIL, progress.getCheckpoint(PREFIX));
+        Set<String> refed = itemIDs(feed(driver, resumed));
+        Assert.assertTrue(refed.size() < 100);
+        for (QueueItem item : items) {
+            Assert.assertTrue(item.getIdentifier() + " lost on resume",
+                    loaded.contains(item.getIdentifier()) || refed.contains(item.getIdentifier()));
+        }
+    }
+
+    @Test
+    public void resumesOrderedListingAfterCheckpointItemID() throws Exception {
+        ListingDriver driver = new ListingDriver(100, false);
+
+        BootstrapProgress progress = new BootstrapProgress();
+        progress.addFormat(PREFIX, new Date(0), UNTIL, null);
+        List<QueueItem> items = feed(driver, progress);
+
+        Set<String> loaded = load(progress, items, 35, 40, 60);
+        Assert.assertEquals(items.get(34).getIdentifier(), progress.getCheckpoint(PREFIX));
+
+        BootstrapProgress resumed = new BootstrapProgress();
+        resumed.addFormat(PREFIX, progress.getCheckpointDate(PREFIX), UNTIL, progress.getCheckpoint(PREFIX));
+        Set<String> refed = itemIDs(feed(driver, resumed));
+        Assert.assertEquals(65, refed.size());
+        for (QueueItem item : items) {
+            Assert.assertTrue(item.getIdentifier() + " lost on resume",
+                    loaded.contains(item.getIdentifier()) || refed.contains(item.getIdentifier()));
+        }
+    }
+
+    private static List<QueueItem> feed(OAIDriver driver, BootstrapProgress progress) throws Exception {
+        BlockingQueue<QueueItem> output = new ArrayBlockingQueue<>(1000);
+        new BootstrapFeeder(newUpdater(driver), output, driver, progress, Long.MAX_VALUE).runThread();
+        List<QueueItem> items = new ArrayList<>();
+        output.drainTo(items);
+        return items;
+    }
+
+    /**
+     * Load the records fed before the given sequence number, and those fed
+     * from the second number up to the third, leaving a gap in between.
+     */
+    private static Set<String> load(BootstrapProgress progress,
+                                    List<QueueItem> items,
+                                    int firstGap,
+                                    int afterGap,
+                                    int end) {
+        List<QueueItem> done = new ArrayList<>(items.subList(0, firstGap));
+        done.addAll(items.subList(afterGap, end));
+        Collections.reverse(done);
+        for (QueueItem item : done) {
+            progress.loaded(item);
+        }
+        return itemIDs(done);
+    }
+
+    private static Set<String> itemIDs(List<QueueItem> items) {
+        Set<String> itemIDs = new HashSet<>();
+        for (QueueItem item : items) {
+            itemIDs.add(item.getIdentifier());
+        }
+        return itemIDs;
+    }
+
+    private static Updater newUpdater(OAIDriver driver) {
+        return new Updater(driver, null, null, 0, 0, 1, false, true, 0, false,
+                1, 1, 1, 1000, 1, 0, 0, 0, 1, 1, null, null);
+    }
+
+    /**
+     * Lists one record per second, either in itemID order or in windows of
+     * ten seconds, with the records of each window in reverse order.
+     */
+    private static class ListingDriver implements OAIDriver {
+
+        private final int m_count;
+        private final boolean m_windowed;
+
+        ListingDriver(int count, boolean windowed) {
+            m_count = count;
+            m_windowed = windowed;
+        }
+
+        @Override
+        public RemoteIterator<? extends Record> listRecords(Date from, Date until, String mdPrefix) {
+            List<List<Record>> windows = new ArrayList<>();
+            List<Date> windowEnds = new ArrayList<>();
+            for (long start = from.getTime(); start <= until.getTime(); start += 10000) {
+                long end = Math.min(start + 9999, until.getTime());
+                List<Record> window = new ArrayList<>();
+                for (long date = 0; date < m_count * 1000L; date += 1000) {
+                    if (date >= start && date <= end) {
+                        window.add(new ListedRecord(String.format("item-%06d", date), mdPrefix));
+                    }
+                }
+                if (m_windowed) {
+                    Collections.reverse(window);
+                }
+                windows.add(window);
+                windowEnds.add(new Date(end));
+            }
+            if (!m_windowed) {
+                List<Record> records = new ArrayList<>();
+                for (List<Record> window : windows) {
+                    records.addAll(window);
+                }
+                return new RemoteIteratorImpl<>(records.iterator());
+            }
+            return new WindowIterator(windows, windowEnds);
+        }
+
+        @Override
+        public void init(Properties props) {
+        }
+
+        @Override
+        public Properties getProps() {
+            return new Properties();
+        }
+
+        @Override
+        public void write(PrintWriter out) {
+        }
+
+        @Override
+        public Date getLatestDate() {
+            return UNTIL;
+        }
+
+        @Override
+        public RemoteIterator<? extends MetadataFormat> listMetadataFormats() {
+            return new RemoteIteratorImpl<>(new ArrayList<MetadataFormat>().iterator());
+        }
+
+        @Override
+        public RemoteIterator<? extends SetInfo> listSetInfo() {
+            return new RemoteIteratorImpl<>(new ArrayList<SetInfo>().iterator());
+        }
+
+        @Override
+        public void writeRecordXML(String itemID, String mdPrefix, String sourceInfo, PrintWriter writer) {
+        }
+    }
+
+    private static class WindowIterator implements WindowedRemoteIterator<Record> {
+
+        private final Iterator<List<Record>> m_windows;
+        private final Iterator<Date> m_windowEnds;
+        private Iterator<Record> m_current = Collections.emptyIterator();
+        private Date m_currentEnd;
+        private Date m_completedUntil;
+
+        WindowIterator(List<List<Record>> windows, List<Date> windowEnds) {
+            m_windows = windows.iterator();
+            m_windowEnds = windowEnds.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!m_current.hasNext()) {
+                if (m_currentEnd != null) {
+                    m_completedUntil = m_currentEnd;
+                }
+                if (!m_windows.hasNext()) {
+                    return false;
+                }
+                m_current = m_windows.next().iterator();
+                m_currentEnd = m_windowEnds.next();
+            }
+            return true;
+        }
+
+        @Override
+        public Record next() {
+            hasNext();
+            return m_current.next();
+        }
+
+        @Override
+        public Date getCompletedUntil() {
+            return m_completedUntil;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class ListedRecord implements Record {
+
+        private final String m_itemID;
+        private final String m_prefix;
+
+        ListedRecord(String itemID, String prefix) {
+            m_itemID = itemID;
+            m_prefix = prefix;
+        }
+
+        @Override
+        public String getItemID() {
+            return m_itemID;
+        }
+
+        @Override
+        public String getPrefix() {
+            return m_prefix;
+        }
+
+        @Override
+        public String getSourceInfo() {
+            return m_itemID;
+        }
+    }
+}
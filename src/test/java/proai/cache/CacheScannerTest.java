@@ -0,0 +1,257 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package proai.cache;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import proai.util.McKoiDDLConverter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Walks a cache directory against the paths a fake database refers to,
+ * from the current tables as well as those of the shadow and old
+ * generations.
+ */
+public class CacheScannerTest {
+
+    private static final long CUTOFF_TIME = 1000000000000L;
+
+    private File m_dir;
+    private Map<String, List<String>> m_paths;
+
+    @Before
+    public void setUp() throws Exception {
+        m_dir = File.createTempFile("cache", "");
+        if (!m_dir.delete() || !m_dir.mkdir()) {
+            throw new IOException("Unable to create " + m_dir);
+        }
+        m_paths = new HashMap<>();
+        m_paths.put("SELECT xmlPath FROM rcRecord",
+                Arrays.asList("2016/01/01/00/current.xml", "2016/01/01/00/compressed.xml.gz"));
+        m_paths.put("SELECT xmlPath FROM rcRecord_shadow",
+                Collections.singletonList("2016/01/02/00/shadow.xml"));
+        m_paths.put("SELECT xmlPath FROM rcRecord_old",
+                Collections.singletonList("2015/12/31/00/old.xml"));
+        m_paths.put("SELECT xmlPath FROM rcSet",
+                Collections.singletonList("2016/01/01/00/set.xml"));
+        m_paths.put("SELECT identifyPath FROM rcAdmin WHERE identifyPath IS NOT NULL",
+                Collections.singletonList("2016/01/01/00/identify.xml"));
+        for (List<String> paths : m_paths.values()) {
+            for (String path : paths) {
+                createFile(path, CUTOFF_TIME - 1000);
+            }
+        }
+        createFile("2016/01/01/00/orphan.xml", CUTOFF_TIME - 1000);
+        createFile("2016/01/02/00/orphan.xml.gz", CUTOFF_TIME - 1000);
+        createFile("2016/01/02/00/young.xml", CUTOFF_TIME);
+        createFile("2016/01/02/00/notes.txt", CUTOFF_TIME - 1000);
+    }
+
+    @After
+    public void tearDown() {
+        delete(m_dir);
+    }
+
+    @Test
+    public void reclaimsOnlyOldOrphans() throws Exception {
+        CacheScanner scanner = walk(true);
+
+        for (List<String> paths : m_paths.values()) {
+            for (String path : paths) {
+                Assert.assertTrue(path, exists(path));
+            }
+        }
+        Assert.assertFalse(exists("2016/01/01/00/orphan.xml"));
+        Assert.assertFalse(exists("2016/01/02/00/orphan.xml.gz"));
+        Assert.assertTrue(exists("2016/01/02/00/young.xml"));
+        Assert.assertTrue(exists("2016/01/02/00/notes.txt"));
+
+        Assert.assertEquals(9, scanner.getFileCount());
+        Assert.assertEquals(2, scanner.getOrphanCount());
+        Assert.assertEquals(2, scanner.getReclaimedCount());
+        Assert.assertEquals(1, scanner.getYoungCount());
+    }
+
+    @Test
+    public void keepsOrphansUnlessReclaiming() throws Exception {
+        CacheScanner scanner = walk(false);
+
+        Assert.assertTrue(exists("2016/01/01/00/orphan.xml"));
+        Assert.assertTrue(exists("2016/01/02/00/orphan.xml.gz"));
+        Assert.assertEquals(2, scanner.getOrphanCount());
+        Assert.assertEquals(0, scanner.getReclaimedCount());
+    }
+
+    @Test
+    public void marksReferencedFilesFound() throws Exception {
+        m_paths.put("SELECT xmlPath FROM rcSet",
+                Arrays.asList("2016/01/01/00/set.xml", "2016/01/01/00/missing.xml"));
+        CacheScanner.PathHashes referenced = new CacheScanner.PathHashes();
+        newDatabase().forEachReferencedPath(connect(), referenced);
+        referenced.sort();
+        new CacheScanner(null, new RCDisk(m_dir, false, false), 2).walk(referenced, false, CUTOFF_TIME);
+
+        Assert.assertTrue(referenced.isFound(CacheScanner.hash("2016/01/02/00/shadow.xml")));
+        Assert.assertTrue(referenced.isFound(CacheScanner.hash("2015/12/31/00/old.xml")));
+        Assert.assertFalse(referenced.isFound(CacheScanner.hash("2016/01/01/00/missing.xml")));
+    }
+
+    private CacheScanner walk(boolean reclaim) throws Exception {
+        CacheScanner.PathHashes referenced = new CacheScanner.PathHashes();
+        Assert.assertEquals(6, newDatabase().forEachReferencedPath(connect(), referenced));
+        referenced.sort();
+        CacheScanner scanner = new CacheScanner(null, new RCDisk(m_dir, false, false), 2);
+        scanner.walk(referenced, reclaim, CUTOFF_TIME);
+        return scanner;
+    }
+
+    private void createFile(String path, long lastModified) throws IOException {
+        File file = new File(m_dir, path);
+        file.getParentFile().mkdirs();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("<record/>".getBytes("UTF-8"));
+        }
+        if (!file.setLastModified(lastModified)) {
+            throw new IOException("Unable to set modification time of " + file);
+        }
+    }
+
+    private boolean exists(String path) {
+        return new File(m_dir, path).exists();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private RCDatabase newDatabase() {
+        return new RCDatabase(connect(), new McKoiDDLConverter(), false, false, true, null);
+    }
+
+    /**
+     * Connect to a fake database that has shadow and old generation tables,
+     * and answers queries for paths with those set up by the test.  Since it
+     * claims to have no rcAdmin table, creating the tables succeeds.
+     */
+    private Connection connect() {
+        return (Connection) proxy(Connection.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object o, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "createStatement":
+                        return statement();
+                    case "getMetaData":
+                        return metaData();
+                    default:
+                        return defaultValue(method);
+                }
+            }
+        });
+    }
+
+    private DatabaseMetaData metaData() {
+        return (DatabaseMetaData) proxy(DatabaseMetaData.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object o, Method method, Object[] args) {
+                if (method.getName().equals("getTables")) {
+                    String table = (String) args[2];
+                    boolean exists = table.equals("rcRecord" + RCDatabase.SHADOW_SUFFIX)
+                            || table.equals("rcRecord" + RCDatabase.OLD_SUFFIX);
+                    return results(exists ? Collections.singletonList(table)
+                            : Collections.<String>emptyList());
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    private Statement statement() {
+        return (Statement) proxy(Statement.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object o, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("executeQuery")) {
+                    String query = (String) args[0];
+                    if (query.startsWith("SELECT * from rcAdmin")) {
+                        throw new SQLException("no such table");
+                    }
+                    List<String> paths = m_paths.get(query);
+                    return results(paths == null ? Collections.<String>emptyList() : paths);
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    private static ResultSet results(List<String> values) {
+        final Iterator<String> iter = values.iterator();
+        return (ResultSet) proxy(ResultSet.class, new InvocationHandler() {
+            private String m_value;
+
+            @Override
+            public Object invoke(Object o, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "next":
+                        m_value = iter.hasNext() ? iter.next() : null;
+                        return m_value != null;
+                    case "getString":
+                        return m_value;
+                    default:
+                        return defaultValue(method);
+                }
+            }
+        });
+    }
+
+    private static Object proxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(CacheScannerTest.class.getClassLoader(),
+                new Class<?>[]{type}, handler);
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        return null;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package proai.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+public class ConcurrencyLimiterTest {
+
+    private static final Throwable TIMEOUT = new SocketTimeoutException("Read timed out");
+
+    @Test
+    public void startsAtMaximum() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 8, 0);
+        Assert.assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    public void increasesAfterAsManySuccessesAsLimit() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 8, 0);
+        fetch(limiter, 1, TIMEOUT);
+        Assert.assertEquals(4, limiter.getLimit());
+        fetch(limiter, 3, null);
+        Assert.assertEquals(4, limiter.getLimit());
+        fetch(limiter, 1, null);
+        Assert.assertEquals(5, limiter.getLimit());
+        Assert.assertEquals(1, limiter.getIncreaseCount());
+    }
+
+    @Test
+    public void neverIncreasesAboveMaximum() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 2, 0);
+        fetch(limiter, 10, null);
+        Assert.assertEquals(2, limiter.getLimit());
+        Assert.assertEquals(0, limiter.getIncreaseCount());
+    }
+
+    @Test
+    public void halvesOnCongestionButNotBelowMinimum() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(3, 16, 0);
+        fetch(limiter, 1, TIMEOUT);
+        Assert.assertEquals(8, limiter.getLimit());
+        fetch(limiter, 1, TIMEOUT);
+        Assert.assertEquals(4, limiter.getLimit());
+        fetch(limiter, 1, TIMEOUT);
+        Assert.assertEquals(3, limiter.getLimit());
+        fetch(limiter, 1, TIMEOUT);
+        Assert.assertEquals(3, limiter.getLimit());
+        Assert.assertEquals(3, limiter.getDecreaseCount());
+    }
+
+    @Test
+    public void halvesOnSlowFetch() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 8, 100);
+        limiter.acquire();
+        limiter.release(100, null);
+        Assert.assertEquals(8, limiter.getLimit());
+        limiter.acquire();
+        limiter.release(101, null);
+        Assert.assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void ignoresCongestionOfFetchesInFlightAtDecrease() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 8, 0);
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire();
+        }
+        limiter.release(1, TIMEOUT);
+        Assert.assertEquals(4, limiter.getLimit());
+
+        // the three fetches started under the old limit
+        for (int i = 0; i < 3; i++) {
+            limiter.release(1, TIMEOUT);
+        }
+        Assert.assertEquals(4, limiter.getLimit());
+        Assert.assertEquals(1, limiter.getDecreaseCount());
+
+        fetch(limiter, 1, TIMEOUT);
+        Assert.assertEquals(2, limiter.getLimit());
+        Assert.assertEquals(2, limiter.getDecreaseCount());
+    }
+
+    @Test
+    public void ignoresFailuresUnrelatedToLoad() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 8, 0);
+        fetch(limiter, 1, TIMEOUT);
+        fetch(limiter, 3, null);
+        fetch(limiter, 5, new IOException("Request failed [404 Not Found]"));
+        fetch(limiter, 5, new RuntimeException("Malformed XML"));
+        Assert.assertEquals(4, limiter.getLimit());
+        Assert.assertEquals(1, limiter.getDecreaseCount());
+        fetch(limiter, 1, null);
+        Assert.assertEquals(5, limiter.getLimit());
+    }
+
+    @Test
+    public void classifiesFailures() {
+        Assert.assertTrue(ConcurrencyLimiter.isCongestion(TIMEOUT));
+        Assert.assertTrue(ConcurrencyLimiter.isCongestion(
+                new RuntimeException("Fetch failed", new IOException("Connection refused"))));
+        Assert.assertTrue(ConcurrencyLimiter.isCongestion(
+                new IOException("Request failed [503 Service Unavailable]")));
+        Assert.assertFalse(ConcurrencyLimiter.isCongestion(
+                new IOException("Request failed [404 Not Found]")));
+        Assert.assertFalse(ConcurrencyLimiter.isCongestion(
+                new RuntimeException("Malformed XML")));
+    }
+
+    private static void fetch(ConcurrencyLimiter limiter,
+                              int count,
+                              Throwable failure) throws InterruptedException {
+        for (int i = 0; i < count; i++) {
+            limiter.acquire();
+            limiter.release(1, failure);
+        }
+    }
+}
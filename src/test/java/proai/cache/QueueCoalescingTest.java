@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package proai.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+import proai.Record;
+import proai.util.DDLConverter;
+import proai.util.McKoiDDLConverter;
+import proai.util.PostgresDDLConverter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the commands that coalesce queue entries for the same record and
+ * format, as sent to a fake database with an empty rcQueue table.
+ */
+public class QueueCoalescingTest {
+
+    @Test
+    public void queuesLastOfDuplicatePolledRecords() throws Exception {
+        List<String> sql = queueRemoteRecords(new McKoiDDLConverter(),
+                record("oai:example.org:1", "first"),
+                record("oai:example.org:2", "first"),
+                record("oai:example.org:1", "second"));
+
+        Assert.assertEquals(4, sql.size());
+        Assert.assertTrue(sql.get(0), sql.get(0).startsWith("UPDATE rcQueue SET sourceInfo = 'second'"));
+        Assert.assertTrue(sql.get(1), sql.get(1).startsWith("UPDATE rcQueue SET sourceInfo = 'first'"));
+        Assert.assertTrue(sql.get(2), sql.get(2).startsWith("INSERT INTO rcQueue"));
+        Assert.assertTrue(sql.get(2), sql.get(2).contains("'oai:example.org:1', 'oai_dc', 'second'"));
+        Assert.assertTrue(sql.get(3), sql.get(3).contains("'oai:example.org:2', 'oai_dc', 'first'"));
+    }
+
+    @Test
+    public void keepsHigherPriorityAndBumpsRevision() throws Exception {
+        List<String> sql = queueRemoteRecords(new McKoiDDLConverter(),
+                record("oai:example.org:1", "polled"));
+
+        String update = sql.get(0);
+        Assert.assertTrue(update, update.contains("queueSource = CASE WHEN priority < 1 "
+                + "THEN queueSource ELSE 'R' END"));
+        Assert.assertTrue(update, update.contains("priority = CASE WHEN priority < 1 "
+                + "THEN priority ELSE 1 END"));
+        Assert.assertTrue(update, update.contains("queueRevision = queueRevision + 1"));
+        Assert.assertTrue(update, update.endsWith("WHERE identifier = 'oai:example.org:1' "
+                + "AND mdPrefix = 'oai_dc'"));
+    }
+
+    @Test
+    public void coalescesInOneCommandWithUpsert() throws Exception {
+        List<String> sql = queueRemoteRecords(new PostgresDDLConverter(),
+                record("oai:example.org:1", "first"),
+                record("oai:example.org:1", "second"));
+
+        Assert.assertEquals(1, sql.size());
+        String upsert = sql.get(0);
+        Assert.assertTrue(upsert, upsert.startsWith("INSERT INTO rcQueue"));
+        Assert.assertTrue(upsert, upsert.contains("'oai:example.org:1', 'oai_dc', 'second'"));
+        Assert.assertTrue(upsert, upsert.contains(" ON CONFLICT (identifier,mdPrefix) DO UPDATE SET "));
+        Assert.assertTrue(upsert, upsert.contains("priority = CASE WHEN rcQueue.priority < 1 "
+                + "THEN rcQueue.priority ELSE 1 END"));
+        Assert.assertTrue(upsert, upsert.contains("queueRevision = rcQueue.queueRevision + 1"));
+    }
+
+    @Test
+    public void removesOnlyProcessedRevision() throws Exception {
+        Recorder recorder = new Recorder();
+        newDatabase(new McKoiDDLConverter(), recorder).removeFromQueue(recorder.connect(), 7, 3);
+        Assert.assertEquals(Arrays.asList("DELETE FROM rcQueue WHERE queueKey = 7 AND queueRevision = 3"),
+                recorder.sql);
+    }
+
+    private static List<String> queueRemoteRecords(DDLConverter ddlc, Record... records) {
+        Recorder recorder = new Recorder();
+        newDatabase(ddlc, recorder).queueRemoteRecords(recorder.connect(), Arrays.asList(records));
+        return recorder.sql;
+    }
+
+    private static RCDatabase newDatabase(DDLConverter ddlc, Recorder recorder) {
+        RCDatabase db = new RCDatabase(recorder.connect(), ddlc, false, false, true, null);
+        recorder.sql.clear();
+        return db;
+    }
+
+    private static Record record(final String itemID, final String sourceInfo) {
+        return new Record() {
+            @Override
+            public String getItemID() {
+                return itemID;
+            }
+
+            @Override
+            public String getPrefix() {
+                return "oai_dc";
+            }
+
+            @Override
+            public String getSourceInfo() {
+                return sourceInfo;
+            }
+        };
+    }
+
+    /**
+     * Records the updates sent to it, none of which finds a row to update.
+     */
+    private static class Recorder {
+
+        final List<String> sql = new ArrayList<>();
+
+        Connection connect() {
+            return (Connection) proxy(Connection.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object o, Method method, Object[] args) {
+                    if (method.getName().equals("createStatement")) {
+                        return statement();
+                    }
+                    return defaultValue(method);
+                }
+            });
+        }
+
+        private Statement statement() {
+            final List<String> batch = new ArrayList<>();
+            return (Statement) proxy(Statement.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object o, Method method, Object[] args) throws Throwable {
+                    switch (method.getName()) {
+                        case "executeQuery":
+                            if (((String) args[0]).startsWith("SELECT * from rcAdmin")) {
+                                throw new SQLException("no such table");
+                            }
+                            return proxy(ResultSet.class, new InvocationHandler() {
+                                @Override
+                                public Object invoke(Object o, Method method, Object[] args) {
+                                    return defaultValue(method);
+                                }
+                            });
+                        case "executeUpdate":
+                            return execute((String) args[0]);
+                        case "addBatch":
+                            batch.add((String) args[0]);
+                            return null;
+                        case "clearBatch":
+                            batch.clear();
+                            return null;
+                        case "executeBatch":
+                            int[] counts = new int[batch.size()];
+                            for (int i = 0; i < counts.length; i++) {
+                                counts[i] = execute(batch.get(i));
+                            }
+                            batch.clear();
+                            return counts;
+                        default:
+                            return defaultValue(method);
+                    }
+                }
+            });
+        }
+
+        private int execute(String command) {
+            sql.add(command);
+            return command.startsWith("UPDATE ") ? 0 : 1;
+        }
+
+        private static Object proxy(Class<?> type, InvocationHandler handler) {
+            return Proxy.newProxyInstance(QueueCoalescingTest.class.getClassLoader(),
+                    new Class<?>[]{type}, handler);
+        }
+
+        private static Object defaultValue(Method method) {
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) return false;
+            if (type == int.class) return 0;
+            if (type == long.class) return 0L;
+            return null;
+        }
+    }
+}
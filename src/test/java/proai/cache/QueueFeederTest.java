@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package proai.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class QueueFeederTest {
+
+    @Test
+    public void interleavesPrioritiesByWeight() throws Exception {
+        List<QueueItem> changed = new ArrayList<>();
+        List<QueueItem> polled = new ArrayList<>();
+        List<QueueItem> retried = new ArrayList<>();
+        for (int i = 0; i < 42; i++) {
+            changed.add(item(1 + i, "changed:" + i, 'E'));
+            polled.add(item(100 + i, "polled:" + i, 'R'));
+            retried.add(item(200 + i, "retried:" + i, 'F'));
+        }
+
+        List<QueueItem> fed = feed(changed, polled, retried);
+
+        Assert.assertEquals(126, fed.size());
+        int[] counts = new int[QueueItem.PRIORITY_COUNT];
+        for (QueueItem item : fed.subList(0, 42)) {
+            counts[QueueItem.getPriority(item.getQueueSource())]++;
+        }
+        Assert.assertEquals(32, counts[QueueItem.PRIORITY_CHANGED]);
+        Assert.assertEquals(8, counts[QueueItem.PRIORITY_POLLED]);
+        Assert.assertEquals(2, counts[QueueItem.PRIORITY_RETRIED]);
+    }
+
+    @Test
+    public void feedsOtherPrioritiesWhenOneRunsDry() throws Exception {
+        List<QueueItem> fed = feed(Arrays.asList(item(1, "changed:1", 'E')),
+                new ArrayList<QueueItem>(),
+                Arrays.asList(item(2, "retried:1", 'F'), item(3, "retried:2", 'F')));
+        Assert.assertEquals(3, fed.size());
+        Assert.assertEquals("changed:1", fed.get(0).getIdentifier());
+        Assert.assertEquals("retried:1", fed.get(1).getIdentifier());
+        Assert.assertEquals("retried:2", fed.get(2).getIdentifier());
+    }
+
+    @Test
+    public void feedsRecordOncePerRound() throws Exception {
+        List<QueueItem> fed = feed(Arrays.asList(item(2, "oai:example.org:1", 'E')),
+                Arrays.asList(item(1, "oai:example.org:1", 'R'), item(3, "oai:example.org:2", 'R')),
+                new ArrayList<QueueItem>());
+        Assert.assertEquals(2, fed.size());
+        Assert.assertEquals("oai:example.org:1", fed.get(0).getIdentifier());
+        Assert.assertEquals('E', fed.get(0).getQueueSource());
+        Assert.assertEquals("oai:example.org:2", fed.get(1).getIdentifier());
+    }
+
+    @Test
+    public void keepsFeedingRecordsQueuedWhilePolling() throws Exception {
+        final QueueTable table = new QueueTable(Arrays.asList(item(1, "polled:1", 'R')));
+        final AtomicBoolean polling = new AtomicBoolean(true);
+        Thread poller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(1500);
+                    table.rows.add(item(2, "polled:2", 'R'));
+                    Thread.sleep(1500);
+                } catch (InterruptedException ignored) {
+                } finally {
+                    polling.set(false);
+                }
+            }
+        });
+        poller.start();
+
+        List<QueueItem> fed = feed(polling, table);
+        poller.join();
+
+        Assert.assertFalse(polling.get());
+        Assert.assertEquals(2, fed.size());
+        Assert.assertEquals("polled:1", fed.get(0).getIdentifier());
+        Assert.assertEquals("polled:2", fed.get(1).getIdentifier());
+    }
+
+    @Test
+    public void feedsPolledRecordRaisedToChangedAfterChangedWereRead() throws Exception {
+        QueueTable table = new QueueTable(Arrays.asList(
+                item(1, "oai:example.org:1", 'R'),
+                item(2, "oai:example.org:2", 'R'),
+                item(3, "oai:example.org:3", 'E'),
+                item(4, "oai:example.org:4", 'E'))) {
+            private boolean m_raised;
+
+            @Override
+            List<QueueItem> read(int priority, int afterQueueKey, int maxItems) {
+                if (priority == QueueItem.PRIORITY_CHANGED && afterQueueKey >= 4 && !m_raised) {
+                    // a change notification coalesces with a polled row
+                    // once the changed rows after it have been read
+                    m_raised = true;
+                    raise(2, 'E');
+                }
+                return super.read(priority, afterQueueKey, maxItems);
+            }
+        };
+
+        List<QueueItem> fed = feed(new AtomicBoolean(false), table);
+
+        Assert.assertEquals(4, fed.size());
+        QueueItem raised = fed.get(3);
+        Assert.assertEquals("oai:example.org:2", raised.getIdentifier());
+        Assert.assertEquals('E', raised.getQueueSource());
+        Assert.assertEquals(1, raised.getQueueRevision());
+    }
+
+    private static QueueItem item(int queueKey, String identifier, char queueSource) {
+        return new QueueItem(queueKey, 0, identifier, "oai_dc", "info", queueSource);
+    }
+
+    /**
+     * Run a feeder over the given queued items, highest priority first, and
+     * get the items it fed in order.
+     */
+    @SafeVarargs
+    private static List<QueueItem> feed(List<QueueItem>... queued) throws Exception {
+        return feed(new AtomicBoolean(false), new QueueTable(queued));
+    }
+
+    /**
+     * Run a feeder over the given queue table, which may change while
+     * polling is under way.
+     */
+    private static List<QueueItem> feed(final AtomicBoolean polling,
+                                        final QueueTable table) throws Exception {
+        Updater updater = new Updater(null, null, null, 0, 0, 1, false, false, 0, false,
+                1, 1, 1, 1000, 1, 0, 0, 0, 1, 1, null, null) {
+            @Override
+            QueueIterator newQueueIterator(int priority, int afterQueueKey) {
+                return new TableQueueIterator(table, priority, afterQueueKey);
+            }
+
+            @Override
+            boolean isPolling() {
+                return polling.get();
+            }
+        };
+        BlockingQueue<QueueItem> output = new LinkedBlockingQueue<>();
+        QueueFeeder feeder = new QueueFeeder(updater, output);
+        feeder.start();
+        feeder.join();
+
+        List<QueueItem> fed = new ArrayList<>();
+        output.drainTo(fed);
+        Assert.assertEquals(PipelineStage.END_OF_INPUT, fed.remove(fed.size() - 1));
+        Assert.assertEquals(fed.size(), feeder.getProcessedCount());
+        return fed;
+    }
+
+    /**
+     * The rows of rcQueue, read the way <code>RCDatabase.getQueueItems</code>
+     * reads them.
+     */
+    private static class QueueTable {
+
+        final List<QueueItem> rows = new CopyOnWriteArrayList<>();
+
+        @SafeVarargs
+        QueueTable(List<QueueItem>... queued) {
+            for (List<QueueItem> items : queued) {
+                rows.addAll(items);
+            }
+        }
+
+        List<QueueItem> read(int priority, int afterQueueKey, int maxItems) {
+            List<QueueItem> sorted = new ArrayList<>(rows);
+            Collections.sort(sorted, new Comparator<QueueItem>() {
+                @Override
+                public int compare(QueueItem a, QueueItem b) {
+                    return Integer.compare(a.getQueueKey(), b.getQueueKey());
+                }
+            });
+            List<QueueItem> items = new ArrayList<>();
+            for (QueueItem row : sorted) {
+                if (items.size() < maxItems
+                        && row.getQueueKey() > afterQueueKey
+                        && QueueItem.getPriority(row.getQueueSource()) == priority) {
+                    items.add(row);
+                }
+            }
+            return items;
+        }
+
+        /**
+         * Coalesce the row with the given key with a newly queued record,
+         * keeping its key as the database does.
+         */
+        void raise(int queueKey, char queueSource) {
+            for (QueueItem row : rows) {
+                if (row.getQueueKey() == queueKey) {
+                    rows.set(rows.indexOf(row), new QueueItem(queueKey, row.getQueueRevision() + 1,
+                            row.getIdentifier(), row.getMDPrefix(), row.getSourceInfo(), queueSource));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads one row at a time from a <code>QueueTable</code>, so the cursor
+     * moves the way it would over a long queue.
+     */
+    private static class TableQueueIterator extends QueueIterator {
+
+        private final QueueTable m_table;
+
+        TableQueueIterator(QueueTable table, int priority, int afterQueueKey) {
+            super(null, priority, afterQueueKey, 1);
+            m_table = table;
+        }
+
+        @Override
+        List<QueueItem> readItems(int priority, int afterQueueKey, int maxItems) {
+            return m_table.read(priority, afterQueueKey, maxItems);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package proai.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+import proai.Record;
+import proai.util.DDLConverter;
+import proai.util.McKoiDDLConverter;
+import proai.util.MySQLDDLConverter;
+import proai.util.PostgresDDLConverter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Queues the same record from two sessions at once, the way change
+ * notifications and the poller can, against a fake rcQueue table that
+ * enforces its unique key.  Both sessions find no row to update, so both
+ * go on to insert one.
+ */
+public class QueueRaceTest {
+
+    private static final String IDENTIFIER = "oai:example.org:1";
+    private static final String PREFIX = "oai_dc";
+
+    @Test
+    public void concurrentQueueingWithUpsertOnPostgres() throws Exception {
+        assertBothQueued(new PostgresDDLConverter());
+    }
+
+    @Test
+    public void concurrentQueueingWithUpsertOnMySQL() throws Exception {
+        assertBothQueued(new MySQLDDLConverter());
+    }
+
+    @Test
+    public void concurrentQueueingWithRetryOnMcKoi() throws Exception {
+        assertBothQueued(new McKoiDDLConverter());
+    }
+
+    private static void assertBothQueued(DDLConverter ddlc) throws Exception {
+        final QueueTable table = new QueueTable();
+        final RCDatabase db = new RCDatabase(table.connect(), ddlc, false, false, true, null);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread notification = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    db.queueChangedRecord(table.connect(), IDENTIFIER, PREFIX, "changed");
+                } catch (Throwable th) {
+                    failure.set(th);
+                }
+            }
+        });
+        Thread poller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    db.queueRemoteRecords(table.connect(),
+                            Collections.singletonList(new QueuedRecord(IDENTIFIER, PREFIX, "polled")));
+                } catch (Throwable th) {
+                    failure.set(th);
+                }
+            }
+        });
+        notification.start();
+        poller.start();
+        notification.join(10000);
+        poller.join(10000);
+
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(1, table.rows.size());
+        Assert.assertEquals(Integer.valueOf(1), table.rows.get(IDENTIFIER + " " + PREFIX));
+    }
+
+    /**
+     * An rcQueue table, mapping the key of each row to its revision, that
+     * holds back the first insert of each session until both sessions get
+     * to insert.
+     */
+    private static class QueueTable {
+
+        private static final Pattern UPDATE_KEY =
+                Pattern.compile("WHERE identifier = '([^']*)' AND mdPrefix = '([^']*)'");
+        private static final Pattern INSERT_KEY =
+                Pattern.compile("VALUES \\('([^']*)', '([^']*)'");
+
+        final Map<String, Integer> rows = new HashMap<>();
+        private final CyclicBarrier m_inserting = new CyclicBarrier(2);
+        private final ThreadLocal<Boolean> m_waited = new ThreadLocal<>();
+
+        Connection connect() {
+            return (Connection) proxy(Connection.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object o, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("createStatement")) {
+                        return statement();
+                    }
+                    return defaultValue(method);
+                }
+            });
+        }
+
+        private Statement statement() {
+            final List<String> batch = new ArrayList<>();
+            return (Statement) proxy(Statement.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object o, Method method, Object[] args) throws Throwable {
+                    switch (method.getName()) {
+                        case "executeQuery":
+                            if (((String) args[0]).startsWith("SELECT * from rcAdmin")) {
+                                throw new SQLException("no such table");
+                            }
+                            return proxy(ResultSet.class, new InvocationHandler() {
+                                @Override
+                                public Object invoke(Object o, Method method, Object[] args) {
+                                    return defaultValue(method);
+                                }
+                            });
+                        case "executeUpdate":
+                            return execute((String) args[0]);
+                        case "addBatch":
+                            batch.add((String) args[0]);
+                            return null;
+                        case "clearBatch":
+                            batch.clear();
+                            return null;
+                        case "executeBatch":
+                            int[] counts = new int[batch.size()];
+                            try {
+                                for (int i = 0; i < counts.length; i++) {
+                                    counts[i] = execute(batch.get(i));
+                                }
+                            } finally {
+                                batch.clear();
+                            }
+                            return counts;
+                        default:
+                            return defaultValue(method);
+                    }
+                }
+            });
+        }
+
+        private int execute(String sql) throws Exception {
+            if (sql.startsWith("UPDATE rcQueue")) {
+                String key = key(UPDATE_KEY, sql);
+                synchronized (rows) {
+                    if (!rows.containsKey(key)) return 0;
+                    rows.put(key, rows.get(key) + 1);
+                    return 1;
+                }
+            } else if (sql.startsWith("INSERT INTO rcQueue")) {
+                String key = key(INSERT_KEY, sql);
+                if (m_waited.get() == null) {
+                    m_waited.set(true);
+                    m_inserting.await(5, TimeUnit.SECONDS);
+                }
+                synchronized (rows) {
+                    if (!rows.containsKey(key)) {
+                        rows.put(key, 0);
+                    } else if (sql.contains(" ON CONFLICT ") || sql.contains(" ON DUPLICATE KEY ")) {
+                        rows.put(key, rows.get(key) + 1);
+                    } else {
+                        throw new SQLException("duplicate key value violates unique constraint", "23505");
+                    }
+                    return 1;
+                }
+            }
+            return 0;
+        }
+
+        private static String key(Pattern pattern, String sql) {
+            Matcher m = pattern.matcher(sql);
+            Assert.assertTrue(sql, m.find());
+            return m.group(1) + " " + m.group(2);
+        }
+
+        private static Object proxy(Class<?> type, InvocationHandler handler) {
+            return Proxy.newProxyInstance(QueueRaceTest.class.getClassLoader(), new Class<?>[]{type}, handler);
+        }
+
+        private static Object defaultValue(Method method) {
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) return false;
+            if (type == int.class) return 0;
+            if (type == long.class) return 0L;
+            return null;
+        }
+    }
+
+    private static class QueuedRecord implements Record {
+
+        private final String m_itemID;
+        private final String m_prefix;
+        private final String m_sourceInfo;
+
+        QueuedRecord(String itemID, String prefix, String sourceInfo) {
+            m_itemID = itemID;
+            m_prefix = prefix;
+            m_sourceInfo = sourceInfo;
+        }
+
+        @Override
+        public String getItemID() {
+            return m_itemID;
+        }
+
+        @Override
+        public String getPrefix() {
+            return m_prefix;
+        }
+
+        @Override
+        public String getSourceInfo() {
+            return m_sourceInfo;
+        }
+    }
+}
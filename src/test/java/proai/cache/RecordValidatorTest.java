@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package proai.cache;
+
+import net.sf.bvalid.ValidatorException;
+import net.sf.bvalid.locator.SchemaLocator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import proai.error.ServerException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Validates records inside the OAI-PMH envelope, against a simplified
+ * OAI-PMH schema and the schemas of two metadata formats served by a fake
+ * <code>SchemaLocator</code>.
+ */
+public class RecordValidatorTest {
+
+    private static final String XSD_START = "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" "
+            + "elementFormDefault=\"qualified\" targetNamespace=";
+
+    private static final String OAI_SCHEMA = XSD_START + "\"http://www.openarchives.org/OAI/2.0/\">"
+            + "<xs:element name=\"OAI-PMH\"><xs:complexType><xs:sequence>"
+            + "<xs:element name=\"responseDate\" type=\"xs:dateTime\"/>"
+            + "<xs:element name=\"request\"><xs:complexType><xs:simpleContent>"
+            + "<xs:extension base=\"xs:anyURI\"><xs:anyAttribute processContents=\"lax\"/></xs:extension>"
+            + "</xs:simpleContent></xs:complexType></xs:element>"
+            + "<xs:element name=\"GetRecord\"><xs:complexType><xs:sequence>"
+            + "<xs:element name=\"record\"><xs:complexType><xs:sequence>"
+            + "<xs:element name=\"header\"><xs:complexType><xs:sequence>"
+            + "<xs:element name=\"identifier\" type=\"xs:anyURI\"/>"
+            + "</xs:sequence></xs:complexType></xs:element>"
+            + "<xs:element name=\"metadata\"><xs:complexType><xs:sequence>"
+            + "<xs:any namespace=\"##other\" processContents=\"strict\"/>"
+            + "</xs:sequence></xs:complexType></xs:element>"
+            + "</xs:sequence></xs:complexType></xs:element>"
+            + "</xs:sequence></xs:complexType></xs:element>"
+            + "</xs:sequence></xs:complexType></xs:element>"
+            + "</xs:schema>";
+
+    private static final String DOC_SCHEMA = XSD_START + "\"http://example.org/doc\">"
+            + "<xs:element name=\"doc\"><xs:complexType><xs:sequence>"
+            + "<xs:element name=\"title\" type=\"xs:string\"/>"
+            + "</xs:sequence></xs:complexType></xs:element>"
+            + "</xs:schema>";
+
+    private static final String NOTE_SCHEMA = XSD_START + "\"http://example.org/note\">"
+            + "<xs:element name=\"note\" type=\"xs:string\"/>"
+            + "</xs:schema>";
+
+    private File m_dir;
+    private FakeLocator m_locator;
+    private RecordValidator m_validator;
+
+    @Before
+    public void setUp() throws Exception {
+        m_dir = File.createTempFile("records", "");
+        if (!m_dir.delete() || !m_dir.mkdir()) {
+            throw new IOException("Unable to create " + m_dir);
+        }
+        m_locator = new FakeLocator();
+        m_locator.schemas.put(RecordCache.OAI_SCHEMA_URL, OAI_SCHEMA);
+        m_locator.schemas.put("http://example.org/doc.xsd", DOC_SCHEMA);
+        m_locator.schemas.put("http://example.org/note.xsd", NOTE_SCHEMA);
+        m_validator = new RecordValidator(m_locator);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = m_dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        m_dir.delete();
+    }
+
+    @Test
+    public void acceptsValidRecord() throws Exception {
+        m_validator.validate(writeRecord("valid.xml", doc("<title>A</title>")));
+        Assert.assertTrue(m_locator.used.contains(RecordCache.OAI_SCHEMA_URL));
+        Assert.assertTrue(m_locator.used.contains("http://example.org/doc.xsd"));
+    }
+
+    @Test
+    public void acceptsValidCompressedRecord() throws Exception {
+        m_validator.validate(writeRecord("valid.xml" + RCDisk.COMPRESSED_SUFFIX, doc("<title>A</title>")));
+    }
+
+    @Test(expected = ServerException.class)
+    public void rejectsInvalidMetadata() throws Exception {
+        m_validator.validate(writeRecord("invalid.xml", doc("<author>B</author>")));
+    }
+
+    @Test(expected = ServerException.class)
+    public void rejectsInvalidHeader() throws Exception {
+        m_validator.validate(writeFile("invalid.xml", "<record>\n<header/>\n"
+                + "<metadata>\n" + doc("<title>A</title>") + "\n</metadata>\n</record>\n"));
+    }
+
+    @Test(expected = ServerException.class)
+    public void rejectsMalformedRecord() throws Exception {
+        m_validator.validate(writeRecord("malformed.xml", "<doc>"));
+    }
+
+    @Test
+    public void compilesSchemaOncePerNamespaces() throws Exception {
+        m_validator.validate(writeRecord("1.xml", doc("<title>A</title>")));
+        int fetches = m_locator.fetched.size();
+        m_validator.validate(writeRecord("2.xml", doc("<title>B</title>")));
+        try {
+            m_validator.validate(writeRecord("3.xml", doc("<author>C</author>")));
+            Assert.fail("Invalid record was accepted");
+        } catch (ServerException expected) {
+        }
+        Assert.assertEquals(fetches, m_locator.fetched.size());
+
+        m_validator.validate(writeRecord("4.xml",
+                "<note xmlns=\"http://example.org/note\" " + schemaLocation("note") + ">D</note>"));
+        Assert.assertTrue(m_locator.fetched.size() > fetches);
+        Assert.assertTrue(m_locator.fetched.contains("http://example.org/note.xsd"));
+    }
+
+    @Test
+    public void failsIfSchemaCannotBeRetrieved() throws Exception {
+        File record = writeRecord("1.xml",
+                "<doc xmlns=\"http://example.org/doc\" " + schemaLocation("missing") + "/>");
+        try {
+            m_validator.validate(record);
+            Assert.fail("Record was accepted without its schema");
+        } catch (ServerException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Unable to compile schema"));
+        }
+        Assert.assertFalse(m_locator.used.contains(RecordCache.OAI_SCHEMA_URL));
+    }
+
+    private static String doc(String content) {
+        return "<doc xmlns=\"http://example.org/doc\" " + schemaLocation("doc") + ">" + content + "</doc>";
+    }
+
+    private static String schemaLocation(String name) {
+        return "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "
+                + "xsi:schemaLocation=\"http://example.org/" + name
+                + " http://example.org/" + name + ".xsd\"";
+    }
+
+    private File writeRecord(String name, String metadata) throws IOException {
+        return writeFile(name, "<record>\n<header>\n<identifier>oai:example.org:1</identifier>\n</header>\n"
+                + "<metadata>\n" + metadata + "\n</metadata>\n</record>\n");
+    }
+
+    private File writeFile(String name, String content) throws IOException {
+        File file = new File(m_dir, name);
+        OutputStream out = new FileOutputStream(file);
+        if (RCDisk.isCompressed(file)) {
+            out = new GZIPOutputStream(out);
+        }
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static class FakeLocator implements SchemaLocator {
+
+        final Map<String, String> schemas = new HashMap<>();
+        final List<String> fetched = new ArrayList<>();
+        final List<String> used = new ArrayList<>();
+
+        @Override
+        public synchronized InputStream get(String url, boolean cacheIfMissing) throws ValidatorException {
+            fetched.add(url);
+            String schema = schemas.get(url);
+            if (schema == null) {
+                throw new ValidatorException("No such schema: " + url);
+            }
+            try {
+                return new ByteArrayInputStream(schema.getBytes("UTF-8"));
+            } catch (IOException e) {
+                throw new ValidatorException("Unable to encode schema", e);
+            }
+        }
+
+        @Override
+        public synchronized void successfullyUsed(String url) {
+            used.add(url);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package proai.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    private static final long NOW = 1000000000L;
+
+    @Test
+    public void doublesDelayWithEachFailure() {
+        RetryPolicy policy = new RetryPolicy(5, 1000, 60000);
+        assertDelay(policy, 0, 1000);
+        assertDelay(policy, 1, 2000);
+        assertDelay(policy, 2, 4000);
+        assertDelay(policy, 4, 16000);
+    }
+
+    @Test
+    public void capsDelayAtMaximum() {
+        RetryPolicy policy = new RetryPolicy(10, 1000, 5000);
+        assertDelay(policy, 3, 5000);
+        assertDelay(policy, 9, 5000);
+    }
+
+    @Test
+    public void retriesAtMaximumDelayOnceBackoffIsUsedUp() {
+        RetryPolicy policy = new RetryPolicy(2, 1000, 60000);
+        assertDelay(policy, 1, 2000);
+        assertDelay(policy, 2, 60000);
+        assertDelay(policy, 100, 60000);
+    }
+
+    @Test
+    public void isDisabledWithoutRetries() {
+        Assert.assertFalse(new RetryPolicy(0, 1000, 60000).isEnabled());
+        Assert.assertTrue(new RetryPolicy(1, 1000, 60000).isEnabled());
+    }
+
+    /**
+     * Assert that the delay is the given one, shortened by at most half.
+     */
+    private static void assertDelay(RetryPolicy policy, int failCount, long delay) {
+        for (int i = 0; i < 100; i++) {
+            long actual = policy.getNextAttemptDate(failCount, NOW) - NOW;
+            Assert.assertTrue("delay " + actual + " after " + failCount + " failures",
+                    actual > delay / 2 && actual <= delay);
+        }
+    }
+}
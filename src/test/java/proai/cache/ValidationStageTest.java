@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package proai.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class ValidationStageTest {
+
+    @Test
+    public void validatesAllRecordsOfFormatWithoutRate() {
+        ValidationStage stage = newStage(new HashMap<String, Integer>());
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(stage.isSampled("oai_dc"));
+        }
+    }
+
+    @Test
+    public void validatesAllRecordsAtRateOne() {
+        Map<String, Integer> rates = new HashMap<>();
+        rates.put("oai_dc", 1);
+        ValidationStage stage = newStage(rates);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(stage.isSampled("oai_dc"));
+        }
+    }
+
+    @Test
+    public void validatesNoRecordsAtRateZero() {
+        Map<String, Integer> rates = new HashMap<>();
+        rates.put("oai_dc", 0);
+        ValidationStage stage = newStage(rates);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertFalse(stage.isSampled("oai_dc"));
+        }
+        Assert.assertTrue(stage.isSampled("mods"));
+    }
+
+    @Test
+    public void validatesEveryNthRecordOfEachFormat() {
+        Map<String, Integer> rates = new HashMap<>();
+        rates.put("oai_dc", 3);
+        rates.put("mods", 2);
+        ValidationStage stage = newStage(rates);
+        Assert.assertTrue(stage.isSampled("oai_dc"));
+        Assert.assertTrue(stage.isSampled("mods"));
+        Assert.assertFalse(stage.isSampled("oai_dc"));
+        Assert.assertFalse(stage.isSampled("mods"));
+        Assert.assertFalse(stage.isSampled("oai_dc"));
+        Assert.assertTrue(stage.isSampled("mods"));
+        Assert.assertTrue(stage.isSampled("oai_dc"));
+        Assert.assertFalse(stage.isSampled("oai_dc"));
+    }
+
+    private static ValidationStage newStage(Map<String, Integer> sampleRates) {
+        return new ValidationStage(1, null, null, null, null, sampleRates);
+    }
+}
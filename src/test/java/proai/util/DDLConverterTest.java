@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package proai.util;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the commands that swap a shadow generation of the cache tables
+ * into place.
+ */
+public class DDLConverterTest {
+
+    private List<TableSpec> m_specs;
+
+    @Before
+    public void loadSpecs() throws Exception {
+        TableSpec item = null;
+        TableSpec membership = null;
+        for (TableSpec spec : TableSpec.getTableSpecs(getClass().getResourceAsStream("/config/dbspec.xml"))) {
+            if (spec.getName().equals("rcItem")) item = spec;
+            if (spec.getName().equals("rcMembership")) membership = spec;
+        }
+        m_specs = Arrays.asList(item, membership);
+    }
+
+    @Test
+    public void renamesTablesAndIndexesOnPostgres() {
+        List<String> ddl = new PostgresDDLConverter().getRenameTablesDDL(m_specs,
+                Arrays.asList("rcItemShadow", "rcMembershipShadow"));
+        Assert.assertEquals(Arrays.asList(
+                "ALTER TABLE rcItem RENAME TO rcItemShadow",
+                "ALTER INDEX rcItem_identifier RENAME TO rcItemShadow_identifier",
+                "ALTER TABLE rcMembership RENAME TO rcMembershipShadow",
+                "ALTER INDEX rcMembership_setKey RENAME TO rcMembershipShadow_setKey",
+                "ALTER INDEX rcMembership_recordKey RENAME TO rcMembershipShadow_recordKey"), ddl);
+    }
+
+    @Test
+    public void renamesTablesAtOnceOnMySQL() {
+        List<String> ddl = new MySQLDDLConverter().getRenameTablesDDL(m_specs,
+                Arrays.asList("rcItemShadow", "rcMembershipShadow"));
+        Assert.assertEquals(Arrays.asList(
+                "RENAME TABLE rcItem TO rcItemShadow, rcMembership TO rcMembershipShadow"), ddl);
+    }
+
+    @Test
+    public void cannotRenameTablesOnMcKoi() {
+        List<String> ddl = new McKoiDDLConverter().getRenameTablesDDL(m_specs,
+                Arrays.asList("rcItemShadow", "rcMembershipShadow"));
+        Assert.assertTrue(ddl.isEmpty());
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package proai.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void writesCountersWithHelpAndType() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("proai_records_total", "Records processed").add(3);
+        registry.counter("proai_stage_processed_total", "Records processed by stage",
+                "stage", "Fetcher").inc();
+        registry.counter("proai_stage_processed_total", "Records processed by stage",
+                "stage", "Writer").add(2);
+
+        Assert.assertEquals("# HELP proai_records_total Records processed\n"
+                + "# TYPE proai_records_total counter\n"
+                + "proai_records_total 3\n"
+                + "# HELP proai_stage_processed_total Records processed by stage\n"
+                + "# TYPE proai_stage_processed_total counter\n"
+                + "proai_stage_processed_total{stage=\"Fetcher\"} 1\n"
+                + "proai_stage_processed_total{stage=\"Writer\"} 2\n",
+                writeText(registry));
+    }
+
+    @Test
+    public void returnsSameCounterForSameNameAndLabel() {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry.Counter counter = registry.counter("c", "help", "stage", "a");
+        Assert.assertTrue(counter == registry.counter("c", "help", "stage", "a"));
+        Assert.assertFalse(counter == registry.counter("c", "help", "stage", "b"));
+    }
+
+    @Test
+    public void writesCumulativeHistogramBuckets() {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry.Histogram histogram = registry.histogram("proai_fetch_seconds",
+                "Time to fetch a record", "stage", "Fetcher");
+        histogram.observe(1000000L);        // 0.001s, on the bound of the first bucket
+        histogram.observe(20000000L);       // 0.02s
+        histogram.observe(400000000000L);   // 400s, above all bounds
+
+        String text = writeText(registry);
+        Assert.assertTrue(text, text.startsWith("# HELP proai_fetch_seconds Time to fetch a record\n"
+                + "# TYPE proai_fetch_seconds histogram\n"
+                + "proai_fetch_seconds_bucket{stage=\"Fetcher\",le=\"0.001\"} 1\n"
+                + "proai_fetch_seconds_bucket{stage=\"Fetcher\",le=\"0.005\"} 1\n"
+                + "proai_fetch_seconds_bucket{stage=\"Fetcher\",le=\"0.01\"} 1\n"
+                + "proai_fetch_seconds_bucket{stage=\"Fetcher\",le=\"0.025\"} 2\n"));
+        Assert.assertTrue(text, text.endsWith(
+                "proai_fetch_seconds_bucket{stage=\"Fetcher\",le=\"300.0\"} 2\n"
+                        + "proai_fetch_seconds_bucket{stage=\"Fetcher\",le=\"+Inf\"} 3\n"
+                        + "proai_fetch_seconds_sum{stage=\"Fetcher\"} 400.021\n"
+                        + "proai_fetch_seconds_count{stage=\"Fetcher\"} 3\n"));
+    }
+
+    @Test
+    public void writesHistogramWithoutLabel() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.histogram("h", "help").observe(2000000000L);
+
+        String text = writeText(registry);
+        Assert.assertTrue(text, text.contains("h_bucket{le=\"1.0\"} 0\n"));
+        Assert.assertTrue(text, text.contains("h_bucket{le=\"2.5\"} 1\n"));
+        Assert.assertTrue(text, text.endsWith("h_sum 2.0\nh_count 1\n"));
+    }
+
+    @Test
+    public void writesTextGaugesAsLabel() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.gauge("proai_queue_size", "Queued records", new MetricsRegistry.Gauge() {
+            @Override
+            public Object getValue() {
+                return 42;
+            }
+        });
+        registry.gauge("proai_updater_phase", "Phase of the updater", new MetricsRegistry.Gauge() {
+            @Override
+            public Object getValue() {
+                return "Polling \"changes\"";
+            }
+        });
+        registry.gauge("proai_broken", "A gauge that fails", new MetricsRegistry.Gauge() {
+            @Override
+            public Object getValue() {
+                throw new IllegalStateException();
+            }
+        });
+
+        Assert.assertEquals("# HELP proai_queue_size Queued records\n"
+                + "# TYPE proai_queue_size gauge\n"
+                + "proai_queue_size 42.0\n"
+                + "# HELP proai_updater_phase Phase of the updater\n"
+                + "# TYPE proai_updater_phase gauge\n"
+                + "proai_updater_phase{value=\"Polling \\\"changes\\\"\"} 1\n"
+                + "# HELP proai_broken A gauge that fails\n"
+                + "# TYPE proai_broken gauge\n",
+                writeText(registry));
+    }
+
+    @Test
+    public void estimatesPercentilesFromBuckets() {
+        MetricsRegistry.Histogram histogram = new MetricsRegistry.Histogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.observe(3000000L);    // 0.003s
+        }
+        histogram.observe(7000000000L);     // 7s
+
+        Assert.assertTrue(histogram.getPercentile(0.5) == 0.005);
+        Assert.assertTrue(histogram.getPercentile(0.99) == 0.005);
+        Assert.assertTrue(histogram.getPercentile(1.0) == 7.0);
+    }
+
+    private static String writeText(MetricsRegistry registry) {
+        StringWriter text = new StringWriter();
+        registry.writeText(new PrintWriter(text));
+        return text.toString();
+    }
+}